@@ -4,23 +4,29 @@ import net.i2p.client.streaming.I2PSocket;
 import net.i2p.client.streaming.I2PSocketManager;
 import net.i2p.I2PException;
 import java.net.ConnectException;
-import java.nio.channels.SelectableChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
 
 /**
  *  As this does not (yet) extend ServerSocketChannel it cannot be returned by StandardServerSocket.getChannel(),
  *  until we implement an I2P SocketAddress class.		
  *
+ *  As of 0.9.10, may be registered with a StreamSelector.
+ *
  *  Warning, this interface and implementation is preliminary and subject to change without notice.
  *
  *  @since 0.8.11
  */
-public abstract class AcceptingChannel extends SelectableChannel {
+public abstract class AcceptingChannel extends AbstractSelectableChannel {
 
+    /**
+     *  In non-blocking mode, returns null if there is no connection pending.
+     */
     abstract I2PSocket accept() throws I2PException, ConnectException;
 
     protected final I2PSocketManager _socketManager;
 
     AcceptingChannel(I2PSocketManager manager) {
+        super(null);
         this._socketManager = manager;
     }
 }
@@ -1,59 +1,65 @@
 package net.i2p.client.streaming;
 
+import net.i2p.I2PAppContext;
 import net.i2p.I2PException;
 
-import java.net.SocketTimeoutException;
 import java.net.ConnectException;
 import java.io.IOException;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.spi.AbstractSelectionKey;
-import java.nio.channels.spi.SelectorProvider;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  *  As this does not (yet) extend ServerSocketChannel it cannot be returned by StandardServerSocket.getChannel(),
  *  until we implement an I2P SocketAddress class.		
  *
+ *  As of 0.9.10, accept readiness is pushed from the ConnectionHandler
+ *  instead of polling the server socket.
+ *  Non-blocking by default, as in previous versions.
+ *
  *  Warning, this interface and implementation is preliminary and subject to change without notice.
  *
  *  @since 0.8.11
  */
-class AcceptingChannelImpl extends AcceptingChannel {
-    private boolean _isRegistered;
-    private SelectionKey whichKey;
-    private SelectorProvider provider;
-    private Selector sel;
-    private Object lock;
-    private volatile I2PSocket next;
-    private final I2PServerSocket socket;
-
-    I2PSocket accept() throws I2PException, ConnectException {
-        I2PSocket sock;
-        try {
-            sock = socket.accept();
-        } catch(SocketTimeoutException ex) {
-            return null;
-        }
-        synchronized (this) {
-            I2PSocket temp = next;
-            next = sock;
-            return temp;
-        }
-    }
+class AcceptingChannelImpl extends AcceptingChannel implements StreamChannel, ReadyListener {
+    private final I2PAppContext _context;
+    private final ConnectionManager _manager;
+    private final List<StreamSelectionKey> _keys;
 
-    AcceptingChannelImpl(I2PSocketManager manager) {
+    AcceptingChannelImpl(I2PSocketManagerFull manager) {
         super(manager);
-        // this cheats and just sets the manager timeout low in order to repeatedly poll it.
-        // that means we can "only" accept one new connection every 100 milliseconds.
-        socket = manager.getServerSocket();
-        socket.setSoTimeout(100);
+        _context = manager.getContext();
+        _manager = manager.getConnectionManager();
+        _keys = new CopyOnWriteArrayList<StreamSelectionKey>();
+        try {
+            configureBlocking(false);
+        } catch (IOException ioe) {}
+        _manager.getConnectionHandler().setReadyListener(this);
     }
 
-    @Override
-    public SelectorProvider provider() {
-        return provider;
+    /**
+     *  @return null if none pending in non-blocking mode
+     */
+    I2PSocket accept() throws I2PException, ConnectException {
+        if (!isOpen())
+            throw new ConnectException("Closed");
+        ConnectionHandler handler = _manager.getConnectionHandler();
+        if (!handler.getActive())
+            throw new ConnectException("Not listening");
+        Connection con;
+        if (isBlocking()) {
+            con = handler.accept(-1);
+        } else {
+            if (!handler.hasPending())
+                return null;
+            // the queue may hold non-SYNs or dup SYNs, don't wait for another
+            con = handler.accept(1);
+        }
+        if (con == null)
+            return null;
+        I2PSocketFull sock = new I2PSocketFull(con, _context);
+        con.setSocket(sock);
+        return sock;
     }
 
     @Override
@@ -61,93 +67,38 @@ class AcceptingChannelImpl extends AcceptingChannel {
         return SelectionKey.OP_ACCEPT;
     }
 
+    /** @since 0.9.10 */
     @Override
-    public boolean isRegistered() {
-        return _isRegistered;
-    }
-
-    @Override
-    public SelectionKey keyFor(Selector arg0) {
-        return whichKey;
-    }
+    protected void implConfigureBlocking(boolean block) {}
 
     @Override
-    public SelectionKey register(final Selector sel, final int ops, Object lock) throws ClosedChannelException {
-        this.sel = sel;
-        this.provider = sel.provider();
-        this.lock = lock;
-        this._isRegistered = true;
-        final AcceptingChannel that = this; // lol java
-        SelectionKey key = new AbstractSelectionKey() {
-            int operations = ops;
-            @Override
-            public SelectableChannel channel() {
-                return that;
-            }
-
-            @Override
-            public Selector selector() {
-                return sel;
-            }
-
-            @Override
-            public int interestOps() {
-                return this.operations;
-            }
-
-            @Override
-            public SelectionKey interestOps(int ops) {
-                this.operations = ops;
-                return this;
-            }
-
-            @Override
-            public int readyOps() {
-                if((operations & OP_ACCEPT) != 0) {
-                    if(next != null) {
-                        return OP_ACCEPT;
-                    } else {
-                        try {
-                            accept(); // ping it again.
-                        } catch(I2PException ex) {
-                        } catch(ConnectException ex) {}                        
-                        if(next != null)
-                            return OP_ACCEPT;
-                    }
-                }
-                return 0;
-            }
-        };
-        key.attach(lock);
-        // I... THINK this is right?
-        sel.keys().add(key);
-        return key;
+    protected void implCloseSelectableChannel() throws IOException {
+        _manager.getConnectionHandler().setReadyListener(null);
+        _socketManager.destroySocketManager();
     }
 
-    @Override
-    public SelectableChannel configureBlocking(boolean blocking) throws IOException {
-        if (blocking == false) {
-            return this;
-        }
-        throw new UnsupportedOperationException("Not supported yet.");
+    /** @since 0.9.10 */
+    public int readyOps() {
+        return _manager.getConnectionHandler().hasPending() ? SelectionKey.OP_ACCEPT : 0;
     }
 
-    @Override
-    public boolean isBlocking() {
-        return false;
+    /** @since 0.9.10 */
+    public void addKey(StreamSelectionKey key) {
+        _keys.add(key);
     }
 
-    @Override
-    public Object blockingLock() {
-        return this.lock;
+    /** @since 0.9.10 */
+    public void removeKey(StreamSelectionKey key) {
+        _keys.remove(key);
     }
 
-    @Override
-    protected void implCloseChannel() throws IOException {
-        I2PSocket nxt = next;
-        if(nxt != null) {
-            nxt.close();
+    /**
+     *  From the ConnectionHandler, tell the selectors.
+     *  @since 0.9.10
+     */
+    public void readyChanged() {
+        for (StreamSelectionKey key : _keys) {
+            key.readyChanged();
         }
-        _socketManager.destroySocketManager();
     }
 }
@@ -0,0 +1,50 @@
+package net.i2p.client.streaming;
+
+/**
+ * Sets the send window of a connection, in packets.
+ *
+ * The connection decides when an ack or a loss happened, and when a
+ * loss is a new congestion event (at most once per window of data);
+ * the implementation decides how the window responds.
+ * The RTT and RTO in ConnectionOptions are maintained by the connection,
+ * and have already been updated when onAck() is called.
+ *
+ * One instance per connection, as implementations may keep state.
+ * Selected with ConnectionOptions.PROP_CONGESTION_CONTROL.
+ *
+ * @since 0.9.10
+ */
+interface CongestionControl {
+
+    /**
+     * Called for each received packet that acks at least one of our packets.
+     *
+     * @param opts the current window size and RTT
+     * @param acked the number of packets newly acked, greater than zero
+     * @param numResends how many of those had been retransmitted
+     * @param rtt the highest RTT of the acked packets that weren't retransmitted, or -1 if none
+     * @param congested this packet was a duplicate of data we already received,
+     *                  i.e. the far end retransmitted, so it saw our acks as lost
+     * @param lastCongestionSeenAt the window size at the last congestion event
+     * @param now ms
+     * @return the new window size, ConnectionOptions.setWindowSize() will enforce the limits
+     */
+    public int ackReceived(ConnectionOptions opts, int acked, int numResends, int rtt,
+                           boolean congested, int lastCongestionSeenAt, long now);
+
+    /**
+     * Called for the first lost packet in a window.
+     *
+     * @param opts the current window size and RTT
+     * @param fast true if the loss was detected by NACKs (fast retransmit),
+     *             false if the retransmission timer expired
+     * @param now ms
+     * @return the new window size, ConnectionOptions.setWindowSize() will enforce the limits
+     */
+    public int congestionOccurred(ConnectionOptions opts, boolean fast, long now);
+
+    /**
+     * @return the name used in ConnectionOptions.PROP_CONGESTION_CONTROL
+     */
+    public String getName();
+}
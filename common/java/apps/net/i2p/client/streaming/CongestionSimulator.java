@@ -0,0 +1,368 @@
+package net.i2p.client.streaming;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Benchmark for the CongestionControl implementations.
+ * A bulk transfer over a simulated tunnel pair, in virtual time,
+ * so a few minutes of transfer take well under a second.
+ *
+ * The outbound tunnel has a bottleneck of the given bandwidth with a
+ * drop-tail queue, then random loss and a latency with jitter (so packets
+ * may be reordered). The inbound tunnel carrying the acks has the same loss and latency.
+ * The receiver acks every packet immediately, with NACKs for the holes.
+ *
+ * The sender follows Connection and PacketLocal: RTT and RTO from ConnectionOptions,
+ * retransmission timer backoff, fast retransmit after FAST_RETRANSMIT_THRESHOLD NACKs,
+ * and at most one congestion event per window. It does not model the
+ * limit on active resends, choking, or the connection setup.
+ *
+ * Usage: CongestionSimulator [one-way latency ms] [loss %] [bandwidth KBps] [seconds] [queue packets]
+ *
+ * @since 0.9.10
+ */
+class CongestionSimulator {
+
+    private static final int PACKET_SIZE = ConnectionOptions.DEFAULT_MAX_MESSAGE_SIZE;
+    /** fraction of latency */
+    private static final double JITTER = 0.1d;
+    /** as in Packet */
+    private static final int MAX_NACKS = 255;
+
+    private final CongestionControl _cc;
+    /** only fast retransmit the first send, as before 0.9.10 */
+    private final boolean _legacyNACKs;
+    private final int _latency;
+    private final double _loss;
+    /** ms per packet */
+    private final double _serialization;
+    private final int _queueSize;
+    private final Random _rand;
+
+    private final PriorityQueue<Event> _events = new PriorityQueue<Event>();
+    private long _now;
+    private long _eventCount;
+
+    // sender
+    private final ConnectionOptions _opts;
+    private final TreeMap<Long, SimPacket> _outbound = new TreeMap<Long, SimPacket>();
+    private long _nextSeq;
+    private boolean _ackSinceCongestion = true;
+    private int _lastCongestionSeenAt = Connection.MAX_WINDOW_SIZE * 2;
+    private long _lastCongestionHighestUnacked = -1;
+
+    // bottleneck
+    private double _linkFreeAt;
+
+    // receiver
+    private final Map<Long, Boolean> _received = new HashMap<Long, Boolean>();
+    private long _readThrough = -1;
+    private long _highestReceived = -1;
+
+    // results
+    private int _sends;
+    private int _fastRetransmits;
+    private int _timeouts;
+    private int _congestionEvents;
+    private int _queueDrops;
+    private long _windowSum;
+    private long _windowSamples;
+
+    public CongestionSimulator(CongestionControl cc, boolean legacyNACKs, int latency, double loss,
+                               int bandwidth, int queueSize, long seed) {
+        _cc = cc;
+        _legacyNACKs = legacyNACKs;
+        _latency = latency;
+        _loss = loss;
+        _serialization = PACKET_SIZE * 1000d / bandwidth;
+        _queueSize = queueSize;
+        _rand = new Random(seed);
+        _opts = new ConnectionOptions();
+    }
+
+    /**
+     *  @return goodput, bytes per second delivered in order to the receiver
+     */
+    public double run(long duration) {
+        sendMore();
+        while (!_events.isEmpty()) {
+            Event e = _events.poll();
+            if (e.time > duration)
+                break;
+            _now = e.time;
+            e.run();
+        }
+        return (_readThrough + 1) * (double) PACKET_SIZE * 1000 / duration;
+    }
+
+    ////// sender
+
+    private void sendMore() {
+        while (_outbound.size() < _opts.getWindowSize()) {
+            SimPacket p = new SimPacket(_nextSeq++);
+            _outbound.put(Long.valueOf(p.seq), p);
+            send(p);
+        }
+        _windowSum += _opts.getWindowSize();
+        _windowSamples++;
+    }
+
+    private void send(SimPacket p) {
+        p.numSends++;
+        p.lastSend = _now;
+        p.nacksAtSend = p.nacks;
+        p.fastPending = false;
+        _sends++;
+        long rto = Math.max(_opts.getRTO(), Connection.MIN_RESEND_DELAY);
+        long timeout = rto << (p.numSends - 1);
+        if (timeout > Connection.MAX_RESEND_DELAY || timeout <= 0)
+            timeout = Connection.MAX_RESEND_DELAY;
+        schedule(new Timeout(_now + timeout, p, p.numSends));
+        forward(p.seq);
+    }
+
+    /** as in Connection.ResendPacketEvent.retransmit() */
+    private void retransmit(SimPacket p, boolean fast) {
+        if (fast)
+            _fastRetransmits++;
+        else
+            _timeouts++;
+        if (_ackSinceCongestion && p.seq > _lastCongestionHighestUnacked) {
+            _ackSinceCongestion = false;
+            _lastCongestionSeenAt = _opts.getWindowSize();
+            _lastCongestionHighestUnacked = _nextSeq - 1;
+            _congestionEvents++;
+            _opts.setWindowSize(_cc.congestionOccurred(_opts, fast, _now));
+        }
+        send(p);
+    }
+
+    /** as in ConnectionPacketHandler.ack() and Connection.ackPackets() */
+    private void ackReceived(long ackThrough, long[] nacks) {
+        Set<Long> nackSet = new HashSet<Long>();
+        if (nacks != null) {
+            for (int i = 0; i < nacks.length; i++) {
+                nackSet.add(Long.valueOf(nacks[i]));
+            }
+        }
+        int acked = 0;
+        int numResends = 0;
+        int highestRTT = -1;
+        List<SimPacket> nacked = new ArrayList<SimPacket>();
+        for (Iterator<SimPacket> iter = _outbound.headMap(Long.valueOf(ackThrough), true).values().iterator();
+             iter.hasNext(); ) {
+            SimPacket p = iter.next();
+            if (nackSet.contains(Long.valueOf(p.seq))) {
+                nacked.add(p);
+                continue;
+            }
+            iter.remove();
+            acked++;
+            if (p.numSends > 1)
+                numResends++;
+            else
+                highestRTT = Math.max(highestRTT, (int) (_now - p.lastSend));
+        }
+        for (SimPacket p : nacked) {
+            nacked(p);
+        }
+        if (acked <= 0)
+            return;
+        _ackSinceCongestion = true;
+        if (highestRTT > 0)
+            _opts.updateRTT(highestRTT);
+        _opts.setWindowSize(_cc.ackReceived(_opts, acked, numResends, highestRTT, false,
+                                            _lastCongestionSeenAt, _now));
+        sendMore();
+    }
+
+    /** as in PacketLocal.incrementNACKs() */
+    private void nacked(SimPacket p) {
+        int cnt = ++p.nacks;
+        if (_legacyNACKs) {
+            if (cnt >= Connection.FAST_RETRANSMIT_THRESHOLD && !p.fastPending && p.numSends == 1) {
+                p.fastPending = true;
+                retransmit(p, true);
+            }
+            return;
+        }
+        if (p.numSends > 1 && p.lastSend > _now - _opts.getRTT()) {
+            p.nacksAtSend = cnt;
+            return;
+        }
+        if (cnt - p.nacksAtSend >= Connection.FAST_RETRANSMIT_THRESHOLD && !p.fastPending) {
+            p.fastPending = true;
+            retransmit(p, true);
+        }
+    }
+
+    ////// tunnels
+
+    private void forward(long seq) {
+        double start = Math.max(_now, _linkFreeAt);
+        if ((start - _now) / _serialization >= _queueSize) {
+            _queueDrops++;
+            return;
+        }
+        _linkFreeAt = start + _serialization;
+        if (_rand.nextDouble() < _loss)
+            return;
+        schedule(new DataArrival((long) _linkFreeAt + delay(), seq));
+    }
+
+    private void reverse(long ackThrough, long[] nacks) {
+        if (_rand.nextDouble() < _loss)
+            return;
+        schedule(new AckArrival(_now + delay(), ackThrough, nacks));
+    }
+
+    private long delay() {
+        return (long) (_latency * (1 + JITTER * (2 * _rand.nextDouble() - 1)));
+    }
+
+    ////// receiver
+
+    private void dataReceived(long seq) {
+        if (seq > _readThrough)
+            _received.put(Long.valueOf(seq), Boolean.TRUE);
+        while (_received.remove(Long.valueOf(_readThrough + 1)) != null)
+            _readThrough++;
+        if (seq > _highestReceived)
+            _highestReceived = seq;
+        long[] nacks = null;
+        int count = 0;
+        for (long i = _readThrough + 1; i < _highestReceived && count < MAX_NACKS; i++) {
+            if (!_received.containsKey(Long.valueOf(i)))
+                count++;
+        }
+        if (count > 0) {
+            nacks = new long[count];
+            int j = 0;
+            for (long i = _readThrough + 1; i < _highestReceived && j < count; i++) {
+                if (!_received.containsKey(Long.valueOf(i)))
+                    nacks[j++] = i;
+            }
+        }
+        reverse(_highestReceived, nacks);
+    }
+
+    ////// events
+
+    private void schedule(Event e) {
+        e.order = _eventCount++;
+        _events.add(e);
+    }
+
+    private static class SimPacket {
+        final long seq;
+        int numSends;
+        long lastSend;
+        int nacks;
+        int nacksAtSend;
+        boolean fastPending;
+
+        public SimPacket(long seq) { this.seq = seq; }
+    }
+
+    private static abstract class Event implements Comparable<Event> {
+        final long time;
+        long order;
+
+        public Event(long time) { this.time = time; }
+
+        public abstract void run();
+
+        public int compareTo(Event e) {
+            if (time != e.time)
+                return time < e.time ? -1 : 1;
+            return order < e.order ? -1 : (order > e.order ? 1 : 0);
+        }
+    }
+
+    private class Timeout extends Event {
+        private final SimPacket _packet;
+        private final int _send;
+
+        public Timeout(long time, SimPacket p, int send) {
+            super(time);
+            _packet = p;
+            _send = send;
+        }
+
+        public void run() {
+            // acked, or sent again since
+            if (_packet.numSends == _send && _outbound.containsKey(Long.valueOf(_packet.seq)))
+                retransmit(_packet, false);
+        }
+    }
+
+    private class DataArrival extends Event {
+        private final long _seq;
+
+        public DataArrival(long time, long seq) {
+            super(time);
+            _seq = seq;
+        }
+
+        public void run() { dataReceived(_seq); }
+    }
+
+    private class AckArrival extends Event {
+        private final long _ackThrough;
+        private final long[] _nacks;
+
+        public AckArrival(long time, long ackThrough, long[] nacks) {
+            super(time);
+            _ackThrough = ackThrough;
+            _nacks = nacks;
+        }
+
+        public void run() { ackReceived(_ackThrough, _nacks); }
+    }
+
+    @Override
+    public String toString() {
+        return "sends: " + _sends +
+               " fast retx: " + _fastRetransmits +
+               " timeouts: " + _timeouts +
+               " congestion events: " + _congestionEvents +
+               " queue drops: " + _queueDrops +
+               " avg window: " + (_windowSum / Math.max(1, _windowSamples)) +
+               " RTT: " + _opts.getRTT() + " " + _cc;
+    }
+
+    public static void main(String[] args) {
+        int latency = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        double loss = args.length > 1 ? Double.parseDouble(args[1]) / 100 : 0.01d;
+        int bandwidth = args.length > 2 ? Integer.parseInt(args[2]) * 1024 : 64*1024;
+        long duration = args.length > 3 ? Integer.parseInt(args[3]) * 1000L : 300*1000L;
+        int queue = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        System.out.println("latency " + latency + "ms loss " + (loss * 100) + "% bandwidth " +
+                           (bandwidth / 1024) + "KBps queue " + queue + " duration " + (duration / 1000) + "s");
+        String[] names = { "reno (legacy NACK)", RenoCongestionControl.NAME, DelayCongestionControl.NAME };
+        for (int i = 0; i < names.length; i++) {
+            double total = 0;
+            CongestionSimulator sim = null;
+            final int runs = 5;
+            for (int seed = 0; seed < runs; seed++) {
+                CongestionControl cc = i == 2 ? new DelayCongestionControl() : new RenoCongestionControl(ctx);
+                sim = new CongestionSimulator(cc, i == 0, latency, loss, bandwidth, queue, seed);
+                total += sim.run(duration);
+            }
+            System.out.println(String.format("%-20s goodput %7.1f KBps  (last run: %s)",
+                                             names[i], total / runs / 1024, sim));
+        }
+    }
+}
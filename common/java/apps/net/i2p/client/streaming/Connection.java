@@ -58,6 +58,8 @@ class Connection {
     private ConnectionOptions _options;
     private final ConnectionDataReceiver _receiver;
     private I2PSocketFull _socket;
+    /** for a StreamSelector, may be null @since 0.9.10 */
+    private volatile ReadyListener _readyListener;
     /** set to an error cause if the connection could not be established */
     private String _connectionError;
     private final AtomicLong _disconnectScheduledOn = new AtomicLong();
@@ -68,6 +70,8 @@ class Connection {
     private long _lastCongestionTime;
     private volatile long _lastCongestionHighestUnacked;
     private final AtomicBoolean _ackSinceCongestion;
+    /** @since 0.9.10 */
+    private final CongestionControl _congestionControl;
     /** Notify this on connection (or connection failure) */
     private final Object _connectLock;
     /** how many messages have been resent and not yet ACKed? */
@@ -144,6 +148,10 @@ class Connection {
         _lastReceivedOn = -1;
         _activityTimer = new ActivityTimer();
         _ackSinceCongestion = new AtomicBoolean(true);
+        if (DelayCongestionControl.NAME.equals(_options.getCongestionControl()))
+            _congestionControl = new DelayCongestionControl();
+        else
+            _congestionControl = new RenoCongestionControl(_context);
         _connectLock = new Object();
         _connectionEvent = new ConEvent();
         _randomWait = _context.random().nextInt(10*1000); // just do this once to reduce usage
@@ -194,9 +202,7 @@ class Connection {
                 // Limit (highest-lowest) to twice the window (if far end doesn't like it, it can send a choke)
                 int unacked = _outboundPackets.size();
                 int wsz = _options.getWindowSize();
-                if (unacked >= wsz ||
-                    _activeResends.get() >= (wsz + 1) / 2 ||
-                    _lastSendId.get() - _highestAckedThrough >= Math.max(MAX_WINDOW_SIZE, 2 * wsz)) {
+                if (locked_isWindowFull()) {
                     if (timeoutMs > 0) {
                         if (timeLeft <= 0) {
                             if (_log.shouldLog(Log.INFO))
@@ -236,6 +242,48 @@ class Connection {
         }
     }
 
+    /**
+     *  Limit unacked packets to the window,
+     *  limit active resends to half the window,
+     *  limit (highest-lowest) to twice the window.
+     *  Caller must synch on _outboundPackets.
+     *  @since 0.9.10 pulled out of packetSendChoke()
+     */
+    private boolean locked_isWindowFull() {
+        int wsz = _options.getWindowSize();
+        return _outboundPackets.size() >= wsz ||
+               _activeResends.get() >= (wsz + 1) / 2 ||
+               _lastSendId.get() - _highestAckedThrough >= Math.max(MAX_WINDOW_SIZE, 2 * wsz);
+    }
+
+    /**
+     *  Would packetSendChoke() return without waiting?
+     *  @since 0.9.10
+     */
+    boolean isWindowOpen() {
+        if (!_connected.get())
+            return false;
+        synchronized (_outboundPackets) {
+            return !locked_isWindowFull();
+        }
+    }
+
+    /**
+     *  Notified when the window may have opened, and on disconnect.
+     *  @param lsnr may be null
+     *  @since 0.9.10
+     */
+    void setReadyListener(ReadyListener lsnr) {
+        _readyListener = lsnr;
+    }
+
+    /** @since 0.9.10 */
+    private void notifyReadyListener() {
+        ReadyListener lsnr = _readyListener;
+        if (lsnr != null)
+            lsnr.readyChanged();
+    }
+
     /**
      *  Notify all threads waiting in packetSendChoke()
      */
@@ -243,6 +291,7 @@ class Connection {
         synchronized (_outboundPackets) {
             _outboundPackets.notifyAll();
         }
+        notifyReadyListener();
     }
     
     void ackImmediately() {
@@ -515,8 +564,10 @@ class Connection {
             }
             _outboundPackets.notifyAll();
         }
-        if ((acked != null) && (!acked.isEmpty()) )
+        if ((acked != null) && (!acked.isEmpty()) ) {
             _ackSinceCongestion.set(true);
+            notifyReadyListener();
+        }
         return acked;
     }
 
@@ -678,6 +729,7 @@ class Connection {
             return;
         }
         synchronized (_connectLock) { _connectLock.notifyAll(); }
+        notifyReadyListener();
 
         if (_closeReceivedOn.get() <= 0) {
             // should have already been called from closeReceived() above
@@ -977,6 +1029,9 @@ class Connection {
     
     public int getLastCongestionSeenAt() { return _lastCongestionSeenAt; }
 
+    /** @since 0.9.10 */
+    CongestionControl getCongestionControl() { return _congestionControl; }
+
     void congestionOccurred() {
         // if we hit congestion and e.g. 5 packets are resent,
         // dont set the size to (winSize >> 4).  only set the
@@ -1305,7 +1360,7 @@ class Connection {
                     resend = true;
             }
             if ( (resend) && (_packet.getAckTime() <= 0) ) {
-                boolean fastRetransmit = ( (_packet.getNACKs() >= FAST_RETRANSMIT_THRESHOLD) && (_packet.getNumSends() == 1));
+                boolean fastRetransmit = _packet.isFastRetransmit();
                 if ( (!isLowest) && (!fastRetransmit) ) {
                     // we want to resend this packet, but there are already active
                     // resends in the air and we dont want to make a bad situation 
@@ -1349,16 +1404,16 @@ class Connection {
                     if (_packet.getSequenceNum() > _lastCongestionHighestUnacked) {
                         congestionOccurred();
                         _context.statManager().addRateData("stream.con.windowSizeAtCongestion", newWindowSize, _packet.getLifetime());
-                        newWindowSize /= 2;
-                        if (newWindowSize <= 0)
-                            newWindowSize = 1;
+                        newWindowSize = _congestionControl.congestionOccurred(getOptions(), fastRetransmit,
+                                                                              _context.clock().now());
                         
                         // setRTT has its own ceiling
                         //getOptions().setRTT(getOptions().getRTT() + 10*1000);
                         getOptions().setWindowSize(newWindowSize);
 
                         if (_log.shouldLog(Log.WARN))
-                            _log.warn("Congestion, resending packet " + _packet.getSequenceNum() + " (new windowSize " + newWindowSize 
+                            _log.warn("Congestion (" + (fastRetransmit ? "NACK" : "timeout") +
+                                      "), resending packet " + _packet.getSequenceNum() + " (new windowSize " + newWindowSize 
                                       + "/" + getOptions().getWindowSize() + ") for " + Connection.this.toString());
 
                         windowAdjusted();
@@ -1434,6 +1489,7 @@ class Connection {
                     synchronized (_outboundPackets) {
                         _outboundPackets.notifyAll();
                     }
+                    notifyReadyListener();
                 }
 
                 return true;
@@ -51,6 +51,14 @@ class ConnectionDataReceiver implements MessageOutputStream.DataReceiver {
     public boolean writeInProcess() {
         return _connection.getUnackedPacketsSent() >= _connection.getOptions().getWindowSize();
     }
+
+    /**
+     *  @return true if waitForAccept() on a packet sent now would wait for the window
+     *  @since 0.9.10
+     */
+    public boolean writeWouldBlock() {
+        return !_connection.isWindowOpen();
+    }
     
     /**
      * Send some data through the connection, or if there is no new data, this
@@ -24,6 +24,8 @@ class ConnectionHandler {
     private final LinkedBlockingQueue<Packet> _synQueue;
     private boolean _active;
     private int _acceptTimeout;
+    /** for an AcceptingChannel, may be null @since 0.9.10 */
+    private volatile ReadyListener _readyListener;
     
     /** max time after receiveNewSyn() and before the matched accept() */
     private static final int DEFAULT_ACCEPT_TIMEOUT = 3*1000;
@@ -52,9 +54,37 @@ class ConnectionHandler {
             try {
                 _synQueue.put(new PoisonPacket()); // so we break from the accept() - waits until space is available
             } catch (InterruptedException ie) {}
+            notifyReadyListener();
         }
     }
     public boolean getActive() { return _active; }
+
+    /**
+     *  Notified when a packet is queued for accept(), and on setActive(false).
+     *  @param lsnr may be null
+     *  @since 0.9.10
+     */
+    void setReadyListener(ReadyListener lsnr) {
+        _readyListener = lsnr;
+    }
+
+    /** @since 0.9.10 */
+    private void notifyReadyListener() {
+        ReadyListener lsnr = _readyListener;
+        if (lsnr != null)
+            lsnr.readyChanged();
+    }
+
+    /**
+     *  Would accept() return without waiting?
+     *  May be a false positive, if the queued packets are not valid SYNs
+     *  accept() will return null when called with a short timeout.
+     *
+     *  @since 0.9.10
+     */
+    boolean hasPending() {
+        return !_active || !_synQueue.isEmpty();
+    }
     
     /**
      * Non-SYN packets with a zero SendStreamID may also be queued here so 
@@ -83,6 +113,7 @@ class ConnectionHandler {
         boolean success = _synQueue.offer(packet); // fail immediately if full
         if (success) {
             _context.simpleScheduler().addEvent(new TimeoutSyn(packet), _acceptTimeout);
+            notifyReadyListener();
         } else {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Dropping new SYN request, as the queue is full");
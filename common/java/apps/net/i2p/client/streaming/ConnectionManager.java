@@ -72,7 +72,7 @@ class ConnectionManager {
         _conPacketHandler = new ConnectionPacketHandler(_context);
         _timer = new RetransmissionTimer(_context, "Streaming Timer " +
                                          session.getMyDestination().calculateHash().toBase64().substring(0, 4));
-        _tcbShare = new TCBShare(_context, _timer);
+        _tcbShare = new TCBShare(_context, _timer, session.getMyDestination().calculateHash());
         // PROTO_ANY is for backward compatibility (pre-0.7.1)
         // TODO change proto to PROTO_STREAMING someday.
         // Right now we get everything, and rely on Datagram to specify PROTO_UDP.
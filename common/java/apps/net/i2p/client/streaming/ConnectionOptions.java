@@ -2,6 +2,7 @@ package net.i2p.client.streaming;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
@@ -39,6 +40,7 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     private int _maxWindowSize;
     private int _congestionAvoidanceGrowthRateFactor;
     private int _slowStartGrowthRateFactor;
+    private String _congestionControl;
     private boolean _accessListEnabled;
     private boolean _blackListEnabled;
     private Set<Hash> _accessList;
@@ -101,6 +103,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
     public static final String PROP_CONGESTION_AVOIDANCE_GROWTH_RATE_FACTOR = "i2p.streaming.congestionAvoidanceGrowthRateFactor";
     public static final String PROP_SLOW_START_GROWTH_RATE_FACTOR = "i2p.streaming.slowStartGrowthRateFactor";
     public static final String PROP_ANSWER_PINGS = "i2p.streaming.answerPings";
+    /** "reno" (default) or "delay", see CongestionControl @since 0.9.10 */
+    public static final String PROP_CONGESTION_CONTROL = "i2p.streaming.congestionControl";
     /** all of these are @since 0.7.13 */
     public static final String PROP_ENABLE_ACCESS_LIST = "i2cp.enableAccessList";
     public static final String PROP_ENABLE_BLACKLIST = "i2cp.enableBlackList";
@@ -328,6 +332,7 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
             setInboundBufferSize(opts.getInboundBufferSize());
             setCongestionAvoidanceGrowthRateFactor(opts.getCongestionAvoidanceGrowthRateFactor());
             setSlowStartGrowthRateFactor(opts.getSlowStartGrowthRateFactor());
+            setCongestionControl(opts.getCongestionControl());
             // handled in super()
             // not clear why added by jr 12/22/2005
             //setWriteTimeout(opts.getWriteTimeout());
@@ -367,6 +372,7 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
                                                       DEFAULT_CONGESTION_AVOIDANCE_GROWTH_RATE_FACTOR));
         setSlowStartGrowthRateFactor(getInt(opts, PROP_SLOW_START_GROWTH_RATE_FACTOR,
                                             DEFAULT_SLOW_START_GROWTH_RATE_FACTOR));
+        setCongestionControl(getString(opts, PROP_CONGESTION_CONTROL, RenoCongestionControl.NAME));
         // overrides default in super()... why?
         //setConnectTimeout(getInt(opts, PROP_CONNECT_TIMEOUT, Connection.DISCONNECT_TIMEOUT));
         setAnswerPings(getBool(opts, PROP_ANSWER_PINGS, DEFAULT_ANSWER_PINGS));
@@ -423,6 +429,8 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
         if (opts.contains(PROP_SLOW_START_GROWTH_RATE_FACTOR))
             setSlowStartGrowthRateFactor(getInt(opts, PROP_SLOW_START_GROWTH_RATE_FACTOR,
                                                 DEFAULT_SLOW_START_GROWTH_RATE_FACTOR));
+        if (opts.containsKey(PROP_CONGESTION_CONTROL))
+            setCongestionControl(getString(opts, PROP_CONGESTION_CONTROL, RenoCongestionControl.NAME));
         if (opts.containsKey(PROP_CONNECT_TIMEOUT))
             // overrides default in super()
             setConnectTimeout(getInt(opts, PROP_CONNECT_TIMEOUT, Connection.DEFAULT_CONNECT_TIMEOUT));
@@ -737,6 +745,16 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
      */
     public int getSlowStartGrowthRateFactor() { return _slowStartGrowthRateFactor; }
     public void setSlowStartGrowthRateFactor(int factor) { _slowStartGrowthRateFactor = factor; }
+
+    /**
+     * The congestion control algorithm for new connections,
+     * "reno" (loss-based AIMD, the default) or "delay" (bandwidth and min RTT based).
+     * Unknown names are treated as "reno".
+     * @since 0.9.10
+     */
+    public String getCongestionControl() { return _congestionControl; }
+    /** @since 0.9.10 */
+    public void setCongestionControl(String name) { _congestionControl = name; }
     
     /** all of these are @since 0.7.14; no public setters */
     public int getMaxConnsPerMinute() { return _maxConnsPerMinute; }
@@ -823,6 +841,7 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
         buf.append(" inactivityTimeout=").append(_inactivityTimeout);
         buf.append(" inboundBuffer=").append(_inboundBufferSize);
         buf.append(" maxWindowSize=").append(_maxWindowSize);
+        buf.append(" cc=").append(_congestionControl);
         buf.append(" blacklistSize=").append(_blackList.size());
         buf.append(" whitelistSize=").append(_accessList.size());
         buf.append(" maxConns=").append(_maxConnsPerMinute).append('/')
@@ -841,6 +860,14 @@ class ConnectionOptions extends I2PSocketOptionsImpl {
         return Boolean.parseBoolean(val);
     }
 
+    /** @since 0.9.10 */
+    private static String getString(Properties opts, String name, String defaultVal) {
+        if (opts == null) return defaultVal;
+        String val = opts.getProperty(name);
+        if (val == null)  return defaultVal;
+        return val.trim().toLowerCase(Locale.US);
+    }
+
 /****
     public static void main(String args[]) {
         Properties p = new Properties();
@@ -283,6 +283,7 @@ class ConnectionPacketHandler {
         boolean firstAck = isNew && con.getHighestAckedThrough() < 0;
 
         int numResends = 0;
+        int highestRTT = -1;
         List<PacketLocal> acked = null;
         // if we don't know the streamIds for both sides of the connection, there's no way we
         // could actually be acking data (this fixes the buggered up ack of packet 0 problem).
@@ -306,7 +307,6 @@ class ConnectionPacketHandler {
             // use the highest RTT, since these would likely be bunched together,
             // and the highest rtt lets us set our resend delay properly
             // RFC 6298 part 3 dictates only use packets that haven't been re-sent.
-            int highestRTT = -1;
             for (int i = 0; i < acked.size(); i++) {
                 PacketLocal p = acked.get(i);
                 
@@ -355,14 +355,21 @@ class ConnectionPacketHandler {
                 lastPacketAcked = true;
         }
 
-        boolean rv = adjustWindow(con, isNew, packet.getSequenceNum(), numResends, (acked != null ? acked.size() : 0), choke);
+        boolean rv = adjustWindow(con, isNew, packet.getSequenceNum(), numResends, (acked != null ? acked.size() : 0),
+                                  highestRTT, choke);
         if (lastPacketAcked)
             con.notifyLastPacketAcked();
         return rv;
     }
     
-    /** @return are we congested? */
-    private boolean adjustWindow(Connection con, boolean isNew, long sequenceNum, int numResends, int acked, boolean choke) {
+    /**
+     *  The window size itself is set by the connection's CongestionControl.
+     *
+     *  @param rtt the highest RTT of the acked packets that weren't retransmitted, or -1
+     *  @return are we congested?
+     */
+    private boolean adjustWindow(Connection con, boolean isNew, long sequenceNum, int numResends, int acked,
+                                 int rtt, boolean choke) {
         boolean congested = false;
         if ( (!isNew) && (sequenceNum > 0) ) {
             if (_log.shouldLog(Log.DEBUG))
@@ -393,45 +400,10 @@ class ConnectionPacketHandler {
 
             _context.statManager().addRateData("stream.trend", trend, newWindowSize);
             
-            if ( (!congested) && (acked > 0) && (numResends <= 0) ) {
-                if (newWindowSize < con.getLastCongestionSeenAt() / 2) {
-                    // Don't make this <= LastCongestion/2 or we'll jump right back to where we were
-                    // slow start - exponential growth
-                    // grow acked/N times (where N = the slow start factor)
-                    // always grow at least 1
-                    int factor = con.getOptions().getSlowStartGrowthRateFactor();
-                    if (factor <= 1) {
-                        // above a certain point, don't grow exponentially
-                        // as it often leads to a big packet loss (30-50) all at once that
-                        // takes quite a while (a minute or more) to recover from,
-                        // especially if crypto tags are lost
-                        if (newWindowSize >= MAX_SLOW_START_WINDOW)
-                            newWindowSize++;
-                        else
-                            newWindowSize = Math.min(MAX_SLOW_START_WINDOW, newWindowSize + acked);
-                    } else if (acked < factor)
-                        newWindowSize++;
-                    else
-                        newWindowSize += acked / factor;
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("slow start acks = " + acked + " for " + con);
-                // this is too fast since we mostly disabled the CongestionWindowEnd test above
-                //} else if (trend < 0) {
-                //    // rtt is shrinking, so lets increment the cwin
-                //    newWindowSize++;
-                //    if (_log.shouldLog(Log.DEBUG))
-                //        _log.debug("trend < 0 for " + con);
-                } else {
-                    // congestion avoidance
-                    // linear growth - increase window 1/N per RTT
-                    // we can't use newWindowSize += acked/(oldWindow*N) (where N = the cong. avoid. factor), since we're
-                    // integers, so lets use a random distribution instead
-                    int shouldIncrement = _context.random().nextInt(con.getOptions().getCongestionAvoidanceGrowthRateFactor()*newWindowSize);
-                    if (shouldIncrement < acked)
-                        newWindowSize++;
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("cong. avoid acks = " + acked + " for " + con);
-                }
+            if (acked > 0) {
+                newWindowSize = con.getCongestionControl().ackReceived(con.getOptions(), acked, numResends, rtt,
+                                                                       congested, con.getLastCongestionSeenAt(),
+                                                                       _context.clock().now());
             } else {
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("No change to window: " + con.getOptions().getWindowSize() +
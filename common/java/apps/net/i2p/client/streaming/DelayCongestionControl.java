@@ -0,0 +1,167 @@
+package net.i2p.client.streaming;
+
+/**
+ * A window control based on the path's delivery rate and minimum RTT,
+ * in the style of BBR, rather than on loss.
+ *
+ * I2P tunnels lose packets for reasons other than congestion
+ * (tunnel expiration, lost session tags, a dropped hop), and
+ * halving the window on every such loss keeps bulk transfers far
+ * below what the tunnels can carry. Instead, we measure how many packets
+ * are acked per round trip, and keep the window at a multiple of the
+ * bandwidth-delay product (max delivery rate * min RTT), which bounds the
+ * queueing delay we add to the tunnels no matter how much loss there is.
+ *
+ * Phases:
+ *<ul>
+ *<li>Startup: grow by the number of packets acked (doubling per RTT)
+ *    until the delivery rate stops increasing by 25% for 3 rounds, or there is a loss.
+ *<li>Probe: window = CWND_GAIN * BDP, briefly raised by 25% once every
+ *    8 rounds to find more bandwidth, then lowered by 25% to drain the queue.
+ *<li>Probe RTT: if the min RTT hasn't been seen for MIN_RTT_EXPIRATION, the window
+ *    drops to PROBE_RTT_WINDOW for one RTT to drain the queue and measure it again.
+ *</ul>
+ * On a loss detected by NACKs the window is reduced slightly but not below
+ * the BDP, as later packets are still getting through.
+ * On a retransmission timeout it is reduced to half the BDP.
+ *
+ * Thread safe, one per connection.
+ *
+ * @since 0.9.10
+ */
+class DelayCongestionControl implements CongestionControl {
+
+    public static final String NAME = "delay";
+
+    /** delivery rate max filter length, in rounds */
+    private static final int BW_ROUNDS = 10;
+    /** measure the min RTT again after this long, routes change when tunnels do */
+    private static final long MIN_RTT_EXPIRATION = 30*1000;
+    /** min time in the probe RTT phase, plus one RTT */
+    private static final int PROBE_RTT_TIME = 200;
+    private static final int PROBE_RTT_WINDOW = 4;
+    /** don't measure the delivery rate over less than this */
+    private static final int MIN_ROUND = 100;
+    private static final float STARTUP_GROWTH = 1.25f;
+    private static final int STARTUP_ROUNDS = 3;
+    private static final float CWND_GAIN = 1.5f;
+    private static final float[] PROBE_GAINS = { 1.25f, 0.75f, 1, 1, 1, 1, 1, 1 };
+    /** keep this much of the window on a NACK-detected loss */
+    private static final float FAST_LOSS_FACTOR = 0.85f;
+
+    private boolean _startup = true;
+    private int _minRTT = -1;
+    private long _minRTTAt;
+    /** packets per second */
+    private final float[] _bw = new float[BW_ROUNDS];
+    private int _round;
+    private long _roundStart;
+    private int _roundAcked;
+    private float _fullBW;
+    private int _fullBWRounds;
+    private long _probeRTTUntil;
+    private int _probeMinRTT;
+
+    public synchronized int ackReceived(ConnectionOptions opts, int acked, int numResends, int rtt,
+                                        boolean congested, int lastCongestionSeenAt, long now) {
+        if (rtt > 0 && (_minRTT <= 0 || rtt <= _minRTT)) {
+            _minRTT = rtt;
+            _minRTTAt = now;
+        }
+        if (_probeRTTUntil > 0) {
+            if (rtt > 0 && (_probeMinRTT <= 0 || rtt < _probeMinRTT))
+                _probeMinRTT = rtt;
+            if (now < _probeRTTUntil)
+                return PROBE_RTT_WINDOW;
+            _probeRTTUntil = 0;
+            if (_probeMinRTT > 0)
+                _minRTT = _probeMinRTT;
+            _minRTTAt = now;
+        } else if (!_startup && _minRTT > 0 && now - _minRTTAt > MIN_RTT_EXPIRATION) {
+            // our own queue keeps the RTT above the min, drain it to measure again
+            _probeRTTUntil = now + PROBE_RTT_TIME + opts.getRTT();
+            _probeMinRTT = -1;
+            return PROBE_RTT_WINDOW;
+        }
+        // retransmitted packets were delivered too, count them
+        if (_roundStart <= 0)
+            _roundStart = now;
+        _roundAcked += acked;
+        long elapsed = now - _roundStart;
+        if (elapsed >= Math.max(MIN_ROUND, opts.getRTT()))
+            roundEnded(elapsed);
+
+        int window = opts.getWindowSize();
+        int bdp = getBDP();
+        if (bdp <= 0)
+            return congested ? window : window + acked;
+        if (_startup) {
+            if (congested)
+                return window;
+            // the BDP is limited by the window in startup, so this is 2 * window or so
+            return Math.min(window + acked, Math.max(window, (int) (CWND_GAIN * bdp) + 1));
+        }
+        int target = (int) Math.ceil(CWND_GAIN * PROBE_GAINS[_round % PROBE_GAINS.length] * bdp);
+        if (target > window)
+            return congested ? window : Math.min(target, window + acked);
+        return target;
+    }
+
+    public synchronized int congestionOccurred(ConnectionOptions opts, boolean fast, long now) {
+        _startup = false;
+        int window = opts.getWindowSize();
+        int bdp = getBDP();
+        if (bdp <= 0)
+            return Math.max(1, window / 2);
+        if (fast)
+            return Math.min(window, Math.max(bdp, (int) (window * FAST_LOSS_FACTOR)));
+        return Math.max(1, Math.min(window / 2, bdp / 2));
+    }
+
+    public String getName() { return NAME; }
+
+    /** caller must synch */
+    private void roundEnded(long elapsed) {
+        _bw[_round % BW_ROUNDS] = _roundAcked * 1000f / elapsed;
+        _round++;
+        _roundStart += elapsed;
+        _roundAcked = 0;
+        if (_startup) {
+            float bw = getBW();
+            if (bw >= _fullBW * STARTUP_GROWTH) {
+                _fullBW = bw;
+                _fullBWRounds = 0;
+            } else if (++_fullBWRounds >= STARTUP_ROUNDS) {
+                _startup = false;
+            }
+        }
+    }
+
+    /**
+     *  Caller must synch.
+     *  @return max delivery rate over the last BW_ROUNDS rounds, packets per second
+     */
+    private float getBW() {
+        float rv = 0;
+        for (int i = 0; i < BW_ROUNDS; i++) {
+            if (_bw[i] > rv)
+                rv = _bw[i];
+        }
+        return rv;
+    }
+
+    /**
+     *  Caller must synch.
+     *  @return bandwidth-delay product in packets, or 0 if unknown
+     */
+    private int getBDP() {
+        if (_minRTT <= 0)
+            return 0;
+        return (int) Math.ceil(getBW() * _minRTT / 1000);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return NAME + (_startup ? " startup" : (_probeRTTUntil > 0 ? " probeRTT" : " probe")) + " bw=" + getBW() + " minRTT=" + _minRTT;
+    }
+}
@@ -117,6 +117,13 @@ public class I2PSocketManagerFull implements I2PSocketManager {
         return _connectionManager;
     }
 
+    /**
+     *  @since 0.9.10
+     */
+    I2PAppContext getContext() {
+        return _context;
+    }
+
     /**
      * 
      * @return connected I2PSocket OR NULL
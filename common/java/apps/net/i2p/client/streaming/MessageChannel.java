@@ -1,56 +1,55 @@
 package net.i2p.client.streaming;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.WritableByteChannel;
-import java.nio.channels.spi.AbstractSelectionKey;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  *  As this does not (yet) extend SocketChannel it cannot be returned by StandardSocket.getChannel(),
  *  until we implement an I2P SocketAddress class.		
  *
+ *  As of 0.9.10, may be registered with a StreamSelector.
+ *  Non-blocking by default, as in previous versions.
+ *  In non-blocking mode, read() returns 0 if there is no data, and write() only
+ *  buffers what it can without waiting for the send window, and returns the bytes written.
+ *
  *  Warning, this interface and implementation is preliminary and subject to change without notice.
  *
  *  @since 0.8.9
  */
-public class MessageChannel extends SelectableChannel implements ReadableByteChannel, WritableByteChannel {
+public class MessageChannel extends AbstractSelectableChannel implements ReadableByteChannel, WritableByteChannel, StreamChannel, ReadyListener {
 
     private final MessageInputStream in;
     private final MessageOutputStream out;
-    private boolean _isRegistered;
-    private SelectionKey whichKey;
-    private SelectorProvider provider;
-    private Selector sel;
-    private Object lock;
+    private final Connection _connection;
     private final I2PSocket socket;
+    private final List<StreamSelectionKey> _keys;
 
-    MessageChannel(I2PSocket socket) {
+    /**
+     *  @throws IllegalStateException if the socket is closed
+     */
+    MessageChannel(I2PSocketFull socket) {
+        super(null);
+        this.socket = socket;
         try {
-            this.socket = socket;
             in = (MessageInputStream) socket.getInputStream();
             out = (MessageOutputStream) socket.getOutputStream();
-            in.setReadTimeout(0);
-            out.setWriteTimeout(0);
-            out.setBufferSize(0x1000);
         } catch (IOException ex) {
-            Logger.getLogger(MessageChannel.class.getName()).log(Level.SEVERE, null, ex);
-            // dunno what to do with this for now
-            throw new RuntimeException(ex);
+            throw new IllegalStateException(ex.toString());
         }
-    }
-
-    @Override
-    public SelectorProvider provider() {
-        return provider;
+        _connection = socket.getConnection();
+        _keys = new CopyOnWriteArrayList<StreamSelectionKey>();
+        try {
+            configureBlocking(false);
+        } catch (IOException ioe) {}
+        in.setReadyListener(this);
+        _connection.setReadyListener(this);
     }
 
     @Override
@@ -58,135 +57,133 @@ public class MessageChannel extends SelectableChannel implements ReadableByteCha
         return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
     }
 
+    /**
+     *  Blocking mode waits forever for reads and for the send window.
+     *  @since 0.9.10
+     */
     @Override
-    public boolean isRegistered() {
-        return _isRegistered;
-    }
-
-    @Override
-    public SelectionKey keyFor(Selector arg0) {
-        return whichKey;
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        in.setReadTimeout(block ? -1 : 0);
+        out.setWriteTimeout(block ? -1 : 0);
     }
 
     @Override
-    public SelectionKey register(final Selector sel, final int ops, Object lock) throws ClosedChannelException {
-        this.sel = sel;
-        this.provider = sel.provider();
-        this.lock = lock;
-        this._isRegistered = true;
-        final MessageChannel that = this; // lol java
-        SelectionKey key = new AbstractSelectionKey() {
-            int operations = ops;
-            @Override
-            public SelectableChannel channel() {
-                return that;
-            }
-
-            @Override
-            public Selector selector() {
-                return sel;
-            }
-
-            @Override
-            public int interestOps() {
-                return this.operations;
-            }
-
-            @Override
-            public SelectionKey interestOps(int ops) {
-                this.operations = ops;
-                return this;
-            }
-
-            @Override
-            public int readyOps() {
-                int readyOps = 0;
-                if((operations & OP_READ) != 0) {
-                    try {
-                        // check the input stream
-                        if (in.available() > 0) {
-                            readyOps |= OP_READ;
-                        }
-                    } catch (IOException ex) {}
-                }
-                if((operations & OP_WRITE) != 0) {
-                    if(!out.getClosed())
-                        readyOps |= OP_WRITE;
-                }
-                return readyOps;
-            }
-        };
-        key.attach(lock);
-        // I... THINK this is right?
-        sel.keys().add(key);
-        return key;
+    protected void implCloseSelectableChannel() throws IOException {
+        in.setReadyListener(null);
+        _connection.setReadyListener(null);
+        this.socket.close();
     }
 
-    @Override
-    public SelectableChannel configureBlocking(boolean blocking) throws IOException {
-        if (blocking == false) {
-            return this;
-        }
-        throw new UnsupportedOperationException("Not supported yet.");
+    /**
+     *  @since 0.9.10
+     */
+    public int readyOps() {
+        int rv = 0;
+        if (in.isReadReady())
+            rv |= SelectionKey.OP_READ;
+        // ready on error too, so that write() throws
+        if (!_connection.getIsConnected() || out.getClosed() ||
+            _connection.isWindowOpen() || out.availableForWrite() > 0)
+            rv |= SelectionKey.OP_WRITE;
+        return rv;
     }
 
-    @Override
-    public boolean isBlocking() {
-        return false;
+    /** @since 0.9.10 */
+    public void addKey(StreamSelectionKey key) {
+        _keys.add(key);
     }
 
-    @Override
-    public Object blockingLock() {
-        return this.lock;
+    /** @since 0.9.10 */
+    public void removeKey(StreamSelectionKey key) {
+        _keys.remove(key);
     }
 
-    @Override
-    protected void implCloseChannel() throws IOException {
-        this.socket.close();
+    /**
+     *  From the streams, tell the selectors.
+     *  @since 0.9.10
+     */
+    public void readyChanged() {
+        for (StreamSelectionKey key : _keys) {
+            key.readyChanged();
+        }
     }
 
-    /* Read no more than buf.remaining()
-     * Continue to read until that, or in.read
-     * returns 0, which happens when there's
-     * no more data available.
+    /**
+     *  Read no more than buf.remaining().
+     *  In blocking mode, waits for at least one byte.
+     *
+     *  @return bytes read, 0 if none available in non-blocking mode, or -1 on EOF
      */
     public int read(ByteBuffer buf) throws IOException {
-        int amount = 0;
-        for (;;) {
-            // TODO if buf.hasArray() ... getArray() ... getArrayOffset() ...
-            byte[] lbuf = new byte[buf.remaining()];
-            int samount = in.read(lbuf);
-            if (samount <= 0) {
-                this.close();
-            }
-            if (samount == 0) {
-                break;
-            }
-            amount += samount;
-            buf.put(lbuf, 0, samount);
+        if (!isOpen())
+            throw new ClosedChannelException();
+        int len = buf.remaining();
+        if (len <= 0)
+            return 0;
+        int rv;
+        if (buf.hasArray()) {
+            int pos = buf.position();
+            rv = in.read(buf.array(), buf.arrayOffset() + pos, len);
+            if (rv > 0)
+                buf.position(pos + rv);
+        } else {
+            byte[] lbuf = new byte[Math.min(len, 4096)];
+            rv = in.read(lbuf);
+            if (rv > 0)
+                buf.put(lbuf, 0, rv);
         }
-        return amount;
+        return rv;
     }
 
-    /* Write in 0x1000 increments, the MessageOutputStream's
-     * already set buffer size. Once it starts to fail
-     * (wait timeout is 0) then put the bytes back and return.
+    /**
+     *  Send any buffered data now. Never waits for the send window,
+     *  so it's OK in non-blocking mode. Otherwise, buffered data
+     *  is sent after a short delay, as with the output stream.
+     *
+     *  @since 0.9.10
+     */
+    public void flush() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        out.flushNonblocking();
+    }
+
+    /**
+     *  In blocking mode, writes all of buf.remaining(), waiting for the send window as necessary.
+     *
+     *  In non-blocking mode, writes what fits in the output buffer,
+     *  plus a full packet each time it fills while the send window is open,
+     *  and never waits. The rest stays in buf.
+     *
+     *  @return bytes written, may be 0 in non-blocking mode
      */
     public int write(ByteBuffer buf) throws IOException {
-        int written = 0;
-        for (;;) {
-            if(buf.remaining()==0) 
-                return written;
-            // TODO if buf.hasArray() ... getArray() ... getArrayOffset() ...
-            byte[] lbuf = new byte[Math.min(buf.remaining(), 0x1000)];
-            buf.get(lbuf);
-            try {
-                out.write(lbuf, 0, lbuf.length);
-                written += lbuf.length;
-            } catch(InterruptedIOException ex) {
-                buf.put(lbuf);
-                return written;
+        if (!isOpen())
+            throw new ClosedChannelException();
+        int len = buf.remaining();
+        if (len <= 0)
+            return 0;
+        int pos = buf.position();
+        if (!isBlocking()) {
+            int rv;
+            if (buf.hasArray()) {
+                rv = out.writeNonblocking(buf.array(), buf.arrayOffset() + pos, len);
+            } else {
+                byte[] lbuf = new byte[len];
+                buf.duplicate().get(lbuf);
+                rv = out.writeNonblocking(lbuf, 0, len);
             }
+            buf.position(pos + rv);
+            return rv;
+        }
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + pos, len);
+            buf.position(pos + len);
+        } else {
+            byte[] lbuf = new byte[len];
+            buf.get(lbuf);
+            out.write(lbuf, 0, len);
         }
+        return len;
     }
 }
@@ -4,10 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.ByteArray;
@@ -15,103 +12,142 @@ import net.i2p.data.ByteArray;
 import net.i2p.util.Log;
 
 /**
- * Stream that can be given messages out of order 
+ * Stream that can be given messages out of order
  * yet present them in order.
  *<p>
  * I2PSession -> MessageHandler -> PacketHandler -> ConnectionPacketHandler -> MessageInputStream
  *<p>
  * This buffers unlimited data via messageReceived() -
  * limiting / blocking is done in ConnectionPacketHandler.receivePacket().
+ *<p>
+ * As of 0.9.10, the packet handler (producer) and the reader (consumer) don't share a lock.
+ * Blocks ready to be read are in a single-producer, single-consumer ring,
+ * published by the volatile tail index, and read() copies across as many blocks
+ * as it can in one pass. The producer takes the wait lock only if a reader is waiting.
+ * Out-of-order blocks are in slots indexed by message ID.
+ * The sequence state and the ACK/NACK generation are under a receive lock that
+ * the reader never takes.
  *
  */
 class MessageInputStream extends InputStream {
     private final Log _log;
-    /** 
-     * List of ByteArray objects of data ready to be read,
-     * with the first ByteArray at index 0, and the next
-     * actual byte to be read at _readyDataBlockIndex of 
-     * that array.
-     *
+
+    /**
+     * Ring of ByteArray objects of data ready to be read,
+     * with the next one at _readyHead, and the next
+     * actual byte to be read at _readyDataBlockIndex of
+     * that array. Only blocks with data are added.
+     * Replaced with a larger copy by the producer when full.
      */
-    private final List<ByteArray> _readyDataBlocks;
+    private volatile ByteArray[] _ready;
+    /** next block to read, only written by the reader */
+    private volatile long _readyHead;
+    /** next block to write, only written by the producer */
+    private volatile long _readyTail;
+    /** reader only */
     private int _readyDataBlockIndex;
-    /** highest message ID used in the readyDataBlocks */
-    private long _highestReadyBlockId;
+    /** total bytes added to the ring, only written by the producer */
+    private volatile long _readyBytesIn;
+    /** total bytes read or discarded from the ring, only written by the reader */
+    private volatile long _readyBytesOut;
+
+    /** highest message ID used in the ready blocks */
+    private volatile long _highestReadyBlockId;
     /** highest overall message ID */
-    private long _highestBlockId;
-    /** 
-     * Message ID (Long) to ByteArray for blocks received
-     * out of order when there are lower IDs not yet 
-     * received
+    private volatile long _highestBlockId;
+    /**
+     * Blocks received out of order when there are lower IDs not yet
+     * received, indexed by message ID modulo the length,
+     * for the IDs after _highestReadyBlockId.
+     * A received block with no data is a ByteArray with null data.
      */
-    private final Map<Long, ByteArray> _notYetReadyBlocks;
-    /** 
+    private ByteArray[] _notYetReadyBlocks;
+    private volatile int _notYetReadyCount;
+    /**
      * if we have received a flag saying there won't be later messages, EOF
      * after we have cleared what we have received.
      */
-    private boolean _closeReceived;
+    private volatile boolean _closeReceived;
     /** if we don't want any more data, ignore the data */
-    private boolean _locallyClosed;
-    private int _readTimeout;
-    private IOException _streamError;
+    private volatile boolean _locallyClosed;
+    private volatile int _readTimeout;
+    private volatile IOException _streamError;
     private long _readTotal;
     //private ByteCache _cache;
-    
+
     private final byte[] _oneByte = new byte[1];
-    
+
+    /** for waiting and notification only */
     private final Object _dataLock;
-    
+    /** readers only */
+    private final Object _readLock;
+    /** producer and ACK generation */
+    private final Object _receiveLock;
+    /** readers waiting on _dataLock, incremented and decremented under _dataLock */
+    private volatile int _waiters;
+    /** for a StreamSelector, may be null */
+    private volatile ReadyListener _readyListener;
+
+    private static final int INITIAL_READY_SIZE = 16;
+    private static final int INITIAL_NOT_YET_READY_SIZE = 16;
+    /**
+     *  Far more than the sender may have unacked, see Connection.MAX_WINDOW_SIZE.
+     *  Messages further ahead are dropped as if they were dups.
+     */
+    private static final int MAX_NOT_YET_READY_SIZE = 8 * Connection.MAX_WINDOW_SIZE;
+
     public MessageInputStream(I2PAppContext ctx) {
         _log = ctx.logManager().getLog(MessageInputStream.class);
-        _readyDataBlocks = new ArrayList(4);
+        _ready = new ByteArray[INITIAL_READY_SIZE];
         _highestReadyBlockId = -1;
         _highestBlockId = -1;
         _readTimeout = -1;
-        _notYetReadyBlocks = new HashMap(4);
+        _notYetReadyBlocks = new ByteArray[INITIAL_NOT_YET_READY_SIZE];
         _dataLock = new Object();
+        _readLock = new Object();
+        _receiveLock = new Object();
         //_cache = ByteCache.getInstance(128, Packet.MAX_PAYLOAD_SIZE);
     }
-    
+
     /** What is the highest block ID we've completely received through?
      * @return highest data block ID completely received or -1 for none
      */
-    public long getHighestReadyBockId() { 
-        synchronized (_dataLock) {
-            return _highestReadyBlockId; 
-        }
+    public long getHighestReadyBockId() {
+        return _highestReadyBlockId;
     }
-    
+
     /**
      * @return highest data block ID received  or -1 for none
      */
-    public long getHighestBlockId() { 
-        synchronized (_dataLock) {
-            return _highestBlockId;
-        }
+    public long getHighestBlockId() {
+        return _highestBlockId;
     }
-    
+
     /**
-     * Retrieve the message IDs that are holes in our sequence - ones 
-     * past the highest ready ID and below the highest received message 
+     * Retrieve the message IDs that are holes in our sequence - ones
+     * past the highest ready ID and below the highest received message
      * ID.  This may return null if there are no such IDs.
      *
      * @return array of message ID holes, or null if none
      */
     public long[] getNacks() {
-        synchronized (_dataLock) {
+        synchronized (_receiveLock) {
             return locked_getNacks();
         }
     }
+
+    /** caller must synch on _receiveLock */
     private long[] locked_getNacks() {
         List<Long> ids = null;
+        ByteArray[] slots = _notYetReadyBlocks;
+        int mask = slots.length - 1;
         for (long i = _highestReadyBlockId + 1; i < _highestBlockId; i++) {
-            Long l = Long.valueOf(i);
-            if (_notYetReadyBlocks.containsKey(l)) {
+            if (slots[(int) (i & mask)] != null) {
                 // ACK
             } else {
                 if (ids == null)
-                    ids = new ArrayList(4);
-                ids.add(l);
+                    ids = new ArrayList<Long>(4);
+                ids.add(Long.valueOf(i));
             }
         }
         if (ids != null) {
@@ -123,52 +159,19 @@ class MessageInputStream extends InputStream {
             return null;
         }
     }
-    
+
     /**
-     *  Adds the ack-through and nack fields to a packet we are building for transmission
+     *  Adds the ack-through and nack fields to a packet we are building for transmission.
+     *  Does not contend with the reader.
      */
     public void updateAcks(PacketLocal packet) {
-        synchronized (_dataLock) {
+        synchronized (_receiveLock) {
             packet.setAckThrough(_highestBlockId);
             packet.setNacks(locked_getNacks());
         }
     }
-    
+
     /**
-     * Ascending list of block IDs greater than the highest
-     * ready block ID, or null if there aren't any.
-     *
-     * @return block IDs greater than the highest ready block ID, or null if there aren't any.
-     */
-/***
-    public long[] getOutOfOrderBlocks() {
-        long blocks[] = null;
-        synchronized (_dataLock) {
-            int num = _notYetReadyBlocks.size();
-            if (num <= 0) return null;
-            blocks = new long[num];
-            int i = 0;
-            for (Long id : _notYetReadyBlocks.keySet()) {
-                blocks[i++] = id.longValue();
-            }
-        }
-        Arrays.sort(blocks);
-        return blocks;
-    }
-***/
-    
-    /** how many blocks have we received that we still have holes before?
-     * @return Count of blocks received that still have holes
-     */
-/***
-    public int getOutOfOrderBlockCount() { 
-        synchronized (_dataLock) { 
-            return _notYetReadyBlocks.size(); 
-        }
-    }
-***/
-  
-    /** 
      * how long a read() call should block (if less than 0, block indefinitely,
      * but if it is 0, do not block at all)
      * @return how long read calls should block, 0 or less indefinitely block
@@ -178,305 +181,380 @@ class MessageInputStream extends InputStream {
     public void setReadTimeout(int timeout) {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Changing read timeout from " + _readTimeout + " to " + timeout);
-        _readTimeout = timeout; 
+        _readTimeout = timeout;
     }
-    
-    /** 
+
+    /**
      *  There is no more data coming from the I2P side.
      *  Does NOT clear pending data.
      *  messageReceived() MUST have been called previously with the messageId of the CLOSE packet.
      */
     public void closeReceived() {
-        synchronized (_dataLock) {
-            if (_log.shouldLog(Log.DEBUG)) {
+        if (_log.shouldLog(Log.DEBUG)) {
+            synchronized (_receiveLock) {
                 StringBuilder buf = new StringBuilder(128);
                 buf.append("Close received, ready bytes: ");
-                long available = 0;
-                for (int i = 0; i < _readyDataBlocks.size(); i++) 
-                    available += _readyDataBlocks.get(i).getValid();
-                available -= _readyDataBlockIndex;
-                buf.append(available);
-                buf.append(" blocks: ").append(_readyDataBlocks.size());
-                
+                buf.append(_readyBytesIn - _readyBytesOut);
+                buf.append(" blocks: ").append(_readyTail - _readyHead);
+
                 buf.append(" not ready blocks: ");
                 long notAvailable = 0;
-                for (Long id : _notYetReadyBlocks.keySet()) {
-                    ByteArray ba = _notYetReadyBlocks.get(id);
+                for (long id = _highestReadyBlockId + 1; id <= _highestBlockId; id++) {
+                    ByteArray ba = _notYetReadyBlocks[(int) (id & (_notYetReadyBlocks.length - 1))];
+                    if (ba == null)
+                        continue;
                     buf.append(id).append(" ");
-                    
-                    if (ba != null)
-                        notAvailable += ba.getValid();
+                    notAvailable += ba.getValid();
                 }
-                
+
                 buf.append("not ready bytes: ").append(notAvailable);
                 buf.append(" highest ready block: ").append(_highestReadyBlockId);
-                
+
                 _log.debug(buf.toString(), new Exception("closed"));
             }
-            _closeReceived = true;
+        }
+        _closeReceived = true;
+        notifyActivity();
+    }
+
+    public void notifyActivity() {
+        synchronized (_dataLock) {
             _dataLock.notifyAll();
         }
+        ReadyListener lsnr = _readyListener;
+        if (lsnr != null)
+            lsnr.readyChanged();
+    }
+
+    /**
+     *  Notified when data becomes ready, on EOF, and on close or error.
+     *  @param lsnr may be null
+     *  @since 0.9.10
+     */
+    void setReadyListener(ReadyListener lsnr) {
+        _readyListener = lsnr;
     }
-    
-    public void notifyActivity() { synchronized (_dataLock) { _dataLock.notifyAll(); } }
-    
+
     /**
-     * A new message has arrived - toss it on the appropriate queue (moving 
+     *  Would read() return without blocking,
+     *  i.e. is there data, or EOF, or an error?
+     *  Lock-free.
+     *  @since 0.9.10
+     */
+    boolean isReadReady() {
+        return !isEmpty() || _locallyClosed || _streamError != null ||
+               (_closeReceived && _notYetReadyCount <= 0);
+    }
+
+    /**
+     * A new message has arrived - toss it on the appropriate queue (moving
      * previously pending messages to the ready queue if it fills the gap, etc).
      * This does no limiting of pending data - it must be limited in ConnectionPacketHandler.
      *
      * @param messageId ID of the message
      * @param payload message payload, may be null or have null or zero-length data
      * @return true if this is a new packet, false if it is a dup
+     *         (or, as of 0.9.10, an out-of-order dup, or too far ahead to buffer)
      */
     public boolean messageReceived(long messageId, ByteArray payload) {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("received " + messageId + " with " + (payload != null ? payload.getValid()+"" : "no payload"));
-        synchronized (_dataLock) {
+        boolean added = false;
+        synchronized (_receiveLock) {
             if (messageId <= _highestReadyBlockId) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("ignoring dup message " + messageId);
-                _dataLock.notifyAll();
                 return false; // already received
             }
+            long distance = messageId - _highestReadyBlockId;
+            if (distance > _notYetReadyBlocks.length) {
+                if (distance > MAX_NOT_YET_READY_SIZE) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Message " + messageId + " too far ahead of " + _highestReadyBlockId + ", dropping");
+                    return false;
+                }
+                growNotYetReady(distance);
+            }
+            ByteArray[] slots = _notYetReadyBlocks;
+            int mask = slots.length - 1;
             if (messageId > _highestBlockId)
                 _highestBlockId = messageId;
-            
+
             if (_highestReadyBlockId + 1 == messageId) {
-                if (!_locallyClosed && payload.getValid() > 0) {
+                if (!_locallyClosed && payload != null && payload.getData() != null && payload.getValid() > 0) {
                     if (_log.shouldLog(Log.DEBUG))
                         _log.debug("accepting bytes as ready: " + payload.getValid());
-                    _readyDataBlocks.add(payload);
+                    addReady(payload);
+                    added = true;
                 }
                 _highestReadyBlockId = messageId;
                 long cur = _highestReadyBlockId + 1;
                 // now pull in any previously pending blocks
-                while (_notYetReadyBlocks.containsKey(Long.valueOf(cur))) {
-                    ByteArray ba = _notYetReadyBlocks.remove(Long.valueOf(cur));
-                    if ( (ba != null) && (ba.getData() != null) && (ba.getValid() > 0) ) {
-                        _readyDataBlocks.add(ba);
+                ByteArray ba;
+                while ((ba = slots[(int) (cur & mask)]) != null) {
+                    slots[(int) (cur & mask)] = null;
+                    _notYetReadyCount--;
+                    if (!_locallyClosed && (ba.getData() != null) && (ba.getValid() > 0) ) {
+                        addReady(ba);
+                        added = true;
                     }
-                    
+
                     if (_log.shouldLog(Log.DEBUG))
                         _log.debug("making ready the block " + cur);
                     cur++;
                     _highestReadyBlockId++;
                 }
             } else {
+                int slot = (int) (messageId & mask);
+                if (slots[slot] != null) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("ignoring dup out of order message " + messageId);
+                    return false;
+                }
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Message is out of order: " + messageId);
                 // _notYetReadyBlocks size is limited in ConnectionPacketHandler.
-                if (_locallyClosed) // dont need the payload, just the msgId in order
-                    _notYetReadyBlocks.put(Long.valueOf(messageId), new ByteArray(null));
+                if (_locallyClosed || payload == null) // dont need the payload, just the msgId in order
+                    slots[slot] = new ByteArray(null);
                 else
-                    _notYetReadyBlocks.put(Long.valueOf(messageId), payload);
+                    slots[slot] = payload;
+                _notYetReadyCount++;
             }
-            _dataLock.notifyAll();
+        }
+        // Only if a reader may be waiting, see read().
+        // Also wake up on the last block for an EOF after closeReceived().
+        if (added || _closeReceived) {
+            if (_waiters > 0) {
+                synchronized (_dataLock) {
+                    _dataLock.notifyAll();
+                }
+            }
+            ReadyListener lsnr = _readyListener;
+            if (lsnr != null)
+                lsnr.readyChanged();
         }
         return true;
     }
-    
+
+    /**
+     *  Grow the out-of-order slots to cover the distance, re-indexing the blocks.
+     *  Caller must synch on _receiveLock.
+     */
+    private void growNotYetReady(long distance) {
+        ByteArray[] old = _notYetReadyBlocks;
+        int size = old.length;
+        while (size < distance)
+            size *= 2;
+        ByteArray[] slots = new ByteArray[size];
+        int oldMask = old.length - 1;
+        int mask = size - 1;
+        for (long id = _highestReadyBlockId + 1; id <= _highestReadyBlockId + old.length; id++) {
+            ByteArray ba = old[(int) (id & oldMask)];
+            if (ba != null)
+                slots[(int) (id & mask)] = ba;
+        }
+        _notYetReadyBlocks = slots;
+    }
+
+    /**
+     *  Add to the ring, growing it if full.
+     *  Caller must synch on _receiveLock.
+     */
+    private void addReady(ByteArray ba) {
+        ByteArray[] ring = _ready;
+        long tail = _readyTail;
+        long head = _readyHead;
+        if (tail - head >= ring.length) {
+            // Copy everything that may not have been read yet.
+            // The reader may still be reading from the old ring,
+            // which is fine, as it has the same blocks at the same indexes,
+            // and we don't write to it any more.
+            ByteArray[] bigger = new ByteArray[ring.length * 2];
+            int oldMask = ring.length - 1;
+            int mask = bigger.length - 1;
+            for (long i = head; i < tail; i++) {
+                bigger[(int) (i & mask)] = ring[(int) (i & oldMask)];
+            }
+            _ready = bigger;
+            ring = bigger;
+        }
+        ring[(int) (tail & (ring.length - 1))] = ba;
+        _readyBytesIn += ba.getValid();
+        // publish
+        _readyTail = tail + 1;
+    }
+
+    /** @return true if no ready blocks */
+    private boolean isEmpty() {
+        return _readyHead >= _readyTail;
+    }
+
     public int read() throws IOException {
         int read = read(_oneByte, 0, 1);
         if (read < 0)
             return -1;
         return _oneByte[0] & 0xff;
     }
-    
+
     @Override
     public int read(byte target[]) throws IOException {
         return read(target, 0, target.length);
     }
-    
+
+    /**
+     *  Blocks until at least one byte is available (subject to the read timeout),
+     *  then returns as much as is ready, up to length, without blocking further.
+     */
     @Override
     public int read(byte target[], int offset, int length) throws IOException {
         long expiration = -1;
-        if (_readTimeout > 0)
-            expiration = _readTimeout + System.currentTimeMillis();
-        synchronized (_dataLock) {
+        int timeout = _readTimeout;
+        if (timeout > 0)
+            expiration = timeout + System.currentTimeMillis();
+        while (true) {
             if (_locallyClosed) throw new IOException("Already locally closed");
             throwAnyError();
-            for (int i = 0; i < length; i++) {
-                if ( (_readyDataBlocks.isEmpty()) && (i == 0) ) {
-                    // ok, we havent found anything, so lets block until we get 
-                    // at least one byte
-                    
-                    while (_readyDataBlocks.isEmpty()) {
-                        if (_locallyClosed)
-                            throw new IOException("Already closed");
-                        
-                        if ( (_notYetReadyBlocks.isEmpty()) && (_closeReceived) ) {
-                            if (_log.shouldLog(Log.INFO))
-                                _log.info("read(...," + offset + ", " + length + ")[" + i 
-                                           + "] got EOF after " + _readTotal + " " + toString());
-                            return -1;
-                        } else {
-                            if (_readTimeout < 0) {
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + ") with no timeout: " + toString());
-                                try {
-                                    _dataLock.wait();
-                                } catch (InterruptedException ie) {
-                                    IOException ioe2 = new InterruptedIOException("Interrupted read");
-                                    ioe2.initCause(ie);
-                                    throw ioe2;
-                                }
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + ") with no timeout complete: " + toString());
-                                throwAnyError();
-                            } else if (_readTimeout > 0) {
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + ") with timeout: " + _readTimeout + ": " + toString());
-                                try {
-                                    _dataLock.wait(_readTimeout);
-                                } catch (InterruptedException ie) {
-                                    IOException ioe2 = new InterruptedIOException("Interrupted read");
-                                    ioe2.initCause(ie);
-                                    throw ioe2;
-                                }
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + ") with timeout complete: " + _readTimeout + ": " + toString());
-                                throwAnyError();
-                            } else { // readTimeout == 0
-                                // noop, don't block
-                                if (_log.shouldLog(Log.DEBUG))
-                                    _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                               + ") with nonblocking setup: " + toString());
-                                return i;
-                            }
-                            if (_readyDataBlocks.isEmpty()) {
-                                if ( (_readTimeout > 0) && (expiration < System.currentTimeMillis()) ) {
-                                    if (_log.shouldLog(Log.INFO))
-                                        _log.info("read(...," + offset+", " + length+ ")[" + i 
-                                                   + ") expired: " + toString());
-                                    return i;
-                                }
-                            }
-                        }
-                    }
-                    // we looped a few times then got data, so this pass doesnt count
-                    i--;
-                } else if (_readyDataBlocks.isEmpty()) {
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                   + "] no more ready blocks, returning");
-                    return i;
-                } else {
-                    // either was already ready, or we wait()ed and it arrived
-                    ByteArray cur = _readyDataBlocks.get(0);
-                    byte rv = cur.getData()[cur.getOffset()+_readyDataBlockIndex];
-                    _readyDataBlockIndex++;
-                    if (cur.getValid() <= _readyDataBlockIndex) {
-                        _readyDataBlockIndex = 0;
-                        _readyDataBlocks.remove(0);
-                    }
-                    _readTotal++;
-                    target[offset + i] = rv; // rv < 0 ? rv + 256 : rv
-                    if ( (_readyDataBlockIndex <= 3) || (_readyDataBlockIndex >= cur.getValid() - 5) ) {
+            if (length <= 0)
+                return 0;
+            int read;
+            synchronized (_readLock) {
+                read = locked_read(target, offset, length);
+            }
+            if (read > 0) {
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("read(byte[]," + offset + ',' + length + ") read " + read + "; total read: " + _readTotal);
+                return read;
+            }
+            // ok, we havent found anything, so lets block until we get
+            // at least one byte
+            if (_notYetReadyCount <= 0 && _closeReceived) {
+                // the last blocks may have been added after we looked
+                if (!isEmpty())
+                    continue;
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("read(...," + offset + ", " + length + ") got EOF after " + _readTotal + " " + toString());
+                return -1;
+            }
+            if (timeout == 0) {
+                // noop, don't block
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("read(...," + offset+", " + length+ ") with nonblocking setup: " + toString());
+                return 0;
+            }
+            long wait = 0;
+            if (timeout > 0) {
+                wait = expiration - System.currentTimeMillis();
+                if (wait <= 0) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("read(...," + offset+", " + length+ ") expired: " + toString());
+                    return 0;
+                }
+            }
+            synchronized (_dataLock) {
+                // Increment before checking the tail, and the producer
+                // checks the waiters after publishing the tail,
+                // so either we see the block, or it sees us and notifies.
+                _waiters++;
+                try {
+                    if (isEmpty() && !_locallyClosed && _streamError == null &&
+                        !(_closeReceived && _notYetReadyCount <= 0)) {
                         if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("read(...," + offset+", " + length+ ")[" + i 
-                                       + "] after ready data: readyDataBlockIndex=" + _readyDataBlockIndex 
-                                       + " readyBlocks=" + _readyDataBlocks.size()
-                                       + " readTotal=" + _readTotal);
+                            _log.debug("read(...," + offset+", " + length+ ") waiting " + wait + ": " + toString());
+                        _dataLock.wait(wait);
                     }
-                    //if (removed) 
-                    //    _cache.release(cur);
+                } catch (InterruptedException ie) {
+                    IOException ioe2 = new InterruptedIOException("Interrupted read");
+                    ioe2.initCause(ie);
+                    throw ioe2;
+                } finally {
+                    _waiters--;
                 }
-            } // for (int i = 0; i < length; i++) {
-        }  // synchronized (_dataLock)
-        
-        if (_log.shouldLog(Log.DEBUG))
-            _log.debug("read(byte[]," + offset + ',' + length + ") read fully; total read: " +_readTotal);
-
-        return length;
-    }
-    
-    @Override
-    public int available() throws IOException {
-        int numBytes = 0;
-        synchronized (_dataLock) {
-            if (_locallyClosed) throw new IOException("Already closed");
-            throwAnyError();
-            for (int i = 0; i < _readyDataBlocks.size(); i++) {
-                ByteArray cur = _readyDataBlocks.get(i);
-                if (i == 0)
-                    numBytes += cur.getValid() - _readyDataBlockIndex;
-                else
-                    numBytes += cur.getValid();
             }
         }
-        if (_log.shouldLog(Log.DEBUG))
-            _log.debug("available(): " + numBytes);
-        
-        return numBytes;
     }
-    
+
     /**
-     * How many bytes are queued up for reading (or sitting in the out-of-order
-     * buffer)?
+     *  Copy as much as is ready, across blocks.
+     *  Caller must synch on _readLock.
      *
-     * @return Count of bytes waiting to be read
+     *  @return bytes copied, 0 if none ready
      */
-/***
-    public int getTotalQueuedSize() {
-        synchronized (_dataLock) {
-            if (_locallyClosed) return 0;
-            int numBytes = 0;
-            for (int i = 0; i < _readyDataBlocks.size(); i++) {
-                ByteArray cur = _readyDataBlocks.get(i);
-                if (i == 0)
-                    numBytes += cur.getValid() - _readyDataBlockIndex;
-                else
-                    numBytes += cur.getValid();
+    private int locked_read(byte target[], int offset, int length) {
+        // tail before the ring, see addReady()
+        long tail = _readyTail;
+        ByteArray[] ring = _ready;
+        long head = _readyHead;
+        int mask = ring.length - 1;
+        int read = 0;
+        while (read < length && head < tail) {
+            int slot = (int) (head & mask);
+            ByteArray cur = ring[slot];
+            int toCopy = Math.min(cur.getValid() - _readyDataBlockIndex, length - read);
+            System.arraycopy(cur.getData(), cur.getOffset() + _readyDataBlockIndex, target, offset + read, toCopy);
+            read += toCopy;
+            _readyDataBlockIndex += toCopy;
+            if (_readyDataBlockIndex >= cur.getValid()) {
+                _readyDataBlockIndex = 0;
+                ring[slot] = null;
+                head++;
+                //_cache.release(cur);
             }
-            for (ByteArray cur : _notYetReadyBlocks.values()) {
-                numBytes += cur.getValid();
-            }
-            return numBytes;
         }
+        if (read > 0) {
+            _readyBytesOut += read;
+            _readTotal += read;
+            _readyHead = head;
+        }
+        return read;
     }
-***/
-    
+
+    @Override
+    public int available() throws IOException {
+        if (_locallyClosed) throw new IOException("Already closed");
+        throwAnyError();
+        int numBytes = (int) (_readyBytesIn - _readyBytesOut);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("available(): " + numBytes);
+
+        return numBytes;
+    }
+
     /**
-     *  Same as available() but doesn't throw IOE
+     *  Same as available() but doesn't throw IOE.
+     *  Lock-free.
      */
     public int getTotalReadySize() {
-        synchronized (_dataLock) {
-            if (_locallyClosed) return 0;
-            int numBytes = 0;
-            for (int i = 0; i < _readyDataBlocks.size(); i++) {
-                ByteArray cur = _readyDataBlocks.get(i);
-                if (i == 0)
-                    numBytes += cur.getValid() - _readyDataBlockIndex;
-                else
-                    numBytes += cur.getValid();
-            }
-            return numBytes;
-        }
+        if (_locallyClosed) return 0;
+        return (int) (_readyBytesIn - _readyBytesOut);
     }
-    
+
     @Override
     public void close() {
-        synchronized (_dataLock) {
-            //while (_readyDataBlocks.size() > 0)
-            //    _cache.release((ByteArray)_readyDataBlocks.remove(0));
-            _readyDataBlocks.clear();
-             
+        _locallyClosed = true;
+        notifyActivity();
+        synchronized (_readLock) {
+            long tail = _readyTail;
+            ByteArray[] ring = _ready;
+            long head = _readyHead;
+            int mask = ring.length - 1;
+            for ( ; head < tail; head++) {
+                ring[(int) (head & mask)] = null;
+            }
+            _readyDataBlockIndex = 0;
+            _readyHead = head;
+            _readyBytesOut = _readyBytesIn;
+        }
+        synchronized (_receiveLock) {
             // we don't need the data, but we do need to keep track of the messageIds
             // received, so we can ACK accordingly
-            for (ByteArray ba : _notYetReadyBlocks.values()) {
-                ba.setData(null);
+            for (ByteArray ba : _notYetReadyBlocks) {
+                if (ba != null)
+                    ba.setData(null);
                 //_cache.release(ba);
             }
-            _locallyClosed = true;
-            _dataLock.notifyAll();
         }
     }
-    
+
     /**
      * Stream b0rked, die with the given error
      *
@@ -486,15 +564,19 @@ class MessageInputStream extends InputStream {
             if (_streamError == null)
                 _streamError = ioe;
             _locallyClosed = true;
-            _dataLock.notifyAll();
         }
+        notifyActivity();
     }
-    
-    /** Caller must lock _dataLock */
+
     private void throwAnyError() throws IOException {
-        IOException ioe = _streamError;
-        if (ioe != null) {
+        if (_streamError == null)
+            return;
+        IOException ioe;
+        synchronized (_dataLock) {
+            ioe = _streamError;
             _streamError = null;
+        }
+        if (ioe != null) {
             // constructor with cause not until Java 6
             IOException ioe2 = new IOException("Input stream error");
             ioe2.initCause(ioe);
@@ -93,6 +93,24 @@ class MessageOutputStream extends OutputStream {
     public int getWriteTimeout() { return _writeTimeout; }
 
     public void setBufferSize(int size) { _nextBufferSize = size; }
+
+    /**
+     *  How many bytes write() will buffer without sending a packet,
+     *  and so without waiting for the window.
+     *
+     *  @return 0 if closed
+     *  @since 0.9.10
+     */
+    int availableForWrite() {
+        if (_closed.get())
+            return 0;
+        synchronized (_dataLock) {
+            if (_buf == null)
+                return 0;
+            // see write(), it flushes when _valid + len >= _buf.length
+            return Math.max(0, _buf.length - _valid - 1);
+        }
+    }
     
     @Override
     public void write(byte b[]) throws IOException {
@@ -519,6 +537,78 @@ class MessageOutputStream extends OutputStream {
             _log.info("Took " + (afterAccept-afterBuild) + "ms to accept a packet? " + ws);
         return;
     }
+
+    /**
+     *  Send what is buffered now, without waiting for the window
+     *  or for the passive flush delay. Noop if nothing is buffered.
+     *
+     *  @since 0.9.10
+     */
+    void flushNonblocking() throws IOException {
+        if (_closed.get())
+            throw new IOException("Already closed");
+        synchronized (_dataLock) {
+            if (_valid <= 0)
+                return;
+        }
+        flushAvailable(_dataReceiver, false);
+    }
+
+    /**
+     *  Like write(), but never waits for the send window.
+     *  Buffers what it can, sending a packet each time the buffer fills,
+     *  but only while the window is open. The rest is left to the caller.
+     *
+     *  @return bytes taken, 0 if the buffer is full and the window is closed
+     *  @since 0.9.10
+     */
+    int writeNonblocking(byte b[], int off, int len) throws IOException {
+        if (_closed.get()) throw new IOException("Already closed");
+        int cur = off;
+        int remaining = len;
+        synchronized (_dataLock) {
+            while (remaining > 0) {
+                if (_buf == null) throw new IOException("closed (buffer went away)");
+                if (_valid + remaining < _buf.length) {
+                    System.arraycopy(b, cur, _buf, _valid, remaining);
+                    _valid += remaining;
+                    cur += remaining;
+                    _written += remaining;
+                    remaining = 0;
+                } else if (_dataReceiver.writeWouldBlock()) {
+                    // fill up to one short of a packet, as in availableForWrite()
+                    int toWrite = _buf.length - _valid - 1;
+                    if (toWrite > 0) {
+                        System.arraycopy(b, cur, _buf, _valid, toWrite);
+                        _valid += toWrite;
+                        cur += toWrite;
+                        _written += toWrite;
+                        remaining -= toWrite;
+                    }
+                    break;
+                } else {
+                    int toWrite = _buf.length - _valid;
+                    System.arraycopy(b, cur, _buf, _valid, toWrite);
+                    remaining -= toWrite;
+                    cur += toWrite;
+                    _valid = _buf.length;
+                    // the window is open, so no waitForAccept()
+                    _dataReceiver.writeData(_buf, 0, _valid);
+                    _written += _valid;
+                    _valid = 0;
+                    throwAnyError();
+                    locked_updateBufferSize();
+                }
+            }
+            if (_valid > 0) {
+                _lastBuffered = _context.clock().now();
+                if (_passiveFlushDelay > 0)
+                    _flusher.enqueue();
+            }
+        }
+        throwAnyError();
+        return len - remaining;
+    }
     
     void destroy() {
         if (!_closed.compareAndSet(false,true)) {
@@ -538,6 +628,12 @@ class MessageOutputStream extends OutputStream {
          */
         public WriteStatus writeData(byte buf[], int off, int size);
         public boolean writeInProcess();
+
+        /**
+         * Would a packet written now have to wait for acceptance?
+         * @since 0.9.10
+         */
+        public boolean writeWouldBlock();
     }
     
     /** Define a way to detect the status of a write */
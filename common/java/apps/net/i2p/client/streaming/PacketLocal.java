@@ -31,7 +31,10 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
     private long _ackOn; 
     private long _cancelledOn;
     private final AtomicInteger _nackCount = new AtomicInteger();
+    /** a fast retransmit is pending, cleared when sent */
     private volatile boolean _retransmitted;
+    /** NACKs not counted toward the next fast retransmit @since 0.9.10 */
+    private volatile int _nacksAtSend;
     private volatile SimpleTimer2.TimedEvent _resendEvent;
     
     /** not bound to a connection */
@@ -112,6 +115,8 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
     public void incrementSends() { 
         _numSends.incrementAndGet();
         _lastSend = _context.clock().now();
+        _nacksAtSend = _nackCount.get();
+        _retransmitted = false;
     }
     
     private void cancelResend() {
@@ -161,13 +166,25 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
 
     /**
      *  Will force a fast restransmit on the 3rd call (FAST_RETRANSMIT_THRESHOLD)
-     *  but only if it's the lowest unacked (see Connection.ResendPacketEvent)
+     *  but only if it's the lowest unacked (see Connection.ResendPacketEvent).
+     *
+     *  As of 0.9.10, a retransmitted packet that is lost again is also fast retransmitted
+     *  after another FAST_RETRANSMIT_THRESHOLD NACKs, rather than waiting for the
+     *  (backed-off) retransmission timer. NACKs within one RTT of a send don't count,
+     *  as they were sent by the far end before that copy could have arrived.
      */
     public void incrementNACKs() { 
         final int cnt = _nackCount.incrementAndGet();
+        final long now = _context.clock().now();
+        if (_numSends.get() > 1 && _lastSend > now - getRecentInterval()) {
+            // stale NACK for the previous copy
+            _nacksAtSend = cnt;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug(toString() + " nack for a previous send, ignored");
+            return;
+        }
         SimpleTimer2.TimedEvent evt = _resendEvent;
-        if (cnt >= Connection.FAST_RETRANSMIT_THRESHOLD && evt != null && (!_retransmitted) &&
-            (_numSends.get() == 1 || _lastSend < _context.clock().now() - 4*1000)) {  // Don't fast retx if we recently resent it
+        if (cnt - _nacksAtSend >= Connection.FAST_RETRANSMIT_THRESHOLD && evt != null && (!_retransmitted)) {
             _retransmitted = true;
             evt.reschedule(0);
             // the predicate used to be '+', changing to '-' --zab
@@ -175,16 +192,31 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
             if (_log.shouldLog(Log.DEBUG)) {
                 final String log = String.format("%s nacks and retransmits. Criteria: nacks=%d, retransmitted=%b,"+
                     " numSends=%d, lastSend=%d, now=%d",
-                    toString(), cnt, _retransmitted, _numSends.get(), _lastSend, _context.clock().now());
+                    toString(), cnt, _retransmitted, _numSends.get(), _lastSend, now);
                     _log.debug(log);
             }
         } else if (_log.shouldLog(Log.DEBUG)) {
             final String log = String.format("%s nack but no retransmit.  Criteria: nacks=%d, retransmitted=%b,"+
                     " numSends=%d, lastSend=%d, now=%d",
-                    toString(), cnt, _retransmitted, _numSends.get(), _lastSend, _context.clock().now());
+                    toString(), cnt, _retransmitted, _numSends.get(), _lastSend, now);
                     _log.debug(log);
         }
     }
+
+    /**
+     *  @return the RTT, or 4 seconds if not bound to a connection
+     *  @since 0.9.10
+     */
+    private long getRecentInterval() {
+        return _connection != null ? _connection.getOptions().getRTT() : 4*1000;
+    }
+
+    /**
+     *  Has incrementNACKs() triggered a fast retransmit that hasn't been sent yet?
+     *  @since 0.9.10
+     */
+    public boolean isFastRetransmit() { return _retransmitted; }
+
     public int getNACKs() { return _nackCount.get(); }
     
     public void setResendPacketEvent(SimpleTimer2.TimedEvent evt) { _resendEvent = evt; }
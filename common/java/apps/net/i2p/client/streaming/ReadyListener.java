@@ -0,0 +1,13 @@
+package net.i2p.client.streaming;
+
+/**
+ *  Notified when a stream may have become readable, writable, or acceptable,
+ *  so that a StreamSelector can check it without polling.
+ *  Called from the packet handling threads, must not block.
+ *
+ *  @since 0.9.10
+ */
+interface ReadyListener {
+
+    public void readyChanged();
+}
@@ -0,0 +1,81 @@
+package net.i2p.client.streaming;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ * The original loss-based window control, similar to TCP Reno (RFC 2581),
+ * in packets rather than bytes.
+ * Slow start up to half the window at the last congestion event,
+ * then randomized linear growth, and halve the window on congestion.
+ *
+ * Stateless, but see CongestionControl.
+ *
+ * @since 0.9.10 moved from ConnectionPacketHandler and Connection
+ */
+class RenoCongestionControl implements CongestionControl {
+    private final I2PAppContext _context;
+    private final Log _log;
+
+    public static final String NAME = "reno";
+
+    public RenoCongestionControl(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(RenoCongestionControl.class);
+    }
+
+    public int ackReceived(ConnectionOptions opts, int acked, int numResends, int rtt,
+                           boolean congested, int lastCongestionSeenAt, long now) {
+        int newWindowSize = opts.getWindowSize();
+        if (congested || numResends > 0)
+            return newWindowSize;
+        if (newWindowSize < lastCongestionSeenAt / 2) {
+            // Don't make this <= LastCongestion/2 or we'll jump right back to where we were
+            // slow start - exponential growth
+            // grow acked/N times (where N = the slow start factor)
+            // always grow at least 1
+            int factor = opts.getSlowStartGrowthRateFactor();
+            if (factor <= 1) {
+                // above a certain point, don't grow exponentially
+                // as it often leads to a big packet loss (30-50) all at once that
+                // takes quite a while (a minute or more) to recover from,
+                // especially if crypto tags are lost
+                if (newWindowSize >= ConnectionPacketHandler.MAX_SLOW_START_WINDOW)
+                    newWindowSize++;
+                else
+                    newWindowSize = Math.min(ConnectionPacketHandler.MAX_SLOW_START_WINDOW, newWindowSize + acked);
+            } else if (acked < factor)
+                newWindowSize++;
+            else
+                newWindowSize += acked / factor;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("slow start acks = " + acked + " window " + newWindowSize);
+        } else {
+            // congestion avoidance
+            // linear growth - increase window 1/N per RTT
+            // we can't use newWindowSize += acked/(oldWindow*N) (where N = the cong. avoid. factor), since we're
+            // integers, so lets use a random distribution instead
+            int shouldIncrement = _context.random().nextInt(opts.getCongestionAvoidanceGrowthRateFactor()*newWindowSize);
+            if (shouldIncrement < acked)
+                newWindowSize++;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("cong. avoid acks = " + acked + " window " + newWindowSize);
+        }
+        return newWindowSize;
+    }
+
+    /**
+     *  Halve the window, whether the loss was detected by NACKs or by timeout.
+     */
+    public int congestionOccurred(ConnectionOptions opts, boolean fast, long now) {
+        int newWindowSize = opts.getWindowSize() / 2;
+        if (newWindowSize <= 0)
+            newWindowSize = 1;
+        return newWindowSize;
+    }
+
+    public String getName() { return NAME; }
+
+    @Override
+    public String toString() { return NAME; }
+}
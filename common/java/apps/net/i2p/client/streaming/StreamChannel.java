@@ -0,0 +1,21 @@
+package net.i2p.client.streaming;
+
+/**
+ *  A channel that may be registered with a StreamSelector.
+ *  The channel tells its keys when its readiness may have changed,
+ *  and the selector asks the channel what is ready.
+ *
+ *  @since 0.9.10
+ */
+interface StreamChannel {
+
+    /**
+     *  Lock-free, called from the selecting thread.
+     *  @return the SelectionKey OP_ bits that are ready now
+     */
+    public int readyOps();
+
+    public void addKey(StreamSelectionKey key);
+
+    public void removeKey(StreamSelectionKey key);
+}
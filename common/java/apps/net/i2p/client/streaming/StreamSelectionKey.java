@@ -0,0 +1,87 @@
+package net.i2p.client.streaming;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
+
+/**
+ *  The registration of a MessageChannel or AcceptingChannel with a StreamSelector.
+ *
+ *  @since 0.9.10
+ */
+class StreamSelectionKey extends AbstractSelectionKey {
+    private final StreamSelector _selector;
+    private final AbstractSelectableChannel _channel;
+    private volatile int _interestOps;
+    private volatile int _readyOps;
+
+    /**
+     *  @param channel must implement StreamChannel
+     */
+    public StreamSelectionKey(StreamSelector selector, AbstractSelectableChannel channel) {
+        _selector = selector;
+        _channel = channel;
+    }
+
+    public SelectableChannel channel() {
+        return _channel;
+    }
+
+    public Selector selector() {
+        return _selector;
+    }
+
+    StreamChannel streamChannel() {
+        return (StreamChannel) _channel;
+    }
+
+    public int interestOps() {
+        ensureValid();
+        return _interestOps;
+    }
+
+    /**
+     *  Takes effect at the next selection, or immediately
+     *  if a select is in progress.
+     */
+    public SelectionKey interestOps(int ops) {
+        ensureValid();
+        if ((ops & ~_channel.validOps()) != 0)
+            throw new IllegalArgumentException("Bad ops " + ops);
+        _interestOps = ops;
+        _selector.signal(this);
+        return this;
+    }
+
+    /** for the selector only, no check for validity */
+    int getInterestOps() {
+        return _interestOps;
+    }
+
+    public int readyOps() {
+        ensureValid();
+        return _readyOps;
+    }
+
+    /** for the selector only */
+    void setReadyOps(int ops) {
+        _readyOps = ops;
+    }
+
+    /**
+     *  The channel's readiness may have changed,
+     *  have the selector check it.
+     */
+    void readyChanged() {
+        if (isValid())
+            _selector.signal(this);
+    }
+
+    private void ensureValid() {
+        if (!isValid())
+            throw new CancelledKeyException();
+    }
+}
@@ -0,0 +1,402 @@
+package net.i2p.client.streaming;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.data.Destination;
+import net.i2p.util.ConcurrentHashSet;
+import net.i2p.util.I2PThread;
+
+/**
+ *  A Selector for I2P streams, so that a single thread may service
+ *  many MessageChannels and AcceptingChannels, as with a java.nio Selector
+ *  and SocketChannels.
+ *
+ *  Readiness is pushed to the selector by the streams (new data, EOF, window updates,
+ *  new incoming connections) so a selection only looks at the keys that were signalled
+ *  since the last one, plus the keys that were ready at the last one,
+ *  and is O(active channels), not O(registered channels).
+ *  Selection is level-triggered as in java.nio.
+ *
+ *  Only MessageChannels and AcceptingChannels may be registered.
+ *  Put the channels in non-blocking mode before registering them, as usual.
+ *  OP_CONNECT is not supported, the channels are for sockets that are already connected.
+ *
+ *  There is no SelectorProvider, as it can't be subclassed for both the Java 6 and
+ *  Java 7 APIs, so provider() returns null here and for the channels. Use open().
+ *
+ *  Warning, this interface and implementation is preliminary and subject to change without notice.
+ *
+ *  @since 0.9.10
+ */
+public class StreamSelector extends AbstractSelector {
+    private final Set<SelectionKey> _keys;
+    private final Set<SelectionKey> _publicKeys;
+    private final Set<SelectionKey> _selected;
+    /** signalled since the last selection */
+    private final Set<StreamSelectionKey> _dirty;
+    /** ready at the last selection, selecting thread only */
+    private final List<StreamSelectionKey> _lastReady;
+    private final Object _lock;
+    /** under _lock */
+    private boolean _signalled;
+    /** under _lock */
+    private boolean _wakeup;
+
+    private StreamSelector() {
+        super(null);
+        _keys = new ConcurrentHashSet<SelectionKey>();
+        _publicKeys = Collections.unmodifiableSet(_keys);
+        _selected = new HashSet<SelectionKey>();
+        _dirty = new ConcurrentHashSet<StreamSelectionKey>();
+        _lastReady = new ArrayList<StreamSelectionKey>();
+        _lock = new Object();
+    }
+
+    public static StreamSelector open() {
+        return new StreamSelector();
+    }
+
+    public Set<SelectionKey> keys() {
+        if (!isOpen())
+            throw new ClosedSelectorException();
+        return _publicKeys;
+    }
+
+    /**
+     *  Unlike java.nio, the returned set does not prevent additions,
+     *  but only keys returned by a selection should be in it.
+     */
+    public Set<SelectionKey> selectedKeys() {
+        if (!isOpen())
+            throw new ClosedSelectorException();
+        return _selected;
+    }
+
+    public int selectNow() throws IOException {
+        return doSelect(-1);
+    }
+
+    public int select(long timeout) throws IOException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative timeout");
+        return doSelect(timeout);
+    }
+
+    public int select() throws IOException {
+        return doSelect(0);
+    }
+
+    public StreamSelector wakeup() {
+        synchronized (_lock) {
+            _wakeup = true;
+            _lock.notifyAll();
+        }
+        return this;
+    }
+
+    /**
+     *  @param ch must be a MessageChannel or AcceptingChannel
+     */
+    protected SelectionKey register(AbstractSelectableChannel ch, int ops, Object att) {
+        if (!(ch instanceof StreamChannel))
+            throw new IllegalSelectorException();
+        if (!isOpen())
+            throw new ClosedSelectorException();
+        StreamSelectionKey key = new StreamSelectionKey(this, ch);
+        key.attach(att);
+        _keys.add(key);
+        ((StreamChannel) ch).addKey(key);
+        // signals
+        key.interestOps(ops);
+        return key;
+    }
+
+    protected void implCloseSelector() throws IOException {
+        wakeup();
+        synchronized (this) {
+            for (SelectionKey k : _keys) {
+                StreamSelectionKey key = (StreamSelectionKey) k;
+                key.streamChannel().removeKey(key);
+                deregister(key);
+            }
+            _keys.clear();
+            _selected.clear();
+            _dirty.clear();
+            _lastReady.clear();
+        }
+    }
+
+    /**
+     *  The key's channel readiness or interest set may have changed.
+     *  Called from the streaming threads, does not block.
+     */
+    void signal(StreamSelectionKey key) {
+        _dirty.add(key);
+        synchronized (_lock) {
+            if (!_signalled) {
+                _signalled = true;
+                _lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *  @param timeout less than zero: don't wait; zero: wait forever
+     */
+    private int doSelect(long timeout) throws IOException {
+        if (!isOpen())
+            throw new ClosedSelectorException();
+        synchronized (this) {
+            processCancelled();
+            int rv = scan();
+            if (rv == 0 && timeout >= 0) {
+                try {
+                    begin();
+                    synchronized (_lock) {
+                        // a signal since scan() started will be processed by the next scan()
+                        if (!_signalled && !_wakeup)
+                            _lock.wait(timeout);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    end();
+                }
+                if (!isOpen())
+                    return 0;
+                processCancelled();
+                rv = scan();
+            }
+            synchronized (_lock) {
+                _wakeup = false;
+            }
+            return rv;
+        }
+    }
+
+    /**
+     *  Check the signalled keys and the keys that were ready last time.
+     *  Caller must synch on this.
+     *
+     *  @return the number of keys added to the selected set or with updated ready ops
+     */
+    private int scan() {
+        synchronized (_lock) {
+            _signalled = false;
+        }
+        Set<StreamSelectionKey> candidates = new HashSet<StreamSelectionKey>(_lastReady);
+        _lastReady.clear();
+        for (StreamSelectionKey key : _dirty) {
+            // remove before checking, a signal after this will add it back
+            _dirty.remove(key);
+            candidates.add(key);
+        }
+        int rv = 0;
+        for (StreamSelectionKey key : candidates) {
+            if (!key.isValid())
+                continue;
+            int ready = key.streamChannel().readyOps() & key.getInterestOps();
+            if (ready == 0)
+                continue;
+            _lastReady.add(key);
+            if (_selected.contains(key)) {
+                int old = key.readyOps();
+                if ((old | ready) != old) {
+                    key.setReadyOps(old | ready);
+                    rv++;
+                }
+            } else {
+                key.setReadyOps(ready);
+                _selected.add(key);
+                rv++;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Caller must synch on this.
+     */
+    private void processCancelled() {
+        Set<SelectionKey> cancelled = cancelledKeys();
+        synchronized (cancelled) {
+            if (cancelled.isEmpty())
+                return;
+            for (SelectionKey k : cancelled) {
+                StreamSelectionKey key = (StreamSelectionKey) k;
+                _keys.remove(key);
+                _selected.remove(key);
+                _dirty.remove(key);
+                _lastReady.remove(key);
+                key.streamChannel().removeKey(key);
+                deregister(key);
+            }
+            cancelled.clear();
+        }
+    }
+
+    private static final int BENCH_MSG_SIZE = 64;
+
+    /**
+     *  Connections per thread benchmark.
+     *  Opens count streams between two new destinations on the local router's I2CP port,
+     *  and exchanges small messages on all of them for the given time,
+     *  with one selecting thread on each side.
+     *
+     *  Usage: StreamSelector [count [seconds]]
+     */
+    public static void main(String args[]) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        final I2PSocketManager server = I2PSocketManagerFactory.createManager();
+        final I2PSocketManager client = I2PSocketManagerFactory.createManager();
+        if (server == null || client == null) {
+            System.err.println("Can't connect to the router's I2CP port");
+            System.exit(1);
+        }
+        final StreamSelector ssel = open();
+        final AcceptingChannel ac = server.getServerSocket().getChannel();
+        ac.register(ssel, SelectionKey.OP_ACCEPT);
+        Thread st = new I2PThread(new Runnable() {
+            public void run() {
+                try {
+                    echo(ssel, ac);
+                } catch (Exception e) {
+                    if (ssel.isOpen())
+                        e.printStackTrace();
+                }
+            }
+        }, "StreamSelector echo", true);
+        st.start();
+
+        // connecting blocks, use a few threads, they are done before the timing starts
+        final Destination dest = server.getSession().getMyDestination();
+        final List<I2PSocket> socks = Collections.synchronizedList(new ArrayList<I2PSocket>(count));
+        final AtomicInteger toConnect = new AtomicInteger(count);
+        long start = System.currentTimeMillis();
+        List<Thread> connectors = new ArrayList<Thread>();
+        for (int i = 0; i < Math.min(16, count); i++) {
+            Thread t = new I2PThread(new Runnable() {
+                public void run() {
+                    while (toConnect.getAndDecrement() > 0) {
+                        try {
+                            socks.add(client.connect(dest));
+                        } catch (Exception e) {
+                            System.err.println("Connect failed: " + e);
+                        }
+                    }
+                }
+            }, "StreamSelector connect " + i, true);
+            t.start();
+            connectors.add(t);
+        }
+        for (Thread t : connectors) {
+            t.join();
+        }
+        System.out.println("Connected " + socks.size() + " streams in " +
+                           (System.currentTimeMillis() - start) + " ms");
+
+        StreamSelector csel = open();
+        for (I2PSocket sock : socks) {
+            ByteBuffer[] bufs = new ByteBuffer[] { ByteBuffer.allocate(BENCH_MSG_SIZE),
+                                                   ByteBuffer.allocate(BENCH_MSG_SIZE) };
+            sock.getChannel().register(csel, SelectionKey.OP_WRITE, bufs);
+        }
+        long roundTrips = 0;
+        long maxActive = 0;
+        start = System.currentTimeMillis();
+        long end = start + (seconds * 1000L);
+        long now;
+        while ((now = System.currentTimeMillis()) < end) {
+            csel.select(end - now);
+            Set<SelectionKey> selected = csel.selectedKeys();
+            maxActive = Math.max(maxActive, selected.size());
+            for (Iterator<SelectionKey> iter = selected.iterator(); iter.hasNext(); ) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                MessageChannel ch = (MessageChannel) key.channel();
+                ByteBuffer[] bufs = (ByteBuffer[]) key.attachment();
+                try {
+                    if (key.isWritable()) {
+                        ch.write(bufs[0]);
+                        if (!bufs[0].hasRemaining())
+                            key.interestOps(SelectionKey.OP_READ);
+                    }
+                    if (key.isReadable()) {
+                        if (ch.read(bufs[1]) < 0) {
+                            key.cancel();
+                        } else if (!bufs[1].hasRemaining()) {
+                            roundTrips++;
+                            bufs[0].clear();
+                            bufs[1].clear();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        }
+                    }
+                } catch (IOException ioe) {
+                    key.cancel();
+                }
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+        System.out.println(csel.keys().size() + " streams served by 1 client thread and 1 server thread");
+        System.out.println(roundTrips + " round trips of " + BENCH_MSG_SIZE + " bytes in " + time + " ms, " +
+                           (roundTrips * 1000 / Math.max(1, time)) + " per second");
+        System.out.println("max " + maxActive + " streams ready in one selection");
+        csel.close();
+        ssel.close();
+        for (I2PSocket sock : socks) {
+            sock.close();
+        }
+        client.destroySocketManager();
+        server.destroySocketManager();
+    }
+
+    /** the benchmark server side */
+    private static void echo(StreamSelector sel, AcceptingChannel ac) throws IOException {
+        while (sel.isOpen()) {
+            sel.select();
+            if (!sel.isOpen())
+                break;
+            for (Iterator<SelectionKey> iter = sel.selectedKeys().iterator(); iter.hasNext(); ) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        I2PSocket sock;
+                        while ((sock = ac.accept()) != null) {
+                            sock.getChannel().register(sel, SelectionKey.OP_READ,
+                                                       ByteBuffer.allocate(BENCH_MSG_SIZE));
+                        }
+                        continue;
+                    }
+                    MessageChannel ch = (MessageChannel) key.channel();
+                    ByteBuffer buf = (ByteBuffer) key.attachment();
+                    if (key.isReadable() && ch.read(buf) < 0) {
+                        ch.close();
+                        continue;
+                    }
+                    buf.flip();
+                    ch.write(buf);
+                    buf.compact();
+                    key.interestOps(buf.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                                       : SelectionKey.OP_READ);
+                } catch (Exception e) {
+                    key.cancel();
+                }
+            }
+        }
+    }
+}
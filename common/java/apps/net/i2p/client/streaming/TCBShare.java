@@ -1,13 +1,25 @@
 package net.i2p.client.streaming;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
 
 import net.i2p.I2PAppContext;
+import net.i2p.data.Base64;
 import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
+import net.i2p.util.SecureDirectory;
+import net.i2p.util.SecureFileOutputStream;
 import net.i2p.util.SimpleTimer2;
 
 import static net.i2p.client.streaming.I2PSocketOptionsImpl.getDouble;
@@ -22,16 +34,37 @@ import static net.i2p.client.streaming.I2PSocketOptionsImpl.getDouble;
  *  so that there is no information leakage to other Destinations on the
  *  same router.
  *
+ *  As of 0.9.10, if PROP_PERSIST is set in the context properties,
+ *  the share is saved in the tcbcache directory, in a file per local Destination,
+ *  and loaded when the ConnectionManager starts, so that connections to
+ *  repeat peers don't start with the default RTT and window after a restart.
+ *  Persisted entries are kept for PERSIST_EXPIRE_TIME, and are trusted less
+ *  as they age: the window decays toward the initial window,
+ *  and the RTT deviation grows, so the RTO is more conservative.
+ *  Paths with a high loss rate don't get a larger initial window.
  */
 class TCBShare {
     private final I2PAppContext _context;
     private final Log _log;
-    private final Map<Destination, Entry> _cache;
+    private final Map<Hash, Entry> _cache;
     private final CleanEvent _cleaner;
     private final double _rttDampening, _wdwDampening, _rttDevDampening;
+    /** null if not persistent */
+    private final File _file;
+    private final long _expireTime;
+    private volatile boolean _dirty;
 
     private static final long EXPIRE_TIME = 30*60*1000;
+    /** persistent entries are decayed from EXPIRE_TIME to this */
+    private static final long PERSIST_EXPIRE_TIME = 7*24*60*60*1000L;
     private static final long CLEAN_TIME = 10*60*1000;
+    private static final int MAX_ENTRIES = 512;
+    /** context property, default false @since 0.9.10 */
+    public static final String PROP_PERSIST = "i2p.streaming.tcbcache.persist";
+    private static final String DIR_NAME = "tcbcache";
+    private static final String SUFFIX = ".txt";
+    /** above this retransmission rate, don't start with a larger window */
+    private static final double MAX_LOSS = 0.10;
     ///// constants defined in rfc 2140
     ///// do not change unless you know what you're doing
     private static final double RTT_DAMPENING = 0.75;
@@ -45,7 +78,10 @@ class TCBShare {
     private static final int MAX_RTT_DEV = (int) (MAX_RTT * 1.5);
     private static final int MAX_WINDOW_SIZE = ConnectionPacketHandler.MAX_SLOW_START_WINDOW;
     
-    public TCBShare(I2PAppContext ctx, SimpleTimer2 timer) {
+    /**
+     *  @param local our Destination's hash, for the persistent file name
+     */
+    public TCBShare(I2PAppContext ctx, SimpleTimer2 timer, Hash local) {
         _context = ctx;
         _log = ctx.logManager().getLog(TCBShare.class);
         
@@ -54,7 +90,19 @@ class TCBShare {
         _wdwDampening = getDouble(props, WDW_DAMP_PROP, WDW_DAMPENING);
         _rttDevDampening = getDouble(props, RTTDEV_DAMP_PROP, RTTDEV_DAMPENING);
         
-        _cache = new ConcurrentHashMap<Destination,Entry>(4);
+        _cache = new LHMCache<Hash, Entry>(MAX_ENTRIES);
+        if (ctx.getBooleanProperty(PROP_PERSIST)) {
+            File dir = new SecureDirectory(ctx.getConfigDir(), DIR_NAME);
+            if (!dir.exists())
+                dir.mkdirs();
+            _file = new File(dir, local.toBase64() + SUFFIX);
+            _expireTime = PERSIST_EXPIRE_TIME;
+            deleteOld(dir);
+            load();
+        } else {
+            _file = null;
+            _expireTime = EXPIRE_TIME;
+        }
         _cleaner = new CleanEvent(timer);
         _cleaner.schedule(CLEAN_TIME);
         
@@ -72,7 +120,11 @@ class TCBShare {
      */
     public void stop() {
         _cleaner.cancel();
-        _cache.clear();
+        if (_file != null && _dirty)
+            save();
+        synchronized(_cache) {
+            _cache.clear();
+        }
     }
 
     /** retrieve from cache */
@@ -83,15 +135,31 @@ class TCBShare {
         ConnectionOptions opts = con.getOptions();
         if (opts == null)
             return;
-        Entry e = _cache.get(dest);
+        Entry e;
+        synchronized(_cache) {
+            e = _cache.get(dest.calculateHash());
+        }
         if (e == null || e.isExpired())
             return;
-        final int rtt, rttDev, wdw;
+        int rtt, rttDev, wdw;
+        final double loss;
+        final long age;
         synchronized(e) {
             rtt = e.getRTT();
             rttDev = e.getRTTDev();
             wdw = e.getWindowSize();
+            loss = e.getLoss();
+            age = _context.clock().now() - e.getUpdated();
         }
+        if (age > EXPIRE_TIME) {
+            // 1 when fresh, 0 at expiration
+            double trust = 1 - (((double) (age - EXPIRE_TIME)) / (_expireTime - EXPIRE_TIME));
+            wdw = ConnectionOptions.INITIAL_WINDOW_SIZE +
+                  (int) (trust * (wdw - ConnectionOptions.INITIAL_WINDOW_SIZE));
+            rttDev = Math.min(MAX_RTT_DEV, rttDev + (int) ((1 - trust) * rtt / 2));
+        }
+        if (loss > MAX_LOSS)
+            wdw = Math.min(wdw, ConnectionOptions.INITIAL_WINDOW_SIZE);
         if (_log.shouldLog(Log.DEBUG)) {
             _log.debug("From cache: " +
                        con.getSession().getMyDestination().calculateHash().toBase64().substring(0, 4) +
@@ -99,7 +167,9 @@ class TCBShare {
                        dest.calculateHash().toBase64().substring(0, 4) +
                        " RTT: " + rtt + 
                        " RTTDev: "+ rttDev +
-                       " wdw: " + wdw );
+                       " wdw: " + wdw +
+                       " loss: " + loss +
+                       " age: " + age);
         }
         opts.loadFromCache(rtt,rttDev,wdw);
     }
@@ -114,14 +184,23 @@ class TCBShare {
         ConnectionOptions opts = con.getOptions();
         if (opts == null)
             return;
+        long sent = con.getAckedPackets() + con.getLifetimeDupMessagesSent();
+        double loss = ((double) con.getLifetimeDupMessagesSent()) / sent;
+        Hash h = dest.calculateHash();
         int old = -1;
         int oldw = -1;
         int oldDev = -1;
-        Entry e = _cache.get(dest);
-        if (e == null || e.isExpired()) {
-            e = new Entry(opts.getRTT(), opts.getWindowSize(), opts.getRTTDev());
-            _cache.put(dest, e);
-        } else {
+        Entry e;
+        boolean created = false;
+        synchronized(_cache) {
+            e = _cache.get(h);
+            if (e == null || e.isExpired()) {
+                e = new Entry(opts.getRTT(), opts.getWindowSize(), opts.getRTTDev(), loss, _context.clock().now());
+                _cache.put(h, e);
+                created = true;
+            }
+        }
+        if (!created) {
             synchronized(e) {
                 old = e.getRTT();
                 oldw = e.getWindowSize();
@@ -129,8 +208,10 @@ class TCBShare {
                 e.setRTT(opts.getRTT());
                 e.setWindowSize(opts.getWindowSize());
                 e.setRTTDev(opts.getRTTDev());
+                e.setLoss(loss);
             }
         }
+        _dirty = true;
         if (_log.shouldLog(Log.DEBUG)) {
             _log.debug("To cache: " +
                        con.getSession().getMyDestination().calculateHash().toBase64().substring(0, 4) +
@@ -138,7 +219,8 @@ class TCBShare {
                        dest.calculateHash().toBase64().substring(0, 4) +
                        " old: " + old + " con: " + opts.getRTT() + " new: " + e.getRTT() +
                        " oldDev: " + oldDev + " conDev: " + opts.getRTTDev() + " newDev: " + e.getRTTDev() +
-                       " oldw: " + oldw + " conw: " + opts.getWindowSize() + " neww: " + e.getWindowSize());
+                       " oldw: " + oldw + " conw: " + opts.getWindowSize() + " neww: " + e.getWindowSize() +
+                       " loss: " + loss);
         }
     }
 
@@ -146,13 +228,15 @@ class TCBShare {
         int _rtt;
         int _wdw;
         int _rttDev;
+        double _loss;
         long _updated;
 
-        public Entry(int ms, int wdw, int rttDev) {
-            _rtt = ms;
-            _wdw = wdw;
-            _rttDev = rttDev;
-            _updated = _context.clock().now();
+        public Entry(int ms, int wdw, int rttDev, double loss, long updated) {
+            _rtt = Math.min(ms, MAX_RTT);
+            _wdw = Math.min(wdw, MAX_WINDOW_SIZE);
+            _rttDev = Math.min(rttDev, MAX_RTT_DEV);
+            _loss = loss;
+            _updated = updated;
         }
         public synchronized int getRTT() { return _rtt; }
         public synchronized void setRTT(int ms) {
@@ -175,8 +259,109 @@ class TCBShare {
                 _wdw = MAX_WINDOW_SIZE;
             _updated = _context.clock().now();
         }
+        /** @since 0.9.10 */
+        public synchronized double getLoss() { return _loss; }
+        /** @since 0.9.10 */
+        public synchronized void setLoss(double loss) {
+            _loss = _wdwDampening*_loss + (1-_wdwDampening)*loss;
+            _updated = _context.clock().now();
+        }
+        /** @since 0.9.10 */
+        public synchronized long getUpdated() { return _updated; }
         public synchronized boolean isExpired() {
-            return _updated < _context.clock().now() - EXPIRE_TIME;
+            return _updated < _context.clock().now() - _expireTime;
+        }
+    }
+
+    /**
+     *  Format is hash,rtt,rttdev,window,loss,updated
+     *  @since 0.9.10
+     */
+    private void load() {
+        int count = 0;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(_file);
+            BufferedReader br = new BufferedReader(new InputStreamReader(in, "ISO-8859-1"));
+            String line = null;
+            long now = _context.clock().now();
+            while ( (line = br.readLine()) != null) {
+                if (line.startsWith("#"))
+                    continue;
+                String[] f = line.split(",");
+                if (f.length != 6)
+                    continue;
+                try {
+                    byte[] b = Base64.decode(f[0]);
+                    if (b == null || b.length != Hash.HASH_LENGTH)
+                        continue;
+                    long updated = Math.min(now, Long.parseLong(f[5]));
+                    Entry e = new Entry(Integer.parseInt(f[1]), Integer.parseInt(f[3]), Integer.parseInt(f[2]),
+                                        Double.parseDouble(f[4]), updated);
+                    if (e.isExpired())
+                        continue;
+                    synchronized(_cache) {
+                        _cache.put(Hash.create(b), e);
+                    }
+                    count++;
+                } catch (NumberFormatException nfe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error reading TCB cache entry: " + line);
+                }
+            }
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN) && _file.exists())
+                _log.warn("Error reading the TCB cache " + _file, ioe);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Loaded " + count + " TCB cache entries from " + _file);
+    }
+
+    /** @since 0.9.10 */
+    private void save() {
+        _dirty = false;
+        int count = 0;
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(_file), "ISO-8859-1")));
+            out.println("# TCB cache, format is hash,rtt,rttdev,window,loss,updated");
+            synchronized(_cache) {
+                for (Map.Entry<Hash, Entry> me : _cache.entrySet()) {
+                    Entry e = me.getValue();
+                    if (e.isExpired())
+                        continue;
+                    synchronized(e) {
+                        out.println(me.getKey().toBase64() + ',' + e.getRTT() + ',' + e.getRTTDev() + ',' +
+                                    e.getWindowSize() + ',' + ((float) e.getLoss()) + ',' + e.getUpdated());
+                    }
+                    count++;
+                }
+            }
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Error writing the TCB cache " + _file, ioe);
+        } finally {
+            if (out != null) out.close();
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Stored " + count + " TCB cache entries to " + _file);
+    }
+
+    /**
+     *  Remove files for local Destinations we haven't used in a while.
+     *  @since 0.9.10
+     */
+    private static void deleteOld(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        long cutoff = System.currentTimeMillis() - PERSIST_EXPIRE_TIME;
+        for (int i = 0; i < files.length; i++) {
+            File f = files[i];
+            if (f.getName().endsWith(SUFFIX) && f.lastModified() < cutoff)
+                f.delete();
         }
     }
 
@@ -186,10 +371,14 @@ class TCBShare {
             super(timer);
         }
         public void timeReached() {
-            for (Iterator<Entry> iter = _cache.values().iterator(); iter.hasNext(); ) {
-                if (iter.next().isExpired())
-                    iter.remove();
+            synchronized(_cache) {
+                for (Iterator<Entry> iter = _cache.values().iterator(); iter.hasNext(); ) {
+                    if (iter.next().isExpired())
+                        iter.remove();
+                }
             }
+            if (_file != null && _dirty)
+                save();
             schedule(CLEAN_TIME);
         }
     }
@@ -24,6 +24,12 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.i2p.I2PAppContext;
 import net.i2p.I2PException;
@@ -38,7 +44,7 @@ import net.i2p.util.SimpleTimer2;
 /**
  * Accepts connections on a I2PServerSocket and routes them to PeerAcceptors.
  */
-class ConnectionAcceptor implements Runnable
+class ConnectionAcceptor implements Runnable, PeerMux.ChannelAcceptor
 {
   private final Log _log = I2PAppContext.getGlobalContext().logManager().getLog(ConnectionAcceptor.class);
   private final PeerAcceptor peeracceptor;
@@ -46,6 +52,12 @@ class ConnectionAcceptor implements Runnable
   private final I2PSnarkUtil _util;
   private final ObjectCounter<Hash> _badCounter = new ObjectCounter<Hash>();
   private final SimpleTimer2.TimedEvent _cleaner;
+  /**
+   *  For the handshakes. Unbounded as before, but threads are reused,
+   *  they're short-lived now that the PeerEngine takes over after the handshake.
+   *  @since 0.9.10
+   */
+  private final ThreadPoolExecutor _handlers;
 
   private volatile boolean stop;
 
@@ -60,6 +72,8 @@ class ConnectionAcceptor implements Runnable
       _util = util;
       _cleaner = new Cleaner();
       peeracceptor = new PeerAcceptor(set);
+      _handlers = createHandlers();
+      _util.setMuxAcceptor(this);
   }
   
   /**
@@ -86,6 +100,8 @@ class ConnectionAcceptor implements Runnable
   {
     this.peeracceptor = peeracceptor;
     _util = util;
+    _handlers = createHandlers();
+    _util.setMuxAcceptor(this);
     
     thread = new I2PAppThread(this, "I2PSnark acceptor");
     thread.setDaemon(true);
@@ -93,6 +109,12 @@ class ConnectionAcceptor implements Runnable
     _cleaner = new Cleaner();
   }
 
+  /** @since 0.9.10 */
+  private static ThreadPoolExecutor createHandlers() {
+      return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                                    new SynchronousQueue<Runnable>(), new HandlerThreadFactory());
+  }
+
   /**
    *  May be restarted later with startAccepting().
    */
@@ -196,8 +218,7 @@ class ConnectionAcceptor implements Runnable
                     try { socket.close(); } catch (IOException ioe) {}
                     continue;
                 }
-                Thread t = new I2PAppThread(new Handler(socket), "I2PSnark incoming connection");
-                t.start();
+                _handlers.execute(new Handler(socket));
             }
           }
         catch (I2PException ioe)
@@ -232,6 +253,31 @@ class ConnectionAcceptor implements Runnable
           _log.warn("ConnectionAcceptor closed");
   }
   
+  /**
+   *  PeerMux callback, an incoming channel is handled like a new socket.
+   *  @since 0.9.10
+   */
+  public void channelOpened(I2PSocket channel) {
+      Hash h = channel.getPeerDestination().calculateHash();
+      int bad = _badCounter.count(h);
+      if (bad >= MAX_BAD) {
+          if (_log.shouldLog(Log.WARN))
+              _log.warn("Rejecting mux channel from " + h +
+                        " after " + bad + " failures, max is " + MAX_BAD);
+          // the whole stream, not just this channel
+          if (channel instanceof MuxSocket)
+              ((MuxSocket) channel).getConnection().disconnect();
+          else
+              try { channel.close(); } catch (IOException ioe) {}
+          return;
+      }
+      try {
+          _handlers.execute(new Handler(channel));
+      } catch (RejectedExecutionException ree) {
+          try { channel.close(); } catch (IOException ioe) {}
+      }
+  }
+
   private class Handler implements Runnable {
       private final I2PSocket _socket;
 
@@ -247,6 +293,13 @@ class ConnectionAcceptor implements Runnable
               in = new BufferedInputStream(in);
               if (_log.shouldLog(Log.DEBUG))
                   _log.debug("Handling socket from " + _socket.getPeerDestination().calculateHash());
+              PeerMux mux = _util.getPeerMux();
+              if (mux != null && !(_socket instanceof MuxSocket) &&
+                  PeerMux.isPreamble(_socket, in)) {
+                  // the mux threads take it from here
+                  mux.accept(_socket, in, out);
+                  return;
+              }
               peeracceptor.connection(_socket, in, out);
           } catch (PeerAcceptor.ProtocolException ihe) {
               _badCounter.increment(_socket.getPeerDestination().calculateHash());
@@ -261,6 +314,16 @@ class ConnectionAcceptor implements Runnable
       }
   }
 
+    /** @since 0.9.10 */
+    private static class HandlerThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("I2PSnark incoming connection");
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+
     /** @since 0.9.1 */    
     private class Cleaner extends SimpleTimer2.TimedEvent {
 
@@ -0,0 +1,365 @@
+/*
+ * Released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ */
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.SHA1Hash;
+import net.i2p.stat.Rate;
+import net.i2p.stat.RateStat;
+import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer2;
+
+import org.klomp.snark.dht.DHT;
+
+/**
+ *  Announces the torrents that don't need peers to the DHT, in groups,
+ *  instead of each TrackerClient doing its own lookup.
+ *
+ *  A seeding torrent only needs to stay findable, so its TrackerClient
+ *  hands it off here (add()), as does the TorrentParker for parked torrents.
+ *  Torrents that need peers still do their own lookups, as the peers
+ *  from a get_peers can't be shared.
+ *
+ *  Each run, all the torrents that are due are grouped by DHT.groupByClosest().
+ *  For each group, the first torrent gets an iterative lookup, and the rest
+ *  are announced directly to the nodes that lookup found.
+ *  A few groups are done at a time, most overdue first, until the run's time is up;
+ *  the rest are still due at the next run.
+ *  This only saves lookups when there are more due torrents than
+ *  known nodes in their part of the keyspace, see main().
+ *  The refresh interval depends on the torrent's activity,
+ *  with some randomness so the torrents spread out over time.
+ *
+ *  One per SnarkManager.
+ *
+ *  @since 0.9.10
+ */
+class DHTAnnouncer extends SimpleTimer2.TimedEvent {
+
+    private final I2PAppContext _context;
+    private final I2PSnarkUtil _util;
+    private final Log _log;
+    private final Map<SHA1Hash, Entry> _torrents;
+    private final ThreadPoolExecutor _workers;
+    /** groups left in the current run, no new run until zero */
+    private final AtomicInteger _pending = new AtomicInteger();
+    private final AtomicInteger _announced = new AtomicInteger();
+    private final AtomicInteger _lookups = new AtomicInteger();
+    private volatile long _runStarted;
+    private volatile boolean _stopped;
+
+    static final long RUN_PERIOD = 60*1000;
+    /** seeding with peers, as the TrackerClient did */
+    private static final long ACTIVE_INTERVAL = 15*60*1000;
+    /** seeding without peers */
+    private static final long IDLE_INTERVAL = 30*60*1000;
+    private static final long PARKED_INTERVAL = 45*60*1000;
+    /** spread out the first announce of torrents added at the same time */
+    private static final int FIRST_DELAY = 5*60*1000;
+    private static final long LOOKUP_WAIT = 90*1000;
+    /** to get a token we don't have */
+    private static final long DIRECT_WAIT = 30*1000;
+    /** no new groups are started after this, the rest wait for the next run */
+    private static final long MAX_RUN_TIME = 5*60*1000;
+    private static final int MAX_WORKERS = 4;
+
+    private static class Entry {
+        public final Snark snark;
+        public volatile long next;
+
+        public Entry(Snark snark, long next) {
+            this.snark = snark;
+            this.next = next;
+        }
+    }
+
+    /**
+     *  Caller must schedule
+     */
+    public DHTAnnouncer(I2PSnarkUtil util) {
+        super(util.getContext().simpleTimer2());
+        _util = util;
+        _context = util.getContext();
+        _log = _context.logManager().getLog(DHTAnnouncer.class);
+        _torrents = new ConcurrentHashMap<SHA1Hash, Entry>();
+        _workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(), new AnnouncerThreadFactory());
+        _workers.allowCoreThreadTimeOut(true);
+        _context.statManager().createRateStat("snark.dhtAnnounceTorrents", "Torrents per batch DHT announce", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        _context.statManager().createRateStat("snark.dhtAnnounceLookups", "Iterative lookups per batch DHT announce", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        _context.statManager().createRateStat("snark.dhtAnnounceDirect", "Direct announces per batch DHT announce", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+    }
+
+    /**
+     *  Keep this torrent in the DHT until it's stopped, or needs peers again.
+     *  Does nothing if already added.
+     */
+    public void add(Snark snark) {
+        SHA1Hash h = new SHA1Hash(snark.getInfoHash());
+        if (_torrents.containsKey(h))
+            return;
+        long next = _context.clock().now() + _context.random().nextInt(FIRST_DELAY);
+        _torrents.put(h, new Entry(snark, next));
+    }
+
+    /**
+     *  The TrackerClient is doing its own lookups
+     */
+    public void remove(Snark snark) {
+        _torrents.remove(new SHA1Hash(snark.getInfoHash()));
+    }
+
+    /** gauge */
+    public int size() {
+        return _torrents.size();
+    }
+
+    /**
+     *  @return torrents announced in the last full hour
+     */
+    public long getTorrentsPerHour() {
+        return getHourlyTotal("snark.dhtAnnounceTorrents");
+    }
+
+    /**
+     *  @return iterative lookups done in the last full hour
+     */
+    public long getLookupsPerHour() {
+        return getHourlyTotal("snark.dhtAnnounceLookups");
+    }
+
+    private long getHourlyTotal(String stat) {
+        RateStat rs = _context.statManager().getRate(stat);
+        if (rs == null)
+            return 0;
+        Rate r = rs.getRate(60*60*1000);
+        if (r == null)
+            return 0;
+        return (long) r.getLastTotalValue();
+    }
+
+    public void stop() {
+        _stopped = true;
+        cancel();
+        _workers.shutdownNow();
+        _torrents.clear();
+    }
+
+    public void timeReached() {
+        if (_stopped)
+            return;
+        try {
+            if (_util.connected() && _pending.get() <= 0)
+                announce();
+        } finally {
+            if (!_stopped)
+                schedule(RUN_PERIOD);
+        }
+    }
+
+    private void announce() {
+        DHT dht = _util.getDHT();
+        if (dht == null)
+            return;
+        long now = _context.clock().now();
+        List<byte[]> ihs = new ArrayList<byte[]>();
+        for (Iterator<Entry> iter = _torrents.values().iterator(); iter.hasNext(); ) {
+            Entry e = iter.next();
+            Snark snark = e.snark;
+            if (snark.isStopped()) {
+                iter.remove();
+                continue;
+            }
+            if (e.next <= now)
+                ihs.add(snark.getInfoHash());
+        }
+        if (ihs.isEmpty())
+            return;
+        // all of them, so the groups are as large as they can be
+        List<List<Entry>> groups = new ArrayList<List<Entry>>();
+        for (List<byte[]> g : dht.groupByClosest(ihs)) {
+            List<Entry> group = new ArrayList<Entry>(g.size());
+            for (byte[] ih : g) {
+                Entry e = _torrents.get(new SHA1Hash(ih));
+                if (e != null)
+                    group.add(e);
+            }
+            if (!group.isEmpty())
+                groups.add(group);
+        }
+        // most overdue first, in case we run out of time
+        Collections.sort(groups, new Comparator<List<Entry>>() {
+            public int compare(List<Entry> l, List<Entry> r) {
+                long ln = earliest(l);
+                long rn = earliest(r);
+                if (ln < rn)
+                    return -1;
+                if (ln > rn)
+                    return 1;
+                return 0;
+            }
+        });
+        _runStarted = now;
+        _announced.set(0);
+        _lookups.set(0);
+        _pending.set(groups.size());
+        for (List<Entry> group : groups) {
+            try {
+                _workers.execute(new GroupAnnouncer(dht, group));
+            } catch (RejectedExecutionException ree) {
+                // stopped
+                break;
+            }
+        }
+    }
+
+    private static long earliest(List<Entry> group) {
+        long rv = Long.MAX_VALUE;
+        for (Entry e : group) {
+            rv = Math.min(rv, e.next);
+        }
+        return rv;
+    }
+
+    /**
+     *  Less often for less active torrents, +- 10%
+     */
+    private long interval(Snark snark) {
+        long rv;
+        if (snark.isParked())
+            rv = PARKED_INTERVAL;
+        else if (snark.getPeerCount() > 0)
+            rv = ACTIVE_INTERVAL;
+        else
+            rv = IDLE_INTERVAL;
+        return rv - (rv / 10) + _context.random().nextInt((int) (rv / 5));
+    }
+
+    /**
+     *  One group, in a worker thread.
+     *  The first torrent still wanted gets the lookup, the rest are announced directly.
+     */
+    private class GroupAnnouncer implements Runnable {
+        private final DHT _dht;
+        private final List<Entry> _group;
+
+        public GroupAnnouncer(DHT dht, List<Entry> group) {
+            _dht = dht;
+            _group = group;
+        }
+
+        public void run() {
+            try {
+                if (_context.clock().now() > _runStarted + MAX_RUN_TIME)
+                    return;
+                boolean looked = false;
+                for (Entry e : _group) {
+                    if (_stopped)
+                        break;
+                    // stopped, or removed because it needs peers again, since the run started
+                    if (e.snark.isStopped() ||
+                        _torrents.get(new SHA1Hash(e.snark.getInfoHash())) != e)
+                        continue;
+                    byte[] ih = e.snark.getInfoHash();
+                    if (!looked) {
+                        _dht.getPeersAndAnnounce(ih, 1, LOOKUP_WAIT, 1, 0);
+                        _lookups.incrementAndGet();
+                        looked = true;
+                    } else {
+                        _dht.announceDirect(ih, 1, DIRECT_WAIT);
+                    }
+                    _announced.incrementAndGet();
+                    e.next = _context.clock().now() + interval(e.snark);
+                }
+            } finally {
+                if (_pending.decrementAndGet() == 0)
+                    runDone();
+            }
+        }
+    }
+
+    private void runDone() {
+        int torrents = _announced.get();
+        int lookups = _lookups.get();
+        _context.statManager().addRateData("snark.dhtAnnounceTorrents", torrents);
+        _context.statManager().addRateData("snark.dhtAnnounceLookups", lookups);
+        _context.statManager().addRateData("snark.dhtAnnounceDirect", torrents - lookups);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Announced " + torrents + " torrents with " + lookups + " lookups in " +
+                      (_context.clock().now() - _runStarted) + " ms, " + _torrents.size() + " torrents total");
+    }
+
+    private static class AnnouncerThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("Snark DHT announcer");
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+
+    /**
+     *  Simulation: iterative lookups needed vs. torrent count,
+     *  for a given number of known DHT nodes, with random node IDs and info hashes,
+     *  grouping by the closest node as DHT.groupByClosest() does.
+     *  Doesn't need a router or a DHT.
+     *
+     *  The lookups can't be fewer than the torrents or the known nodes, whichever is less,
+     *  so there's little saving until the due torrents outnumber the known nodes.
+     *
+     *  Usage: DHTAnnouncer [known nodes]
+     */
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        byte[][] nids = new byte[nodes][20];
+        for (int i = 0; i < nodes; i++) {
+            ctx.random().nextBytes(nids[i]);
+        }
+        for (int torrents = 10; torrents <= 10000; torrents *= 10) {
+            Set<Integer> groups = new HashSet<Integer>();
+            for (int t = 0; t < torrents; t++) {
+                byte[] ih = new byte[20];
+                ctx.random().nextBytes(ih);
+                int closest = 0;
+                for (int i = 1; i < nodes; i++) {
+                    if (closer(ih, nids[i], nids[closest]))
+                        closest = i;
+                }
+                groups.add(Integer.valueOf(closest));
+            }
+            System.out.println(torrents + " torrents, " + nodes + " known nodes: " +
+                               groups.size() + " lookups, " + (torrents - groups.size()) + " direct announces");
+        }
+    }
+
+    /** is a closer to target than b, by XOR */
+    private static boolean closer(byte[] target, byte[] a, byte[] b) {
+        for (int i = 0; i < target.length; i++) {
+            int da = (target[i] ^ a[i]) & 0xff;
+            int db = (target[i] ^ b[i]) & 0xff;
+            if (da != db)
+                return da < db;
+        }
+        return false;
+    }
+}
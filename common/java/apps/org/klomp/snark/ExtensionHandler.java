@@ -31,6 +31,14 @@ abstract class ExtensionHandler {
     public static final int ID_DHT = 3;
     /** not using the option bit since the compact format is different */
     public static final String TYPE_DHT = "i2p_dht";
+    /**
+     *  Capability only, no messages are sent with this ID.
+     *  Peers advertising it accept a PeerMux stream.
+     *  @since 0.9.10
+     */
+    public static final int ID_MUX = 4;
+    /** @since 0.9.10 */
+    public static final String TYPE_MUX = "i2p_mux";
     /** Pieces * SHA1 Hash length, + 25% extra for file names, benconding overhead, etc */
     private static final int MAX_METADATA_SIZE = Storage.MAX_PIECES * 20 * 5 / 4;
     private static final int PARALLEL_REQUESTS = 3;
@@ -40,9 +48,10 @@ abstract class ExtensionHandler {
    *  @param metasize -1 if unknown
    *  @param pexAndMetadata advertise these capabilities
    *  @param dht advertise DHT capability
+   *  @param mux advertise PeerMux capability, since 0.9.10
    *  @return bencoded outgoing handshake message
    */
-    public static byte[] getHandshake(int metasize, boolean pexAndMetadata, boolean dht) {
+    public static byte[] getHandshake(int metasize, boolean pexAndMetadata, boolean dht, boolean mux) {
         Map<String, Object> handshake = new HashMap<String, Object>();
         Map<String, Integer> m = new HashMap<String, Integer>();
         if (pexAndMetadata) {
@@ -54,6 +63,9 @@ abstract class ExtensionHandler {
         if (dht) {
             m.put(TYPE_DHT, Integer.valueOf(ID_DHT));
         }
+        if (mux) {
+            m.put(TYPE_MUX, Integer.valueOf(ID_MUX));
+        }
         // include the map even if empty so the far-end doesn't NPE
         handshake.put("m", m);
         handshake.put("p", Integer.valueOf(TrackerClient.PORT));
@@ -37,6 +37,7 @@ import org.klomp.snark.dht.DHT;
 import org.klomp.snark.dht.KRPC;
 import org.klomp.snark.dht.NodeInfo;
 import org.klomp.snark.dht.CustomQueryHandler;
+import org.klomp.snark.dht.PeerInterestListener;
 
 /**
  * I2P specific helpers for I2PSnark
@@ -73,6 +74,13 @@ public class I2PSnarkUtil {
     private NodeInfo _myNodeInfo;
     private CustomQueryHandler _customQueryHandler;
     private Runnable _dhtInitCallback;
+    private volatile PeerInterestListener _dhtInterestListener;
+    private PeerEngine _peerEngine;
+    private PeerMux _peerMux;
+    private PeerMux.ChannelAcceptor _muxAcceptor;
+    private PieceWriter _pieceWriter;
+    private volatile UploadScheduler _uploadScheduler;
+    private volatile DHTAnnouncer _dhtAnnouncer;
 
     private static final int EEPGET_CONNECT_TIMEOUT = 45*1000;
     private static final int EEPGET_CONNECT_TIMEOUT_SHORT = 5*1000;
@@ -82,6 +90,12 @@ public class I2PSnarkUtil {
     public static final int DEFAULT_MAX_UP_BW = 8;  //KBps
     public static final int MAX_CONNECTIONS = 16; // per torrent
     public static final String PROP_MAX_BW = "i2cp.outboundBytesPerSecond";
+    /** set to false to use two threads per peer as before @since 0.9.10 */
+    public static final String PROP_PEER_ENGINE = "i2psnark.peerEngine";
+    /** set to true to run all torrents with a peer over one stream @since 0.9.10 */
+    public static final String PROP_PEER_MUX = "i2psnark.peerMux";
+    /** set to false to verify and write pieces in the peer's thread as before @since 0.9.10 */
+    public static final String PROP_PIECE_WRITER = "i2psnark.asyncPieceWriter";
     public static final boolean DEFAULT_USE_DHT = true;
 
     public I2PSnarkUtil(I2PAppContext ctx) {
@@ -200,6 +214,18 @@ public class I2PSnarkUtil {
         _dhtInitCallback = callback;
     }
 
+    /**
+     *  Applies to the current DHT and any later one
+     *  @param lsnr may be null to remove
+     *  @since 0.9.10
+     */
+    public void setDHTInterestListener(PeerInterestListener lsnr) {
+        _dhtInterestListener = lsnr;
+        DHT dht = _dht;
+        if (dht != null)
+            dht.setPeerInterestListener(lsnr);
+    }
+
     public String getI2CPHost() { return _i2cpHost; }
     public int getI2CPPort() { return _i2cpPort; }
     public Map<String, String> getI2CPOptions() { return _opts; }
@@ -281,6 +307,7 @@ public class I2PSnarkUtil {
         }
         if (_shouldUseDHT && _manager != null && _dht == null) {
             _dht = new KRPC(_context, _baseName, _manager.getSession(), _myNodeInfo, _customQueryHandler);
+            _dht.setPeerInterestListener(_dhtInterestListener);
             if (_dhtInitCallback != null) {
                 _dhtInitCallback.run();
             }
@@ -294,6 +321,81 @@ public class I2PSnarkUtil {
      */
     public DHT getDHT() { return _dht; }
 
+    /**
+     *  The event-driven peer I/O, started on first use.
+     *  @return null if disabled or not connected
+     *  @since 0.9.10
+     */
+    synchronized PeerEngine getPeerEngine() {
+        if (_peerEngine == null && _manager != null &&
+            _context.getBooleanPropertyDefaultTrue(PROP_PEER_ENGINE))
+            _peerEngine = new PeerEngine(_context);
+        return _peerEngine;
+    }
+
+    /**
+     *  @return null if not running, e.g. without a SnarkManager
+     *  @since 0.9.10
+     */
+    UploadScheduler getUploadScheduler() { return _uploadScheduler; }
+
+    /**
+     *  @param sched null to go back to each torrent deciding for itself
+     *  @since 0.9.10
+     */
+    void setUploadScheduler(UploadScheduler sched) { _uploadScheduler = sched; }
+
+    /**
+     *  @return null if not running, e.g. without a SnarkManager
+     *  @since 0.9.10
+     */
+    DHTAnnouncer getDHTAnnouncer() { return _dhtAnnouncer; }
+
+    /**
+     *  @param ann null to go back to each torrent announcing itself
+     *  @since 0.9.10
+     */
+    void setDHTAnnouncer(DHTAnnouncer ann) { _dhtAnnouncer = ann; }
+
+    /**
+     *  Verifies and writes completed pieces, started on first use.
+     *  Doesn't need the socket manager.
+     *  @return null if disabled
+     *  @since 0.9.10
+     */
+    synchronized PieceWriter getPieceWriter() {
+        if (_pieceWriter == null &&
+            _context.getBooleanPropertyDefaultTrue(PROP_PIECE_WRITER))
+            _pieceWriter = new PieceWriter(_context);
+        return _pieceWriter;
+    }
+
+    /**
+     *  Channels for all torrents with a peer over one stream, started on first use.
+     *  @return null if disabled or not connected
+     *  @since 0.9.10
+     */
+    synchronized PeerMux getPeerMux() {
+        if (_peerMux == null && _manager != null &&
+            _context.getBooleanProperty(PROP_PEER_MUX))
+        {
+            _peerMux = new PeerMux(_context);
+            _peerMux.setAcceptor(_muxAcceptor);
+        }
+        return _peerMux;
+    }
+
+    /**
+     *  Where incoming mux channels go, for this and any later PeerMux.
+     *  Set once by the ConnectionAcceptor.
+     *  @since 0.9.10
+     */
+    synchronized void setMuxAcceptor(PeerMux.ChannelAcceptor acceptor) {
+        _muxAcceptor = acceptor;
+        if (_peerMux != null)
+            _peerMux.setAcceptor(acceptor);
+    }
+
     public boolean connected() { return _manager != null; }
 
     /** @since 0.9.1 */
@@ -316,6 +418,19 @@ public class I2PSnarkUtil {
             _dht.stop();
             _dht = null;
         }
+        if (_peerEngine != null) {
+            _peerEngine.stop();
+            _peerEngine = null;
+        }
+        if (_peerMux != null) {
+            _peerMux.stop();
+            _peerMux = null;
+        }
+        if (_pieceWriter != null) {
+            // queued pieces are still written
+            _pieceWriter.stop();
+            _pieceWriter = null;
+        }
         I2PSocketManager mgr = _manager;
         // FIXME this can cause race NPEs elsewhere
         _manager = null;
@@ -347,7 +462,15 @@ public class I2PSnarkUtil {
         try {
             // TODO opts.setPort(xxx); connect(addr, opts)
             // DHT moved above 6881 in 0.9.9
-            I2PSocket rv = _manager.connect(addr);
+            PeerMux mux = getPeerMux();
+            if (mux != null) {
+                I2PSocket rv = mux.connect(addr, mgr);
+                if (rv != null) {
+                    _banlist.remove(dest);
+                    return rv;
+                }
+            }
+            I2PSocket rv = mgr.connect(addr);
             if (rv != null)
                 _banlist.remove(dest);
             return rv;
@@ -624,6 +747,7 @@ public class I2PSnarkUtil {
         _shouldUseDHT = yes;
         if (yes && _manager != null && _dht == null) {
             _dht = new KRPC(_context, _baseName, _manager.getSession(), _myNodeInfo, _customQueryHandler);
+            _dht.setPeerInterestListener(_dhtInterestListener);
             if (_dhtInitCallback != null) {
                 _dhtInitCallback.run();
             }
@@ -58,6 +58,9 @@ class IdleChecker extends SimpleTimer2.TimedEvent {
                     }
                 }
             }
+            // parked torrents need the tunnel to be woken up
+            if (_pcs.getParkedCount() > 0)
+                torrentRunning = true;
 
             if (torrentRunning) {
                 _consecNotRunning = 0;
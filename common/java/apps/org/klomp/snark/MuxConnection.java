@@ -0,0 +1,530 @@
+package org.klomp.snark;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+
+/**
+ *  A single stream to a peer, carrying the peer connections for
+ *  any number of torrents as channels. See PeerMux.
+ *
+ *  After the preamble, everything is frames:
+ *<pre>
+ *  type (1 byte) | channel (2 bytes) | length (2 bytes) | payload
+ *</pre>
+ *  OPEN and CLOSE have no payload, DATA is up to MAX_FRAME bytes,
+ *  and CREDIT is a 4 byte count of bytes read by the application since the last CREDIT.
+ *  Each side may have WINDOW bytes outstanding per channel, so one slow channel
+ *  cannot block the others, and the reader thread never blocks on a channel.
+ *  Channels opened by the side that opened the stream are odd, the other side's are even.
+ *
+ *  The writer sends one frame from each channel with data in turn, so a bulk
+ *  transfer on one torrent doesn't starve the handshakes and requests on the others.
+ *
+ *  Two threads per connection, one reading, one writing.
+ *
+ *  @since 0.9.10
+ */
+class MuxConnection {
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final PeerMux _mux;
+    private final Destination _peer;
+    private final boolean _isOutbound;
+    private final Object _lock = new Object();
+    // all LOCKING: _lock
+    private final Map<Integer, MuxSocket> _channels = new HashMap<Integer, MuxSocket>();
+    /** channels with data and credit */
+    private final LinkedList<MuxSocket> _ready = new LinkedList<MuxSocket>();
+    private final LinkedList<byte[]> _control = new LinkedList<byte[]>();
+    private int _nextChannel;
+    private int _state = STATE_CONNECTING;
+    private long _lastActive;
+
+    private I2PSocket _sock;
+    private DataInputStream _in;
+    private DataOutputStream _out;
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_CLOSED = 2;
+
+    static final int TYPE_OPEN = 1;
+    static final int TYPE_DATA = 2;
+    static final int TYPE_CREDIT = 3;
+    static final int TYPE_CLOSE = 4;
+    private static final int HEADER_SIZE = 5;
+    /** one block */
+    static final int MAX_FRAME = 16*1024;
+    /** per channel, each direction */
+    static final int WINDOW = 128*1024;
+    /** block the application's writes above this */
+    private static final int MAX_OUT_BUFFER = 64*1024;
+    private static final int MAX_CHANNEL = 0xffff;
+    /**
+     *  Open channels, ours and theirs, above which an OPEN from the far end
+     *  fails the whole connection, as each one gets a handler for its handshake
+     */
+    private static final int MAX_CHANNELS = 128;
+    /** close the stream when there are no channels for this long */
+    private static final long IDLE_TIMEOUT = 3*60*1000;
+    private static final long CONNECT_TIMEOUT = 3*60*1000;
+
+    /**
+     *  @param isOutbound we open the stream, and our channels are odd
+     */
+    public MuxConnection(I2PAppContext ctx, PeerMux mux, Destination peer, boolean isOutbound) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(MuxConnection.class);
+        _mux = mux;
+        _peer = peer;
+        _isOutbound = isOutbound;
+        _nextChannel = isOutbound ? 1 : 2;
+        _lastActive = ctx.clock().now();
+    }
+
+    /**
+     *  Start the threads. Sends the preamble if outbound.
+     *  For inbound, the preamble must have been read already.
+     */
+    public void start(I2PSocket sock, InputStream in, OutputStream out) throws IOException {
+        _sock = sock;
+        // the reader waits for frames forever, the writer closes the stream when idle
+        sock.setReadTimeout(-1);
+        _in = new DataInputStream(in);
+        _out = new DataOutputStream(out);
+        if (_isOutbound) {
+            _out.write(PeerMux.PREAMBLE);
+            _out.flush();
+        }
+        synchronized (_lock) {
+            if (_state == STATE_CLOSED)
+                throw new IOException("closed");
+            _state = STATE_OPEN;
+            _lock.notifyAll();
+        }
+        String name = _peer.calculateHash().toBase64().substring(0, 6);
+        Thread t = new I2PAppThread(new Reader(), "Snark mux reader " + name, true);
+        t.start();
+        t = new I2PAppThread(new Writer(), "Snark mux writer " + name, true);
+        t.start();
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Started " + this);
+    }
+
+    /**
+     *  The outbound stream could not be opened.
+     */
+    public void failed() {
+        synchronized (_lock) {
+            _state = STATE_CLOSED;
+            _lock.notifyAll();
+        }
+    }
+
+    public Destination getPeerDestination() { return _peer; }
+
+    /** the carrier, null until started */
+    I2PSocket getSocket() { return _sock; }
+
+    public boolean isClosed() {
+        synchronized (_lock) {
+            return _state == STATE_CLOSED;
+        }
+    }
+
+    /**
+     *  Open a channel, waiting for the stream to be opened if necessary.
+     *  The far end runs the BitTorrent handshake on it as on any incoming connection.
+     */
+    public MuxSocket openChannel() throws IOException {
+        synchronized (_lock) {
+            long end = _context.clock().now() + CONNECT_TIMEOUT;
+            while (_state == STATE_CONNECTING) {
+                long wait = end - _context.clock().now();
+                if (wait <= 0)
+                    throw new SocketTimeoutException("Mux connect timeout");
+                try {
+                    _lock.wait(wait);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (_state == STATE_CLOSED)
+                throw new IOException("Mux connection closed");
+            int id = _nextChannel;
+            for (int i = 0; _channels.containsKey(Integer.valueOf(id)); i++) {
+                if (i >= MAX_CHANNEL / 2)
+                    throw new IOException("Too many channels");
+                id = nextID(id);
+            }
+            _nextChannel = nextID(id);
+            MuxSocket rv = new MuxSocket(this, id);
+            _channels.put(Integer.valueOf(id), rv);
+            locked_sendControl(TYPE_OPEN, id, null);
+            _lastActive = _context.clock().now();
+            return rv;
+        }
+    }
+
+    /** same parity, 1-65535 */
+    private static int nextID(int id) {
+        id += 2;
+        if (id > MAX_CHANNEL)
+            id -= MAX_CHANNEL - 1;
+        return id;
+    }
+
+    ////// called by MuxSocket
+
+    boolean isClosed(MuxSocket s) {
+        synchronized (_lock) {
+            return s.localClosed || _state == STATE_CLOSED;
+        }
+    }
+
+    int available(MuxSocket s) {
+        synchronized (_lock) {
+            return s.inbuf.size();
+        }
+    }
+
+    /**
+     *  Blocks until at least one byte is available.
+     *  @param timeout ms, or -1 forever
+     *  @return bytes read, or -1 on EOF
+     *  @throws SocketTimeoutException on timeout
+     */
+    int read(MuxSocket s, byte[] b, int off, int len, long timeout) throws IOException {
+        long end = timeout > 0 ? _context.clock().now() + timeout : 0;
+        synchronized (_lock) {
+            while (true) {
+                if (s.localClosed)
+                    throw new IOException("Socket closed");
+                if (s.inbuf.size() > 0) {
+                    int rv = s.inbuf.take(b, off, len);
+                    s.consumed += rv;
+                    // return credit in chunks, not for every read
+                    if (s.consumed >= WINDOW / 4 && !s.remoteClosed && _state == STATE_OPEN) {
+                        byte[] c = new byte[4];
+                        DataHelper.toLong(c, 0, 4, s.consumed);
+                        s.consumed = 0;
+                        locked_sendControl(TYPE_CREDIT, s.id, c);
+                    }
+                    return rv;
+                }
+                if (s.remoteClosed || _state == STATE_CLOSED)
+                    return -1;
+                long wait = 0;
+                if (end > 0) {
+                    wait = end - _context.clock().now();
+                    if (wait <= 0)
+                        throw new SocketTimeoutException("Read timeout on " + s);
+                }
+                try {
+                    _lock.wait(wait);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     *  Queues the data for the writer, blocks if too much is queued already.
+     */
+    void write(MuxSocket s, byte[] b, int off, int len) throws IOException {
+        synchronized (_lock) {
+            while (len > 0) {
+                if (s.localClosed || s.remoteClosed || _state == STATE_CLOSED)
+                    throw new IOException("Socket closed");
+                int space = MAX_OUT_BUFFER - s.outbuf.size();
+                if (space <= 0) {
+                    try {
+                        _lock.wait();
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                    continue;
+                }
+                int n = Math.min(space, len);
+                s.outbuf.put(b, off, n);
+                off += n;
+                len -= n;
+                locked_markReady(s);
+            }
+        }
+    }
+
+    /**
+     *  Queued data is still sent, then the CLOSE.
+     */
+    void close(MuxSocket s) {
+        synchronized (_lock) {
+            if (s.localClosed)
+                return;
+            s.localClosed = true;
+            s.inbuf.clear();
+            if (s.outbuf.size() <= 0 || s.remoteClosed || _state != STATE_OPEN)
+                locked_close(s);
+            // else the writer sends it when the outbuf is empty
+            _lock.notifyAll();
+        }
+    }
+
+    ////// internal
+
+    /** caller must synch */
+    private void locked_markReady(MuxSocket s) {
+        if (!s.queued && s.credit > 0 && s.outbuf.size() > 0) {
+            s.queued = true;
+            _ready.add(s);
+            _lock.notifyAll();
+        }
+    }
+
+    /** caller must synch */
+    private void locked_sendControl(int type, int id, byte[] payload) {
+        int len = payload != null ? payload.length : 0;
+        byte[] f = new byte[HEADER_SIZE + len];
+        f[0] = (byte) type;
+        DataHelper.toLong(f, 1, 2, id);
+        DataHelper.toLong(f, 3, 2, len);
+        if (len > 0)
+            System.arraycopy(payload, 0, f, HEADER_SIZE, len);
+        _control.add(f);
+        _lock.notifyAll();
+    }
+
+    /**
+     *  Send our CLOSE if not already sent, and forget the channel
+     *  once both sides have closed.
+     *  Caller must synch.
+     */
+    private void locked_close(MuxSocket s) {
+        if (!s.closeSent) {
+            s.closeSent = true;
+            s.outbuf.clear();
+            if (_state == STATE_OPEN)
+                locked_sendControl(TYPE_CLOSE, s.id, null);
+        }
+        if (s.remoteClosed || _state != STATE_OPEN) {
+            if (_channels.remove(Integer.valueOf(s.id)) != null)
+                _lastActive = _context.clock().now();
+        }
+    }
+
+    /**
+     *  Close the stream and all channels. Reads return EOF after the buffered data.
+     */
+    public void disconnect() {
+        List<MuxSocket> channels;
+        synchronized (_lock) {
+            if (_state == STATE_CLOSED)
+                return;
+            _state = STATE_CLOSED;
+            channels = new ArrayList<MuxSocket>(_channels.values());
+            for (MuxSocket s : channels) {
+                s.remoteClosed = true;
+                s.outbuf.clear();
+            }
+            _channels.clear();
+            _ready.clear();
+            _control.clear();
+            _lock.notifyAll();
+        }
+        if (_sock != null) {
+            try { _sock.close(); } catch (IOException ioe) {}
+        }
+        _mux.removed(this);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Closed " + this + " with " + channels.size() + " channels");
+    }
+
+    /**
+     *  Reads frames and hands them to the channels, never blocks on a channel.
+     */
+    private class Reader implements Runnable {
+        public void run() {
+            try {
+                byte[] buf = new byte[MAX_FRAME];
+                while (true) {
+                    int type = _in.readUnsignedByte();
+                    int id = _in.readUnsignedShort();
+                    int len = _in.readUnsignedShort();
+                    if (len > MAX_FRAME)
+                        throw new IOException("Frame too big: " + len);
+                    _in.readFully(buf, 0, len);
+                    handleFrame(type, id, buf, len);
+                }
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Mux connection ended " + MuxConnection.this, ioe);
+            } finally {
+                disconnect();
+            }
+        }
+
+        private void handleFrame(int type, int id, byte[] buf, int len) throws IOException {
+            MuxSocket opened = null;
+            synchronized (_lock) {
+                Integer iid = Integer.valueOf(id);
+                MuxSocket s = _channels.get(iid);
+                switch (type) {
+                  case TYPE_OPEN:
+                    // theirs are even if we opened the stream
+                    if (s != null || ((id & 0x01) != 0) == _isOutbound)
+                        throw new IOException("Bad channel open: " + id);
+                    if (_channels.size() >= MAX_CHANNELS)
+                        throw new IOException("Too many channels: " + _channels.size());
+                    s = new MuxSocket(MuxConnection.this, id);
+                    _channels.put(iid, s);
+                    _lastActive = _context.clock().now();
+                    opened = s;
+                    break;
+
+                  case TYPE_DATA:
+                    if (s == null || s.localClosed)
+                        break;
+                    if (s.inbuf.size() + len > WINDOW)
+                        throw new IOException("Window exceeded on channel " + id);
+                    s.inbuf.put(buf, 0, len);
+                    _lock.notifyAll();
+                    break;
+
+                  case TYPE_CREDIT:
+                    if (s == null || len != 4)
+                        break;
+                    s.credit += (int) DataHelper.fromLong(buf, 0, 4);
+                    locked_markReady(s);
+                    break;
+
+                  case TYPE_CLOSE:
+                    if (s == null)
+                        break;
+                    s.remoteClosed = true;
+                    // they won't read any more, drop what we have queued
+                    locked_close(s);
+                    _lock.notifyAll();
+                    break;
+
+                  default:
+                    throw new IOException("Bad frame type: " + type);
+                }
+            }
+            if (opened != null) {
+                PeerMux.ChannelAcceptor acceptor = _mux.getAcceptor();
+                if (acceptor != null) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Incoming " + opened);
+                    acceptor.channelOpened(opened);
+                } else {
+                    opened.close();
+                }
+            }
+        }
+    }
+
+    /**
+     *  Sends control frames first, then a data frame from each ready channel in turn.
+     *  Flushes the stream when there's nothing more to send.
+     */
+    private class Writer implements Runnable {
+        public void run() {
+            byte[] header = new byte[HEADER_SIZE];
+            byte[] data = new byte[MAX_FRAME];
+            boolean needFlush = false;
+            try {
+                while (true) {
+                    byte[] control = null;
+                    int len = 0;
+                    synchronized (_lock) {
+                        while (true) {
+                            if (_state != STATE_OPEN)
+                                return;
+                            if (!_control.isEmpty()) {
+                                control = _control.removeFirst();
+                                break;
+                            }
+                            MuxSocket s = _ready.poll();
+                            if (s != null) {
+                                s.queued = false;
+                                len = s.outbuf.take(data, 0, Math.min(MAX_FRAME, s.credit));
+                                if (len <= 0)
+                                    continue;
+                                s.credit -= len;
+                                header[0] = TYPE_DATA;
+                                DataHelper.toLong(header, 1, 2, s.id);
+                                DataHelper.toLong(header, 3, 2, len);
+                                // to the back of the line
+                                locked_markReady(s);
+                                if (s.localClosed && s.outbuf.size() <= 0)
+                                    locked_close(s);
+                                // room for the application to write more
+                                _lock.notifyAll();
+                                break;
+                            }
+                            if (needFlush)
+                                break;
+                            long now = _context.clock().now();
+                            if (_channels.isEmpty() && now - _lastActive > IDLE_TIMEOUT) {
+                                if (_log.shouldLog(Log.INFO))
+                                    _log.info("Idle, closing " + MuxConnection.this);
+                                break;
+                            }
+                            try {
+                                _lock.wait(IDLE_TIMEOUT / 2);
+                            } catch (InterruptedException ie) {
+                                return;
+                            }
+                        }
+                    }
+                    if (control != null) {
+                        _out.write(control);
+                        needFlush = true;
+                    } else if (len > 0) {
+                        _out.write(header);
+                        _out.write(data, 0, len);
+                        needFlush = true;
+                    } else if (needFlush) {
+                        _out.flush();
+                        needFlush = false;
+                    } else {
+                        // idle
+                        break;
+                    }
+                }
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Mux write failed " + MuxConnection.this, ioe);
+            }
+            disconnect();
+        }
+    }
+
+    @Override
+    public String toString() {
+        int count;
+        synchronized (_lock) {
+            count = _channels.size();
+        }
+        return "Mux " + (_isOutbound ? "to " : "from ") + _peer.calculateHash().toBase64().substring(0, 6) +
+               " (" + count + " channels)";
+    }
+}
@@ -0,0 +1,207 @@
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SelectableChannel;
+
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PSocketOptions;
+import net.i2p.data.Destination;
+
+/**
+ *  One channel of a MuxConnection, looks like a regular socket to Peer.
+ *  All state is guarded by the MuxConnection's lock, and all the
+ *  blocking is done there.
+ *
+ *  @since 0.9.10
+ */
+class MuxSocket implements I2PSocket {
+    private final MuxConnection _conn;
+    final int id;
+    private final InputStream _in;
+    private final OutputStream _out;
+
+    // all LOCKING: MuxConnection._lock
+    final ByteQueue inbuf = new ByteQueue();
+    final ByteQueue outbuf = new ByteQueue();
+    /** bytes we may still send */
+    int credit = MuxConnection.WINDOW;
+    /** bytes read since the last CREDIT frame */
+    int consumed;
+    /** in the connection's ready list */
+    boolean queued;
+    boolean localClosed;
+    boolean remoteClosed;
+    boolean closeSent;
+
+    private volatile long _readTimeout = -1;
+
+    public MuxSocket(MuxConnection conn, int id) {
+        _conn = conn;
+        this.id = id;
+        _in = new ChannelInputStream();
+        _out = new ChannelOutputStream();
+    }
+
+    public Destination getThisDestination() { return _conn.getSocket().getThisDestination(); }
+
+    public Destination getPeerDestination() { return _conn.getPeerDestination(); }
+
+    /** the stream carrying this channel */
+    MuxConnection getConnection() { return _conn; }
+
+    public InputStream getInputStream() throws IOException {
+        if (isClosed())
+            throw new IOException("Socket closed");
+        return _in;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        if (isClosed())
+            throw new IOException("Socket closed");
+        return _out;
+    }
+
+    /** @return null always, not selectable */
+    public SelectableChannel getChannel() { return null; }
+
+    public I2PSocketOptions getOptions() { return _conn.getSocket().getOptions(); }
+
+    /** does nothing, the options are the carrier's */
+    public void setOptions(I2PSocketOptions options) {}
+
+    public long getReadTimeout() { return _readTimeout; }
+
+    public void setReadTimeout(long ms) { _readTimeout = ms; }
+
+    public boolean isClosed() { return _conn.isClosed(this); }
+
+    /** unsupported, does nothing */
+    public void setSocketErrorListener(SocketErrorListener lsnr) {}
+
+    public int getPort() { return _conn.getSocket().getPort(); }
+
+    public int getLocalPort() { return _conn.getSocket().getLocalPort(); }
+
+    public void close() { _conn.close(this); }
+
+    @Override
+    public String toString() {
+        return "Mux channel " + id + " on " + _conn;
+    }
+
+    private class ChannelInputStream extends InputStream {
+        private final byte[] _one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int read = read(_one, 0, 1);
+            return read <= 0 ? -1 : _one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len <= 0)
+                return 0;
+            return _conn.read(MuxSocket.this, b, off, len, _readTimeout);
+        }
+
+        @Override
+        public int available() {
+            return _conn.available(MuxSocket.this);
+        }
+
+        @Override
+        public void close() {
+            MuxSocket.this.close();
+        }
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+        private final byte[] _one = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            _one[0] = (byte) b;
+            write(_one, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            _conn.write(MuxSocket.this, b, off, len);
+        }
+
+        /** the connection's writer sends as soon as it can, nothing to do */
+        @Override
+        public void flush() throws IOException {
+            if (isClosed())
+                throw new IOException("Socket closed");
+        }
+
+        @Override
+        public void close() {
+            MuxSocket.this.close();
+        }
+    }
+
+    /**
+     *  A growable circular byte buffer. Not thread safe.
+     */
+    static class ByteQueue {
+        private static final int INITIAL_SIZE = 1024;
+        private static final int MAX_IDLE_SIZE = 16*1024;
+        private byte[] _buf = new byte[INITIAL_SIZE];
+        private int _head;
+        private int _size;
+
+        public int size() { return _size; }
+
+        public void clear() {
+            _head = 0;
+            _size = 0;
+        }
+
+        public void put(byte[] b, int off, int len) {
+            if (_size + len > _buf.length) {
+                int cap = _buf.length;
+                while (cap < _size + len)
+                    cap *= 2;
+                byte[] nbuf = new byte[cap];
+                take(nbuf, 0, _size, false);
+                _buf = nbuf;
+                _head = 0;
+            }
+            int tail = (_head + _size) % _buf.length;
+            int first = Math.min(len, _buf.length - tail);
+            System.arraycopy(b, off, _buf, tail, first);
+            if (first < len)
+                System.arraycopy(b, off + first, _buf, 0, len - first);
+            _size += len;
+        }
+
+        /** @return bytes taken */
+        public int take(byte[] b, int off, int len) {
+            return take(b, off, len, true);
+        }
+
+        private int take(byte[] b, int off, int len, boolean remove) {
+            len = Math.min(len, _size);
+            int first = Math.min(len, _buf.length - _head);
+            System.arraycopy(_buf, _head, b, off, first);
+            if (first < len)
+                System.arraycopy(_buf, 0, b, off + first, len - first);
+            if (remove) {
+                _head = (_head + len) % _buf.length;
+                _size -= len;
+                if (_size == 0) {
+                    _head = 0;
+                    // don't hold on to a full window per idle channel
+                    if (_buf.length > MAX_IDLE_SIZE)
+                        _buf = new byte[INITIAL_SIZE];
+                }
+            }
+            return len;
+        }
+    }
+}
@@ -157,10 +157,12 @@ public class Peer implements Comparable
    */
   public String getSocket()
   {
-    if (state != null) {
-        String r = state.getRequests();
+    PeerState s = state;
+    if (s != null) {
+        String r = s.getRequests();
         if (r != null)
-            return sock.toString() + "<br>Requests: " + r;
+            return sock.toString() + "<br>Requests: " + s.getOutstandingRequestCount() + '/' +
+                   s.getPipelineDepth() + " at " + s.getThroughput() + " Bps " + r;
     }
     return sock.toString();
   }
@@ -226,6 +228,7 @@ public class Peer implements Comparable
 
     if (_log.shouldLog(Log.DEBUG))
         _log.debug("Running connection to " + peerID.toString(), new Exception("connecting"));    
+    boolean handedOff = false;
     try
       {
         // Do we need to handshake?
@@ -276,7 +279,8 @@ public class Peer implements Comparable
             int metasize = metainfo != null ? metainfo.getInfoBytes().length : -1;
             boolean pexAndMetadata = metainfo == null || !metainfo.isPrivate();
             boolean dht = util.getDHT() != null;
-            out.sendExtension(0, ExtensionHandler.getHandshake(metasize, pexAndMetadata, dht));
+            boolean mux = util.getPeerMux() != null;
+            out.sendExtension(0, ExtensionHandler.getHandshake(metasize, pexAndMetadata, dht, mux));
         }
 
         // Old DHT PORT message
@@ -296,6 +300,15 @@ public class Peer implements Comparable
         magnetState = mState;
         listener.connected(this);
   
+        PeerEngine engine = util.getPeerEngine();
+        if (engine != null && engine.register(this, sock, din, s)) {
+            // no threads for this peer from here on
+            handedOff = true;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Handed off to the peer engine: " + toString());
+            return;
+        }
+
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Start running the reader with " + toString());
         // Use this thread for running the incomming connection.
@@ -319,11 +332,33 @@ public class Peer implements Comparable
       }
     finally
       {
-        if (deregister) listener.disconnected(this);
-        disconnect();
+        if (!handedOff)
+          connectionEnded(listener);
       }
   }
 
+  /**
+   * The end of the connection, when it is handled by the PeerEngine.
+   * @since 0.9.10
+   */
+  void connectionEnded()
+  {
+    PeerState s = state;
+    if (s != null)
+      connectionEnded(s.listener);
+    else
+      disconnect();
+  }
+
+  /**
+   * @since 0.9.10 pulled out of runConnection()
+   */
+  private void connectionEnded(PeerListener listener)
+  {
+    if (deregister) listener.disconnected(this);
+    disconnect();
+  }
+
   /**
    * Sets DataIn/OutputStreams, does the handshake and returns the id
    * reported by the other side.
@@ -735,4 +770,39 @@ public class Peer implements Comparable
   {
     return PeerCoordinator.getRate(downloaded_old);
   }
+
+  /**
+   * Outstanding requests to the peer.
+   * @return 0 if not connected
+   * @since 0.9.10
+   */
+  public int getOutstandingRequests()
+  {
+    PeerState s = state;
+    return s != null ? s.getOutstandingRequestCount() : 0;
+  }
+
+  /**
+   * Current max outstanding requests to the peer, adjusted to its bandwidth and latency.
+   * @return 0 if not connected
+   * @since 0.9.10
+   */
+  public int getPipelineDepth()
+  {
+    PeerState s = state;
+    return s != null ? s.getPipelineDepth() : 0;
+  }
+
+  /**
+   * Recent rate of piece data from the peer,
+   * much more current than the 4-minute average of getDownloadRate().
+   * Does not block.
+   * @return Bps, 0 if not connected, unknown, or stalled
+   * @since 0.9.10
+   */
+  public int getRequestThroughput()
+  {
+    PeerState s = state;
+    return s != null ? s.getThroughput() : 0;
+  }
 }
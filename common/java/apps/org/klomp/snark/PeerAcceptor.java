@@ -115,7 +115,8 @@ class PeerAcceptor
         }
     } else {
         // multitorrent capable, so lets see what we can handle
-        PeerCoordinator cur = coordinators.get(peerInfoHash);
+        // a parked torrent is restarted for him
+        PeerCoordinator cur = coordinators.getOrWake(peerInfoHash);
         if (cur != null) {
             if (DataHelper.eq(cur.getInfoHash(), peerInfoHash)) {
                 if (cur.needPeers())
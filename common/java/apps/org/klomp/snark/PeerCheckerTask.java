@@ -130,7 +130,8 @@ class PeerCheckerTask implements Runnable
                 && coordinator.interestedAndChoking > 0)
                 || coordinator.uploaders > uploadLimit
                 || overBWLimitChoke)
-                && !peer.isChoking())
+                && !peer.isChoking()
+                && !coordinator.isOptimistic(peer))
               {
                 // Check if it still wants pieces from us.
                 if (!peer.isInterested())
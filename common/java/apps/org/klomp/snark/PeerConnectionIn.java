@@ -36,7 +36,7 @@ class PeerConnectionIn implements Runnable
   // The biggest is the piece message, for which the length is the
   // request size (32K) plus 9. (we could also check if Storage.MAX_PIECES / 8
   // in the bitfield message is bigger but it's currently 5000/8 = 625 so don't bother)
-  private static final int MAX_MSG_SIZE = Math.max(PeerState.PARTSIZE + 9,
+  static final int MAX_MSG_SIZE = Math.max(PeerState.PARTSIZE + 9,
                                                    MagnetState.CHUNK_SIZE + 100);  // 100 for the ext msg dictionary
 
   private Thread thread;
@@ -78,122 +78,12 @@ class PeerConnectionIn implements Runnable
         PeerState ps = peer.state;
         while (!quit && ps != null)
           {
-            // Common variables used for some messages.
-            int piece;
-            int begin;
-            int len;
-        
             // Wait till we hear something...
             int i = din.readInt();
             lastRcvd = System.currentTimeMillis();
             if (i < 0 || i > MAX_MSG_SIZE)
               throw new IOException("Unexpected length prefix: " + i);
-
-            if (i == 0)
-              {
-                ps.keepAliveMessage();
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received keepalive from " + peer);
-                continue;
-              }
-            
-            byte b = din.readByte();
-            Message m = new Message();
-            m.type = b;
-            switch (b)
-              {
-              case 0:
-                ps.chokeMessage(true);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received choke from " + peer);
-                break;
-              case 1:
-                ps.chokeMessage(false);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received unchoke from " + peer);
-                break;
-              case 2:
-                ps.interestedMessage(true);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received interested from " + peer);
-                break;
-              case 3:
-                ps.interestedMessage(false);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received not interested from " + peer);
-                break;
-              case 4:
-                piece = din.readInt();
-                ps.haveMessage(piece);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received havePiece(" + piece + ") from " + peer);
-                break;
-              case 5:
-                byte[] bitmap = new byte[i-1];
-                din.readFully(bitmap);
-                ps.bitfieldMessage(bitmap);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received bitmap from " + peer  + ": size=" + (i-1) /* + ": " + ps.bitfield */ );
-                break;
-              case 6:
-                piece = din.readInt();
-                begin = din.readInt();
-                len = din.readInt();
-                ps.requestMessage(piece, begin, len);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received request(" + piece + "," + begin + ") from " + peer);
-                break;
-              case 7:
-                piece = din.readInt();
-                begin = din.readInt();
-                len = i-9;
-                Request req = ps.getOutstandingRequest(piece, begin, len);
-                if (req != null)
-                  {
-                    req.read(din);
-                    ps.pieceMessage(req);
-                    if (_log.shouldLog(Log.DEBUG)) 
-                        _log.debug("Received data(" + piece + "," + begin + ") from " + peer);
-                  }
-                else
-                  {
-                    // XXX - Consume but throw away afterwards.
-                    int rcvd = din.skipBytes(len);
-                    if (rcvd != len)
-                        throw new IOException("EOF reading unwanted data");
-                    if (_log.shouldLog(Log.DEBUG)) 
-                        _log.debug("Received UNWANTED data(" + piece + "," + begin + ") from " + peer);
-                  }
-                break;
-              case 8:
-                piece = din.readInt();
-                begin = din.readInt();
-                len = din.readInt();
-                ps.cancelMessage(piece, begin, len);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received cancel(" + piece + "," + begin + ") from " + peer);
-                break;
-              case 9:  // PORT message
-                int port = din.readUnsignedShort();
-                ps.portMessage(port);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received port message from " + peer);
-                break;
-              case 20:  // Extension message
-                int id = din.readUnsignedByte();
-                byte[] payload = new byte[i-2];
-                din.readFully(payload);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received extension message from " + peer);
-                ps.extensionMessage(id, payload);
-                break;
-              default:
-                byte[] bs = new byte[i-1];
-                din.readFully(bs);
-                ps.unknownMessage(b, bs);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received unknown message from " + peer);
-              }
+            handleMessage(ps, i, din);
           }
       }
     catch (IOException ioe)
@@ -213,4 +103,126 @@ class PeerConnectionIn implements Runnable
         peer.disconnect();
       }
   }
+
+  /**
+   * Handle one message, after its length prefix has been read.
+   * Used by the reader thread, and by the PeerEngine with the message already in memory.
+   *
+   * @param i the length prefix, 0 - MAX_MSG_SIZE
+   * @param din positioned at the message type
+   * @since 0.9.10 pulled out of run()
+   */
+  void handleMessage(PeerState ps, int i, DataInputStream din) throws IOException
+  {
+    // Common variables used for some messages.
+    int piece;
+    int begin;
+    int len;
+
+    if (i == 0)
+      {
+        ps.keepAliveMessage();
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received keepalive from " + peer);
+        return;
+      }
+    
+    byte b = din.readByte();
+    Message m = new Message();
+    m.type = b;
+    switch (b)
+      {
+      case 0:
+        ps.chokeMessage(true);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received choke from " + peer);
+        break;
+      case 1:
+        ps.chokeMessage(false);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received unchoke from " + peer);
+        break;
+      case 2:
+        ps.interestedMessage(true);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received interested from " + peer);
+        break;
+      case 3:
+        ps.interestedMessage(false);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received not interested from " + peer);
+        break;
+      case 4:
+        piece = din.readInt();
+        ps.haveMessage(piece);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received havePiece(" + piece + ") from " + peer);
+        break;
+      case 5:
+        byte[] bitmap = new byte[i-1];
+        din.readFully(bitmap);
+        ps.bitfieldMessage(bitmap);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received bitmap from " + peer  + ": size=" + (i-1) /* + ": " + ps.bitfield */ );
+        break;
+      case 6:
+        piece = din.readInt();
+        begin = din.readInt();
+        len = din.readInt();
+        ps.requestMessage(piece, begin, len);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received request(" + piece + "," + begin + ") from " + peer);
+        break;
+      case 7:
+        piece = din.readInt();
+        begin = din.readInt();
+        len = i-9;
+        Request req = ps.getOutstandingRequest(piece, begin, len);
+        if (req != null)
+          {
+            req.read(din);
+            ps.pieceMessage(req);
+            if (_log.shouldLog(Log.DEBUG)) 
+                _log.debug("Received data(" + piece + "," + begin + ") from " + peer);
+          }
+        else
+          {
+            // XXX - Consume but throw away afterwards.
+            int rcvd = din.skipBytes(len);
+            if (rcvd != len)
+                throw new IOException("EOF reading unwanted data");
+            if (_log.shouldLog(Log.DEBUG)) 
+                _log.debug("Received UNWANTED data(" + piece + "," + begin + ") from " + peer);
+          }
+        break;
+      case 8:
+        piece = din.readInt();
+        begin = din.readInt();
+        len = din.readInt();
+        ps.cancelMessage(piece, begin, len);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received cancel(" + piece + "," + begin + ") from " + peer);
+        break;
+      case 9:  // PORT message
+        int port = din.readUnsignedShort();
+        ps.portMessage(port);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received port message from " + peer);
+        break;
+      case 20:  // Extension message
+        int id = din.readUnsignedByte();
+        byte[] payload = new byte[i-2];
+        din.readFully(payload);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received extension message from " + peer);
+        ps.extensionMessage(id, payload);
+        break;
+      default:
+        byte[] bs = new byte[i-1];
+        din.readFully(bs);
+        ps.unknownMessage(b, bs);
+        if (_log.shouldLog(Log.DEBUG)) 
+            _log.debug("Received unknown message from " + peer);
+      }
+  }
 }
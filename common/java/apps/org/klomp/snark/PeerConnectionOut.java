@@ -20,8 +20,10 @@
 
 package org.klomp.snark;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -41,6 +43,8 @@ class PeerConnectionOut implements Runnable
 
   private Thread thread;
   private boolean quit;
+  /** for the PeerEngine, null in thread mode */
+  private volatile Runnable _wakeup;
 
   // Contains Messages.
   private final List<Message> sendQueue = new ArrayList<Message>();
@@ -106,47 +110,7 @@ class PeerConnectionOut implements Runnable
                   }
                 state = peer.state;
                 if (!quit && state != null && peer.isConnected())
-                  {
-                    // Piece messages are big. So if there are other
-                    // (control) messages make sure they are send first.
-                    // Also remove request messages from the queue if
-                    // we are currently being choked to prevent them from
-                    // being send even if we get unchoked a little later.
-                    // (Since we will resent them anyway in that case.)
-                    // And remove piece messages if we are choking.
-                    
-                    // this should get fixed for starvation
-                    Iterator<Message> it = sendQueue.iterator();
-                    while (m == null && it.hasNext())
-                      {
-                        Message nm = it.next();
-                        if (nm.type == Message.PIECE)
-                          {
-                            if (state.choking) {
-                              it.remove();
-                              //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
-                            }
-                            nm = null;
-                          }
-                        else if (nm.type == Message.REQUEST && state.choked)
-                          {
-                            it.remove();
-                            //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
-                            nm = null;
-                          }
-                          
-                        if (m == null && nm != null)
-                          {
-                            m = nm;
-                            //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
-                            it.remove();
-                          }
-                      }
-                    if (m == null && !sendQueue.isEmpty()) {
-                      m = sendQueue.remove(0);
-                      //SimpleTimer.getInstance().removeEvent(m.expireEvent);
-                    }
-                  }
+                  m = locked_nextMessage(state);
               }
             if (m != null)
               {
@@ -203,6 +167,110 @@ class PeerConnectionOut implements Runnable
       }
   }
 
+  /**
+   * Take the next message to send off the queue.
+   * Caller must synch on sendQueue.
+   *
+   * @return null if none
+   * @since 0.9.10 pulled out of run()
+   */
+  private Message locked_nextMessage(PeerState state)
+  {
+    Message m = null;
+    // Piece messages are big. So if there are other
+    // (control) messages make sure they are send first.
+    // Also remove request messages from the queue if
+    // we are currently being choked to prevent them from
+    // being send even if we get unchoked a little later.
+    // (Since we will resent them anyway in that case.)
+    // And remove piece messages if we are choking.
+    
+    // this should get fixed for starvation
+    Iterator<Message> it = sendQueue.iterator();
+    while (m == null && it.hasNext())
+      {
+        Message nm = it.next();
+        if (nm.type == Message.PIECE)
+          {
+            if (state.choking) {
+              it.remove();
+              //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
+            }
+            nm = null;
+          }
+        else if (nm.type == Message.REQUEST && state.choked)
+          {
+            it.remove();
+            //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
+            nm = null;
+          }
+          
+        if (m == null && nm != null)
+          {
+            m = nm;
+            //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
+            it.remove();
+          }
+      }
+    if (m == null && !sendQueue.isEmpty()) {
+      m = sendQueue.remove(0);
+      //SimpleTimer.getInstance().removeEvent(m.expireEvent);
+    }
+    return m;
+  }
+
+  /**
+   * For the PeerEngine. Take the next message off the queue and
+   * return it in wire format, loading the piece data if necessary.
+   * This is what run() does in thread mode, minus the actual write.
+   *
+   * @return null if none or disconnected
+   * @since 0.9.10
+   */
+  ByteBuffer nextBuffer() throws IOException
+  {
+    Message m;
+    PeerState state;
+    synchronized(sendQueue)
+      {
+        state = peer.state;
+        if (quit || state == null || !peer.isConnected())
+          return null;
+        m = locked_nextMessage(state);
+      }
+    if (m == null)
+      return null;
+    if (_log.shouldLog(Log.DEBUG))
+        _log.debug("Send " + peer + ": " + m);
+    lastSent = System.currentTimeMillis();
+    if (m.type == Message.CHOKE)
+      removeMessage(Message.PIECE);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(m.type == Message.PIECE ? m.length + 13 : 32);
+    m.sendMessage(new DataOutputStream(baos));
+    if (m.type == Message.PIECE)
+      state.uploaded(m.len);
+    return ByteBuffer.wrap(baos.toByteArray());
+  }
+
+  /**
+   * For the PeerEngine, called when a message is queued.
+   *
+   * @param wakeup may be null
+   * @since 0.9.10
+   */
+  void setWakeup(Runnable wakeup)
+  {
+    _wakeup = wakeup;
+  }
+
+  /** @since 0.9.10 */
+  private void wakeup()
+  {
+    Runnable w = _wakeup;
+    if (w != null)
+      w.run();
+  }
+
   public void disconnect()
   {
     synchronized(sendQueue)
@@ -237,6 +305,7 @@ class PeerConnectionOut implements Runnable
         sendQueue.add(m);
         sendQueue.notifyAll();
       }
+    wakeup();
   }
   
   /** remove messages not sent in 3m */
@@ -300,6 +369,7 @@ class PeerConnectionOut implements Runnable
           sendQueue.add(m);
         sendQueue.notifyAll();
       }
+    wakeup();
   }
 
   void sendChoke(boolean choke)
@@ -25,6 +25,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -33,6 +36,7 @@ import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.ByteArray;
@@ -84,6 +88,13 @@ class PeerCoordinator implements PeerListener
    */
   int interestedAndChoking;
 
+  /** upload slots set by the UploadScheduler, -1 if not scheduled @since 0.9.10 */
+  private volatile int _uploadSlots = -1;
+  /** Bps per slot set by the UploadScheduler @since 0.9.10 */
+  private volatile long _uploadBWPerSlot;
+  /** the UploadScheduler's optimistic unchoke, if in this torrent @since 0.9.10 */
+  private volatile Peer _optimistic;
+
   // final static int MAX_DOWNLOADERS = MAX_CONNECTIONS;
   // int downloaders = 0;
 
@@ -128,6 +139,14 @@ class PeerCoordinator implements PeerListener
   /** partial pieces - lock by synching on wantedPieces - TODO store Requests, not PartialPieces */
   private final List<PartialPiece> partialPieces;
 
+  /** pieces queued in the PieceWriter - lock by synching on wantedPieces @since 0.9.10 */
+  private final Set<Integer> _verifying = new HashSet<Integer>();
+  /** one end game copy per piece in _verifying, in case that one is bad - lock by synching on wantedPieces @since 0.9.10 */
+  private final Map<Integer, PendingPiece> _pendingDuplicates = new HashMap<Integer, PendingPiece>();
+  private final PieceWriter.Callback _pieceCallback = new PieceCallback();
+  /** in halt(), before the Storage is closed */
+  private static final long MAX_WRITE_WAIT = 30*1000;
+
   private volatile boolean halted;
 
   private final MagnetState magnetState;
@@ -447,6 +466,27 @@ class PeerCoordinator implements PeerListener
         }
         partialPieces.clear();
     }
+    // let the PieceWriter finish our pieces before the Storage is closed
+    synchronized(wantedPieces) {
+        long end = System.currentTimeMillis() + MAX_WRITE_WAIT;
+        while (!_verifying.isEmpty()) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Halted with pieces still being written: " + _verifying);
+                break;
+            }
+            try {
+                wantedPieces.wait(wait);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+        for (PendingPiece pp : _pendingDuplicates.values()) {
+            pp.piece.release();
+        }
+        _pendingDuplicates.clear();
+    }
   }
 
   /**
@@ -753,6 +793,9 @@ class PeerCoordinator implements PeerListener
             // sorted by priority, so when we hit a disabled piece we are done
             if (p.isDisabled())
                 break;
+            // got it, being verified
+            if (_verifying.contains(Integer.valueOf(p.getId())))
+                continue;
             if (havePieces.get(p.getId()) && !p.isRequested())
               {
                 // never ever choose one that's in partialPieces, or we
@@ -792,8 +835,15 @@ class PeerCoordinator implements PeerListener
             // Even better would be to sort by number of requests
             if (record)
                 Collections.shuffle(requested, _random);
+            // Pipelines are deep now, so a duplicate request to a slow peer
+            // wastes a lot, and one to a fast peer finishes the piece early.
+            // Duplicate the piece whose fastest requester is slowest,
+            // and only if this peer is faster than that one.
+            // Unknown throughput (0) doesn't block, as before 0.9.10.
+            int myRate = peer.getRequestThroughput();
+            int bestRate = Integer.MAX_VALUE;
             Iterator<Piece> it2 = requested.iterator();
-            while (piece == null && it2.hasNext())
+            while (it2.hasNext())
               {
                 Piece p = it2.next();
                 if (havePieces.get(p.getId())) {
@@ -801,8 +851,13 @@ class PeerCoordinator implements PeerListener
                     int requestedCount = p.getRequestCount();
                     if (requestedCount < MAX_PARALLEL_REQUESTS &&
                         !p.isRequestedBy(peer)) {
-                        piece = p;
-                        break;
+                        int rate = getRequesterThroughput(p);
+                        if (rate < bestRate && (myRate <= 0 || rate <= 0 || myRate > rate)) {
+                            piece = p;
+                            bestRate = rate;
+                            if (rate <= 0)
+                                break;
+                        }
                     }
                 }
               }
@@ -831,6 +886,20 @@ class PeerCoordinator implements PeerListener
       } // synch
   }
 
+  /**
+   *  Does not lock the peers' state, caller may hold wantedPieces.
+   *  @return the highest recent throughput of the peers requesting the piece, 0 if none known
+   *  @since 0.9.10
+   */
+  private int getRequesterThroughput(Piece p) {
+      int rv = 0;
+      for (Peer pr : peers) {
+          if (p.isRequestedBy(pr))
+              rv = Math.max(rv, pr.getRequestThroughput());
+      }
+      return rv;
+  }
+
   /**
    *  Maps file priorities to piece priorities.
    *  Call after updating file priorities Storage.setPriority()
@@ -965,6 +1034,9 @@ class PeerCoordinator implements PeerListener
    * In that case the peer that supplied the piece should probably be
    * blacklisted.
    *
+   * As of 0.9.10, the piece is usually verified and written by the PieceWriter,
+   * and this returns true right away. The HAVEs are sent when it's on disk.
+   *
    * @throws RuntimeException on IOE saving the piece
    */
   public boolean gotPiece(Peer peer, PartialPiece pp)
@@ -991,37 +1063,120 @@ class PeerCoordinator implements PeerListener
                 return true;
             }
           }
-        
-        try
-          {
-            // this takes forever if complete, as it rechecks
-            if (storage.putPiece(pp))
-              {
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Got valid piece " + piece + "/" + metainfo.getPieces() +" from " + peer + " for " + metainfo.getName());
-              }
+        // end game duplicate, we already have one being verified,
+        // keep one in case that one is bad
+        Integer pc = Integer.valueOf(piece);
+        if (!_verifying.add(pc)) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Got piece " + piece + " from " + peer + " while verifying another copy");
+            if (_pendingDuplicates.containsKey(pc))
+                pp.release();
             else
-              {
-                // Oops. We didn't actually download this then... :(
-                downloaded -= metainfo.getPieceLength(piece);
-                _log.warn("Got BAD piece " + piece + "/" + metainfo.getPieces() + " from " + peer + " for " + metainfo.getName());
-                return false; // No need to announce BAD piece to peers.
-              }
+                _pendingDuplicates.put(pc, new PendingPiece(peer, pp));
+            return true;
+        }
+      }
+
+    // Hash and write in the PieceWriter, so we don't stall the peer's input,
+    // and announce it when it's on disk.
+    PieceWriter writer = _util.getPieceWriter();
+    if (writer != null) {
+        try {
+            writer.add(storage, pp, peer, _pieceCallback);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            // stopped, do it here
+        }
+    }
+
+    boolean ok;
+    try {
+        // this takes forever if complete, as it rechecks
+        ok = storage.putPiece(pp);
+    } catch (IOException ioe) {
+        storageError(piece, ioe);
+        return false;  // not reached
+    }
+    return pieceWritten(peer, piece, ok);
+  }
+
+  /**
+   *  PieceWriter callback
+   *  @since 0.9.10
+   */
+  private class PieceCallback implements PieceWriter.Callback {
+      public void pieceWritten(Peer peer, int piece, boolean ok, IOException ioe) {
+          if (ioe != null)
+              storageError(piece, ioe);
+          else
+              PeerCoordinator.this.pieceWritten(peer, piece, ok);
+      }
+  }
+
+  /**
+   *  Stops the torrent.
+   *  @throws RuntimeException always
+   *  @since 0.9.10 moved from gotPiece()
+   */
+  private void storageError(int piece, IOException ioe) {
+    synchronized(wantedPieces) {
+        _verifying.remove(Integer.valueOf(piece));
+        PendingPiece dup = _pendingDuplicates.remove(Integer.valueOf(piece));
+        if (dup != null)
+            dup.piece.release();
+        wantedPieces.notifyAll();
+    }
+    String msg = "Error writing storage (piece " + piece + ") for " + metainfo.getName() + ": " + ioe;
+    _log.error(msg, ioe);
+    if (listener != null) {
+        listener.addMessage(msg);
+        listener.addMessage("Fatal storage error: Stopping torrent " + metainfo.getName());
+    }
+    snark.stopTorrent();
+    throw new RuntimeException(msg, ioe);
+  }
+
+  /**
+   *  The rest of gotPiece(), after the piece is verified and on disk.
+   *  Announces it to the peers.
+   *  If the hash didn't match, the end game copy we kept, if any, is submitted.
+   *
+   *  @param ok the hash matched
+   *  @return ok
+   *  @since 0.9.10 moved from gotPiece()
+   */
+  private boolean pieceWritten(Peer peer, int piece, boolean ok) {
+    PendingPiece dup;
+    synchronized(wantedPieces)
+      {
+        _verifying.remove(Integer.valueOf(piece));
+        dup = _pendingDuplicates.remove(Integer.valueOf(piece));
+        wantedPieces.notifyAll();
+        if (ok)
+          {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Got valid piece " + piece + "/" + metainfo.getPieces() +" from " + peer + " for " + metainfo.getName());
+            if (dup != null)
+                dup.piece.release();
+            // don't count an unwanted piece we kept
+            if (wantedPieces.remove(new Piece(piece)))
+                wantedBytes -= metainfo.getPieceLength(piece);
           }
-        catch (IOException ioe)
+        else
           {
-            String msg = "Error writing storage (piece " + piece + ") for " + metainfo.getName() + ": " + ioe;
-            _log.error(msg, ioe);
-            if (listener != null) {
-                listener.addMessage(msg);
-                listener.addMessage("Fatal storage error: Stopping torrent " + metainfo.getName());
-            }
-            snark.stopTorrent();
-            throw new RuntimeException(msg, ioe);
+            // Oops. We didn't actually download this then... :(
+            downloaded -= metainfo.getPieceLength(piece);
+            _log.warn("Got BAD piece " + piece + "/" + metainfo.getPieces() + " from " + peer + " for " + metainfo.getName());
           }
-        wantedPieces.remove(p);
-        wantedBytes -= metainfo.getPieceLength(p.getId());
       }
+    if (!ok) {
+        if (dup != null) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Trying the copy of piece " + piece + " from " + dup.peer);
+            gotPiece(dup.peer, dup.piece);
+        }
+        return false; // No need to announce BAD piece to peers.
+    }
 
     // just in case
     removePartialPiece(piece);
@@ -1103,6 +1258,8 @@ class PeerCoordinator implements PeerListener
         // Make sure it is no longer in our lists
         if (peers.remove(peer))
           {
+            if (_optimistic == peer)
+                _optimistic = null;
             // Unchoke some random other peer
             unchokePeer();
             removePeerFromPieces(peer);
@@ -1351,6 +1508,7 @@ class PeerCoordinator implements PeerListener
       } else if (id == ExtensionHandler.ID_HANDSHAKE) {
           sendPeers(peer);
           sendDHT(peer);
+          checkMux(peer);
       }
   }
 
@@ -1399,6 +1557,27 @@ class PeerCoordinator implements PeerListener
       } catch (InvalidBEncodingException ibee) {}
   }
 
+  /**
+   *  Remember the peer for PeerMux if we both support it,
+   *  so the next connection for any torrent goes over a channel.
+   *  @since 0.9.10
+   */
+  private void checkMux(Peer peer) {
+      PeerMux mux = _util.getPeerMux();
+      if (mux == null)
+          return;
+      Map<String, BEValue> handshake = peer.getHandshakeMap();
+      if (handshake == null)
+          return;
+      BEValue bev = handshake.get("m");
+      if (bev == null)
+          return;
+      try {
+          if (bev.getMap().get(ExtensionHandler.TYPE_MUX) != null)
+              mux.setCapable(peer.getPeerID().getAddress());
+      } catch (InvalidBEncodingException ibee) {}
+  }
+
   /**
    *  Sets the storage after transition out of magnet mode
    *  Snark calls this after we call gotMetaInfo()
@@ -1464,6 +1643,9 @@ class PeerCoordinator implements PeerListener
    */
   public int allowedUploaders()
   {
+    int slots = _uploadSlots;
+    if (slots >= 0 && _util.getUploadScheduler() != null)
+        return Math.min(MAX_UPLOADERS, slots) + (_optimistic != null ? 1 : 0);
     if (listener != null && listener.overUploadLimit(uploaders)) {
         // if (_log.shouldLog(Log.DEBUG))
         //   _log.debug("Over limit, uploaders was: " + uploaders);
@@ -1489,11 +1671,183 @@ class PeerCoordinator implements PeerListener
     return false;
   }
 
+  /**
+   *  If scheduled, over this torrent's share of the limit and the total is over the limit.
+   *  @param total bytes uploaded in the last CHECK_PERIOD
+   */
   public boolean overUpBWLimit(long total)
   {
-    if (listener != null)
-        return listener.overUpBWLimit(total * 1000 / CHECK_PERIOD);
-    return false;
+    if (listener == null)
+        return false;
+    long rate = total * 1000 / CHECK_PERIOD;
+    if (_uploadSlots >= 0 && _util.getUploadScheduler() != null) {
+        long share = _uploadBWPerSlot * (_uploadSlots + (_optimistic != null ? 1 : 0));
+        return rate > share && listener.overUpBWLimit();
+    }
+    return listener.overUpBWLimit(rate);
+  }
+
+  /**
+   *  For the UploadScheduler.
+   *  @return 1 by default
+   *  @since 0.9.10
+   */
+  int getUploadWeight() {
+      return snark != null ? Math.max(1, snark.getUploadWeight()) : 1;
+  }
+
+  /**
+   *  For the UploadScheduler.
+   *  @return connected interested peers, choked or not, up to MAX_UPLOADERS
+   *  @since 0.9.10
+   */
+  int getUploadDemand() {
+      int rv = 0;
+      for (Peer peer : peers) {
+          if (peer.isConnected() && peer.isInterested()) {
+              if (++rv >= MAX_UPLOADERS)
+                  break;
+          }
+      }
+      return rv;
+  }
+
+  /**
+   *  Set by the UploadScheduler.
+   *  Chokes the slowest uploads over the new allocation, or unchokes up to it.
+   *
+   *  @param slots not counting the optimistic unchoke
+   *  @param bwPerSlot Bps, share of the upload limit per slot
+   *  @since 0.9.10
+   */
+  void setUploadAllocation(int slots, long bwPerSlot) {
+      _uploadSlots = slots;
+      _uploadBWPerSlot = bwPerSlot;
+      if (halted)
+          return;
+      synchronized(peers) {
+          int allowed = allowedUploaders();
+          List<Peer> unchoked = new ArrayList<Peer>();
+          Peer opt = _optimistic;
+          for (Peer peer : peers) {
+              if (peer.isConnected() && !peer.isChoking())
+                  unchoked.add(peer);
+          }
+          uploaders = unchoked.size();
+          if (uploaders > allowed) {
+              unchoked.remove(opt);
+              Collections.sort(unchoked, new UploadRateComparator());
+              for (Peer peer : unchoked) {
+                  if (uploaders <= allowed)
+                      break;
+                  if (_log.shouldLog(Log.DEBUG))
+                      _log.debug("Choke for the upload scheduler: " + peer);
+                  peer.setChoking(true);
+                  uploaders--;
+                  interestedAndChoking++;
+              }
+          } else if (uploaders < allowed) {
+              unchokePeer();
+          }
+      }
+  }
+
+  /**
+   *  Slowest first
+   *  @since 0.9.10
+   */
+  /**
+   *  An end game copy of a piece, kept while another copy is verified
+   *  @since 0.9.10
+   */
+  private static class PendingPiece {
+      final Peer peer;
+      final PartialPiece piece;
+
+      public PendingPiece(Peer peer, PartialPiece piece) {
+          this.peer = peer;
+          this.piece = piece;
+      }
+  }
+
+  private static class UploadRateComparator implements Comparator<Peer> {
+      public int compare(Peer l, Peer r) {
+          long d = l.getUploadRate() - r.getUploadRate();
+          return d < 0 ? -1 : (d > 0 ? 1 : 0);
+      }
+  }
+
+  /**
+   *  Gauge
+   *  @return upload slots from the UploadScheduler, -1 if not scheduled
+   *  @since 0.9.10
+   */
+  public int getUploadSlots() {
+      return _uploadSlots;
+  }
+
+  /**
+   *  For the UploadScheduler.
+   *  @since 0.9.10
+   */
+  boolean hasChokedInterested() {
+      for (Peer peer : peers) {
+          if (peer.isConnected() && peer.isInterested() && peer.isChoking())
+              return true;
+      }
+      return false;
+  }
+
+  /**
+   *  For the UploadScheduler.
+   *  @return random choked interested peer or null
+   *  @since 0.9.10
+   */
+  Peer pickChokedInterested() {
+      List<Peer> rv = new ArrayList<Peer>();
+      for (Peer peer : peers) {
+          if (peer.isConnected() && peer.isInterested() && peer.isChoking())
+              rv.add(peer);
+      }
+      if (rv.isEmpty())
+          return null;
+      return rv.get(_random.nextInt(rv.size()));
+  }
+
+  /**
+   *  For the UploadScheduler. Unchokes the peer, in addition to our slots.
+   *  When cleared, the peer is left unchoked, and choked at the next allocation if we're over.
+   *
+   *  @param peer null to clear
+   *  @return true if set
+   *  @since 0.9.10
+   */
+  boolean setOptimisticPeer(Peer peer) {
+      synchronized(peers) {
+          _optimistic = peer;
+          if (peer == null)
+              return false;
+          if (halted || !peers.contains(peer)) {
+              _optimistic = null;
+              return false;
+          }
+          if (peer.isChoking()) {
+              if (_log.shouldLog(Log.DEBUG))
+                  _log.debug("Optimistic unchoke: " + peer);
+              peer.setChoking(false);
+              uploaders++;
+              interestedAndChoking = Math.max(0, interestedAndChoking - 1);
+          }
+          return true;
+      }
+  }
+
+  /**
+   *  For PeerCheckerTask, which leaves it to the UploadScheduler.
+   *  @since 0.9.10
+   */
+  boolean isOptimistic(Peer peer) {
+      return peer == _optimistic;
   }
 
   /**
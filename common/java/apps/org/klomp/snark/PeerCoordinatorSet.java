@@ -14,9 +14,12 @@ import net.i2p.crypto.SHA1Hash;
  */
 class PeerCoordinatorSet implements Iterable<PeerCoordinator> {
     private final Map<SHA1Hash, PeerCoordinator> _coordinators;
+    /** parked torrents have no coordinator, see Snark.park() */
+    private final Map<SHA1Hash, Snark> _parked;
     
     public PeerCoordinatorSet() {
         _coordinators = new ConcurrentHashMap<SHA1Hash, PeerCoordinator>();
+        _parked = new ConcurrentHashMap<SHA1Hash, Snark>();
     }
      
     public Iterator<PeerCoordinator> iterator() {
@@ -37,4 +40,50 @@ class PeerCoordinatorSet implements Iterable<PeerCoordinator> {
     public PeerCoordinator get(byte[] infoHash) {
         return _coordinators.get(new SHA1Hash(infoHash));
     }
+
+    /**
+     *  @since 0.9.10
+     */
+    public void addParked(Snark snark) {
+        _parked.put(new SHA1Hash(snark.getInfoHash()), snark);
+    }
+
+    /**
+     *  @since 0.9.10
+     */
+    public void removeParked(Snark snark) {
+        _parked.remove(new SHA1Hash(snark.getInfoHash()));
+    }
+
+    /**
+     *  @return null if not parked
+     *  @since 0.9.10
+     */
+    public Snark getParked(byte[] infoHash) {
+        return _parked.get(new SHA1Hash(infoHash));
+    }
+
+    /**
+     *  @since 0.9.10
+     */
+    public int getParkedCount() {
+        return _parked.size();
+    }
+
+    /**
+     *  Get the coordinator, restarting the torrent if it is parked.
+     *  Blocking while it restarts.
+     *
+     *  @return null if not found or it failed to restart
+     *  @since 0.9.10
+     */
+    public PeerCoordinator getOrWake(byte[] infoHash) {
+        PeerCoordinator rv = get(infoHash);
+        if (rv != null)
+            return rv;
+        Snark snark = getParked(infoHash);
+        if (snark == null || !snark.unpark())
+            return null;
+        return get(infoHash);
+    }
 }
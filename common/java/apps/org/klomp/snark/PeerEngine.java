@@ -0,0 +1,430 @@
+package org.klomp.snark;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.MessageChannel;
+import net.i2p.client.streaming.StreamSelector;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  Event-driven peer I/O, instead of a PeerConnectionIn thread and a
+ *  PeerConnectionOut thread for every peer.
+ *
+ *  One selector thread reads complete messages from all the peers'
+ *  MessageChannels, and a small pool of worker threads handles them
+ *  (PeerConnectionIn.handleMessage(), so the PeerState and PeerListener callbacks are unchanged)
+ *  and writes out the PeerConnectionOut queue, loading piece data as necessary.
+ *  The work for each peer is serialized, so messages are handled in order
+ *  and at most one worker is busy with a peer at a time.
+ *
+ *  Connecting and the handshake are still done by the caller of Peer.runConnection(),
+ *  which returns once the peer is handed off here.
+ *
+ *  One per I2PSnarkUtil.
+ *
+ *  @since 0.9.10
+ */
+class PeerEngine {
+    private final Log _log;
+    private final StreamSelector _selector;
+    private final ThreadPoolExecutor _workers;
+    /** for Peer.connectionEnded(), which may block, so it doesn't hold up the workers */
+    private final ThreadPoolExecutor _closer;
+    private final AtomicInteger _peers = new AtomicInteger();
+    private volatile boolean _stopped;
+
+    private static final int MAX_WORKERS = 4;
+    /** per-selection read budget per peer, for fairness */
+    private static final int READ_BUDGET = 64*1024;
+    /** stop reading from a peer when this much is waiting to be handled */
+    private static final int MAX_QUEUED_IN = 128*1024;
+    private static final byte[] KEEPALIVE = new byte[0];
+
+    public PeerEngine(I2PAppContext ctx) {
+        _log = ctx.logManager().getLog(PeerEngine.class);
+        _selector = StreamSelector.open();
+        int threads = Math.max(2, Math.min(MAX_WORKERS, SystemVersion.getCores()));
+        // use unbounded queue, so maximumPoolSize has no effect
+        _workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("Snark peer worker"));
+        _workers.allowCoreThreadTimeOut(true);
+        _closer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                                         new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("Snark peer closer"));
+        _closer.allowCoreThreadTimeOut(true);
+        Thread t = new I2PAppThread(new SelectorLoop(), "Snark peer engine", true);
+        t.start();
+    }
+
+    /**
+     *  Take over the connection after the handshake.
+     *  Any data buffered in din beyond the handshake is handled first.
+     *
+     *  @return false if the socket can't be selected, caller should run the connection in threads as before
+     */
+    public boolean register(Peer peer, I2PSocket sock, DataInputStream din, PeerState state) throws IOException {
+        if (_stopped)
+            return false;
+        SelectableChannel sc = sock.getChannel();
+        if (!(sc instanceof MessageChannel))
+            return false;
+        MessageChannel chan = (MessageChannel) sc;
+        PeerConn conn = new PeerConn(peer, chan, state);
+        // Non-blocking now, so this won't wait.
+        // Includes the readahead in the BufferedInputStream for incoming connections.
+        int avail;
+        byte[] buf = null;
+        while ((avail = din.available()) > 0) {
+            if (buf == null)
+                buf = new byte[Math.min(avail, READ_BUDGET)];
+            int read = din.read(buf, 0, Math.min(avail, buf.length));
+            if (read <= 0)
+                break;
+            conn.consume(ByteBuffer.wrap(buf, 0, read));
+        }
+        conn.key = chan.register(_selector, SelectionKey.OP_READ, conn);
+        state.out.setWakeup(conn.wakeup);
+        _peers.incrementAndGet();
+        // send what was queued during the handshake, and handle what was read
+        conn.schedule();
+        return true;
+    }
+
+    /** number of peers currently handled */
+    public int getPeerCount() {
+        return _peers.get();
+    }
+
+    /**
+     *  Existing peers are disconnected when the socket manager is destroyed,
+     *  this does not disconnect them.
+     */
+    public void stop() {
+        _stopped = true;
+        try {
+            _selector.close();
+        } catch (IOException ioe) {}
+        _workers.shutdownNow();
+        // let the queued closes finish
+        _closer.shutdown();
+    }
+
+    private class SelectorLoop implements Runnable {
+        private final ByteBuffer _readBuf = ByteBuffer.allocate(16*1024);
+
+        public void run() {
+            while (!_stopped) {
+                try {
+                    _selector.select();
+                    if (_stopped)
+                        break;
+                    for (Iterator<SelectionKey> iter = _selector.selectedKeys().iterator(); iter.hasNext(); ) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        PeerConn conn = (PeerConn) key.attachment();
+                        if (!key.isValid()) {
+                            conn.ended();
+                            continue;
+                        }
+                        if (key.isReadable())
+                            conn.read(_readBuf);
+                        if (key.isValid() && key.isWritable())
+                            conn.writable();
+                    }
+                } catch (RuntimeException re) {
+                    if (!_stopped)
+                        _log.error("Peer engine error", re);
+                } catch (IOException ioe) {
+                    if (!_stopped)
+                        _log.error("Peer engine error", ioe);
+                }
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Peer engine stopped");
+        }
+    }
+
+    /**
+     *  The state of one peer.
+     *  Reading into the message buffers is done by the selector thread only,
+     *  everything else by one worker at a time.
+     */
+    private class PeerConn implements Runnable {
+        private final Peer _peer;
+        private final MessageChannel _chan;
+        private final PeerState _state;
+        private final PeerConnectionIn _in;
+        private final PeerConnectionOut _out;
+        volatile SelectionKey key;
+        /** the length prefix */
+        private final ByteBuffer _hdr = ByteBuffer.allocate(4);
+        /** the message without the length prefix, null when reading the prefix */
+        private ByteBuffer _msg;
+        private final Queue<byte[]> _inQueue = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger _queuedIn = new AtomicInteger();
+        private volatile boolean _readPaused;
+        private volatile boolean _writeBlocked;
+        /** the rest of the message being written, worker only */
+        private ByteBuffer _outBuf;
+        /** written but not flushed, worker only */
+        private boolean _unflushed;
+        private final AtomicBoolean _scheduled = new AtomicBoolean();
+        private volatile boolean _pending;
+        private final AtomicBoolean _ended = new AtomicBoolean();
+
+        final Runnable wakeup = new Runnable() {
+            public void run() {
+                schedule();
+            }
+        };
+
+        public PeerConn(Peer peer, MessageChannel chan, PeerState state) {
+            _peer = peer;
+            _chan = chan;
+            _state = state;
+            _in = state.in;
+            _out = state.out;
+        }
+
+        /**
+         *  Selector thread.
+         *  Read what's available, up to the budget, and queue the complete messages.
+         */
+        void read(ByteBuffer buf) {
+            try {
+                int total = 0;
+                while (total < READ_BUDGET) {
+                    buf.clear();
+                    int read = _chan.read(buf);
+                    if (read < 0)
+                        throw new IOException("EOF");
+                    if (read == 0)
+                        break;
+                    total += read;
+                    buf.flip();
+                    consume(buf);
+                }
+                if (total > 0) {
+                    if (_queuedIn.get() > MAX_QUEUED_IN) {
+                        // let the streaming window push back until the workers catch up
+                        _readPaused = true;
+                        updateInterest();
+                    }
+                    schedule();
+                }
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("IOError talking with " + _peer, ioe);
+                ended();
+            }
+        }
+
+        /**
+         *  Selector thread, or the registering thread before registration.
+         *  Split into messages.
+         */
+        void consume(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                if (_msg == null) {
+                    copy(buf, _hdr);
+                    if (_hdr.hasRemaining())
+                        return;
+                    _hdr.flip();
+                    int len = _hdr.getInt();
+                    _hdr.clear();
+                    if (len < 0 || len > PeerConnectionIn.MAX_MSG_SIZE)
+                        throw new IOException("Unexpected length prefix: " + len);
+                    _in.lastRcvd = System.currentTimeMillis();
+                    if (len == 0) {
+                        _inQueue.offer(KEEPALIVE);
+                        continue;
+                    }
+                    _msg = ByteBuffer.allocate(len);
+                }
+                copy(buf, _msg);
+                if (_msg.hasRemaining())
+                    return;
+                byte[] data = _msg.array();
+                _msg = null;
+                _queuedIn.addAndGet(data.length);
+                _inQueue.offer(data);
+                _in.lastRcvd = System.currentTimeMillis();
+            }
+        }
+
+        /** Selector thread */
+        void writable() {
+            _writeBlocked = false;
+            updateInterest();
+            schedule();
+        }
+
+        void schedule() {
+            _pending = true;
+            if (_ended.get())
+                return;
+            if (_scheduled.compareAndSet(false, true)) {
+                try {
+                    _workers.execute(this);
+                } catch (RejectedExecutionException ree) {
+                    // stopped
+                    _scheduled.set(false);
+                }
+            }
+        }
+
+        /**
+         *  Worker thread.
+         *  Handle the queued messages, then write out as much of the send queue as we can.
+         */
+        public void run() {
+            _pending = false;
+            try {
+                byte[] data;
+                while ((data = _inQueue.poll()) != null) {
+                    if (_peer.state == null)
+                        throw new IOException("Disconnected");
+                    _queuedIn.addAndGet(0 - data.length);
+                    if (data == KEEPALIVE) {
+                        _in.handleMessage(_state, 0, null);
+                    } else {
+                        DataInputStream din = new DataInputStream(new ByteArrayInputStream(data));
+                        _in.handleMessage(_state, data.length, din);
+                    }
+                }
+                if (_readPaused && _queuedIn.get() <= MAX_QUEUED_IN / 2) {
+                    _readPaused = false;
+                    updateInterest();
+                }
+                if (!_writeBlocked)
+                    write();
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("IOError talking with " + _peer, ioe);
+                ended();
+            } catch (Throwable t) {
+                _log.error("Error talking with " + _peer, t);
+                ended();
+                if (t instanceof OutOfMemoryError)
+                    throw (OutOfMemoryError) t;
+            } finally {
+                _scheduled.set(false);
+                if (_pending)
+                    schedule();
+            }
+        }
+
+        /**
+         *  Worker thread.
+         *  Never waits, as the channel is non-blocking: write() takes only what
+         *  fits without waiting for the send window, and flush() doesn't wait either.
+         *  When the window is closed, we get OP_WRITE when it opens.
+         */
+        private void write() throws IOException {
+            while (true) {
+                if (_outBuf == null || !_outBuf.hasRemaining()) {
+                    _outBuf = _out.nextBuffer();
+                    if (_outBuf == null) {
+                        // Make sure everything will reach the other side.
+                        if (_unflushed) {
+                            _chan.flush();
+                            _unflushed = false;
+                        }
+                        return;
+                    }
+                }
+                if (_chan.write(_outBuf) > 0)
+                    _unflushed = true;
+                if (_outBuf.hasRemaining()) {
+                    // wait for the window
+                    _writeBlocked = true;
+                    updateInterest();
+                    return;
+                }
+            }
+        }
+
+        private synchronized void updateInterest() {
+            SelectionKey k = key;
+            if (k == null || !k.isValid())
+                return;
+            int ops = 0;
+            if (!_readPaused)
+                ops |= SelectionKey.OP_READ;
+            if (_writeBlocked)
+                ops |= SelectionKey.OP_WRITE;
+            try {
+                k.interestOps(ops);
+            } catch (RuntimeException re) {
+                // cancelled
+            }
+        }
+
+        /**
+         *  Any thread. The end of Peer.runConnection() in thread mode.
+         */
+        void ended() {
+            if (!_ended.compareAndSet(false, true))
+                return;
+            _peers.decrementAndGet();
+            _out.setWakeup(null);
+            SelectionKey k = key;
+            if (k != null)
+                k.cancel();
+            _inQueue.clear();
+            // disconnect() may block in streaming, do it in the closer, not a worker,
+            // so a few slow closes don't stall the I/O for every peer
+            Runnable r = new Runnable() {
+                public void run() {
+                    _peer.connectionEnded();
+                }
+            };
+            try {
+                _closer.execute(r);
+            } catch (RejectedExecutionException ree) {
+                r.run();
+            }
+        }
+    }
+
+    private static void copy(ByteBuffer from, ByteBuffer to) {
+        int len = Math.min(from.remaining(), to.remaining());
+        to.put(from.array(), from.arrayOffset() + from.position(), len);
+        from.position(from.position() + len);
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String _name;
+        private int _count;
+
+        public WorkerThreadFactory(String name) {
+            _name = name;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName(_name + ' ' + (++_count));
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
@@ -100,6 +100,8 @@ interface PeerListener
    * @param piece the piece received.
    *
    * @return true when the bytes represent the piece, false otherwise.
+   *         As of 0.9.10, may return true before the piece is verified,
+   *         the piece is then verified and written asynchronously.
    */
   boolean gotPiece(Peer peer, PartialPiece piece);
 
@@ -0,0 +1,455 @@
+package org.klomp.snark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.i2p.I2PAppContext;
+import net.i2p.I2PException;
+import net.i2p.client.streaming.I2PServerSocket;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PSocketManager;
+import net.i2p.client.streaming.I2PSocketManagerFactory;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.util.ConcurrentHashSet;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.LHMCache;
+import net.i2p.util.Log;
+
+/**
+ *  Runs the peer connections for all torrents with the same peer
+ *  over a single I2P stream, as channels of a MuxConnection.
+ *
+ *  Each new stream costs a connection setup round trip (or more),
+ *  a slow start, and a new set of session tags, and each torrent
+ *  needs its own connection to a peer. When joining many small
+ *  torrents shared with the same peers, most of the time to the first
+ *  piece is spent setting up streams. Channels open with no round trip,
+ *  and share the stream's RTT estimate and window.
+ *
+ *  Support is advertised as TYPE_MUX in the extension handshake,
+ *  so the first connection to a peer is always a regular stream.
+ *  Once we know a peer supports it, later connections use a channel.
+ *  The mux stream starts with PREAMBLE instead of the BitTorrent handshake,
+ *  so it is recognized by the ConnectionAcceptor on the same port.
+ *
+ *  Off by default, see I2PSnarkUtil.PROP_PEER_MUX.
+ *
+ *  @since 0.9.10
+ */
+class PeerMux {
+    private final I2PAppContext _context;
+    private final Log _log;
+    /** one per peer */
+    private final ConcurrentMap<Hash, MuxConnection> _conns;
+    /** peers that advertised TYPE_MUX */
+    private final Map<Hash, Boolean> _capable;
+    private final Set<MuxConnection> _all;
+    private volatile ChannelAcceptor _acceptor;
+    private volatile boolean _stopped;
+
+    /** starts with a 0, where the BitTorrent handshake starts with 19 */
+    static final byte[] PREAMBLE = { 0, 'i', '2', 'p', 'm', 'u', 'x', 1 };
+    private static final int MAX_CAPABLE = 1024;
+    private static final int PREAMBLE_READ_TIMEOUT = 60*1000;
+
+    /**
+     *  Where incoming channels go.
+     */
+    interface ChannelAcceptor {
+        /** must not block */
+        public void channelOpened(I2PSocket channel);
+    }
+
+    public PeerMux(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(PeerMux.class);
+        _conns = new ConcurrentHashMap<Hash, MuxConnection>();
+        _capable = new LHMCache<Hash, Boolean>(MAX_CAPABLE);
+        _all = new ConcurrentHashSet<MuxConnection>();
+    }
+
+    public void setAcceptor(ChannelAcceptor acceptor) {
+        _acceptor = acceptor;
+    }
+
+    /** @return null if none */
+    ChannelAcceptor getAcceptor() {
+        return _acceptor;
+    }
+
+    /**
+     *  The peer advertised TYPE_MUX.
+     */
+    public void setCapable(Destination peer) {
+        if (peer == null)
+            return;
+        synchronized (_capable) {
+            _capable.put(peer.calculateHash(), Boolean.TRUE);
+        }
+    }
+
+    public boolean isCapable(Destination peer) {
+        synchronized (_capable) {
+            return _capable.containsKey(peer.calculateHash());
+        }
+    }
+
+    /**
+     *  Open a channel to the peer, opening the mux stream first if necessary.
+     *  Only one stream is opened to a peer at a time; others wait for it.
+     *
+     *  @return null if the peer isn't known to support it or the stream failed,
+     *          caller should connect the usual way
+     */
+    public I2PSocket connect(Destination peer, I2PSocketManager mgr) {
+        if (_stopped || !isCapable(peer))
+            return null;
+        Hash h = peer.calculateHash();
+        MuxConnection conn = _conns.get(h);
+        if (conn != null && conn.isClosed()) {
+            _conns.remove(h, conn);
+            conn = null;
+        }
+        if (conn == null) {
+            MuxConnection newConn = new MuxConnection(_context, this, peer, true);
+            conn = _conns.putIfAbsent(h, newConn);
+            if (conn == null) {
+                conn = newConn;
+                _all.add(conn);
+                if (!open(conn, peer, mgr)) {
+                    synchronized (_capable) {
+                        _capable.remove(h);
+                    }
+                    return null;
+                }
+            }
+        }
+        try {
+            return conn.openChannel();
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Failed to open channel on " + conn, ioe);
+            return null;
+        }
+    }
+
+    /**
+     *  @return success
+     */
+    private boolean open(MuxConnection conn, Destination peer, I2PSocketManager mgr) {
+        I2PSocket sock = null;
+        try {
+            sock = mgr.connect(peer);
+            conn.start(sock, sock.getInputStream(), sock.getOutputStream());
+            return true;
+        } catch (I2PException ie) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Failed to open mux to " + peer.calculateHash(), ie);
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Failed to open mux to " + peer.calculateHash(), ioe);
+        }
+        if (sock != null) {
+            try { sock.close(); } catch (IOException ioe) {}
+        }
+        conn.failed();
+        removed(conn);
+        return false;
+    }
+
+    /**
+     *  Does the stream start with the preamble?
+     *  Does not consume anything.
+     *
+     *  @param in must support mark()
+     */
+    public static boolean isPreamble(I2PSocket sock, InputStream in) throws IOException {
+        long timeout = sock.getReadTimeout();
+        sock.setReadTimeout(PREAMBLE_READ_TIMEOUT);
+        try {
+            in.mark(1);
+            int c = in.read();
+            in.reset();
+            return c == PREAMBLE[0];
+        } finally {
+            sock.setReadTimeout(timeout);
+        }
+    }
+
+    /**
+     *  An incoming mux stream. Reads and checks the preamble,
+     *  then starts the connection and returns.
+     *  If we already have a stream to this peer, both stay up until idle,
+     *  new channels go out on whichever is in the map.
+     *
+     *  @throws PeerAcceptor.ProtocolException on a bad preamble
+     */
+    public void accept(I2PSocket sock, InputStream in, OutputStream out) throws IOException {
+        if (_stopped)
+            throw new IOException("stopped");
+        byte[] pre = new byte[PREAMBLE.length];
+        long timeout = sock.getReadTimeout();
+        sock.setReadTimeout(PREAMBLE_READ_TIMEOUT);
+        try {
+            new DataInputStream(in).readFully(pre);
+        } catch (IOException ioe) {
+            throw new PeerAcceptor.ProtocolException(ioe.toString());
+        }
+        sock.setReadTimeout(timeout);
+        if (!DataHelper.eq(pre, PREAMBLE))
+            throw new PeerAcceptor.ProtocolException("Bad mux preamble");
+        Destination peer = sock.getPeerDestination();
+        setCapable(peer);
+        MuxConnection conn = new MuxConnection(_context, this, peer, false);
+        _all.add(conn);
+        conn.start(sock, in, out);
+        Hash h = peer.calculateHash();
+        MuxConnection old = _conns.putIfAbsent(h, conn);
+        if (old != null && old.isClosed())
+            _conns.replace(h, old, conn);
+    }
+
+    /**
+     *  Called by the MuxConnection when closed.
+     */
+    void removed(MuxConnection conn) {
+        _conns.remove(conn.getPeerDestination().calculateHash(), conn);
+        _all.remove(conn);
+    }
+
+    /**
+     *  Close all the streams.
+     */
+    public void stop() {
+        _stopped = true;
+        _acceptor = null;
+        List<MuxConnection> conns = new ArrayList<MuxConnection>(_all);
+        for (MuxConnection conn : conns) {
+            conn.disconnect();
+        }
+        _conns.clear();
+        _all.clear();
+        synchronized (_capable) {
+            _capable.clear();
+        }
+    }
+
+    /**
+     *  Benchmark: time to first piece when joining many small torrents
+     *  shared with a single peer, over regular streams and over mux channels.
+     *  Needs a running router.
+     *
+     *  Each "torrent" is a new connection on which the initiator sends a
+     *  68 byte BitTorrent handshake and a 17 byte request, and the acceptor replies
+     *  with its handshake and a 16 KB piece. The torrents are joined all at once,
+     *  as when a batch of magnets or a directory of torrents is added.
+     *  This measures the transport only, not the coordinators and storage.
+     *
+     *  Usage: PeerMux [torrents] [i2cp host] [i2cp port]
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        String host = args.length > 1 ? args[1] : "127.0.0.1";
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 7654;
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        for (int mode = 0; mode < 2; mode++) {
+            boolean mux = mode == 1;
+            // fresh destinations so neither mode benefits from the other's tunnels or tags
+            Properties opts = new Properties();
+            opts.setProperty("inbound.nickname", "PeerMux benchmark");
+            opts.setProperty("outbound.nickname", "PeerMux benchmark");
+            I2PSocketManager server = I2PSocketManagerFactory.createManager(host, port, opts);
+            I2PSocketManager client = I2PSocketManagerFactory.createManager(host, port, opts);
+            if (server == null || client == null) {
+                System.err.println("Unable to connect to the router at " + host + ':' + port);
+                return;
+            }
+            PeerMux serverMux = new PeerMux(ctx);
+            PeerMux clientMux = new PeerMux(ctx);
+            BenchServer bs = new BenchServer(server.getServerSocket(), serverMux);
+            serverMux.setAcceptor(bs);
+            Thread t = new I2PAppThread(bs, "PeerMux benchmark server", true);
+            t.start();
+            Destination dest = server.getSession().getMyDestination();
+            // warm up the tunnels and leaseset lookup, and learn the capability, as after a first plain connection
+            runTorrent(ctx, client, null, dest);
+            if (mux)
+                clientMux.setCapable(dest);
+
+            long[] times = new long[count];
+            List<Thread> threads = new ArrayList<Thread>(count);
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                Thread bt = new I2PAppThread(new BenchClient(ctx, client, mux ? clientMux : null, dest, times, i, start),
+                                             "PeerMux benchmark " + i, true);
+                threads.add(bt);
+                bt.start();
+            }
+            for (Thread bt : threads) {
+                bt.join();
+            }
+            long total = System.currentTimeMillis() - start;
+            int ok = 0;
+            long sum = 0;
+            long max = 0;
+            for (int i = 0; i < count; i++) {
+                if (times[i] > 0) {
+                    ok++;
+                    sum += times[i];
+                    max = Math.max(max, times[i]);
+                }
+            }
+            System.out.println((mux ? "mux:    " : "plain:  ") + ok + '/' + count + " torrents, time to first piece avg " +
+                               (ok > 0 ? sum / ok : 0) + "ms, max " + max + "ms, all done in " + total + "ms");
+            bs.stop();
+            clientMux.stop();
+            serverMux.stop();
+            client.destroySocketManager();
+            server.destroySocketManager();
+        }
+    }
+
+    private static final int BENCH_PIECE = 16*1024;
+
+    /**
+     *  Client side of one torrent.
+     *  @param mux null for a regular stream
+     *  @return success
+     */
+    private static boolean runTorrent(I2PAppContext ctx, I2PSocketManager mgr, PeerMux mux, Destination dest) throws Exception {
+        I2PSocket sock = null;
+        if (mux != null)
+            sock = mux.connect(dest, mgr);
+        if (sock == null)
+            sock = mgr.connect(dest);
+        try {
+            DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            byte[] hs = new byte[68];
+            hs[0] = 19;
+            ctx.random().nextBytes(hs, 28, 40);
+            out.write(hs);
+            // request piece 0, begin 0, length 16K
+            out.writeInt(13);
+            out.writeByte(Message.REQUEST);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(BENCH_PIECE);
+            out.flush();
+            in.readFully(hs);
+            int len = in.readInt();
+            byte[] piece = new byte[len];
+            in.readFully(piece);
+            return len == 9 + BENCH_PIECE;
+        } finally {
+            sock.close();
+        }
+    }
+
+    private static class BenchClient implements Runnable {
+        private final I2PAppContext ctx;
+        private final I2PSocketManager mgr;
+        private final PeerMux mux;
+        private final Destination dest;
+        private final long[] times;
+        private final int idx;
+        private final long start;
+
+        public BenchClient(I2PAppContext ctx, I2PSocketManager mgr, PeerMux mux, Destination dest,
+                           long[] times, int idx, long start) {
+            this.ctx = ctx;
+            this.mgr = mgr;
+            this.mux = mux;
+            this.dest = dest;
+            this.times = times;
+            this.idx = idx;
+            this.start = start;
+        }
+
+        public void run() {
+            try {
+                if (runTorrent(ctx, mgr, mux, dest))
+                    times[idx] = System.currentTimeMillis() - start;
+            } catch (Exception e) {
+                System.err.println("Torrent " + idx + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     *  Server side, accepts streams (detecting the mux preamble) and channels.
+     */
+    private static class BenchServer implements Runnable, ChannelAcceptor {
+        private final I2PServerSocket ss;
+        private final PeerMux mux;
+
+        public BenchServer(I2PServerSocket ss, PeerMux mux) {
+            this.ss = ss;
+            this.mux = mux;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final I2PSocket s = ss.accept();
+                    if (s == null)
+                        continue;
+                    new I2PAppThread(new Runnable() {
+                        public void run() { handle(s, true); }
+                    }, "PeerMux benchmark handler", true).start();
+                }
+            } catch (Exception e) {}
+        }
+
+        public void channelOpened(final I2PSocket s) {
+            new I2PAppThread(new Runnable() {
+                public void run() { handle(s, false); }
+            }, "PeerMux benchmark handler", true).start();
+        }
+
+        private void handle(I2PSocket s, boolean checkMux) {
+            try {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                if (checkMux && isPreamble(s, in)) {
+                    // the mux owns it now
+                    mux.accept(s, in, out);
+                    return;
+                }
+                DataInputStream din = new DataInputStream(in);
+                DataOutputStream dout = new DataOutputStream(out);
+                byte[] hs = new byte[68];
+                din.readFully(hs);
+                byte[] req = new byte[17];
+                din.readFully(req);
+                dout.write(hs);
+                dout.writeInt(9 + BENCH_PIECE);
+                dout.writeByte(Message.PIECE);
+                dout.writeInt(0);
+                dout.writeInt(0);
+                dout.write(new byte[BENCH_PIECE]);
+                dout.flush();
+                // wait for the client to close
+                din.read();
+            } catch (IOException ioe) {}
+            try { s.close(); } catch (IOException ioe) {}
+        }
+
+        public void stop() {
+            try { ss.close(); } catch (I2PException ie) {}
+        }
+    }
+}
@@ -61,11 +61,39 @@ class PeerState implements DataLoader
   private Request lastRequest = null;
 
   // FIXME if piece size < PARTSIZE, pipeline could be bigger
-  private final static int MAX_PIPELINE = 5;               // this is for outbound requests
+  /** outbound requests, the fixed depth before 0.9.10 */
+  private final static int MIN_PIPELINE = 5;
+  /** outbound requests, 512KB, well under what we'd hold for a peer in PartialPieces */
+  private final static int MAX_PIPELINE = 32;
   private final static int MAX_PIPELINE_BYTES = 128*1024;  // this is for inbound requests
   public final static int PARTSIZE = 16*1024; // outbound request
   private final static int MAX_PARTSIZE = 64*1024; // Don't let anybody request more than this
 
+  // Adaptive outbound pipeline, see updatePipeline(), all LOCKING: this
+  /** current max outstanding requests */
+  private int _pipeline = MIN_PIPELINE;
+  private boolean _pipelineStartup = true;
+  /** lowest request-to-piece time seen, ms */
+  private int _minLatency;
+  private long _minLatencyAt;
+  /** lowest in the current round, to replace an expired _minLatency */
+  private int _roundMinLatency;
+  private long _roundStart;
+  private int _roundBytes;
+  /** smoothed piece bytes per second, volatile for the gauge */
+  private volatile int _throughput;
+  private volatile long _lastPieceAt;
+  /** don't measure over less than this */
+  private static final int MIN_ROUND = 1000;
+  /** latency changes with the tunnels */
+  private static final long MIN_LATENCY_EXPIRATION = 5*60*1000;
+  /** grow while the peer has fewer than this many of our requests queued beyond the BDP */
+  private static final float PIPELINE_ALPHA = 1.5f;
+  /** shrink while the peer has more than this */
+  private static final float PIPELINE_BETA = 4f;
+  /** no pieces for this long, throughput is unknown */
+  private static final long THROUGHPUT_EXPIRATION = 60*1000;
+
   /**
    * @param metainfo null if in magnet mode
    */
@@ -103,6 +131,11 @@ class PeerState implements DataLoader
       request(resend);
 
     if (choked) {
+        synchronized(this) {
+            // don't count the choked time in the throughput
+            _roundStart = 0;
+            _roundBytes = 0;
+        }
         out.cancelRequestMessages();
         // old Roberts thrash us here, choke+unchoke right together
         // The only problem with returning the partials to the coordinator
@@ -292,9 +325,10 @@ class PeerState implements DataLoader
    * Called when a full chunk (i.e. a piece message) has been received by
    * PeerConnectionIn.
    *
-   * This may block quite a while if it is the last chunk for a piece,
-   * as it calls the listener, who stores the piece and then calls
+   * If it is the last chunk for a piece, this calls the listener, who
+   * queues the piece to be verified and stored, and then calls
    * havePiece for every peer on the torrent (including us).
+   * This may block quite a while if the PieceWriter is disabled or its queue is full.
    *
    */
   void pieceMessage(Request req)
@@ -302,6 +336,10 @@ class PeerState implements DataLoader
     int size = req.len;
     peer.downloaded(size);
     listener.downloaded(peer, size);
+    synchronized(this) {
+        _roundBytes += size;
+        updatePipeline(System.currentTimeMillis());
+    }
 
     if (_log.shouldLog(Log.DEBUG))
       _log.debug("got end of Chunk("
@@ -393,6 +431,8 @@ class PeerState implements DataLoader
 
         // note that this request is being read
         pendingRequest = req;
+        if (r == 0 && req.sendTime > 0)
+            latencySample((int) (System.currentTimeMillis() - req.sendTime));
         
         // Report missing requests.
         if (r != 0)
@@ -658,7 +698,7 @@ class PeerState implements DataLoader
     boolean more_pieces = true;
     while (more_pieces)
       {
-        more_pieces = outstandingRequests.size() < MAX_PIPELINE;
+        more_pieces = outstandingRequests.size() < _pipeline;
         // We want something and we don't have outstanding requests?
         if (more_pieces && lastRequest == null) {
           // we have nothing in the queue right now
@@ -844,6 +884,108 @@ class PeerState implements DataLoader
         out.retransmitRequests(outstandingRequests);
   }
 
+  /**
+   *  Time from sending a request to the start of the piece, which is the
+   *  round trip plus the time the peer had it queued.
+   *  Caller must synch.
+   *  @since 0.9.10
+   */
+  private void latencySample(int latency) {
+      if (latency <= 0)
+          return;
+      long now = System.currentTimeMillis();
+      if (_minLatency <= 0 || latency <= _minLatency) {
+          _minLatency = latency;
+          _minLatencyAt = now;
+      }
+      if (_roundMinLatency <= 0 || latency < _roundMinLatency)
+          _roundMinLatency = latency;
+  }
+
+  /**
+   *  Adjust the outbound request pipeline to the peer's bandwidth-delay product,
+   *  once per round (the min latency, at least MIN_ROUND).
+   *
+   *  As in TCP Vegas, the requests beyond what the measured throughput needs
+   *  to keep the pipe full over the min latency are the ones the peer has
+   *  queued. Keep that between PIPELINE_ALPHA and PIPELINE_BETA.
+   *  Double per round until the first time there are too many queued,
+   *  then grow or shrink by one.
+   *  A fixed depth keeps a peer with I2P's multi-second latencies to a fraction of its bandwidth.
+   *
+   *  Caller must synch.
+   *  @since 0.9.10
+   */
+  private void updatePipeline(long now) {
+      _lastPieceAt = now;
+      if (_roundStart <= 0) {
+          _roundStart = now;
+          _roundBytes = 0;
+          return;
+      }
+      long elapsed = now - _roundStart;
+      if (elapsed < Math.max(MIN_ROUND, _minLatency))
+          return;
+      int rate = (int) (_roundBytes * 1000L / elapsed);
+      int old = _throughput;
+      _throughput = old <= 0 ? rate : (3 * old + rate) / 4;
+      _roundStart = now;
+      _roundBytes = 0;
+      if (_minLatency > 0 && now - _minLatencyAt > MIN_LATENCY_EXPIRATION && _roundMinLatency > 0) {
+          _minLatency = _roundMinLatency;
+          _minLatencyAt = now;
+      }
+      _roundMinLatency = 0;
+      if (_minLatency <= 0)
+          return;
+      float inFlight = rate * (float) _minLatency / (1000f * PARTSIZE);
+      float queued = _pipeline - inFlight;
+      int old_pipeline = _pipeline;
+      if (queued > PIPELINE_BETA) {
+          _pipelineStartup = false;
+          if (_pipeline > MIN_PIPELINE)
+              _pipeline--;
+      } else if (queued < PIPELINE_ALPHA && outstandingRequests.size() + 1 >= _pipeline) {
+          // only grow if we're using what we have
+          if (_pipelineStartup)
+              _pipeline = Math.min(MAX_PIPELINE, _pipeline * 2);
+          else if (_pipeline < MAX_PIPELINE)
+              _pipeline++;
+      }
+      if (_pipeline != old_pipeline && _log.shouldLog(Log.DEBUG))
+          _log.debug(peer + " pipeline " + old_pipeline + " -> " + _pipeline + " rate " + rate +
+                     " min latency " + _minLatency + " queued " + queued);
+  }
+
+  /**
+   *  Gauge
+   *  @return current max outstanding requests
+   *  @since 0.9.10
+   */
+  synchronized int getPipelineDepth() {
+      return _pipeline;
+  }
+
+  /**
+   *  Gauge
+   *  @return outstanding requests, including the one being read
+   *  @since 0.9.10
+   */
+  synchronized int getOutstandingRequestCount() {
+      return outstandingRequests.size() + (pendingRequest != null ? 1 : 0);
+  }
+
+  /**
+   *  Gauge. Does not lock, so PeerCoordinator may call it with its locks held.
+   *  @return recent piece bytes per second, 0 if unknown or stalled
+   *  @since 0.9.10
+   */
+  int getThroughput() {
+      if (System.currentTimeMillis() - _lastPieceAt > THROUGHPUT_EXPIRATION)
+          return 0;
+      return _throughput;
+  }
+
   /**
    *  debug
    *  @return string or null
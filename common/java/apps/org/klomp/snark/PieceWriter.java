@@ -0,0 +1,160 @@
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  Verifies and writes completed pieces off the peer's thread.
+ *
+ *  Storage.putPiece() hashes the whole piece and writes it out, which for
+ *  large pieces or slow disks takes long enough to stall the peer's input,
+ *  or with the PeerEngine, one of its few workers.
+ *  Pieces are queued here instead, and the coordinator is called back
+ *  when the piece is on disk (or failed), to send the HAVEs.
+ *
+ *  The queue is bounded, as each entry holds a whole piece, in memory or in a temp file.
+ *  When it's full the caller does the work itself, which slows down the peers
+ *  that are delivering faster than we can write.
+ *
+ *  One per I2PSnarkUtil, shared by all torrents.
+ *
+ *  @since 0.9.10
+ */
+class PieceWriter {
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final ThreadPoolExecutor _workers;
+    private final AtomicInteger _backlog = new AtomicInteger();
+
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_QUEUED = 16;
+
+    /**
+     *  Called from the worker thread.
+     */
+    public interface Callback {
+        /**
+         *  @param ok true if the hash matched and it was written
+         *  @param ioe non-null on a storage error, ok will be false
+         */
+        public void pieceWritten(Peer peer, int piece, boolean ok, IOException ioe);
+    }
+
+    public PieceWriter(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(PieceWriter.class);
+        int threads = Math.max(1, Math.min(MAX_WORKERS, SystemVersion.getCores()));
+        _workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new WriterThreadFactory(),
+                                          new CallerRuns());
+        _workers.allowCoreThreadTimeOut(true);
+        ctx.statManager().createRateStat("snark.pieceQueueTime", "Time a completed piece waits to be verified (ms)", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        ctx.statManager().createRateStat("snark.pieceVerifyTime", "Time to verify a piece (ms)", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        ctx.statManager().createRateStat("snark.pieceWriteTime", "Time to write a verified piece (ms)", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        ctx.statManager().createRateStat("snark.pieceBacklog", "Pieces waiting to be verified and written when one is added", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+    }
+
+    /**
+     *  Verify and write the piece, then call back.
+     *  May run in the caller's thread if the queue is full.
+     *  The PartialPiece is released when done.
+     *
+     *  @throws RejectedExecutionException if stopped, the pp is not released
+     */
+    public void add(Storage storage, PartialPiece pp, Peer peer, Callback callback) {
+        int backlog = _backlog.incrementAndGet();
+        _context.statManager().addRateData("snark.pieceBacklog", backlog - 1);
+        try {
+            _workers.execute(new Job(storage, pp, peer, callback));
+        } catch (RejectedExecutionException ree) {
+            _backlog.decrementAndGet();
+            throw ree;
+        }
+    }
+
+    /** pieces waiting or in progress, gauge */
+    public int getBacklog() {
+        return _backlog.get();
+    }
+
+    /**
+     *  Pieces already queued are still written.
+     */
+    public void stop() {
+        _workers.shutdown();
+    }
+
+    private class Job implements Runnable {
+        private final Storage _storage;
+        private final PartialPiece _pp;
+        private final Peer _peer;
+        private final Callback _callback;
+        private final long _queued;
+
+        public Job(Storage storage, PartialPiece pp, Peer peer, Callback callback) {
+            _storage = storage;
+            _pp = pp;
+            _peer = peer;
+            _callback = callback;
+            _queued = _context.clock().now();
+        }
+
+        public void run() {
+            long start = _context.clock().now();
+            _context.statManager().addRateData("snark.pieceQueueTime", start - _queued);
+            int piece = _pp.getPiece();
+            boolean ok = false;
+            IOException ioe = null;
+            try {
+                ok = _storage.putPiece(_pp);
+            } catch (IOException e) {
+                ioe = e;
+            } finally {
+                _backlog.decrementAndGet();
+            }
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Piece " + piece + " ok? " + ok + " in " + (_context.clock().now() - start) +
+                           " ms, queued " + (start - _queued) + " ms, backlog " + _backlog.get());
+            try {
+                _callback.pieceWritten(_peer, piece, ok, ioe);
+            } catch (RuntimeException re) {
+                // PeerCoordinator throws after a storage error, after stopping the torrent
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Piece " + piece + " callback error", re);
+            }
+        }
+    }
+
+    /**
+     *  Run it in the caller's thread when the queue is full,
+     *  as CallerRunsPolicy does, but throw when stopped instead of
+     *  silently dropping it, so the caller does it itself, see add().
+     */
+    private static class CallerRuns implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("stopped");
+            r.run();
+        }
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("Snark piece writer");
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
@@ -35,6 +35,8 @@ import net.i2p.client.streaming.I2PServerSocket;
 import net.i2p.data.Destination;
 import net.i2p.util.Log;
 
+import org.klomp.snark.dht.DHT;
+
 /**
  * Main Snark program startup class.
  *
@@ -236,6 +238,12 @@ public class Snark
   private volatile String trackerProblems;
   private volatile int trackerSeenPeers;
   private volatile boolean _autoStoppable;
+  private volatile int _uploadWeight = UPLOAD_WEIGHT_DEFAULT;
+  private volatile boolean _parked;
+  private volatile boolean _persistent;
+  /** totals of the coordinators released by park() */
+  private volatile long _savedUploaded;
+  private volatile long _savedDownloaded;
 
 
   /** from main() via parseArguments() single torrent */
@@ -522,6 +530,8 @@ public class Snark
             _log.info("Starting PeerCoordinator, ConnectionAcceptor, and TrackerClient");
         activity = "Collecting pieces";
         coordinator = new PeerCoordinator(_util, id, infoHash, meta, storage, this, this);
+        if (_persistent)
+            coordinator.setPersistent(true);
         if (_peerCoordinatorSet != null) {
             // multitorrent
             _peerCoordinatorSet.add(coordinator);
@@ -577,6 +587,13 @@ public class Snark
    */
   public synchronized void stopTorrent(boolean fast) {
     stopped = true;
+    if (_parked) {
+        _parked = false;
+        _peerCoordinatorSet.removeParked(this);
+        DHT dht = _util.getDHT();
+        if (dht != null)
+            dht.unannounce(infoHash);
+    }
     TrackerClient tc = trackerclient;
     if (tc != null)
         tc.halt(fast);
@@ -674,6 +691,82 @@ public class Snark
         return stopped;
     }
 
+    /**
+     *  Running, but with no coordinator, tracker client, or open files,
+     *  until a peer wants it. isStopped() is false.
+     *  @since 0.9.10
+     */
+    public boolean isParked() {
+        return _parked;
+    }
+
+    /**
+     *  Release the coordinator, tracker client, and open files of a running,
+     *  complete torrent without peers, leaving only our entry in the local DHT tracker,
+     *  which the caller must keep fresh.
+     *  It is restarted by unpark(), on an incoming connection or DHT interest.
+     *  Multitorrent only. Not for private torrents, as they aren't in the DHT.
+     *
+     *  @return success
+     *  @since 0.9.10
+     */
+    synchronized boolean park() {
+        if (stopped || starting || _parked || _peerCoordinatorSet == null ||
+            meta == null || meta.isPrivate())
+            return false;
+        PeerCoordinator pc = coordinator;
+        TrackerClient tc = trackerclient;
+        Storage st = storage;
+        if (pc == null || tc == null || st == null ||
+            !st.complete() || st.isChecking() || pc.getPeers() > 0)
+            return false;
+        tc.halt(true, true);
+        pc.halt();
+        _peerCoordinatorSet.remove(pc);
+        _savedUploaded += pc.getUploaded();
+        _savedDownloaded += pc.getDownloaded();
+        boolean changed = st.isChanged();
+        try {
+            st.close();
+        } catch (IOException ioe) {
+            _log.error("Error closing " + torrent, ioe);
+        }
+        if (changed && completeListener != null)
+            completeListener.updateStatus(this);
+        coordinator = null;
+        trackerclient = null;
+        _parked = true;
+        _peerCoordinatorSet.addParked(this);
+        DHT dht = _util.getDHT();
+        if (dht != null)
+            dht.announce(infoHash);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Parked " + torrent);
+        return true;
+    }
+
+    /**
+     *  Restart a parked torrent. Blocking.
+     *
+     *  @return true if it is now running with a coordinator
+     *  @since 0.9.10
+     */
+    synchronized boolean unpark() {
+        if (!_parked)
+            return !stopped && coordinator != null;
+        _parked = false;
+        _peerCoordinatorSet.removeParked(this);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Unparking " + torrent);
+        try {
+            startTorrent();
+        } catch (RuntimeException re) {
+            // fatal() already stopped it and told the listener
+            return false;
+        }
+        return coordinator != null;
+    }
+
     /**
      *  Startup in progress.
      *  @since 0.9.1
@@ -726,24 +819,70 @@ public class Snark
         return 0;
     }
 
+    /**
+     *  Upload rate over the last check period, more current than getUploadRate()
+     *  @return Bps
+     *  @since 0.9.10
+     */
+    public long getCurrentUploadRate() {
+        PeerCoordinator coord = coordinator;
+        if (coord != null)
+            return coord.getCurrentUploadRate();
+        return 0;
+    }
+
+    /**
+     *  @return upload slots given to this torrent by the upload scheduler, -1 if not scheduled
+     *  @since 0.9.10
+     */
+    public int getUploadSlots() {
+        PeerCoordinator coord = coordinator;
+        if (coord != null)
+            return coord.getUploadSlots();
+        return -1;
+    }
+
+    /**
+     *  Relative share of the upload slots and bandwidth when the total limits are reached,
+     *  e.g. UPLOAD_WEIGHT_OWN for content we published, UPLOAD_WEIGHT_FOLLOWED for content
+     *  from people we follow, and UPLOAD_WEIGHT_DEFAULT for everything else.
+     *  Not persisted.
+     *
+     *  @param weight 1 or more
+     *  @since 0.9.10
+     */
+    public void setUploadWeight(int weight) {
+        _uploadWeight = Math.max(1, weight);
+    }
+
+    /**
+     *  @return default UPLOAD_WEIGHT_DEFAULT
+     *  @since 0.9.10
+     */
+    public int getUploadWeight() {
+        return _uploadWeight;
+    }
+
     /**
      *  @since 0.8.4
      */
     public long getDownloaded() {
+        long rv = _savedDownloaded;
         PeerCoordinator coord = coordinator;
         if (coord != null)
-            return coord.getDownloaded();
-        return 0;
+            rv += coord.getDownloaded();
+        return rv;
     }
 
     /**
      *  @since 0.8.4
      */
     public long getUploaded() {
+        long rv = _savedUploaded;
         PeerCoordinator coord = coordinator;
         if (coord != null)
-            return coord.getUploaded();
-        return 0;
+            rv += coord.getUploaded();
+        return rv;
     }
 
     /**
@@ -1204,6 +1343,8 @@ public class Snark
   }
 
   public void setPersistent(boolean isPersistent) {
+    // saved for the new coordinator after unpark()
+    _persistent = isPersistent;
     if (coordinator != null) {
       coordinator.setPersistent(isPersistent);
     }
@@ -1214,12 +1355,15 @@ public class Snark
       return coordinator.getPersistent();
     }
 
-    return false;
+    return _persistent;
   }
 
   public void setWantedPieces(Storage storage)
   {
-    coordinator.setWantedPieces();
+    // null when parked
+    PeerCoordinator pc = coordinator;
+    if (pc != null)
+        pc.setWantedPieces();
   }
 
   ///////////// End StorageListener methods
@@ -1247,6 +1391,12 @@ public class Snark
    * coordinatorListener
    */
   final static int MIN_TOTAL_UPLOADERS = 4;
+  /** @since 0.9.10 */
+  public static final int UPLOAD_WEIGHT_DEFAULT = 1;
+  /** @since 0.9.10 */
+  public static final int UPLOAD_WEIGHT_FOLLOWED = 2;
+  /** @since 0.9.10 */
+  public static final int UPLOAD_WEIGHT_OWN = 4;
   final static int MAX_TOTAL_UPLOADERS = 10;
   public boolean overUploadLimit(int uploaders) {
     if (_peerCoordinatorSet == null || uploaders <= 0)
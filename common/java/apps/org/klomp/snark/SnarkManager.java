@@ -70,6 +70,9 @@ public class SnarkManager implements CompleteListener {
     private UpdateManager _umgr;
     private UpdateHandler _uhandler;
     private SimpleTimer2.TimedEvent _idleChecker;
+    private UploadScheduler _uploadScheduler;
+    private TorrentParker _parker;
+    private DHTAnnouncer _dhtAnnouncer;
     
     public static final String PROP_I2CP_HOST = "i2psnark.i2cpHost";
     public static final String PROP_I2CP_PORT = "i2psnark.i2cpPort";
@@ -77,6 +80,16 @@ public class SnarkManager implements CompleteListener {
     //public static final String PROP_EEP_HOST = "i2psnark.eepHost";
     //public static final String PROP_EEP_PORT = "i2psnark.eepPort";
     public static final String PROP_UPLOADERS_TOTAL = "i2psnark.uploaders.total";
+    /** set to false to have each torrent decide its uploads as before @since 0.9.10 */
+    public static final String PROP_UPLOAD_SCHEDULER = "i2psnark.uploadScheduler";
+    /** set to false to keep complete torrents without peers running @since 0.9.10 */
+    public static final String PROP_PARK_IDLE = "i2psnark.parkIdleTorrents";
+    /**
+     *  set to false to have seeding torrents do their own DHT lookups,
+     *  parked torrents are then only in our local DHT tracker
+     *  @since 0.9.10
+     */
+    public static final String PROP_DHT_ANNOUNCER = "i2psnark.dhtAnnouncer";
     public static final String PROP_UPBW_MAX = "i2psnark.upbw.max";
     public static final String PROP_DIR = "i2psnark.dir";
     public static final String PROP_META_PREFIX = "i2psnark.zmeta.";
@@ -186,6 +199,20 @@ public class SnarkManager implements CompleteListener {
         //_context.addShutdownTask(new SnarkManagerShutdown());
         _idleChecker = new IdleChecker(this, _peerCoordinatorSet);
         _idleChecker.schedule(5*60*1000);
+        if (_context.getBooleanPropertyDefaultTrue(PROP_UPLOAD_SCHEDULER)) {
+            _uploadScheduler = new UploadScheduler(_util, _peerCoordinatorSet);
+            _util.setUploadScheduler(_uploadScheduler);
+            _uploadScheduler.schedule(UploadScheduler.RUN_PERIOD);
+        }
+        if (_context.getBooleanPropertyDefaultTrue(PROP_DHT_ANNOUNCER)) {
+            _dhtAnnouncer = new DHTAnnouncer(_util);
+            _util.setDHTAnnouncer(_dhtAnnouncer);
+            _dhtAnnouncer.schedule(DHTAnnouncer.RUN_PERIOD);
+        }
+        if (_context.getBooleanPropertyDefaultTrue(PROP_PARK_IDLE)) {
+            _parker = new TorrentParker(this, _peerCoordinatorSet);
+            _parker.schedule(TorrentParker.CHECK_TIME);
+        }
     }
 
     /** @since 0.9.4 */
@@ -221,6 +248,20 @@ public class SnarkManager implements CompleteListener {
         _monitor.interrupt();
         _connectionAcceptor.halt();
         _idleChecker.cancel();
+        if (_uploadScheduler != null) {
+            _util.setUploadScheduler(null);
+            _uploadScheduler.stop();
+            _uploadScheduler = null;
+        }
+        if (_parker != null) {
+            _parker.stop();
+            _parker = null;
+        }
+        if (_dhtAnnouncer != null) {
+            _util.setDHTAnnouncer(null);
+            _dhtAnnouncer.stop();
+            _dhtAnnouncer = null;
+        }
         stopAllTorrents(true);
     }
     
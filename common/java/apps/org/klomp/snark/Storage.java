@@ -959,7 +959,10 @@ public class Storage
 
           // TODO alternative - check hash on the fly as we write to the file,
           // to save another I/O pass
+          long begin = System.currentTimeMillis();
           boolean correctHash = metainfo.checkPiece(pp);
+          long verified = System.currentTimeMillis();
+          _util.getContext().statManager().addRateData("snark.pieceVerifyTime", verified - begin);
           if (!correctHash) {
               if (listener != null)
                   listener.storageChecked(this, piece, false);
@@ -1016,6 +1019,7 @@ public class Storage
                   start = 0;
               }
           }
+          _util.getContext().statManager().addRateData("snark.pieceWriteTime", System.currentTimeMillis() - verified);
       } finally {
           pp.release();
       }
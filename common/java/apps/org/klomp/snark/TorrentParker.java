@@ -0,0 +1,270 @@
+/*
+ * Released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ */
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.SHA1Hash;
+import net.i2p.util.ConcurrentHashSet;
+import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer2;
+
+import org.klomp.snark.dht.DHT;
+import org.klomp.snark.dht.PeerInterestListener;
+
+/**
+ *  Periodically park complete torrents that have had no peers for a while,
+ *  see Snark.park(), and keep the parked ones in the DHT.
+ *
+ *  A running torrent costs a PeerCoordinator with its PeerCheckerTask every 40 seconds,
+ *  a TrackerClient with a thread for a DHT lookup every 15 minutes or so,
+ *  and its open files, even when nobody wants it.
+ *  With hundreds of seeded torrents that adds up, for nothing.
+ *  Parked torrents keep only the Snark, MetaInfo and Storage (with the files closed).
+ *  We stay in our local DHT tracker for them, refreshed here,
+ *  and they are announced to the DHT by the DHTAnnouncer.
+ *
+ *  A parked torrent is restarted on an incoming connection for it
+ *  (PeerCoordinatorSet.getOrWake()), or when another DHT node asks for it
+ *  or announces itself for it (peerInterest()).
+ *
+ *  One per SnarkManager.
+ *
+ *  @since 0.9.10
+ */
+class TorrentParker extends SimpleTimer2.TimedEvent implements PeerInterestListener {
+
+    private final I2PAppContext _context;
+    private final SnarkManager _mgr;
+    private final I2PSnarkUtil _util;
+    private final PeerCoordinatorSet _pcs;
+    private final Log _log;
+    /** consecutive idle checks per running torrent */
+    private Map<SHA1Hash, Integer> _idle = new HashMap<SHA1Hash, Integer>();
+    private final Set<SHA1Hash> _waking = new ConcurrentHashSet<SHA1Hash>();
+    /** for the unparks, so a node asking about many parked torrents doesn't start a thread for each */
+    private final ThreadPoolExecutor _wakers;
+    private volatile boolean _stopped;
+
+    static final long CHECK_TIME = 60*1000;
+    /** 10 minutes without peers */
+    private static final int MAX_CONSEC_IDLE = 10;
+    private static final int WAKER_THREADS = 2;
+    /** queued unparks, beyond this the DHT interest is ignored until it's asked again */
+    private static final int MAX_QUEUED_WAKES = 32;
+
+    /**
+     *  Caller must schedule
+     */
+    public TorrentParker(SnarkManager mgr, PeerCoordinatorSet pcs) {
+        super(mgr.util().getContext().simpleTimer2());
+        _mgr = mgr;
+        _util = mgr.util();
+        _context = _util.getContext();
+        _pcs = pcs;
+        _log = _context.logManager().getLog(TorrentParker.class);
+        _wakers = new ThreadPoolExecutor(WAKER_THREADS, WAKER_THREADS, 60, TimeUnit.SECONDS,
+                                         new LinkedBlockingQueue<Runnable>(MAX_QUEUED_WAKES), new WakerThreadFactory());
+        _wakers.allowCoreThreadTimeOut(true);
+        _context.statManager().createRateStat("snark.parkedTorrents", "Parked torrents", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        _context.statManager().createRateStat("snark.unparkTime", "Time to restart a parked torrent for DHT interest (ms)", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        _util.setDHTInterestListener(this);
+    }
+
+    /**
+     *  Parked torrents stay parked, and are restarted on an incoming connection only.
+     */
+    public void stop() {
+        _stopped = true;
+        cancel();
+        _util.setDHTInterestListener(null);
+        _wakers.shutdownNow();
+    }
+
+    public void timeReached() {
+        if (_stopped)
+            return;
+        try {
+            if (_util.connected())
+                check();
+        } finally {
+            if (!_stopped)
+                schedule(CHECK_TIME);
+        }
+    }
+
+    private void check() {
+        DHT dht = _util.getDHT();
+        DHTAnnouncer announcer = _util.getDHTAnnouncer();
+        Map<SHA1Hash, Integer> idle = new HashMap<SHA1Hash, Integer>();
+        int parked = 0;
+        for (Snark snark : _mgr.getTorrents()) {
+            if (snark.isParked()) {
+                parked++;
+                // keep ourselves from expiring out of the local tracker
+                if (dht != null)
+                    dht.announce(snark.getInfoHash());
+                // in case it was parked before the TrackerClient handed it off
+                if (announcer != null)
+                    announcer.add(snark);
+                continue;
+            }
+            if (snark.isStopped() || snark.isStarting() || snark.isChecking() ||
+                snark.getPeerCount() > 0)
+                continue;
+            Storage storage = snark.getStorage();
+            if (storage == null || !storage.complete())
+                continue;
+            SHA1Hash h = new SHA1Hash(snark.getInfoHash());
+            Integer c = _idle.get(h);
+            int consec = (c != null ? c.intValue() : 0) + 1;
+            if (consec < MAX_CONSEC_IDLE) {
+                idle.put(h, Integer.valueOf(consec));
+            } else if (snark.park()) {
+                parked++;
+                if (announcer != null)
+                    announcer.add(snark);
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Parked idle torrent " + snark.getBaseName());
+            }
+        }
+        _idle = idle;
+        _context.statManager().addRateData("snark.parkedTorrents", parked);
+    }
+
+    /**
+     *  Restart a parked torrent that a DHT node asked about.
+     *  Does not block, the restart is in one of a few waker threads.
+     */
+    public void peerInterest(byte[] ih) {
+        if (_stopped)
+            return;
+        Snark snark = _pcs.getParked(ih);
+        if (snark == null)
+            return;
+        SHA1Hash h = new SHA1Hash(ih);
+        if (!_waking.add(h))
+            return;
+        if (_log.shouldLog(Log.INFO))
+            _log.info("DHT interest in parked torrent " + snark.getBaseName());
+        try {
+            _wakers.execute(new Waker(snark, h));
+        } catch (RejectedExecutionException ree) {
+            // too many queued or stopped, it will be asked again
+            _waking.remove(h);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Too many parked torrents waking, not restarting " + snark.getBaseName());
+        }
+    }
+
+    private class Waker implements Runnable {
+        private final Snark _snark;
+        private final SHA1Hash _hash;
+
+        public Waker(Snark snark, SHA1Hash hash) {
+            _snark = snark;
+            _hash = hash;
+        }
+
+        public void run() {
+            long start = _context.clock().now();
+            try {
+                if (_snark.unpark())
+                    _context.statManager().addRateData("snark.unparkTime", _context.clock().now() - start);
+            } finally {
+                _waking.remove(_hash);
+            }
+        }
+    }
+
+    private static class WakerThreadFactory implements ThreadFactory {
+        private int _count;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("Snark unpark " + (++_count) + '/' + WAKER_THREADS);
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+
+    /**
+     *  Benchmark: heap and timer events of idle running torrents vs. parked ones.
+     *  Doesn't need a router.
+     *
+     *  The running torrents are in magnet mode, with no Storage or wanted pieces,
+     *  so this is a lower bound on what parking saves.
+     *  The TrackerClient DHT lookup threads aren't counted, as they only run
+     *  while announcing, one per running torrent every 15 minutes or so,
+     *  vs. one for all parked torrents.
+     *
+     *  Usage: TorrentParker [torrents]
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        I2PSnarkUtil util = new I2PSnarkUtil(ctx);
+        PeerCoordinatorSet pcs = new PeerCoordinatorSet();
+        List<Snark> snarks = new ArrayList<Snark>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] ih = new byte[20];
+            ctx.random().nextBytes(ih);
+            snarks.add(new Snark(util, "parker benchmark " + i, ih, null, null, pcs, null, false, "."));
+        }
+        long base = usedHeap();
+        int baseThreads = Thread.activeCount();
+
+        List<PeerCoordinator> coords = new ArrayList<PeerCoordinator>(count);
+        List<TrackerClient> tcs = new ArrayList<TrackerClient>(count);
+        for (Snark snark : snarks) {
+            PeerCoordinator pc = new PeerCoordinator(util, snark.getID(), snark.getInfoHash(), null, null, snark, snark);
+            pcs.add(pc);
+            coords.add(pc);
+            tcs.add(new TrackerClient(util, null, null, pc, snark));
+        }
+        long running = usedHeap();
+        int runningThreads = Thread.activeCount();
+
+        for (PeerCoordinator pc : coords) {
+            pc.halt();
+            pcs.remove(pc);
+        }
+        coords.clear();
+        tcs.clear();
+        for (Snark snark : snarks) {
+            pcs.addParked(snark);
+        }
+        long parked = usedHeap();
+        int parkedThreads = Thread.activeCount();
+
+        System.out.println(count + " torrents, beyond the Snark objects:");
+        System.out.println("running: " + ((running - base) / 1024) + " KB heap, " +
+                           (runningThreads - baseThreads) + " more threads, " +
+                           (count * 60*1000 / PeerCoordinator.CHECK_PERIOD) + " PeerCheckerTask runs per minute");
+        System.out.println("parked:  " + ((parked - base) / 1024) + " KB heap, " +
+                           (parkedThreads - baseThreads) + " more threads, " +
+                           (60*1000 / CHECK_TIME) + " parker runs per minute");
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -163,7 +163,17 @@ public class TrackerClient implements Runnable {
    * Interrupts this Thread to stop it.
    * @param fast if true, limit the life of the unannounce threads
    */
-  public synchronized void halt(boolean fast) {
+  public void halt(boolean fast) {
+    halt(fast, false);
+  }
+
+  /**
+   * Interrupts this Thread to stop it.
+   * @param fast if true, limit the life of the unannounce threads
+   * @param keepDHT if true, stay in the local DHT tracker, for a parked torrent
+   * @since 0.9.10
+   */
+  public synchronized void halt(boolean fast, boolean keepDHT) {
     boolean wasStopped = stop;
     if (wasStopped) {
         if (_log.shouldLog(Log.WARN))
@@ -188,7 +198,7 @@ public class TrackerClient implements Runnable {
     }
     _fastUnannounce = true;
     if (!wasStopped)
-        unannounce();
+        unannounce(keepDHT);
   }
 
   private void queueLoop(long delay) {
@@ -636,6 +646,17 @@ public class TrackerClient implements Runnable {
             // FIXME this needs to be in its own thread
             int rv = 0;
             DHT dht = _util.getDHT();
+            DHTAnnouncer announcer = _util.getDHTAnnouncer();
+            if (announcer != null && dht != null && meta != null && !meta.isPrivate()) {
+                if (coordinator.needOutboundPeers()) {
+                    announcer.remove(snark);
+                } else {
+                    // just need to stay findable, batch it with the others
+                    announcer.add(snark);
+                    runStarted = true;
+                    return snark.getTrackerSeenPeers();
+                }
+            }
             if (dht != null &&
                 (meta == null || !meta.isPrivate()) &&
                 (!stop) &&
@@ -686,12 +707,13 @@ public class TrackerClient implements Runnable {
 
   /**
    *  Creates a thread for each tracker in parallel if tunnel is still open
+   *  @param keepDHT if true, don't remove ourselves from the local DHT tracker
    *  @since 0.9.1
    */
-  private void unannounce() {
+  private void unannounce(boolean keepDHT) {
       // Local DHT tracker unannounce
       DHT dht = _util.getDHT();
-      if (dht != null)
+      if (dht != null && !keepDHT)
           dht.unannounce(snark.getInfoHash());
       int i = 0;
       for (TCTracker tr : trackers) {
@@ -0,0 +1,189 @@
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.SHA1Hash;
+import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer2;
+
+/**
+ *  Decides how many upload slots each torrent gets, out of the
+ *  total uploaders limit, instead of each PeerCoordinator grabbing
+ *  slots until the total is reached.
+ *
+ *  With many more torrents than slots, the first-come grab starves most
+ *  torrents, and the loose bandwidth checks let a few overshoot.
+ *  Here, slots are shared in proportion to each torrent's upload weight
+ *  (see Snark.setUploadWeight()) among the torrents that have interested peers,
+ *  as a deficit round robin: each run a torrent earns credit for its share,
+ *  and the slots go to the torrents with the most credit, so torrents with
+ *  a fraction of a slot get a whole one in turn.
+ *  Each torrent's share of the upload bandwidth limit follows its slots,
+ *  and is only enforced when we're over the total.
+ *
+ *  One slot is reserved for an optimistic unchoke, rotated every
+ *  OPTIMISTIC_RUNS among the choked interested peers of all torrents,
+ *  picking the torrent by weight.
+ *
+ *  The PeerCoordinators still pick which of their peers get their slots,
+ *  see PeerCoordinator.allowedUploaders() and PeerCheckerTask.
+ *
+ *  One per SnarkManager.
+ *
+ *  @since 0.9.10
+ */
+class UploadScheduler extends SimpleTimer2.TimedEvent {
+    private final I2PAppContext _context;
+    private final I2PSnarkUtil _util;
+    private final PeerCoordinatorSet _pcs;
+    private final Log _log;
+    /** slot credit per torrent */
+    private final Map<SHA1Hash, Float> _credit = new HashMap<SHA1Hash, Float>();
+    private PeerCoordinator _optimisticCoordinator;
+    private int _runCount;
+    private volatile boolean _stopped;
+
+    static final long RUN_PERIOD = 10*1000;
+    /** 30 seconds */
+    private static final int OPTIMISTIC_RUNS = 3;
+    /** don't let an idle torrent save up too much */
+    private static final float MAX_CREDIT = 2;
+
+    /**
+     *  Caller must schedule
+     */
+    public UploadScheduler(I2PSnarkUtil util, PeerCoordinatorSet pcs) {
+        super(util.getContext().simpleTimer2());
+        _context = util.getContext();
+        _util = util;
+        _pcs = pcs;
+        _log = _context.logManager().getLog(UploadScheduler.class);
+        _context.statManager().createRateStat("snark.uploadTorrentsWaiting", "Torrents with interested peers and no upload slot", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+        _context.statManager().createRateStat("snark.uploadTorrentsActive", "Torrents with interested peers", "I2PSnark", new long[] { 60*1000, 60*60*1000 });
+    }
+
+    public void stop() {
+        _stopped = true;
+        cancel();
+    }
+
+    public void timeReached() {
+        if (_stopped)
+            return;
+        try {
+            allocate();
+        } finally {
+            if (!_stopped)
+                schedule(RUN_PERIOD);
+        }
+    }
+
+    private void allocate() {
+        _runCount++;
+        List<PeerCoordinator> active = new ArrayList<PeerCoordinator>();
+        int totalWeight = 0;
+        for (PeerCoordinator pc : _pcs) {
+            if (pc.halted()) {
+                _credit.remove(new SHA1Hash(pc.getInfoHash()));
+                continue;
+            }
+            if (pc.getUploadDemand() <= 0) {
+                // no banking credit while nobody wants anything
+                _credit.remove(new SHA1Hash(pc.getInfoHash()));
+                pc.setUploadAllocation(0, 0);
+                continue;
+            }
+            active.add(pc);
+            totalWeight += pc.getUploadWeight();
+        }
+        int maxUploaders = _util.getMaxUploaders();
+        int slots = Math.max(1, maxUploaders - 1);
+        long bw = 1024L * _util.getMaxUpBW();
+
+        // earn credit
+        final Map<PeerCoordinator, Float> credit = new HashMap<PeerCoordinator, Float>(active.size());
+        for (PeerCoordinator pc : active) {
+            SHA1Hash h = new SHA1Hash(pc.getInfoHash());
+            Float c = _credit.get(h);
+            float cr = (c != null ? c.floatValue() : 0f) + slots * pc.getUploadWeight() / (float) totalWeight;
+            credit.put(pc, Float.valueOf(Math.min(MAX_CREDIT, cr)));
+        }
+
+        // spend it, one slot at a time to the most credit, until the slots or the demand run out
+        Map<PeerCoordinator, Integer> alloc = new HashMap<PeerCoordinator, Integer>(active.size());
+        List<PeerCoordinator> wanting = new ArrayList<PeerCoordinator>(active);
+        Comparator<PeerCoordinator> byCredit = new Comparator<PeerCoordinator>() {
+            public int compare(PeerCoordinator l, PeerCoordinator r) {
+                return Float.compare(credit.get(r).floatValue(), credit.get(l).floatValue());
+            }
+        };
+        // so ties don't always go the same way
+        Collections.shuffle(wanting, _context.random());
+        int left = slots;
+        while (left > 0 && !wanting.isEmpty()) {
+            Collections.sort(wanting, byCredit);
+            PeerCoordinator pc = wanting.get(0);
+            Integer a = alloc.get(pc);
+            int n = (a != null ? a.intValue() : 0) + 1;
+            alloc.put(pc, Integer.valueOf(n));
+            credit.put(pc, Float.valueOf(credit.get(pc).floatValue() - 1));
+            left--;
+            if (n >= pc.getUploadDemand())
+                wanting.remove(0);
+        }
+
+        int waiting = 0;
+        for (PeerCoordinator pc : active) {
+            Integer a = alloc.get(pc);
+            int n = a != null ? a.intValue() : 0;
+            if (n <= 0)
+                waiting++;
+            _credit.put(new SHA1Hash(pc.getInfoHash()), Float.valueOf(Math.max(-MAX_CREDIT, credit.get(pc).floatValue())));
+            pc.setUploadAllocation(n, bw / (slots + 1));
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Upload slots " + n + " weight " + pc.getUploadWeight() + " demand " + pc.getUploadDemand() +
+                           " credit " + credit.get(pc) + " rate " + pc.getCurrentUploadRate() + " for " + pc.getName());
+        }
+        _context.statManager().addRateData("snark.uploadTorrentsActive", active.size());
+        _context.statManager().addRateData("snark.uploadTorrentsWaiting", waiting);
+
+        if ((_runCount % OPTIMISTIC_RUNS) == 1)
+            rotateOptimistic(active);
+    }
+
+    /**
+     *  Move the optimistic unchoke to a random choked interested peer,
+     *  in a torrent picked by weight.
+     */
+    private void rotateOptimistic(List<PeerCoordinator> active) {
+        if (_optimisticCoordinator != null) {
+            _optimisticCoordinator.setOptimisticPeer(null);
+            _optimisticCoordinator = null;
+        }
+        List<PeerCoordinator> candidates = new ArrayList<PeerCoordinator>(active.size());
+        int weight = 0;
+        for (PeerCoordinator pc : active) {
+            if (pc.hasChokedInterested()) {
+                candidates.add(pc);
+                weight += pc.getUploadWeight();
+            }
+        }
+        if (weight <= 0)
+            return;
+        int r = _context.random().nextInt(weight);
+        for (PeerCoordinator pc : candidates) {
+            r -= pc.getUploadWeight();
+            if (r < 0) {
+                if (pc.setOptimisticPeer(pc.pickChokedInterested()))
+                    _optimisticCoordinator = pc;
+                break;
+            }
+        }
+    }
+}
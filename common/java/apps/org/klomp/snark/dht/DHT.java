@@ -5,6 +5,7 @@ package org.klomp.snark.dht;
  */
 
 import java.util.Collection;
+import java.util.List;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -88,6 +89,43 @@ public interface DHT {
      */
     public int announce(byte[] ih, int max, long maxWait);
 
+    /**
+     *  Group torrents by the closest node we know to each, so that
+     *  torrents in the same part of the keyspace can share a single iterative lookup.
+     *  Do a getPeersAndAnnounce() for one torrent in the group,
+     *  then announceDirect() for the others.
+     *  Non-blocking.
+     *
+     *  @param ihs the Info Hashes (torrents)
+     *  @return the groups, each non-empty
+     *  @since 0.9.10
+     */
+    public List<List<byte[]>> groupByClosest(List<byte[]> ihs);
+
+    /**
+     *  Announce to the closest DHT peers we know, without a lookup,
+     *  using the tokens from a recent lookup nearby, see groupByClosest().
+     *  Blocking only to get a token we don't have, unless maxWait <= 0.
+     *  Caller should run in a thread.
+     *  This also automatically announces ourself to our local tracker.
+     *
+     *  @param ih the Info Hash (torrent)
+     *  @param max the number of peers to announce to
+     *  @param maxWait the maximum time to wait for each token (ms) or 0 to skip peers without one
+     *  @return the number of announces sent, not counting ourselves.
+     *  @since 0.9.10
+     */
+    public int announceDirect(byte[] ih, int max, long maxWait);
+
+    /**
+     *  Tell the listener when other nodes are interested in a torrent
+     *  we are announced for, e.g. to wake it up if it's idle.
+     *
+     *  @param lsnr may be null to remove
+     *  @since 0.9.10
+     */
+    public void setPeerInterestListener(PeerInterestListener lsnr);
+
     /**
      * Stop everything.
      */
@@ -97,6 +97,16 @@ class DHTTracker {
         peers.remove(peer);
     }
 
+    /**
+     *  @since 0.9.10
+     */
+    boolean contains(InfoHash ih, Hash hash) {
+        Peers peers = _torrents.get(ih);
+        if (peers == null)
+            return false;
+        return peers.containsKey(new Peer(hash.getData()));
+    }
+
     /**
      *  Caller's responsibility to remove himself from the list
      *  @return list or empty list (never null)
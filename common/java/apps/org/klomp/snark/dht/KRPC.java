@@ -108,6 +108,8 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
     private final NodeInfo _myNodeInfo;
     /** if not null, run this when receiving an unrecognized query */
     private CustomQueryHandler _customQueryHandler;
+    /** if not null, tell it about get_peers and announces for torrents we're in */
+    private volatile PeerInterestListener _interestListener;
     /** unsigned dgrams */
     private final int _rPort;
     /** signed dgrams */
@@ -516,6 +518,14 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         _tracker.unannounce(iHash, _myNodeInfo.getHash());
     }
 
+    /**
+     *  @param lsnr may be null to remove
+     *  @since 0.9.10
+     */
+    public void setPeerInterestListener(PeerInterestListener lsnr) {
+        _interestListener = lsnr;
+    }
+
     /**
      *  Not recommended - use getPeersAndAnnounce().
      *
@@ -553,6 +563,62 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         return rv;
     }
 
+    /**
+     *  Group torrents by the closest node we know to each.
+     *  An iterative lookup for one torrent in a group fills in our DHT with the nodes
+     *  in that part of the keyspace, and gets their tokens.
+     *  The rest of the group may then be announced directly to the closest nodes we know,
+     *  reusing the tokens, as our tokens are bound to the node, not the torrent.
+     *  BEP 5 has one info hash per query, so there's no combining them in a single message.
+     *
+     *  @param ihs the Info Hashes (torrents)
+     *  @return the groups, each non-empty
+     *  @since 0.9.10
+     */
+    public List<List<byte[]>> groupByClosest(List<byte[]> ihs) {
+        Map<NID, List<byte[]>> groups = new HashMap<NID, List<byte[]>>();
+        for (byte[] ih : ihs) {
+            List<NodeInfo> closest = _knownNodes.findClosest(new InfoHash(ih), 1);
+            NID key = closest.isEmpty() ? FAKE_NID : closest.get(0).getNID();
+            List<byte[]> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<byte[]>(4);
+                groups.put(key, group);
+            }
+            group.add(ih);
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Grouped " + ihs.size() + " torrents in " + groups.size() + " groups");
+        return new ArrayList<List<byte[]>>(groups.values());
+    }
+
+    /**
+     *  Announce to the closest DHT peers we know, without a lookup.
+     *  Blocking only to get a token we don't have, unless maxWait <= 0.
+     *  Caller should run in a thread.
+     *
+     *  @param ih the Info Hash (torrent)
+     *  @param max the number of peers to announce to
+     *  @param maxWait the maximum time to wait for each token (ms) or 0 to skip peers without one
+     *  @return the number of announces sent, not counting ourselves.
+     *  @since 0.9.10
+     */
+    public int announceDirect(byte[] ih, int max, long maxWait) {
+        announce(ih);
+        int rv = 0;
+        List<NodeInfo> nodes = _knownNodes.findClosest(new InfoHash(ih), max);
+        nodes.remove(_myNodeInfo);
+        for (NodeInfo nInfo : nodes) {
+            if (!_isRunning)
+                break;
+            // no wait if we have a token, otherwise get one
+            if (announce(ih, nInfo, 0) ||
+                (maxWait > 0 && announce(ih, nInfo, maxWait)))
+                rv++;
+        }
+        return rv;
+    }
+
     /**
      *  Announce to a single DHT peer.
      *  Blocking unless maxWait <= 0
@@ -1282,6 +1348,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         if (_log.shouldLog(Log.INFO))
              _log.info("Stored new OB token: " + token + " for: " + nInfo);
 
+        notifyInterest(ih);
         List<Hash> peers = _tracker.getPeers(ih, MAX_WANT);
         peers.remove(nInfo.getHash());   // him
         if (peers.isEmpty()) {
@@ -1323,10 +1390,21 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
              _log.info("Rcvd announce from: " + nInfo + " for: " + ih);
 
         _tracker.announce(ih, nInfo.getHash());
+        notifyInterest(ih);
         // the reply for an announce is the same as the reply for a ping
         sendPong(nInfo, msgID);
     }
 
+    /**
+     *  Tell the listener if we are announced for this torrent
+     *  @since 0.9.10
+     */
+    private void notifyInterest(InfoHash ih) {
+        PeerInterestListener lsnr = _interestListener;
+        if (lsnr != null && _tracker.contains(ih, _myNodeInfo.getHash()))
+            lsnr.peerInterest(ih.getData());
+    }
+
     // Responses.....
 
     /**
@@ -0,0 +1,21 @@
+package org.klomp.snark.dht;
+
+/*
+ *  GPLv2
+ */
+
+/**
+ *  Callback when another DHT node asks for, or announces itself for,
+ *  a torrent that we are announced for in our local tracker.
+ *
+ *  @since 0.9.10
+ */
+public interface PeerInterestListener {
+
+    /**
+     *  Called from the I2CP session thread, must not block.
+     *
+     *  @param ih the Info Hash (torrent)
+     */
+    public void peerInterest(byte[] ih);
+}
@@ -0,0 +1,189 @@
+package net.i2p.client;
+
+import java.util.Map;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.util.LHMCache;
+
+/**
+ *  Decides whether an outgoing payload is worth gzipping.
+ *  Images, archives, and encrypted data don't compress, and
+ *  running them through the deflater at the max level just burns CPU.
+ *
+ *  Two checks, cheapest first:
+ *<ul>
+ *<li>Per-flow learning: the compression ratios of recent messages to the same
+ *    destination and port (i.e. usually the same streaming connection).
+ *    If they didn't compress, skip compression for the next few messages,
+ *    backing off exponentially while they continue not to compress.
+ *<li>Sampling: the order-0 entropy of up to SAMPLE_SIZE bytes spread over the payload.
+ *    Random-looking data isn't sampled again by the deflater.
+ *</ul>
+ *  A payload that is not compressed is still sent as a stored gzip frame,
+ *  as that is what the receiver expects.
+ *
+ *  Thread safe.
+ *
+ *  @since 0.9.10
+ */
+class CompressionPolicy {
+    private final I2PAppContext _context;
+    private final Map<FlowKey, Flow> _flows;
+
+    private static final int MAX_FLOWS = 64;
+    private static final int SAMPLE_SIZE = 1024;
+    /** don't bother sampling smaller payloads, just compress */
+    private static final int MIN_SAMPLE_SIZE = 256;
+    /** bits per byte, random data sampled at 1024 is about 7.8, text is about 5 */
+    private static final double MAX_ENTROPY = 7.2d;
+    /** compressed / original, above this it isn't worth it */
+    private static final double MAX_RATIO = 0.95d;
+    /** max messages to skip before trying again */
+    private static final int MAX_BACKOFF = 64;
+    /** weight of a new sample in the moving average */
+    private static final double ALPHA = 0.25d;
+    /** the overhead of a stored gzip frame, see DataHelper.compressStored() */
+    private static final int STORED_OVERHEAD = 23;
+
+    /** log2(i) for i = 0 to SAMPLE_SIZE, [0] unused */
+    private static final double[] LOG2 = new double[SAMPLE_SIZE + 1];
+    static {
+        for (int i = 1; i <= SAMPLE_SIZE; i++) {
+            LOG2[i] = Math.log(i) / Math.log(2);
+        }
+    }
+
+    public CompressionPolicy(I2PAppContext ctx) {
+        _context = ctx;
+        _flows = new LHMCache<FlowKey, Flow>(MAX_FLOWS);
+        ctx.statManager().createRateStat("i2cp.tx.compressTime", "Time to gzip a payload (us)", "i2cp", new long[] { 30*60*1000 });
+        ctx.statManager().createRateStat("i2cp.tx.compressSaved", "Bytes saved by gzip, compared to stored", "i2cp", new long[] { 30*60*1000 });
+        ctx.statManager().createRateStat("i2cp.tx.compressSkipped", "Payload size not compressed as it probably wouldn't help", "i2cp", new long[] { 30*60*1000 });
+        ctx.statManager().createRateStat("i2cp.tx.compressWasted", "Time to gzip a payload that didn't compress (us)", "i2cp", new long[] { 30*60*1000 });
+    }
+
+    /**
+     *  Compress the payload if it's likely to help, otherwise return a stored gzip frame.
+     *
+     *  @param dest may be null
+     *  @param toPort 0 if unset
+     */
+    public byte[] compress(Destination dest, int toPort, byte[] payload, int offset, int size) {
+        FlowKey key = dest != null ? new FlowKey(dest.calculateHash(), toPort) : null;
+        boolean skip = false;
+        if (key != null) {
+            synchronized (_flows) {
+                Flow flow = _flows.get(key);
+                if (flow != null && flow.skip > 0) {
+                    flow.skip--;
+                    skip = true;
+                }
+            }
+        }
+        if (!skip && size >= MIN_SAMPLE_SIZE)
+            skip = entropy(payload, offset, size) > MAX_ENTROPY;
+        if (skip) {
+            _context.statManager().addRateData("i2cp.tx.compressSkipped", size, 0);
+            return DataHelper.compressStored(payload, offset, size);
+        }
+
+        long start = System.nanoTime();
+        byte[] rv = DataHelper.compress(payload, offset, size);
+        long time = (System.nanoTime() - start) / 1000;
+        if (rv == null)
+            return null;
+        int stored = size + STORED_OVERHEAD;
+        if (rv.length >= stored) {
+            // the deflater will have fallen back to stored blocks anyway, just a little larger
+            _context.statManager().addRateData("i2cp.tx.compressWasted", time, 0);
+            rv = DataHelper.compressStored(payload, offset, size);
+        } else {
+            _context.statManager().addRateData("i2cp.tx.compressSaved", stored - rv.length, 0);
+        }
+        _context.statManager().addRateData("i2cp.tx.compressTime", time, 0);
+        if (key != null)
+            learn(key, ((double) rv.length) / stored);
+        return rv;
+    }
+
+    /**
+     *  Update the moving average, and set the number of messages to skip.
+     */
+    private void learn(FlowKey key, double ratio) {
+        synchronized (_flows) {
+            Flow flow = _flows.get(key);
+            if (flow == null) {
+                flow = new Flow(ratio);
+                _flows.put(key, flow);
+            } else {
+                flow.ratio += ALPHA * (ratio - flow.ratio);
+            }
+            if (flow.ratio > MAX_RATIO) {
+                flow.backoff = flow.backoff <= 0 ? 1 : Math.min(MAX_BACKOFF, flow.backoff * 2);
+                flow.skip = flow.backoff;
+            } else {
+                flow.backoff = 0;
+            }
+        }
+    }
+
+    /**
+     *  Order-0 entropy of up to SAMPLE_SIZE bytes, evenly spaced.
+     *
+     *  @return bits per byte, 0-8
+     */
+    static double entropy(byte[] data, int offset, int size) {
+        int n = Math.min(size, SAMPLE_SIZE);
+        int[] counts = new int[256];
+        int step = size / n;
+        for (int i = 0; i < n; i++) {
+            counts[data[offset + (i * step)] & 0xff]++;
+        }
+        double sum = 0;
+        for (int i = 0; i < 256; i++) {
+            int c = counts[i];
+            if (c > 0)
+                sum += c * LOG2[c];
+        }
+        return LOG2[n] - (sum / n);
+    }
+
+    private static class FlowKey {
+        private final Hash _hash;
+        private final int _port;
+
+        public FlowKey(Hash h, int port) {
+            _hash = h;
+            _port = port;
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash.hashCode() ^ _port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlowKey))
+                return false;
+            FlowKey k = (FlowKey) o;
+            return _port == k._port && _hash.equals(k._hash);
+        }
+    }
+
+    private static class Flow {
+        /** compressed / stored, moving average */
+        double ratio;
+        /** messages left to skip */
+        int skip;
+        /** the last skip count */
+        int backoff;
+
+        public Flow(double ratio) {
+            this.ratio = ratio;
+        }
+    }
+}
@@ -974,6 +974,7 @@ abstract class I2PSessionImpl implements I2PSession, I2CPMessageReader.I2CPMessa
             if (w.hash.equals(h)) {
                 w.destination = d;
                 synchronized (w) {
+                    w.done = true;
                     w.notifyAll();
                 }
             }
@@ -985,6 +986,7 @@ abstract class I2PSessionImpl implements I2PSession, I2CPMessageReader.I2CPMessa
         for (LookupWaiter w : _pendingLookups) {
             if (w.hash.equals(h)) {
                 synchronized (w) {
+                    w.done = true;
                     w.notifyAll();
                 }
             }
@@ -1008,6 +1010,8 @@ abstract class I2PSessionImpl implements I2PSession, I2CPMessageReader.I2CPMessa
         public final Hash hash;
         /** the reply */
         public volatile Destination destination;
+        /** reply or failure received, @since 0.9.10 */
+        public volatile boolean done;
 
         public LookupWaiter(Hash h) {
             this.hash = h;
@@ -1028,6 +1032,9 @@ abstract class I2PSessionImpl implements I2PSession, I2CPMessageReader.I2CPMessa
 
     /**
      *  Blocking.
+     *  As of 0.9.10, concurrent lookups for the same hash share
+     *  a single request to the router.
+     *
      *  @param maxWait ms
      *  @since 0.8.3
      *  @return null on failure
@@ -1043,10 +1050,25 @@ abstract class I2PSessionImpl implements I2PSession, I2CPMessageReader.I2CPMessa
         LookupWaiter waiter = new LookupWaiter(h);
         _pendingLookups.offer(waiter);
         try {
-            sendMessage(new DestLookupMessage(h));
+            // Check after we are in the queue, so that if the other
+            // lookup isn't done yet, its reply will notify us too
+            boolean pending = false;
+            for (LookupWaiter w : _pendingLookups) {
+                if (w != waiter && w.hash.equals(h) && !w.done) {
+                    pending = true;
+                    break;
+                }
+            }
+            if (pending) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info(getPrefix() + "Lookup for " + h + " already pending, waiting for that one");
+            } else {
+                sendMessage(new DestLookupMessage(h));
+            }
             try {
                 synchronized (waiter) {
-                    waiter.wait(maxWait);
+                    if (!waiter.done)
+                        waiter.wait(maxWait);
                 }
             } catch (InterruptedException ie) {
                 throw new I2PSessionException("Interrupted", ie);
@@ -43,6 +43,10 @@ class I2PSessionImpl2 extends I2PSessionImpl {
     private final static boolean SHOULD_DECOMPRESS = true;
     /** Don't expect any MSMs from the router for outbound traffic @since 0.8.1 */
     protected boolean _noEffort;
+    /** @since 0.9.10 */
+    private final CompressionPolicy _compressionPolicy;
+    /** default true, only if i2cp.gzip is not false @since 0.9.10 */
+    private static final String PROP_GZIP_ADAPTIVE = "i2cp.gzipAdaptive";
 
      /**
       * for extension by SimpleSession (no dest)
@@ -50,6 +54,7 @@ class I2PSessionImpl2 extends I2PSessionImpl {
     protected I2PSessionImpl2(I2PAppContext context, Properties options,
                               I2PClientMessageHandlerMap handlerMap) {
         super(context, options, handlerMap);
+        _compressionPolicy = new CompressionPolicy(context);
     }
 
     /**
@@ -64,6 +69,7 @@ class I2PSessionImpl2 extends I2PSessionImpl {
     public I2PSessionImpl2(I2PAppContext ctx, InputStream destKeyStream, Properties options) throws I2PSessionException {
         super(ctx, destKeyStream, options);
         _sendingStates = new HashSet<MessageState>(32);
+        _compressionPolicy = new CompressionPolicy(ctx);
         // default is BestEffort
         _noEffort = "none".equals(getOptions().getProperty(I2PClient.PROP_RELIABILITY, "").toLowerCase(Locale.US));
 
@@ -117,6 +123,24 @@ class I2PSessionImpl2 extends I2PSessionImpl {
              return Boolean.parseBoolean(p);
          return SHOULD_COMPRESS;
     }
+
+    /**
+     *  Gzip the payload if shouldCompress() and it's likely to help,
+     *  otherwise wrap it in a stored gzip frame without running the deflater.
+     *  Set i2cp.gzipAdaptive=false to always gzip when shouldCompress().
+     *
+     *  @param dest may be null
+     *  @param toPort 0 if unset
+     *  @since 0.9.10
+     */
+    protected byte[] compress(Destination dest, int toPort, byte[] payload, int offset, int size) {
+        if (!shouldCompress(size))
+            return DataHelper.compressStored(payload, offset, size);
+        String p = getOptions().getProperty(PROP_GZIP_ADAPTIVE);
+        if (p != null && !Boolean.parseBoolean(p))
+            return DataHelper.compress(payload, offset, size);
+        return _compressionPolicy.compress(dest, toPort, payload, offset, size);
+    }
     
     public void addSessionListener(I2PSessionListener lsnr, int proto, int port) {
         throw new IllegalArgumentException("Use MuxedImpl");
@@ -198,17 +222,13 @@ class I2PSessionImpl2 extends I2PSessionImpl {
         // Maybe implement this soon in receiveMessage() below so we are ready
         // in case we ever make an incompatible network change.
         // This would save 22 of the 23 bytes and a little CPU.
-        boolean sc = shouldCompress(size);
-        if (sc)
-            payload = DataHelper.compress(payload, offset, size);
-        else
-            payload = DataHelper.compress(payload, offset, size, DataHelper.NO_COMPRESSION);
+        payload = compress(dest, 0, payload, offset, size);
         //else throw new IllegalStateException("we need to update sendGuaranteed to support partial send");
 
         int compressed = payload.length;
         if (_log.shouldLog(Log.INFO)) {
             String d = dest.calculateHash().toBase64().substring(0,4);
-            _log.info("sending message to: " + d + " compress? " + sc + " sizeIn=" + size + " sizeOut=" + compressed);
+            _log.info("sending message to: " + d + " sizeIn=" + size + " sizeOut=" + compressed);
         }
         _context.statManager().addRateData("i2cp.tx.msgCompressed", compressed, 0);
         _context.statManager().addRateData("i2cp.tx.msgExpanded", size, 0);
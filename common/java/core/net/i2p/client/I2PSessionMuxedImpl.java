@@ -11,7 +11,6 @@ import java.util.Set;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import net.i2p.I2PAppContext;
-import net.i2p.data.DataHelper;
 import net.i2p.data.Destination;
 import net.i2p.data.SessionKey;
 import net.i2p.data.i2cp.MessagePayloadMessage;
@@ -196,11 +195,7 @@ class I2PSessionMuxedImpl extends I2PSessionImpl2 {
         if (isClosed()) throw new I2PSessionException("Already closed");
         updateActivity();
 
-        boolean sc = shouldCompress(size);
-        if (sc)
-            payload = DataHelper.compress(payload, offset, size);
-        else
-            payload = DataHelper.compress(payload, offset, size, DataHelper.NO_COMPRESSION);
+        payload = compress(dest, toPort, payload, offset, size);
 
         setProto(payload, proto);
         setFromPort(payload, fromPort);
@@ -235,11 +230,7 @@ class I2PSessionMuxedImpl extends I2PSessionImpl2 {
         if (isClosed()) throw new I2PSessionException("Already closed");
         updateActivity();
 
-        boolean sc = shouldCompress(size);
-        if (sc)
-            payload = DataHelper.compress(payload, offset, size);
-        else
-            payload = DataHelper.compress(payload, offset, size, DataHelper.NO_COMPRESSION);
+        payload = compress(dest, toPort, payload, offset, size);
 
         setProto(payload, proto);
         setFromPort(payload, fromPort);
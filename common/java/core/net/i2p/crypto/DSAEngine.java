@@ -237,7 +237,7 @@ public class DSAEngine {
             NativeBigInteger bi = new NativeBigInteger(1, data);
             BigInteger u1 = bi.multiply(w).mod(CryptoConstants.dsaq);
             BigInteger u2 = r.multiply(w).mod(CryptoConstants.dsaq);
-            BigInteger modval = CryptoConstants.dsag.modPow(u1, CryptoConstants.dsap);
+            BigInteger modval = FixedBaseModPow.powDSA(u1);
             BigInteger modmulval = modval.multiply(y.modPow(u2,CryptoConstants.dsap));
             BigInteger v = (modmulval).mod(CryptoConstants.dsap).mod(CryptoConstants.dsaq);
 
@@ -400,7 +400,7 @@ public class DSAEngine {
             //System.out.println("K picked (ok? " + ok + "): " + k.bitLength() + ": " + k.toString());
         } while (!ok);
 
-        BigInteger r = CryptoConstants.dsag.modPow(k, CryptoConstants.dsap).mod(CryptoConstants.dsaq);
+        BigInteger r = FixedBaseModPow.powDSA(k).mod(CryptoConstants.dsaq);
         BigInteger kinv = k.modInverse(CryptoConstants.dsaq);
 
         BigInteger M = new NativeBigInteger(1, hash.getData());
@@ -0,0 +1,300 @@
+package net.i2p.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import net.i2p.util.NativeBigInteger;
+
+/**
+ * Fixed-base modular exponentiation with a precomputed table,
+ * for the ElGamal and DSA generators, which never change.
+ *
+ * The exponent is split into windows of w bits. For window i and digit j,
+ * the table holds base^(j * 2^(w*i)) mod p, so base^e is simply the product
+ * of one table entry per window: no squarings, and at most
+ * (maxBits / w) multiplications, compared to about 1.2 * bits for modPow().
+ *
+ * The table entries are kept in Montgomery form as int arrays,
+ * so each multiplication is a single CIOS Montgomery multiply,
+ * rather than a BigInteger multiply() and a much slower mod().
+ *
+ * This is only faster than pure-Java BigInteger.modPow(), not jbigi,
+ * so the static methods use it only if NativeBigInteger is not native.
+ * Exponents larger than the table (e.g. the full 2048-bit ElGamal exponent)
+ * or negative fall back to modPow().
+ *
+ * Tables are built on first use, about 400 KB for ElGamal and 130 KB for DSA.
+ *
+ * @since 0.9.10
+ */
+final class FixedBaseModPow {
+    private final BigInteger _base;
+    private final BigInteger _modulus;
+    private final int _maxBits;
+    private final int _window;
+    /** modulus, little-endian 32 bit words */
+    private final int[] _mod;
+    /** -1/mod mod 2^32 */
+    private final int _modInv;
+    /** [window][digit], in Montgomery form, little-endian 32 bit words. [i][0] is unused. */
+    private final int[][][] _table;
+
+    /** covers the default (short) 226 bit ElGamal exponent */
+    private static final int ELG_MAX_BITS = 256;
+    /** DSA exponents are mod q, 160 bits */
+    private static final int DSA_MAX_BITS = 160;
+    private static final int WINDOW = 5;
+    private static final long MASK = 0xffffffffL;
+
+    /**
+     *  @param modulus must be odd
+     *  @param maxBits largest exponent supported by the table
+     *  @param window bits per window, 1-8
+     */
+    public FixedBaseModPow(BigInteger base, BigInteger modulus, int maxBits, int window) {
+        if (window < 1 || window > 8 || maxBits <= 0 || !modulus.testBit(0))
+            throw new IllegalArgumentException();
+        _base = base;
+        _modulus = modulus;
+        _maxBits = maxBits;
+        _window = window;
+        int len = (modulus.bitLength() + 31) / 32;
+        _mod = toWords(modulus, len);
+        // Newton's method, 5 iterations for 32 bits
+        int inv = 1;
+        for (int i = 0; i < 5; i++) {
+            inv *= 2 - (_mod[0] * inv);
+        }
+        _modInv = -inv;
+        int windows = (maxBits + window - 1) / window;
+        int digits = 1 << window;
+        _table = new int[windows][digits][];
+        int shift = 32 * len;
+        // base^(2^(w*i))
+        BigInteger bi = base.mod(modulus);
+        for (int i = 0; i < windows; i++) {
+            BigInteger cur = bi;
+            for (int j = 1; j < digits; j++) {
+                _table[i][j] = toWords(cur.shiftLeft(shift).mod(modulus), len);
+                cur = cur.multiply(bi).mod(modulus);
+            }
+            bi = cur;
+        }
+    }
+
+    /**
+     *  @return base^exponent mod modulus
+     */
+    public BigInteger modPow(BigInteger exponent) {
+        int bits = exponent.bitLength();
+        if (exponent.signum() < 0 || bits > _maxBits)
+            return _base.modPow(exponent, _modulus);
+        int len = _mod.length;
+        int[] rv = null;
+        int[] tmp = new int[len];
+        int[] t = new int[len + 1];
+        int windows = (bits + _window - 1) / _window;
+        for (int i = 0; i < windows; i++) {
+            int start = i * _window;
+            int digit = 0;
+            for (int b = _window - 1; b >= 0; b--) {
+                digit <<= 1;
+                if (exponent.testBit(start + b))
+                    digit |= 1;
+            }
+            if (digit == 0)
+                continue;
+            int[] e = _table[i][digit];
+            if (rv == null) {
+                rv = new int[len];
+                System.arraycopy(e, 0, rv, 0, len);
+            } else {
+                montMul(rv, e, tmp, t);
+                int[] x = rv;
+                rv = tmp;
+                tmp = x;
+            }
+        }
+        if (rv == null)
+            return BigInteger.ONE;
+        // out of Montgomery form
+        int[] one = new int[len];
+        one[0] = 1;
+        montMul(rv, one, tmp, t);
+        return fromWords(tmp);
+    }
+
+    /**
+     *  Montgomery multiplication, out = a * b / R mod p,
+     *  with the multiply and reduce steps interleaved in one inner loop (FIOS).
+     *  a and b must be less than p.
+     *
+     *  @param out may not be a or b
+     *  @param t scratch, length + 1
+     */
+    private void montMul(int[] a, int[] b, int[] out, int[] t) {
+        int[] mod = _mod;
+        int len = mod.length;
+        for (int i = 0; i <= len; i++) {
+            t[i] = 0;
+        }
+        long a0 = a[0] & MASK;
+        long mod0 = mod[0] & MASK;
+        for (int i = 0; i < len; i++) {
+            long bi = b[i] & MASK;
+            long s = (t[0] & MASK) + a0 * bi;
+            long c1 = s >>> 32;
+            long m = ((int) s * _modInv) & MASK;
+            long s2 = (s & MASK) + m * mod0;
+            long c2 = s2 >>> 32;
+            for (int j = 1; j < len; j++) {
+                s = (t[j] & MASK) + (a[j] & MASK) * bi + c1;
+                c1 = s >>> 32;
+                s2 = (s & MASK) + m * (mod[j] & MASK) + c2;
+                c2 = s2 >>> 32;
+                t[j - 1] = (int) s2;
+            }
+            s = (t[len] & MASK) + c1 + c2;
+            t[len - 1] = (int) s;
+            t[len] = (int) (s >>> 32);
+        }
+        // conditional subtract, result is less than 2p
+        boolean sub = t[len] != 0;
+        if (!sub) {
+            sub = true;
+            for (int j = len - 1; j >= 0; j--) {
+                long tj = t[j] & MASK;
+                long mj = mod[j] & MASK;
+                if (tj != mj) {
+                    sub = tj > mj;
+                    break;
+                }
+            }
+        }
+        if (sub) {
+            long borrow = 0;
+            for (int j = 0; j < len; j++) {
+                long d = (t[j] & MASK) - (mod[j] & MASK) - borrow;
+                out[j] = (int) d;
+                borrow = d >>> 63;
+            }
+        } else {
+            System.arraycopy(t, 0, out, 0, len);
+        }
+    }
+
+    /**
+     *  @param val non-negative, fits in len words
+     *  @return little-endian 32 bit words
+     */
+    private static int[] toWords(BigInteger val, int len) {
+        byte[] b = val.toByteArray();
+        int[] rv = new int[len];
+        for (int i = 0; i < b.length && i < len * 4; i++) {
+            int k = b.length - 1 - i;
+            rv[i / 4] |= (b[k] & 0xff) << (8 * (i % 4));
+        }
+        return rv;
+    }
+
+    private static BigInteger fromWords(int[] words) {
+        int len = words.length;
+        byte[] b = new byte[len * 4];
+        for (int i = 0; i < len; i++) {
+            int w = words[i];
+            int k = b.length - 1 - (i * 4);
+            b[k] = (byte) w;
+            b[k - 1] = (byte) (w >> 8);
+            b[k - 2] = (byte) (w >> 16);
+            b[k - 3] = (byte) (w >> 24);
+        }
+        return new NativeBigInteger(1, b);
+    }
+
+    /** lazy */
+    private static class ElGamalHolder {
+        static final FixedBaseModPow INSTANCE = new FixedBaseModPow(CryptoConstants.elgg, CryptoConstants.elgp,
+                                                                    ELG_MAX_BITS, WINDOW);
+    }
+
+    /** lazy */
+    private static class DSAHolder {
+        static final FixedBaseModPow INSTANCE = new FixedBaseModPow(CryptoConstants.dsag, CryptoConstants.dsap,
+                                                                    DSA_MAX_BITS, WINDOW);
+    }
+
+    /**
+     *  @return elgg^exponent mod elgp
+     */
+    public static BigInteger powElGamal(BigInteger exponent) {
+        if (NativeBigInteger.isNative())
+            return CryptoConstants.elgg.modPow(exponent, CryptoConstants.elgp);
+        return ElGamalHolder.INSTANCE.modPow(exponent);
+    }
+
+    /**
+     *  @return dsag^exponent mod dsap
+     */
+    public static BigInteger powDSA(BigInteger exponent) {
+        if (NativeBigInteger.isNative())
+            return CryptoConstants.dsag.modPow(exponent, CryptoConstants.dsap);
+        return DSAHolder.INSTANCE.modPow(exponent);
+    }
+
+    /**
+     *  Compare BigInteger.modPow(), NativeBigInteger.modPow() (if jbigi is loaded),
+     *  and the table, for the ElGamal (2048 bit) and DSA (1024 bit) generators.
+     *
+     *  Usage: FixedBaseModPow [runs]
+     */
+    public static void main(String args[]) {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        SecureRandom rand = new SecureRandom();
+        System.out.println("jbigi loaded? " + NativeBigInteger.isNative());
+        bench("ElGamal 2048", CryptoConstants.elgg, CryptoConstants.elgp, 226, ELG_MAX_BITS, runs, rand);
+        bench("DSA 1024", CryptoConstants.dsag, CryptoConstants.dsap, 160, DSA_MAX_BITS, runs, rand);
+    }
+
+    private static void bench(String name, BigInteger g, BigInteger p, int expBits, int maxBits,
+                              int runs, SecureRandom rand) {
+        BigInteger jg = new BigInteger(g.toByteArray());
+        BigInteger jp = new BigInteger(p.toByteArray());
+        NativeBigInteger ng = new NativeBigInteger(g.toByteArray());
+        NativeBigInteger np = new NativeBigInteger(p.toByteArray());
+        long t = System.nanoTime();
+        FixedBaseModPow fb = new FixedBaseModPow(jg, jp, maxBits, WINDOW);
+        long build = System.nanoTime() - t;
+        BigInteger[] exps = new BigInteger[runs];
+        for (int i = 0; i < runs; i++) {
+            exps[i] = new BigInteger(expBits, rand);
+        }
+        // warmup and check
+        for (int i = 0; i < Math.min(runs, 200); i++) {
+            BigInteger a = jg.modPow(exps[i], jp);
+            BigInteger b = fb.modPow(exps[i]);
+            BigInteger c = ng.modPow(exps[i], np);
+            if (!a.equals(b) || !a.equals(c))
+                throw new IllegalStateException("Mismatch for " + exps[i]);
+        }
+        t = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            jg.modPow(exps[i], jp);
+        }
+        long java = System.nanoTime() - t;
+        t = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            ng.modPow(exps[i], np);
+        }
+        long nat = System.nanoTime() - t;
+        t = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            fb.modPow(exps[i]);
+        }
+        long fixed = System.nanoTime() - t;
+        System.out.println(name + ", " + expBits + " bit exponents, " + runs + " runs:");
+        System.out.println("  BigInteger.modPow:       " + (java / 1000 / runs) + " us each");
+        System.out.println("  NativeBigInteger.modPow: " + (nat / 1000 / runs) + " us each");
+        System.out.println("  fixed base, w=" + WINDOW + ":      " + (fixed / 1000 / runs) + " us each" +
+                           " (table build " + (build / 1000000) + " ms)");
+    }
+}
@@ -137,7 +137,7 @@ public class KeyGenerator {
      */
     public SimpleDataStructure[] generatePKIKeys() {
         BigInteger a = new NativeBigInteger(getElGamalExponentSize(), _context.random());
-        BigInteger aalpha = CryptoConstants.elgg.modPow(a, CryptoConstants.elgp);
+        BigInteger aalpha = FixedBaseModPow.powElGamal(a);
 
         SimpleDataStructure[] keys = new SimpleDataStructure[2];
         keys[0] = new PublicKey();
@@ -162,7 +162,7 @@ public class KeyGenerator {
      */
     public static PublicKey getPublicKey(PrivateKey priv) {
         BigInteger a = new NativeBigInteger(1, priv.toByteArray());
-        BigInteger aalpha = CryptoConstants.elgg.modPow(a, CryptoConstants.elgp);
+        BigInteger aalpha = FixedBaseModPow.powElGamal(a);
         PublicKey pub = new PublicKey();
         try {
             pub.setData(SigUtil.rectify(aalpha, PublicKey.KEYSIZE_BYTES));
@@ -197,7 +197,7 @@ public class KeyGenerator {
             x = new NativeBigInteger(160, _context.random());
         } while (x.compareTo(CryptoConstants.dsaq) >= 0);
 
-        BigInteger y = CryptoConstants.dsag.modPow(x, CryptoConstants.dsap);
+        BigInteger y = FixedBaseModPow.powDSA(x);
         keys[0] = new SigningPublicKey();
         keys[1] = new SigningPrivateKey();
         try {
@@ -268,7 +268,7 @@ public class KeyGenerator {
      */
     public static SigningPublicKey getSigningPublicKey(SigningPrivateKey priv) {
         BigInteger x = new NativeBigInteger(1, priv.toByteArray());
-        BigInteger y = CryptoConstants.dsag.modPow(x, CryptoConstants.dsap);
+        BigInteger y = FixedBaseModPow.powDSA(x);
         SigningPublicKey pub = new SigningPublicKey();
         try {
             pub.setData(SigUtil.rectify(y, SigningPublicKey.KEYSIZE_BYTES));
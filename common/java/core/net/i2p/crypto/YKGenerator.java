@@ -129,7 +129,7 @@ class YKGenerator {
             if (kPlus2.compareTo(CryptoConstants.elgp) > 0) k = null;
         }
         //long t2 = Clock.getInstance().now();
-        y = CryptoConstants.elgg.modPow(k, CryptoConstants.elgp);
+        y = FixedBaseModPow.powElGamal(k);
 
         BigInteger yk[] = new BigInteger[2];
         yk[0] = y;
@@ -0,0 +1,245 @@
+package net.i2p.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.util.LHMCache;
+
+/**
+ *  A RouterInfo as held in memory by the router's netDb in compact mode:
+ *  the signed serialized bytes, plus a small header decoded from it
+ *  for the callers that only need the published date, caps, version, or IPs.
+ *  Use decode() for the full RouterInfo.
+ *
+ *  Here and not in the router so that decode() can carry over the signature status,
+ *  see RouterInfo.setValidated().
+ *
+ *  The header strings are interned, as a few caps and version strings
+ *  are shared by thousands of routers.
+ *
+ *  Immutable, except that the signature is checked on the first decode()
+ *  if it wasn't checked before the RouterInfo was compacted.
+ *
+ *  @since 0.9.10
+ */
+public class CompactRouterInfo {
+    private final Hash _hash;
+    private final long _published;
+    private final String _caps;
+    private final String _version;
+    /** null if none */
+    private final byte[][] _ips;
+    private final byte[] _data;
+    private volatile boolean _validated;
+
+    /** bounded, so a flood of unique values can't grow it. Synch on it. */
+    private static final Map<String, String> _interned = new LHMCache<String, String>(1024);
+    /** object headers, fields, and array headers, approximate */
+    private static final int OVERHEAD = 96;
+
+    /**
+     *  @param key the RI hash
+     *  @throws DataFormatException if it can't be serialized
+     */
+    public CompactRouterInfo(Hash key, RouterInfo ri) throws DataFormatException {
+        _data = ri.toByteArray();
+        if (_data == null)
+            throw new DataFormatException("Unable to serialize " + key);
+        _hash = key;
+        _published = ri.getPublished();
+        _caps = intern(ri.getCapabilities());
+        _version = intern(ri.getOption("router.version"));
+        _validated = ri.isValidated();
+        List<byte[]> ips = null;
+        for (RouterAddress ra : ri.getAddresses()) {
+            // getIP() would resolve a host name, don't block here
+            String host = ra.getHost();
+            if (host == null || host.length() <= 0 ||
+                !(Character.isDigit(host.charAt(0)) || host.indexOf(':') >= 0))
+                continue;
+            byte[] ip = ra.getIP();
+            if (ip == null)
+                continue;
+            if (ips == null)
+                ips = new ArrayList<byte[]>(2);
+            boolean dup = false;
+            for (byte[] b : ips) {
+                if (DataHelper.eq(b, ip)) {
+                    dup = true;
+                    break;
+                }
+            }
+            if (!dup)
+                ips.add(ip);
+        }
+        _ips = ips != null ? ips.toArray(new byte[ips.size()][]) : null;
+    }
+
+    /**
+     *  A new RouterInfo each time. The signature is checked once, here
+     *  if it wasn't checked before the RouterInfo was compacted,
+     *  e.g. when stored without verifying it, and not again.
+     *
+     *  @throws DataFormatException also if the signature is bad
+     */
+    public RouterInfo decode() throws DataFormatException {
+        return decode(true);
+    }
+
+    /**
+     *  A new RouterInfo each time.
+     *
+     *  @param verify if false, and the signature wasn't checked yet, don't check it here either,
+     *                the RouterInfo returned is not validated
+     *  @throws DataFormatException also if verify is true and the signature is bad
+     *  @since 0.9.10
+     */
+    public RouterInfo decode(boolean verify) throws DataFormatException {
+        RouterInfo ri = new RouterInfo();
+        try {
+            ri.readBytes(new ByteArrayInputStream(_data), false);
+        } catch (IOException ioe) {
+            throw new DataFormatException("Unable to decode " + _hash, ioe);
+        }
+        if (_validated) {
+            ri.setValidated();
+        } else if (verify) {
+            if (!ri.isValid())
+                throw new DataFormatException("Bad signature on " + _hash);
+            _validated = true;
+        }
+        return ri;
+    }
+
+    public Hash getHash() { return _hash; }
+
+    public long getPublished() { return _published; }
+
+    /** @return non-null, same as RouterInfo.getCapabilities() */
+    public String getCapabilities() { return _caps; }
+
+    /** @return the router.version option, or null */
+    public String getVersion() { return _version; }
+
+    /** @return the numeric IPs in the addresses, non-null, do not modify */
+    public byte[][] getIPs() {
+        return _ips != null ? _ips : new byte[0][];
+    }
+
+    /** @return the serialized size */
+    public int getSize() { return _data.length; }
+
+    /** @return approximate bytes of heap used by this, not including the interned strings */
+    public int getHeapSize() {
+        int rv = OVERHEAD + _data.length;
+        if (_ips != null) {
+            for (int i = 0; i < _ips.length; i++) {
+                rv += 16 + _ips[i].length;
+            }
+        }
+        return rv;
+    }
+
+    private static String intern(String s) {
+        if (s == null)
+            return null;
+        synchronized (_interned) {
+            String rv = _interned.get(s);
+            if (rv != null)
+                return rv;
+            _interned.put(s, s);
+            return s;
+        }
+    }
+
+    /**
+     *  Measure the heap used by the RouterInfos in a netDb directory,
+     *  fully decoded and compact.
+     *
+     *  Usage: CompactRouterInfo netDbDir
+     */
+    public static void main(String args[]) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: CompactRouterInfo netDbDir");
+            System.exit(1);
+        }
+        List<byte[]> files = new ArrayList<byte[]>();
+        readDir(new File(args[0]), files);
+        System.out.println("Read " + files.size() + " RouterInfo files");
+        long base = usedMemory();
+        List<RouterInfo> full = new ArrayList<RouterInfo>(files.size());
+        for (byte[] data : files) {
+            RouterInfo ri = new RouterInfo();
+            ri.readBytes(new ByteArrayInputStream(data), false);
+            full.add(ri);
+        }
+        long fullBytes = usedMemory() - base;
+        List<CompactRouterInfo> compact = new ArrayList<CompactRouterInfo>(full.size());
+        long estimate = 0;
+        for (RouterInfo ri : full) {
+            CompactRouterInfo cri = new CompactRouterInfo(ri.getIdentity().getHash(), ri);
+            estimate += cri.getHeapSize();
+            compact.add(cri);
+        }
+        full.clear();
+        long compactBytes = usedMemory() - base;
+        // the first decode checks the signature, time the later ones
+        long t = System.nanoTime();
+        for (int i = compact.size() - 1; i >= 0; i--) {
+            try {
+                compact.get(i).decode();
+            } catch (DataFormatException dfe) {
+                compact.remove(i);
+            }
+        }
+        long verify = (System.nanoTime() - t) / Math.max(1, compact.size());
+        t = System.nanoTime();
+        for (CompactRouterInfo cri : compact) {
+            cri.decode();
+        }
+        long decode = (System.nanoTime() - t) / Math.max(1, compact.size());
+        System.out.println("Full RouterInfos:    " + (fullBytes / 1024) + " KB");
+        System.out.println("Compact RouterInfos: " + (compactBytes / 1024) + " KB" +
+                           " (estimated " + (estimate / 1024) + " KB)");
+        System.out.println("First decode: " + (verify / 1000) + " us each");
+        System.out.println("Decode: " + (decode / 1000) + " us each");
+    }
+
+    private static void readDir(File dir, List<byte[]> rv) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (int i = 0; i < files.length; i++) {
+            File f = files[i];
+            if (f.isDirectory()) {
+                readDir(f, rv);
+            } else if (f.getName().startsWith("routerInfo-")) {
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(new FileInputStream(f));
+                    byte[] data = new byte[(int) f.length()];
+                    DataHelper.read(in, data);
+                    rv.add(data);
+                } finally {
+                    if (in != null) try { in.close(); } catch (IOException ioe) {}
+                }
+            }
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -40,6 +40,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 
 import net.i2p.I2PAppContext;
@@ -1677,6 +1678,50 @@ public class DataHelper {
         
     }
     
+    /** same as ResettableGZIPOutputStream, but XFL not set */
+    private static final byte[] GZIP_HEADER = new byte[] {
+        (byte)0x1F, (byte)0x8b, 0x08, 0x00,
+        0x00, 0x00, 0x00, 0x00,
+        0x00, (byte)0xFF
+    };
+
+    /**
+     *  Same output as compress(orig, offset, size, NO_COMPRESSION),
+     *  i.e. a GZIP stream with a single stored (uncompressed) block,
+     *  but written directly, without a Deflater.
+     *  The result is 23 bytes larger than the input.
+     *
+     *  @throws IllegalArgumentException if size is over 40KB
+     *  @since 0.9.10
+     */
+    public static byte[] compressStored(byte orig[], int offset, int size) {
+        if ((orig == null) || (orig.length <= 0)) return orig;
+        if (size > MAX_UNCOMPRESSED)
+            throw new IllegalArgumentException("tell jrandom size=" + size);
+        // 10 byte header + 5 byte block header + 8 byte trailer
+        byte rv[] = new byte[size + 23];
+        System.arraycopy(GZIP_HEADER, 0, rv, 0, GZIP_HEADER.length);
+        int off = GZIP_HEADER.length;
+        // BFINAL = 1, BTYPE = 00 (stored), then LEN and NLEN, little-endian
+        rv[off++] = 0x01;
+        rv[off++] = (byte) size;
+        rv[off++] = (byte) (size >> 8);
+        rv[off++] = (byte) ~size;
+        rv[off++] = (byte) ((~size) >> 8);
+        System.arraycopy(orig, offset, rv, off, size);
+        off += size;
+        CRC32 crc = new CRC32();
+        crc.update(orig, offset, size);
+        long crcVal = crc.getValue();
+        for (int i = 0; i < 4; i++) {
+            rv[off++] = (byte) (crcVal >>> (8 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            rv[off++] = (byte) (size >>> (8 * i));
+        }
+        return rv;
+    }
+
     /**
      *  Decompress the GZIP compressed data (returning null on error).
      *  @throws IOE if uncompressed is over 40 KB
@@ -335,6 +335,28 @@ public class RouterInfo extends DatabaseEntry {
         return _isValid;
     }
 
+    /**
+     * Does not check the signature.
+     *
+     * @return true if the signature was already checked and is good
+     * @since 0.9.10
+     */
+    public boolean isValidated() {
+        return _validated && _isValid;
+    }
+
+    /**
+     * Mark the signature as good without checking it, for a copy read with
+     * readBytes(in, false) from the bytes of a RouterInfo for which isValidated() was true.
+     * Package private, only for CompactRouterInfo.
+     *
+     * @since 0.9.10
+     */
+    void setValidated() {
+        _isValid = true;
+        _validated = true;
+    }
+
     /**
      * Same as isValid()
      * @since 0.9
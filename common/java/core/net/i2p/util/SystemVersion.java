@@ -146,4 +146,12 @@ public abstract class SystemVersion {
             maxMemory = 96*1024*1024l;
         return maxMemory;
     }
+
+    /**
+     *  Runtime.getRuntime().availableProcessors() but never less than 1
+     *  @since 0.9.10
+     */
+    public static int getCores() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
 }
@@ -34,6 +34,14 @@ public interface DataStore {
     public void rescan();
     public int countLeaseSets();
 
+    /**
+     *  Without decoding the entry, see TransientDataStore.
+     *
+     *  @return DatabaseEntry.KEY_TYPE_ROUTERINFO or KEY_TYPE_LEASESET, or -1 if not found
+     *  @since 0.9.10
+     */
+    public int getType(Hash key);
+
     /**
      *  @return total size (RI and LS)
      *  @since 0.8.8
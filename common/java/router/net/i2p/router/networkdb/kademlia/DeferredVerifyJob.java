@@ -0,0 +1,95 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import net.i2p.data.Hash;
+import net.i2p.router.JobImpl;
+import net.i2p.router.RouterContext;
+import net.i2p.router.peermanager.ProfileOrganizer;
+import net.i2p.util.Log;
+
+/**
+ * Verify the signatures of the RouterInfos that were loaded from disk at startup
+ * without verification, in the background, a batch at a time.
+ * The peers we're most likely to use are verified first:
+ * fast, then high capacity, then well integrated, then the rest.
+ *
+ * An entry that is used before we get to it is verified on use,
+ * see KademliaNetworkDatabaseFacade.lookupRouterInfoLocally().
+ *
+ * @since 0.9.10
+ */
+class DeferredVerifyJob extends JobImpl {
+    private final Log _log;
+    private final KademliaNetworkDatabaseFacade _facade;
+    private List<Hash> _toVerify;
+    private int _verified;
+    private int _failed;
+    private long _start;
+
+    /** DSA verify is a few ms without jbigi */
+    private static final int BATCH_SIZE = 25;
+    private static final long BATCH_DELAY = 250;
+
+    public DeferredVerifyJob(RouterContext ctx, KademliaNetworkDatabaseFacade facade) {
+        super(ctx);
+        _log = ctx.logManager().getLog(DeferredVerifyJob.class);
+        _facade = facade;
+    }
+
+    public String getName() { return "Verify Stored RouterInfos"; }
+
+    public void runJob() {
+        if (_toVerify == null) {
+            _start = getContext().clock().now();
+            _toVerify = sort(_facade.getUnverified());
+        }
+        for (int i = 0; i < BATCH_SIZE && !_toVerify.isEmpty(); i++) {
+            Hash h = _toVerify.remove(_toVerify.size() - 1);
+            int rv = _facade.verifyDeferred(h);
+            if (rv > 0)
+                _verified++;
+            else if (rv < 0)
+                _failed++;
+        }
+        if (!_toVerify.isEmpty()) {
+            requeue(BATCH_DELAY);
+        } else if (_log.shouldLog(Log.INFO)) {
+            _log.info("Verified " + _verified + " stored RouterInfos, " + _failed + " failed, in " +
+                      (getContext().clock().now() - _start) + " ms");
+        }
+    }
+
+    /**
+     *  @return most useful last, so we can remove from the end
+     */
+    private List<Hash> sort(Collection<Hash> unverified) {
+        ProfileOrganizer po = getContext().profileOrganizer();
+        List<Hash> fast = new ArrayList<Hash>();
+        List<Hash> high = new ArrayList<Hash>();
+        List<Hash> integrated = new ArrayList<Hash>();
+        List<Hash> rv = new ArrayList<Hash>(unverified.size());
+        for (Hash h : unverified) {
+            if (po.isFast(h))
+                fast.add(h);
+            else if (po.isHighCapacity(h))
+                high.add(h);
+            else if (po.isWellIntegrated(h))
+                integrated.add(h);
+            else
+                rv.add(h);
+        }
+        // random within each group
+        Collections.shuffle(rv, getContext().random());
+        Collections.shuffle(integrated, getContext().random());
+        Collections.shuffle(high, getContext().random());
+        Collections.shuffle(fast, getContext().random());
+        rv.addAll(integrated);
+        rv.addAll(high);
+        rv.addAll(fast);
+        return rv;
+    }
+}
@@ -9,7 +9,6 @@ package net.i2p.router.networkdb.kademlia;
  */
 
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import net.i2p.data.DatabaseEntry;
@@ -59,12 +58,16 @@ class ExpireLeasesJob extends JobImpl {
      */
     private Set<Hash> selectKeysToExpire() {
         Set<Hash> toExpire = new HashSet<Hash>(128);
-        for (Map.Entry<Hash, DatabaseEntry> entry : _facade.getDataStore().getMapEntries()) {
-            DatabaseEntry obj = entry.getValue();
-            if (obj.getType() == DatabaseEntry.KEY_TYPE_LEASESET) {
+        DataStore ds = _facade.getDataStore();
+        // check the type first, so compact RouterInfos aren't decoded
+        for (Hash key : ds.getKeys()) {
+            if (ds.getType(key) != DatabaseEntry.KEY_TYPE_LEASESET)
+                continue;
+            DatabaseEntry obj = ds.get(key);
+            if (obj != null && obj.getType() == DatabaseEntry.KEY_TYPE_LEASESET) {
                 LeaseSet ls = (LeaseSet)obj;
                 if (!ls.isCurrent(Router.CLOCK_FUDGE_FACTOR))
-                    toExpire.add(entry.getKey());
+                    toExpire.add(key);
                 else if (_log.shouldLog(Log.DEBUG))
                     _log.debug("Lease " + ls.getDestination().calculateHash() + " is current, no need to expire");
             }
@@ -67,19 +67,19 @@ public class FloodSearchJob extends JobImpl {
      *  @param onFailed may be null
      *  @param timeoutMs ignored
      *  @param isLease ignored
+     *  @return false if the search is already complete and the jobs were not added,
+     *          as of 0.9.10 the caller must check the result and run them
      */
-    void addDeferred(Job onFind, Job onFailed, long timeoutMs, boolean isLease) {
+    boolean addDeferred(Job onFind, Job onFailed, long timeoutMs, boolean isLease) {
         synchronized (this) {
-            if (!_dead) {
-                if (onFind != null)
-                    _onFind.add(onFind);
-                if (onFailed != null)
-                    _onFailed.add(onFailed);
-                return;
-            }
+            if (_dead)
+                return false;
+            if (onFind != null)
+                _onFind.add(onFind);
+            if (onFailed != null)
+                _onFailed.add(onFailed);
+            return true;
         }
-        // outside synch to avoid deadlock with job queue
-        getContext().jobQueue().addJob(onFailed);
     }
 
     /** using context clock */
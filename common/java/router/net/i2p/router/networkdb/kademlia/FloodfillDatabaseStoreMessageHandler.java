@@ -34,7 +34,13 @@ public class FloodfillDatabaseStoreMessageHandler implements HandlerJobBuilder {
         context.statManager().createRateStat("netDb.storeRecvTime", "How long it takes to handle the local store part of a dbStore?", "NetworkDatabase", new long[] { 60*60*1000l });
     }
 
+    /**
+     *  As of 0.9.10, returns null when the store is queued to the FloodfillStoreBatcher instead.
+     */
     public Job createJob(I2NPMessage receivedMessage, RouterIdentity from, Hash fromHash) {
+        FloodfillStoreBatcher batcher = _facade.getStoreBatcher();
+        if (batcher != null && batcher.add((DatabaseStoreMessage)receivedMessage, from, fromHash))
+            return null;
         Job j = new HandleFloodfillDatabaseStoreMessageJob(_context, (DatabaseStoreMessage)receivedMessage, from, fromHash, _facade);
         if (false) {
             j.runJob();
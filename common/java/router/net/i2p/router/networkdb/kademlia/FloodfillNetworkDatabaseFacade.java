@@ -8,6 +8,7 @@ import java.util.Set;
 
 import net.i2p.data.DatabaseEntry;
 import net.i2p.data.Hash;
+import net.i2p.data.LeaseSet;
 import net.i2p.data.RouterInfo;
 import net.i2p.data.TunnelId;
 import net.i2p.data.i2np.DatabaseLookupMessage;
@@ -30,8 +31,11 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
     private boolean _floodfillEnabled;
     private final Set<Hash> _verifiesInProgress;
     private FloodThrottler _floodThrottler;
+    /** null unless floodfill and enabled */
+    private volatile FloodfillStoreBatcher _storeBatcher;
     private LookupThrottler _lookupThrottler;
     private NegativeLookupCache _negativeCache;
+    private LookupHistory _lookupHistory;
 
     /**
      *  This is the flood redundancy. Entries are
@@ -43,6 +47,14 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
     
     private static final int FLOOD_PRIORITY = OutNetMessage.PRIORITY_NETDB_FLOOD;
     private static final int FLOOD_TIMEOUT = 30*1000;
+    /** @since 0.9.10 */
+    private static final String PROP_BATCH_STORES = "router.networkDatabase.batchStores";
+    /**
+     *  How long a found RouterInfo counts as a positive lookup result.
+     *  RIs don't expire, but are republished about this often.
+     *  @since 0.9.10
+     */
+    private static final long RI_LOOKUP_EXPIRATION = 60*60*1000;
     
     public FloodfillNetworkDatabaseFacade(RouterContext context) {
         super(context);
@@ -63,6 +75,8 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         _context.statManager().createRateStat("netDb.searchReplyValidationSkipped", "How many search replies we get from unreliable peers that we skip?", "NetworkDatabase", new long[] { 5*60*1000l, 10*60*1000l, 60*60*1000l, 3*60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRateStat("netDb.republishQuantity", "How many peers do we need to send a found leaseSet to?", "NetworkDatabase", new long[] { 10*60*1000l, 60*60*1000l, 3*60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRateStat("netDb.negativeCache", "Aborted lookup, already cached", "NetworkDatabase", new long[] { 60*60*1000l });
+        _context.statManager().createRateStat("netDb.lookupLate", "Lookup joined a search that had just completed", "NetworkDatabase", new long[] { 60*60*1000l });
+        _context.statManager().createRateStat("netDb.lookupPreferred", "Lookup sent first to the floodfill that answered last time", "NetworkDatabase", new long[] { 60*60*1000l });
     }
 
     @Override
@@ -71,6 +85,7 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         _context.jobQueue().addJob(new FloodfillMonitorJob(_context, this));
         _lookupThrottler = new LookupThrottler();
         _negativeCache = new NegativeLookupCache();
+        _lookupHistory = new LookupHistory();
 
         // refresh old routers
         Job rrj = new RefreshRoutersJob(_context, this);
@@ -106,6 +121,9 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
                 } catch (InterruptedException ie) {}
             }
         }
+        FloodfillStoreBatcher batcher = _storeBatcher;
+        if (batcher != null)
+            batcher.shutdown();
         super.shutdown();
     }
 
@@ -187,6 +205,36 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         return rv;
     }
 
+    /**
+     *  Record a successful search in the lookup history.
+     *  The entry must be stored locally by now.
+     *
+     *  @param peer the floodfill that answered, or null if unknown
+     *  @since 0.9.10
+     */
+    void lookupSucceeded(Hash key, Hash peer) {
+        DatabaseEntry entry = lookupLocallyWithoutValidation(key);
+        if (entry == null)
+            return;
+        long expires;
+        if (entry.getType() == DatabaseEntry.KEY_TYPE_LEASESET)
+            expires = ((LeaseSet) entry).getLatestLeaseDate();
+        else
+            expires = entry.getDate() + RI_LOOKUP_EXPIRATION;
+        _lookupHistory.lookupSucceeded(key, peer, expires);
+    }
+
+    /**
+     *  The floodfill that answered the last successful search for the key,
+     *  to be queried first.
+     *
+     *  @return null if none or unknown
+     *  @since 0.9.10
+     */
+    Hash getLastResponder(Hash key) {
+        return _lookupHistory.getResponder(key, _context.clock().now());
+    }
+
     /**
      *  Send to a subset of all floodfill peers.
      *  We do this to implement Kademlia within the floodfills, i.e.
@@ -209,23 +257,68 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
             //    continue;
             if (peer.equals(_context.routerHash()))
                 continue;
-            DatabaseStoreMessage msg = new DatabaseStoreMessage(_context);
-            msg.setEntry(ds);
-            OutNetMessage m = new OutNetMessage(_context, msg, _context.clock().now()+FLOOD_TIMEOUT, FLOOD_PRIORITY, target);
-            // note send failure but don't give credit on success
-            // might need to change this
-            Job floodFail = new FloodFailedJob(_context, peer);
-            m.setOnFailedSendJob(floodFail);
-            _context.commSystem().processMessage(m);
+            sendFlood(ds, peer, target);
             flooded++;
-            if (_log.shouldLog(Log.INFO))
-                _log.info("Flooding the entry for " + key.toBase64() + " to " + peer.toBase64());
         }
         
         if (_log.shouldLog(Log.INFO))
             _log.info("Flooded the data to " + flooded + " of " + peers.size() + " peers");
     }
 
+    /**
+     *  Flood several entries, grouped by target floodfill,
+     *  so each target is looked up and checked once,
+     *  and all its messages are queued back to back.
+     *
+     *  @since 0.9.10
+     */
+    void flood(List<DatabaseEntry> entries) {
+        FloodfillPeerSelector sel = (FloodfillPeerSelector)getPeerSelector();
+        Map<Hash, List<DatabaseEntry>> byPeer = new HashMap<Hash, List<DatabaseEntry>>();
+        for (DatabaseEntry ds : entries) {
+            Hash rkey = _context.routingKeyGenerator().getRoutingKey(ds.getHash());
+            List<Hash> peers = sel.selectFloodfillParticipants(rkey, MAX_TO_FLOOD, getKBuckets());
+            for (Hash peer : peers) {
+                List<DatabaseEntry> list = byPeer.get(peer);
+                if (list == null) {
+                    list = new ArrayList<DatabaseEntry>(4);
+                    byPeer.put(peer, list);
+                }
+                list.add(ds);
+            }
+        }
+        int flooded = 0;
+        for (Map.Entry<Hash, List<DatabaseEntry>> e : byPeer.entrySet()) {
+            Hash peer = e.getKey();
+            if (peer.equals(_context.routerHash()) || _context.banlist().isBanlisted(peer))
+                continue;
+            RouterInfo target = lookupRouterInfoLocally(peer);
+            if (target == null)
+                continue;
+            for (DatabaseEntry ds : e.getValue()) {
+                sendFlood(ds, peer, target);
+                flooded++;
+            }
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Flooded " + entries.size() + " entries in " + flooded + " messages to " +
+                      byPeer.size() + " peers");
+    }
+
+    /** @since 0.9.10 split out of flood() */
+    private void sendFlood(DatabaseEntry ds, Hash peer, RouterInfo target) {
+        DatabaseStoreMessage msg = new DatabaseStoreMessage(_context);
+        msg.setEntry(ds);
+        OutNetMessage m = new OutNetMessage(_context, msg, _context.clock().now()+FLOOD_TIMEOUT, FLOOD_PRIORITY, target);
+        // note send failure but don't give credit on success
+        // might need to change this
+        Job floodFail = new FloodFailedJob(_context, peer);
+        m.setOnFailedSendJob(floodFail);
+        _context.commSystem().processMessage(m);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Flooding the entry for " + ds.getHash().toBase64() + " to " + peer.toBase64());
+    }
+
     /** note in the profile that the store failed */
     private static class FloodFailedJob extends JobImpl {
         private final Hash _peer;
@@ -252,6 +345,18 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
             _context.statManager().createRateStat("netDb.storeFloodNew", "How long it takes to flood out a newly received entry?", "NetworkDatabase", new long[] { 60*60*1000l });
             _context.statManager().createRateStat("netDb.storeFloodOld", "How often we receive an old entry?", "NetworkDatabase", new long[] { 60*60*1000l });
         }
+        if (yes && _storeBatcher == null && _context.getBooleanPropertyDefaultTrue(PROP_BATCH_STORES)) {
+            _storeBatcher = new FloodfillStoreBatcher(_context, this);
+            _storeBatcher.startup();
+        }
+    }
+
+    /**
+     *  @return null if not floodfill or disabled
+     *  @since 0.9.10
+     */
+    FloodfillStoreBatcher getStoreBatcher() {
+        return _floodfillEnabled ? _storeBatcher : null;
     }
 
     @Override
@@ -289,32 +394,49 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
     SearchJob search(Hash key, Job onFindJob, Job onFailedLookupJob, long timeoutMs, boolean isLease) {
         //if (true) return super.search(key, onFindJob, onFailedLookupJob, timeoutMs, isLease);
         if (key == null) throw new IllegalArgumentException("searchin for nothin, eh?");
-        boolean isNew = false;
-        FloodSearchJob searchJob = null;
-        synchronized (_activeFloodQueries) {
-            searchJob = _activeFloodQueries.get(key);
-            if (searchJob == null) {
-                //if (SearchJob.onlyQueryFloodfillPeers(_context)) {
-                    //searchJob = new FloodOnlySearchJob(_context, this, key, onFindJob, onFailedLookupJob, (int)timeoutMs, isLease);
-                    searchJob = new IterativeSearchJob(_context, this, key, onFindJob, onFailedLookupJob, (int)timeoutMs, isLease);
-                //} else {
-                //    searchJob = new FloodSearchJob(_context, this, key, onFindJob, onFailedLookupJob, (int)timeoutMs, isLease);
-                //}
-                _activeFloodQueries.put(key, searchJob);
-                isNew = true;
+        while (true) {
+            boolean isNew = false;
+            FloodSearchJob searchJob = null;
+            synchronized (_activeFloodQueries) {
+                searchJob = _activeFloodQueries.get(key);
+                if (searchJob == null) {
+                    //if (SearchJob.onlyQueryFloodfillPeers(_context)) {
+                        //searchJob = new FloodOnlySearchJob(_context, this, key, onFindJob, onFailedLookupJob, (int)timeoutMs, isLease);
+                        searchJob = new IterativeSearchJob(_context, this, key, onFindJob, onFailedLookupJob, (int)timeoutMs, isLease);
+                    //} else {
+                    //    searchJob = new FloodSearchJob(_context, this, key, onFindJob, onFailedLookupJob, (int)timeoutMs, isLease);
+                    //}
+                    _activeFloodQueries.put(key, searchJob);
+                    isNew = true;
+                }
+            }
+
+            if (isNew) {
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("this is the first search for that key, fire off the FloodSearchJob");
+                _context.jobQueue().addJob(searchJob);
+                break;
+            }
+            if (searchJob.addDeferred(onFindJob, onFailedLookupJob, timeoutMs, isLease)) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Deferring flood search for " + key.toBase64() + " with " + _activeFloodQueries.size() + " in progress");
+                // not necessarily LS
+                _context.statManager().addRateData("netDb.lookupDeferred", 1, searchJob.getExpiration()-_context.clock().now());
+                break;
+            }
+            // The search completed after we got it from the map but before we added our jobs.
+            // If it succeeded, the entry is here now. Otherwise, start a new search.
+            _context.statManager().addRateData("netDb.lookupLate", 1);
+            if (lookupLocally(key) != null) {
+                if (onFindJob != null)
+                    _context.jobQueue().addJob(onFindJob);
+                break;
+            }
+            synchronized (_activeFloodQueries) {
+                // don't loop forever if complete() was never called
+                if (_activeFloodQueries.get(key) == searchJob)
+                    _activeFloodQueries.remove(key);
             }
-        }
-        
-        if (isNew) {
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("this is the first search for that key, fire off the FloodSearchJob");
-            _context.jobQueue().addJob(searchJob);
-        } else {
-            if (_log.shouldLog(Log.INFO))
-                _log.info("Deferring flood search for " + key.toBase64() + " with " + _activeFloodQueries.size() + " in progress");
-            searchJob.addDeferred(onFindJob, onFailedLookupJob, timeoutMs, isLease);
-            // not necessarily LS
-            _context.statManager().addRateData("netDb.lookupDeferred", 1, searchJob.getExpiration()-_context.clock().now());
         }
         return null;
     }
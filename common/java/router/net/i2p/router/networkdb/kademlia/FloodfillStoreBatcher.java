@@ -0,0 +1,320 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.DatabaseEntry;
+import net.i2p.data.Hash;
+import net.i2p.data.LeaseSet;
+import net.i2p.data.RouterIdentity;
+import net.i2p.data.RouterInfo;
+import net.i2p.data.i2np.DatabaseStoreMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  Handle incoming DatabaseStoreMessages in batches when we are floodfill,
+ *  instead of one HandleFloodfillDatabaseStoreMessageJob on the job queue for each.
+ *
+ *  Stores are collected for a short time, and deduplicated by key and date
+ *  (RouterInfo published date or LeaseSet earliest lease date) against
+ *  the netDb and the other queued stores, before any signature is checked.
+ *  Duplicates are only acked. The newer stores for a key
+ *  are all kept until the batch, newest first, up to MAX_CANDIDATES,
+ *  so that if the newest has a bad signature we fall back to the next one,
+ *  and a few forged newer stores can't push out the real one.
+ *  The signatures of the newest are checked
+ *  in parallel on a small thread pool, then each store is handled
+ *  in our thread, in order, by the same code as the job, and the new entries
+ *  are flooded together, grouped by target floodfill.
+ *
+ *  If too many stores are queued, add() returns false and the caller
+ *  falls back to the job.
+ *
+ *  @since 0.9.10
+ */
+class FloodfillStoreBatcher implements Runnable {
+    private final RouterContext _context;
+    private final Log _log;
+    private final FloodfillNetworkDatabaseFacade _facade;
+    /** key to stores, newest first. Synch on this. */
+    private final Map<Hash, List<Pending>> _pending;
+    /** total of the _pending lists. Synch on this. */
+    private int _pendingCount;
+    /** stores to only ack. Synch on this. */
+    private final List<HandleFloodfillDatabaseStoreMessageJob> _duplicates;
+    private final ThreadPoolExecutor _verifier;
+    private volatile boolean _isRunning;
+
+    /** wait this long for more stores after the first */
+    private static final long BATCH_DELAY = 50;
+    private static final int MAX_BATCH = 64;
+    /** pending and duplicates, above this we fall back to the job */
+    private static final int MAX_QUEUED = 512;
+    private static final int MAX_VERIFY_THREADS = 4;
+    /** unverified stores per key, above this we fall back to the job */
+    private static final int MAX_CANDIDATES = 4;
+
+    public FloodfillStoreBatcher(RouterContext ctx, FloodfillNetworkDatabaseFacade facade) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(FloodfillStoreBatcher.class);
+        _facade = facade;
+        _pending = new LinkedHashMap<Hash, List<Pending>>(MAX_BATCH);
+        _duplicates = new ArrayList<HandleFloodfillDatabaseStoreMessageJob>();
+        int threads = Math.max(1, Math.min(MAX_VERIFY_THREADS, SystemVersion.getCores()));
+        // use unbounded queue, so maximumPoolSize and keepAliveTime have no effect
+        _verifier = new ThreadPoolExecutor(threads, threads, 1000, TimeUnit.MILLISECONDS,
+                                           new LinkedBlockingQueue<Runnable>(), new VerifierThreadFactory(threads));
+        ctx.statManager().createRateStat("netDb.storeBatchSize", "How many stores were handled in a batch?", "NetworkDatabase", new long[] { 60*60*1000l });
+        ctx.statManager().createRateStat("netDb.storeBatchTime", "How long it takes to verify, store, and flood a batch (ms)?", "NetworkDatabase", new long[] { 60*60*1000l });
+        ctx.statManager().createRateStat("netDb.storeDuplicate", "How many stores were dropped as duplicates before verifying?", "NetworkDatabase", new long[] { 60*60*1000l });
+        ctx.statManager().createRateStat("netDb.storeBatchFull", "How often the store batcher was full?", "NetworkDatabase", new long[] { 60*60*1000l });
+    }
+
+    public synchronized void startup() {
+        if (_isRunning)
+            return;
+        _isRunning = true;
+        I2PThread t = new I2PThread(this, "NetDb Store Batcher", true);
+        t.start();
+    }
+
+    /**
+     *  Queued stores are dropped.
+     */
+    public synchronized void shutdown() {
+        _isRunning = false;
+        _pending.clear();
+        _pendingCount = 0;
+        _duplicates.clear();
+        _verifier.shutdownNow();
+        notifyAll();
+    }
+
+    /**
+     *  @param from may be null
+     *  @param fromHash may be null
+     *  @return false if not queued, caller must handle it
+     */
+    public boolean add(DatabaseStoreMessage msg, RouterIdentity from, Hash fromHash) {
+        if (!_isRunning)
+            return false;
+        DatabaseEntry entry = msg.getEntry();
+        int type = entry.getType();
+        if (type != DatabaseEntry.KEY_TYPE_ROUTERINFO && type != DatabaseEntry.KEY_TYPE_LEASESET)
+            return false;
+        Hash key = msg.getKey();
+        long date = getDate(entry);
+        HandleFloodfillDatabaseStoreMessageJob job =
+            new HandleFloodfillDatabaseStoreMessageJob(_context, msg, from, fromHash, _facade);
+        // not newer than what we have?
+        DatabaseEntry cur = _facade.lookupLocallyWithoutValidation(key);
+        boolean dup = cur != null && cur.getType() == type && getDate(cur) >= date;
+        synchronized (this) {
+            if (_pendingCount + _duplicates.size() >= MAX_QUEUED) {
+                _context.statManager().addRateData("netDb.storeBatchFull", 1);
+                return false;
+            }
+            if (dup) {
+                _duplicates.add(job);
+            } else {
+                List<Pending> list = _pending.get(key);
+                if (list != null && list.get(0).date >= date) {
+                    _duplicates.add(job);
+                } else {
+                    if (list == null) {
+                        list = new ArrayList<Pending>(MAX_CANDIDATES);
+                    } else if (list.size() >= MAX_CANDIDATES) {
+                        // don't push out an older one that may be the only valid one,
+                        // let the job check this one now
+                        _context.statManager().addRateData("netDb.storeBatchFull", 1);
+                        return false;
+                    }
+                    // older ones are kept in case this one's forged
+                    list.add(0, new Pending(job, entry, date));
+                    _pendingCount++;
+                    // remove first so it goes to the end
+                    _pending.remove(key);
+                    _pending.put(key, list);
+                }
+            }
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     *  RouterInfo published date or LeaseSet earliest lease date,
+     *  as compared by TransientDataStore.put()
+     */
+    private static long getDate(DatabaseEntry entry) {
+        if (entry.getType() == DatabaseEntry.KEY_TYPE_LEASESET)
+            return ((LeaseSet) entry).getEarliestLeaseDate();
+        return entry.getDate();
+    }
+
+    public void run() {
+        while (_isRunning) {
+            List<List<Pending>> batch = new ArrayList<List<Pending>>(MAX_BATCH);
+            List<HandleFloodfillDatabaseStoreMessageJob> dups;
+            try {
+                synchronized (this) {
+                    while (_isRunning && _pending.isEmpty() && _duplicates.isEmpty()) {
+                        wait();
+                    }
+                    // gather more
+                    if (_isRunning && _pending.size() < MAX_BATCH)
+                        wait(BATCH_DELAY);
+                    if (!_isRunning)
+                        break;
+                    for (Iterator<List<Pending>> iter = _pending.values().iterator(); iter.hasNext() && batch.size() < MAX_BATCH; ) {
+                        List<Pending> list = iter.next();
+                        batch.add(list);
+                        _pendingCount -= list.size();
+                        iter.remove();
+                    }
+                    dups = new ArrayList<HandleFloodfillDatabaseStoreMessageJob>(_duplicates);
+                    _duplicates.clear();
+                }
+            } catch (InterruptedException ie) {
+                break;
+            }
+            try {
+                process(batch, dups);
+            } catch (RuntimeException re) {
+                _log.error("Error handling netDb stores", re);
+            }
+        }
+    }
+
+    /**
+     *  @param batch for each key, the stores newest first
+     */
+    private void process(List<List<Pending>> batch, List<HandleFloodfillDatabaseStoreMessageJob> dups) {
+        long begin = System.currentTimeMillis();
+        // start the signature checks of the newest first
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(batch.size());
+        try {
+            for (List<Pending> list : batch) {
+                results.add(_verifier.submit(new Verifier(list.get(0).entry)));
+            }
+        } catch (RejectedExecutionException ree) {
+            // shutdown
+            return;
+        }
+        for (HandleFloodfillDatabaseStoreMessageJob job : dups) {
+            job.handleDuplicate();
+        }
+        if (!dups.isEmpty())
+            _context.statManager().addRateData("netDb.storeDuplicate", dups.size());
+        List<DatabaseEntry> toFlood = new ArrayList<DatabaseEntry>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            List<Pending> list = batch.get(i);
+            boolean valid;
+            try {
+                valid = results.get(i).get().booleanValue();
+            } catch (ExecutionException ee) {
+                valid = false;
+            } catch (InterruptedException ie) {
+                return;
+            }
+            for (int j = 0; j < list.size(); j++) {
+                Pending p = list.get(j);
+                if (valid) {
+                    if (j > 0 && _log.shouldLog(Log.WARN))
+                        _log.warn("Bad signature on " + j + " newer stores of " + p.entry.getHash() + ", used an older one");
+                    p.job.setVerified(true);
+                    if (p.job.handle())
+                        toFlood.add(p.entry);
+                    // only ack the older ones
+                    for (int k = j + 1; k < list.size(); k++) {
+                        list.get(k).job.handleDuplicate();
+                    }
+                    break;
+                }
+                // let the store() check it again and reject it as usual
+                p.job.setVerified(false);
+                p.job.handle();
+                // rare, check the next one here
+                if (j + 1 < list.size())
+                    valid = new Verifier(list.get(j + 1).entry).call().booleanValue();
+            }
+        }
+        if (!toFlood.isEmpty()) {
+            long floodBegin = System.currentTimeMillis();
+            _facade.flood(toFlood);
+            long floodTime = System.currentTimeMillis() - floodBegin;
+            _context.statManager().addRateData("netDb.storeFloodNew", floodTime / toFlood.size(), 0);
+        }
+        if (!batch.isEmpty()) {
+            _context.statManager().addRateData("netDb.storeBatchSize", batch.size());
+            _context.statManager().addRateData("netDb.storeBatchTime", System.currentTimeMillis() - begin);
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Handled " + batch.size() + " stores and " + dups.size() + " duplicates, flooded " +
+                       toFlood.size() + " in " + (System.currentTimeMillis() - begin) + " ms");
+    }
+
+    private static class Pending {
+        final HandleFloodfillDatabaseStoreMessageJob job;
+        final DatabaseEntry entry;
+        final long date;
+
+        public Pending(HandleFloodfillDatabaseStoreMessageJob job, DatabaseEntry entry, long date) {
+            this.job = job;
+            this.entry = entry;
+            this.date = date;
+        }
+    }
+
+    /**
+     *  Check the signature. RouterInfo caches the result,
+     *  LeaseSet doesn't, the job tells the facade not to check it again.
+     */
+    private static class Verifier implements Callable<Boolean> {
+        private final DatabaseEntry _entry;
+
+        public Verifier(DatabaseEntry entry) {
+            _entry = entry;
+        }
+
+        public Boolean call() {
+            boolean rv;
+            if (_entry.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+                rv = ((RouterInfo) _entry).isValid();
+            else
+                rv = ((LeaseSet) _entry).verifySignature();
+            return Boolean.valueOf(rv);
+        }
+    }
+
+    private static class VerifierThreadFactory implements ThreadFactory {
+        private final int _threads;
+        private int _count;
+
+        public VerifierThreadFactory(int threads) {
+            _threads = threads;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("NetDb Store Verifier " + (++_count) + '/' + _threads);
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
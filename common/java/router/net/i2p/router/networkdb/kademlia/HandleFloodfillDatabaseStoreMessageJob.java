@@ -34,6 +34,8 @@ public class HandleFloodfillDatabaseStoreMessageJob extends JobImpl {
     private final RouterIdentity _from;
     private Hash _fromHash;
     private final FloodfillNetworkDatabaseFacade _facade;
+    /** signature already checked by the caller */
+    private boolean _verified;
 
     public HandleFloodfillDatabaseStoreMessageJob(RouterContext ctx, DatabaseStoreMessage receivedMessage, RouterIdentity from, Hash fromHash, FloodfillNetworkDatabaseFacade facade) {
         super(ctx);
@@ -45,6 +47,34 @@ public class HandleFloodfillDatabaseStoreMessageJob extends JobImpl {
     }
     
     public void runJob() {
+        if (handle()) {
+            long floodBegin = System.currentTimeMillis();
+            _facade.flood(_message.getEntry());
+            // ERR: see comment in HandleDatabaseLookupMessageJob regarding hidden mode
+            //else if (!_message.getRouterInfo().isHidden())
+            long floodEnd = System.currentTimeMillis();
+            getContext().statManager().addRateData("netDb.storeFloodNew", floodEnd-floodBegin, 0);
+        }
+    }
+
+    /**
+     *  The signature was checked by the caller and is good,
+     *  so the facade doesn't have to check it again.
+     *
+     *  @since 0.9.10
+     */
+    void setVerified(boolean verified) {
+        _verified = verified;
+    }
+
+    /**
+     *  Store it, ack it, and decide whether to flood it.
+     *  runJob() without the flood, for FloodfillStoreBatcher.
+     *
+     *  @return true if it should be flooded now, caller must flood it
+     *  @since 0.9.10 split out of runJob()
+     */
+    boolean handle() {
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("Handling database store message");
 
@@ -91,7 +121,7 @@ public class HandleFloodfillDatabaseStoreMessageJob extends JobImpl {
                 //boolean rap = ls.getReceivedAsPublished();
                 //if (_log.shouldLog(Log.INFO))
                 //    _log.info("oldrap? " + oldrap + " oldrar? " + oldrar + " newrap? " + rap);
-                LeaseSet match = getContext().netDb().store(key, ls);
+                LeaseSet match = _verified ? _facade.store(key, ls, false) : getContext().netDb().store(key, ls);
                 if (match == null) {
                     wasNew = true;
                 } else if (match.getEarliestLeaseDate() < ls.getEarliestLeaseDate()) {
@@ -196,19 +226,33 @@ public class HandleFloodfillDatabaseStoreMessageJob extends JobImpl {
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("Too many recent stores, not flooding key: " + key);
                     getContext().statManager().addRateData("netDb.floodThrottled", 1, 0);
-                    return;
+                    return false;
                 }
-                long floodBegin = System.currentTimeMillis();
-                _facade.flood(_message.getEntry());
-                // ERR: see comment in HandleDatabaseLookupMessageJob regarding hidden mode
-                //else if (!_message.getRouterInfo().isHidden())
-                long floodEnd = System.currentTimeMillis();
-                getContext().statManager().addRateData("netDb.storeFloodNew", floodEnd-floodBegin, 0);
+                return true;
             } else {
                 // don't flood it *again*
                 getContext().statManager().addRateData("netDb.storeFloodOld", 1, 0);
             }
         }
+        return false;
+    }
+
+    /**
+     *  For a store that is not newer than one we already have or have queued,
+     *  so it's not verified or stored, only acked, as handle() would do.
+     *
+     *  @since 0.9.10
+     */
+    void handleDuplicate() {
+        if (_message.getReplyToken() > 0) 
+            sendAck();
+        if (_from != null)
+            _fromHash = _from.getHash();
+        if (_fromHash != null)
+            getContext().profileManager().dbStoreReceived(_fromHash, false);
+        if (getContext().netDb().floodfillEnabled() &&
+            _message.getReplyToken() > 0)
+            getContext().statManager().addRateData("netDb.storeFloodOld", 1, 0);
     }
     
     private void sendAck() {
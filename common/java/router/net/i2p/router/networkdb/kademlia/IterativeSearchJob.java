@@ -63,6 +63,8 @@ class IterativeSearchJob extends FloodSearchJob {
     private OutNetMessage _out;
     /** testing */
     private static Hash _alwaysQueryHash;
+    /** the floodfill that answered the last lookup for this key, queried first, or null */
+    private Hash _preferredPeer;
 
     private static final int MAX_NON_FF = 3;
     /** Max number of peers to query */
@@ -154,7 +156,16 @@ class IterativeSearchJob extends FloodSearchJob {
         // don't ask ourselves or the target
         _toTry.remove(getContext().routerHash());
         _toTry.remove(_key);
-        if (_toTry.isEmpty()) {
+        Hash last = _facade.getLastResponder(_key);
+        if (last != null && !last.equals(_key) && !last.equals(getContext().routerHash()) &&
+            !getContext().banlist().isBanlisted(last) &&
+            FloodfillNetworkDatabaseFacade.isFloodfill(getContext().netDb().lookupRouterInfoLocally(last))) {
+            // it's the most likely to have the republished entry
+            _preferredPeer = last;
+            _toTry.remove(last);
+            getContext().statManager().addRateData("netDb.lookupPreferred", 1);
+        }
+        if (_toTry.isEmpty() && _preferredPeer == null) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn(getJobId() + ": ISJ for " + _key + " had no peers to send to");
             // no floodfill peers, fail
@@ -171,7 +182,8 @@ class IterativeSearchJob extends FloodSearchJob {
             _log.info(getJobId() + ": New ISJ for " +
                       (_isLease ? "LS " : "RI ") +
                       _key + " (rkey " + _rkey + ") timeout " +
-                      DataHelper.formatDuration(_timeoutMs) + " toTry: "  + DataHelper.toString(_toTry));
+                      DataHelper.formatDuration(_timeoutMs) + " toTry: "  + DataHelper.toString(_toTry) +
+                      (_preferredPeer != null ? " first: " + _preferredPeer : ""));
         retry();
     }
 
@@ -212,6 +224,9 @@ class IterativeSearchJob extends FloodSearchJob {
                     // May be set after startup but can't be changed or unset later.
                     // Warning - experts only!
                     peer = _alwaysQueryHash;
+                } else if (_preferredPeer != null) {
+                    peer = _preferredPeer;
+                    _preferredPeer = null;
                 } else {
                     if (_toTry.isEmpty())
                         return;
@@ -417,6 +432,7 @@ class IterativeSearchJob extends FloodSearchJob {
             }
         }
         _facade.complete(_key);
+        _facade.lookupSucceeded(_key, peer);
         if (peer != null) {
             Long timeSent = _sentTime.get(peer);
             if (timeSent != null)
@@ -9,6 +9,7 @@ package net.i2p.router.networkdb.kademlia;
  */
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -18,6 +19,7 @@ import java.util.Map;
 import java.util.Set;
 
 import net.i2p.data.DatabaseEntry;
+import net.i2p.data.CompactRouterInfo;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.LeaseSet;
@@ -47,6 +49,11 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     private String _dbDir;
     // set of Hash objects that we should search on (to fill up a bucket, not to get data)
     private final Set<Hash> _exploreKeys = new ConcurrentHashSet<Hash>(64);
+    /**
+     *  RouterInfos loaded from disk at startup whose signature hasn't been checked yet.
+     *  @since 0.9.10
+     */
+    private final Set<Hash> _unverified = new ConcurrentHashSet<Hash>(256);
     private boolean _initialized;
     /** Clock independent time of when we started up */
     private long _started;
@@ -152,6 +159,8 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         context.statManager().createRateStat("netDb.replyTimeout", "How long after a netDb send does the timeout expire (when the peer doesn't reply in time)?", "NetworkDatabase", new long[] { 60*60*1000l });
         // following is for RepublishLeaseSetJob
         context.statManager().createRateStat("netDb.republishLeaseSetCount", "How often we republish a leaseSet?", "NetworkDatabase", new long[] { 60*60*1000l });
+        context.statManager().createRateStat("netDb.verifyOnUse", "How many stored RIs were still unverified when first used?", "NetworkDatabase", new long[] { 60*60*1000l });
+        context.statManager().createRateStat("netDb.deferredVerifyFail", "How many stored RIs failed the deferred signature check?", "NetworkDatabase", new long[] { 60*60*1000l });
     }
     
     @Override
@@ -350,11 +359,11 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     /** get the hashes for all known routers */
     public Set<Hash> getAllRouters() {
         if (!_initialized) return Collections.emptySet();
-        Set<Map.Entry<Hash, DatabaseEntry>> entries = _ds.getMapEntries();
-        Set<Hash> rv = new HashSet<Hash>(entries.size());
-        for (Map.Entry<Hash, DatabaseEntry> entry : entries) {
-            if (entry.getValue().getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
-                rv.add(entry.getKey());
+        Set<Hash> keys = _ds.getKeys();
+        Set<Hash> rv = new HashSet<Hash>(keys.size());
+        for (Hash key : keys) {
+            if (_ds.getType(key) == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
+                rv.add(key);
             }
         }
         return rv;
@@ -373,8 +382,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         public int size() { return _count; }
         public void add(Hash entry) {
             if (_ds == null) return;
-            DatabaseEntry o = _ds.get(entry);
-            if (o != null && o.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            if (_ds.getType(entry) == DatabaseEntry.KEY_TYPE_ROUTERINFO)
                 _count++;
         }
     }
@@ -391,8 +399,11 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         if (_ds == null) return 0;
         //return _ds.countLeaseSets();
         int rv = 0;
-        for (DatabaseEntry ds : _ds.getEntries()) {
-            if (ds.getType() == DatabaseEntry.KEY_TYPE_LEASESET &&
+        for (Hash key : _ds.getKeys()) {
+            if (_ds.getType(key) != DatabaseEntry.KEY_TYPE_LEASESET)
+                continue;
+            DatabaseEntry ds = _ds.get(key);
+            if (ds != null && ds.getType() == DatabaseEntry.KEY_TYPE_LEASESET &&
                 ((LeaseSet)ds).getReceivedAsPublished())
                 rv++;
         }
@@ -426,6 +437,11 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
             else
                 fail(key);
         } else if (rv.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
+            if (!_unverified.isEmpty() && _unverified.contains(key)) {
+                _context.statManager().addRateData("netDb.verifyOnUse", 1);
+                if (verifyDeferred(key) < 0)
+                    return null;
+            }
             try {
                 if (validate((RouterInfo)rv) == null)
                     return rv;
@@ -505,6 +521,11 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
                 // more aggressive than perhaps is necessary, but makes sure we
                 // drop old references that we had accepted on startup (since 
                 // startup allows some lax rules).
+                if (!_unverified.isEmpty() && _unverified.contains(key)) {
+                    _context.statManager().addRateData("netDb.verifyOnUse", 1);
+                    if (verifyDeferred(key) < 0)
+                        return null;
+                }
                 boolean valid = true;
                 try {
                     valid = (null == validate((RouterInfo)ds));
@@ -645,16 +666,17 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
      * Unlike for RouterInfos, this is only called once, when stored.
      * After that, LeaseSet.isCurrent() is used.
      *
+     * @param verify if false, don't check the signature, the caller already did
      * @return reason why the entry is not valid, or null if it is valid
      */
-    private String validate(Hash key, LeaseSet leaseSet) {
+    private String validate(Hash key, LeaseSet leaseSet, boolean verify) {
         if (!key.equals(leaseSet.getDestination().calculateHash())) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Invalid store attempt! key does not match leaseSet.destination!  key = "
                           + key + ", leaseSet = " + leaseSet);
             return "Key does not match leaseSet.destination - " + key.toBase64();
         }
-        if (!leaseSet.verifySignature()) {
+        if (verify && !leaseSet.verifySignature()) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Invalid leaseSet signature!  leaseSet = " + leaseSet);
             return "Invalid leaseSet signature on " + leaseSet.getDestination().calculateHash().toBase64();
@@ -696,6 +718,14 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
      * @return previous entry or null
      */
     public LeaseSet store(Hash key, LeaseSet leaseSet) throws IllegalArgumentException {
+        return store(key, leaseSet, true);
+    }
+
+    /**
+     *  @param verify if false, the caller has already checked the signature
+     *  @since 0.9.10
+     */
+    LeaseSet store(Hash key, LeaseSet leaseSet, boolean verify) throws IllegalArgumentException {
         if (!_initialized) return null;
         
         LeaseSet rv = null;
@@ -713,7 +743,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         if (rv != null && !leaseSet.getDestination().equals(rv.getDestination()))
             throw new IllegalArgumentException("LS Hash collision");
 
-        String err = validate(key, leaseSet);
+        String err = validate(key, leaseSet, verify);
         if (err != null)
             throw new IllegalArgumentException("Invalid store attempt - " + err);
         
@@ -749,15 +779,17 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
      *
      * Call this only on first store, to check the key and signature once
      *
+     * @param verify if false, don't check the signature, the caller must
+     *               arrange for it to be checked before use
      * @return reason why the entry is not valid, or null if it is valid
      */
-    private String validate(Hash key, RouterInfo routerInfo) throws IllegalArgumentException {
+    private String validate(Hash key, RouterInfo routerInfo, boolean verify) throws IllegalArgumentException {
         if (!key.equals(routerInfo.getIdentity().getHash())) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Invalid store attempt! key does not match routerInfo.identity!  key = " + key + ", router = " + routerInfo);
             return "Key does not match routerInfo.identity";
         }
-        if (!routerInfo.isValid()) {
+        if (verify && !routerInfo.isValid()) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Invalid routerInfo signature!  forged router structure!  router = " + routerInfo);
             return "Invalid routerInfo signature";
@@ -853,6 +885,15 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     }
 
     RouterInfo store(Hash key, RouterInfo routerInfo, boolean persist) throws IllegalArgumentException {
+        return store(key, routerInfo, persist, true);
+    }
+
+    /**
+     *  @param verify if false, the signature is not checked now, but before the first use,
+     *                or by the DeferredVerifyJob started with startDeferredVerify()
+     *  @since 0.9.10
+     */
+    RouterInfo store(Hash key, RouterInfo routerInfo, boolean persist, boolean verify) throws IllegalArgumentException {
         if (!_initialized) return null;
         
         RouterInfo rv = null;
@@ -870,7 +911,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         if (rv != null && !routerInfo.getIdentity().equals(rv.getIdentity()))
             throw new IllegalArgumentException("RI Hash collision");
 
-        String err = validate(key, routerInfo);
+        String err = validate(key, routerInfo, verify);
         if (err != null)
             throw new IllegalArgumentException("Invalid store attempt - " + err);
         
@@ -881,10 +922,70 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     
         _context.peerManager().setCapabilities(key, routerInfo.getCapabilities());
         _ds.put(key, routerInfo, persist);
+        if (verify)
+            _unverified.remove(key);
+        else
+            _unverified.add(key);
         if (rv == null)
             _kb.add(key);
         return rv;
     }
+
+    /**
+     *  Start verifying the signatures of the RouterInfos stored with verify == false,
+     *  in the background.
+     *
+     *  @since 0.9.10
+     */
+    void startDeferredVerify() {
+        if (!_unverified.isEmpty())
+            _context.jobQueue().addJob(new DeferredVerifyJob(_context, this));
+    }
+
+    /**
+     *  @return a copy of the hashes of the RouterInfos not yet verified
+     *  @since 0.9.10
+     */
+    Set<Hash> getUnverified() {
+        return new HashSet<Hash>(_unverified);
+    }
+
+    /**
+     *  Check the signature of a RouterInfo stored with verify == false,
+     *  and drop it if it's bad.
+     *
+     *  @return 1 if verified, 0 if it didn't need it (already verified, replaced, or gone),
+     *          -1 if the signature was bad and it was dropped
+     *  @since 0.9.10
+     */
+    int verifyDeferred(Hash key) {
+        if (!_unverified.remove(key))
+            return 0;
+        boolean known = _ds.isKnown(key);
+        // in compact mode, this checks the signature, and drops it through dropBadSignature()
+        DatabaseEntry ds = _ds.get(key);
+        if (ds == null)
+            return known ? -1 : 0;
+        if (ds.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            return 0;
+        if (((RouterInfo) ds).isValid())
+            return 1;
+        dropBadSignature(key);
+        return -1;
+    }
+
+    /**
+     *  Drop a RouterInfo stored with verify == false whose signature turned out bad,
+     *  here or on the first decode in compact mode.
+     *
+     *  @since 0.9.10
+     */
+    void dropBadSignature(Hash key) {
+        if (_log.shouldLog(Log.WARN))
+            _log.warn("Invalid signature on stored routerInfo, dropping: " + key);
+        _context.statManager().addRateData("netDb.deferredVerifyFail", 1);
+        dropAfterLookupFailed(key);
+    }
     
     /**
      *   Final remove for a leaseset.
@@ -925,6 +1026,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
      *  Do NOT use for leasesets.
      */
     void dropAfterLookupFailed(Hash peer) {
+        _unverified.remove(peer);
         _context.peerManager().removeCapabilities(peer);
         _kb.remove(peer);
         //if (removed) {
@@ -989,13 +1091,30 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     public Set<LeaseSet> getLeases() {
         if (!_initialized) return null;
         Set<LeaseSet> leases = new HashSet<LeaseSet>();
-        for (DatabaseEntry o : getDataStore().getEntries()) {
-            if (o.getType() == DatabaseEntry.KEY_TYPE_LEASESET)
+        DataStore ds = getDataStore();
+        for (Hash key : ds.getKeys()) {
+            if (ds.getType(key) != DatabaseEntry.KEY_TYPE_LEASESET)
+                continue;
+            DatabaseEntry o = ds.get(key);
+            if (o != null && o.getType() == DatabaseEntry.KEY_TYPE_LEASESET)
                 leases.add((LeaseSet)o);
         }
         return leases;
     }
 
+    /**
+     *  The RouterInfo headers, for callers that only need the caps, version, published date, or IPs
+     *  of all the routers, so they don't have to decode them all.
+     *
+     *  @return null if the netDb is not in compact mode, use getRouters() or getKnownRouterData() instead
+     *  @since 0.9.10
+     */
+    public Collection<CompactRouterInfo> getCompactRouterInfos() {
+        if (!_initialized || !(_ds instanceof TransientDataStore))
+            return null;
+        return ((TransientDataStore) _ds).getCompactRouterInfos();
+    }
+
     /** public for NetDbRenderer in routerconsole */
     @Override
     public Set<RouterInfo> getRouters() {
@@ -0,0 +1,79 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.Map;
+
+import net.i2p.data.Hash;
+import net.i2p.util.LHMCache;
+
+/**
+ * Per-key lookup history, the positive counterpart of NegativeLookupCache.
+ *
+ * For each recently found key, we remember which floodfill answered last,
+ * and until when the entry it returned is valid.
+ * When the entry expires, the floodfill that answered last
+ * is the most likely to have the republished entry, so it is queried first.
+ * There's no positive cache here, the netDb is that, and the facade
+ * only searches when the entry isn't stored.
+ *
+ * The per-peer success rates are in the peer profiles (DBHistory) and are
+ * used by FloodfillPeerSelector.
+ *
+ * Thread safe.
+ *
+ * @since 0.9.10
+ */
+class LookupHistory {
+    private final Map<Hash, Entry> _entries;
+
+    private static final int MAX_ENTRIES = 512;
+    /**
+     *  Don't prefer the last responder after this long past the entry expiration,
+     *  the keyspace rotates daily so it may not be close to the key anymore.
+     */
+    private static final long MAX_RESPONDER_AGE = 60*60*1000;
+
+    public LookupHistory() {
+        _entries = new LHMCache<Hash, Entry>(MAX_ENTRIES);
+    }
+
+    /**
+     *  @param peer the floodfill that answered, or null if unknown
+     *  @param expires when the found entry expires (context time)
+     */
+    public void lookupSucceeded(Hash key, Hash peer, long expires) {
+        synchronized (_entries) {
+            Entry e = _entries.get(key);
+            if (e == null) {
+                e = new Entry();
+                _entries.put(key, e);
+            }
+            e.expires = expires;
+            if (peer != null)
+                e.responder = peer;
+        }
+    }
+
+    /**
+     *  @param now context time
+     *  @return the floodfill that answered the last successful lookup, or null
+     */
+    public Hash getResponder(Hash key, long now) {
+        synchronized (_entries) {
+            Entry e = _entries.get(key);
+            if (e == null || e.expires + MAX_RESPONDER_AGE < now)
+                return null;
+            return e.responder;
+        }
+    }
+
+    public void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+    private static class Entry {
+        long expires;
+        Hash responder;
+    }
+}
@@ -10,19 +10,32 @@ package net.i2p.router.networkdb.kademlia;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.Base64;
+import net.i2p.data.CompactRouterInfo;
 import net.i2p.data.DatabaseEntry;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Hash;
@@ -35,11 +48,22 @@ import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.SecureDirectory;
 import net.i2p.util.SecureFileOutputStream;
+import net.i2p.util.SystemVersion;
 
 /**
  * Write out keys to disk when we get them and periodically read ones we don't know
  * about into memory, with newly read routers are also added to the routing table.
  *
+ * As of 0.9.10, if router.networkDatabase.segmented=true, RouterInfos are stored in
+ * append-only segments (see SegmentedStore) instead of one file each.
+ * RouterInfo files found in the directory (old layout, or from reseeding)
+ * are moved into the segments as they are read.
+ * If it is disabled again, the segments are exported back to files at startup.
+ *
+ * As of 0.9.10, the initial load at startup parses the RouterInfos in parallel,
+ * and doesn't verify the signatures; the facade verifies them in the background,
+ * most useful peers first, or on first use, whichever comes first.
+ * Later reads (e.g. after a reseed) are serial and verified.
  */
 class PersistentDataStore extends TransientDataStore {
     private final File _dbDir;
@@ -48,9 +72,19 @@ class PersistentDataStore extends TransientDataStore {
     private final ReadJob _readJob;
     private volatile boolean _initialized;
     private final boolean _flat;
+    /** null unless enabled */
+    private final SegmentedStore _segments;
+    /** for the stats, writer thread only */
+    private long _writeBytes, _writeDiskBytes, _lastSegmentBytes;
     
     private final static int READ_DELAY = 2*60*1000;
     private static final String PROP_FLAT = "router.networkDatabase.flat";
+    /** @since 0.9.10 */
+    private static final String PROP_SEGMENTED = "router.networkDatabase.segmented";
+    /** a small file takes at least one block, for the write amplification stat */
+    private static final int FS_BLOCK_SIZE = 4096;
+    /** for the initial load */
+    private static final int MAX_LOADER_THREADS = 4;
     private static final String DIR_PREFIX = "r";
     private static final String B64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-~";
     
@@ -60,7 +94,15 @@ class PersistentDataStore extends TransientDataStore {
     public PersistentDataStore(RouterContext ctx, String dbDir, KademliaNetworkDatabaseFacade facade) throws IOException {
         super(ctx);
         _flat = ctx.getBooleanProperty(PROP_FLAT);
-        _dbDir = getDbDir(dbDir);
+        boolean segmented = ctx.getBooleanProperty(PROP_SEGMENTED);
+        _dbDir = getDbDir(dbDir, segmented);
+        if (segmented) {
+            _segments = new SegmentedStore(ctx, _dbDir);
+        } else {
+            _segments = null;
+            if (SegmentedStore.exists(_dbDir))
+                exportSegments();
+        }
         _facade = facade;
         _readJob = new ReadJob();
         _context.jobQueue().addJob(_readJob);
@@ -69,6 +111,9 @@ class PersistentDataStore extends TransientDataStore {
         ctx.statManager().createRateStat("netDb.writeOut", "How many we wrote", "NetworkDatabase", new long[] { 20*60*1000 });
         ctx.statManager().createRateStat("netDb.writeTime", "How long it took", "NetworkDatabase", new long[] { 20*60*1000 });
         //ctx.statManager().createRateStat("netDb.readTime", "How long one took", "NetworkDatabase", new long[] { 20*60*1000 });
+        ctx.statManager().createRequiredRateStat("netDb.loadTime", "Time to load the stored netDb at startup (ms)", "NetworkDatabase", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("netDb.writeBytes", "Bytes of entries written", "NetworkDatabase", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("netDb.writeDiskBytes", "Bytes written to disk (segments incl. compaction, or file blocks)", "NetworkDatabase", new long[] { 60*60*1000 });
         _writer = new Writer();
         I2PThread writer = new I2PThread(_writer, "DBWriter");
         // stop() must be called to flush data to disk
@@ -122,6 +167,15 @@ class PersistentDataStore extends TransientDataStore {
         return rv;
     }
 
+    /**
+     *  Drop it everywhere, including the file.
+     *  @since 0.9.10
+     */
+    @Override
+    protected void badSignature(Hash key, CompactRouterInfo cri) {
+        _facade.dropBadSignature(key);
+    }
+
     @Override
     public DatabaseEntry remove(Hash key) {
         return remove(key, true);
@@ -251,11 +305,29 @@ class PersistentDataStore extends TransientDataStore {
                     count = 0;
                 if (count == 0) {
                     if (lastCount > 0) {
+                        if (_segments != null) {
+                            synchronized (_dbDir) {
+                                try {
+                                    _segments.flush();
+                                    _segments.compact();
+                                } catch (IOException ioe) {
+                                    _log.error("Error writing the netDb segments", ioe);
+                                }
+                                long written = _segments.getBytesWritten();
+                                _writeDiskBytes += written - _lastSegmentBytes;
+                                _lastSegmentBytes = written;
+                            }
+                        }
                         long time = _context.clock().now() - startTime;
                         if (_log.shouldLog(Log.INFO))
-                            _log.info("Wrote " + lastCount + " entries to disk in " + time);
+                            _log.info("Wrote " + lastCount + " entries to disk in " + time +
+                                      ", " + _writeBytes + " bytes, " + _writeDiskBytes + " bytes on disk");
                          _context.statManager().addRateData("netDb.writeOut", lastCount);
                          _context.statManager().addRateData("netDb.writeTime", time);
+                         _context.statManager().addRateData("netDb.writeBytes", _writeBytes);
+                         _context.statManager().addRateData("netDb.writeDiskBytes", _writeDiskBytes);
+                         _writeBytes = 0;
+                         _writeDiskBytes = 0;
                     }
                     if (_quit)
                         break;
@@ -267,6 +339,11 @@ class PersistentDataStore extends TransientDataStore {
                     startTime = _context.clock().now();
                 }
             }
+            if (_segments != null) {
+                synchronized (_dbDir) {
+                    _segments.close();
+                }
+            }
         }
 
         public void flush() {
@@ -280,6 +357,10 @@ class PersistentDataStore extends TransientDataStore {
     private void write(Hash key, DatabaseEntry data) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Writing key " + key);
+        if (_segments != null) {
+            writeSegment(key, data);
+            return;
+        }
         OutputStream fos = null;
         File dbFile = null;
         try {
@@ -302,6 +383,9 @@ class PersistentDataStore extends TransientDataStore {
                     data.writeBytes(fos);
                     fos.close();
                     dbFile.setLastModified(dataPublishDate);
+                    long len = dbFile.length();
+                    _writeBytes += len;
+                    _writeDiskBytes += ((len + FS_BLOCK_SIZE - 1) / FS_BLOCK_SIZE) * FS_BLOCK_SIZE;
                 } catch (DataFormatException dfe) {
                     _log.error("Error writing out malformed object as " + key + ": " 
                                + data, dfe);
@@ -322,6 +406,60 @@ class PersistentDataStore extends TransientDataStore {
     private long getPublishDate(DatabaseEntry data) {
         return data.getDate();
     }
+
+    /**
+     *  Append to the segments if newer than what's there.
+     *  Caller must synch on _dbDir.
+     *  @return true if written or already up to date, false on error
+     *  @since 0.9.10
+     */
+    private boolean writeSegment(Hash key, DatabaseEntry data) {
+        long dataPublishDate = getPublishDate(data);
+        if (_segments.getPublished(key) >= dataPublishDate) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Not writing " + key.toBase64() + ", as its up to date in the segments");
+            return true;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+            data.writeBytes(baos);
+            byte[] b = baos.toByteArray();
+            _segments.put(key, dataPublishDate, b);
+            _writeBytes += b.length;
+            return true;
+        } catch (DataFormatException dfe) {
+            _log.error("Error writing out malformed object as " + key + ": " + data, dfe);
+        } catch (IOException ioe) {
+            _log.error("Error writing out the object", ioe);
+        }
+        return false;
+    }
+
+    /**
+     *  The segments were disabled, write them back out as files and delete them.
+     *  @since 0.9.10
+     */
+    private void exportSegments() {
+        try {
+            SegmentedStore store = new SegmentedStore(_context, _dbDir);
+            store.readAll(new SegmentedStore.EntryHandler() {
+                public void entry(Hash key, long published, byte[] data) throws IOException {
+                    File dbFile = new File(_dbDir, getRouterInfoName(key));
+                    OutputStream fos = new SecureFileOutputStream(dbFile);
+                    try {
+                        fos.write(data);
+                    } finally {
+                        fos.close();
+                    }
+                    dbFile.setLastModified(published);
+                }
+            });
+            _log.logAlways(Log.WARN, "Exported " + store.size() + " netDb entries from the segments to files");
+            store.delete();
+        } catch (IOException ioe) {
+            _log.error("Error exporting the netDb segments", ioe);
+        }
+    }
     
     /**
      *  This is mostly for manual reseeding, i.e. the user manually
@@ -374,17 +512,39 @@ class PersistentDataStore extends TransientDataStore {
         
         private void readFiles() {
             int routerCount = 0;
+            long start = System.currentTimeMillis();
 
             File routerInfoFiles[] = _dbDir.listFiles(RouterInfoFilter.getInstance());
-            if (_flat) {
+            if (_segments != null) {
+                if (!_initialized)
+                    loadSegments();
+                // move any new files, from reseeding or the old layout, into the segments
+                if (routerInfoFiles != null)
+                    readAndMigrate(routerInfoFiles);
+                for (int j = 0; j < B64.length(); j++) {
+                    File subdir = new File(_dbDir, DIR_PREFIX + B64.charAt(j));
+                    File[] files = subdir.listFiles(RouterInfoFilter.getInstance());
+                    if (files == null)
+                        continue;
+                    readAndMigrate(files);
+                    // only if empty
+                    subdir.delete();
+                }
+                routerCount = _segments.size();
+            } else if (_flat) {
                 if (routerInfoFiles != null) {
                     routerCount = routerInfoFiles.length;
+                    ParallelLoader loader = _initialized ? null : new ParallelLoader();
                     for (int i = 0; i < routerInfoFiles.length; i++) {
                         // drop out if the router gets killed right after startup
                         if (!_context.router().isAlive())
                             break;
                         Hash key = getRouterInfoHash(routerInfoFiles[i].getName());
                         if ( (key != null) && (!isKnown(key)) ) {
+                            if (loader != null) {
+                                loader.add(routerInfoFiles[i], key);
+                                continue;
+                            }
                             // Run it inline so we don't clog up the job queue, esp. at startup
                             // Also this allows us to wait until it is really done to call checkReseed() and set _initialized
                             //PersistentDataStore.this._context.jobQueue().addJob(new ReadRouterJob(routerInfoFiles[i], key));
@@ -393,11 +553,14 @@ class PersistentDataStore extends TransientDataStore {
                             //_context.statManager().addRateData("netDb.readTime", System.currentTimeMillis() - start);
                         }
                     }
+                    if (loader != null)
+                        loader.finish();
                 }
             } else {
                 // move all new RIs to subdirs, then scan those
                 if (routerInfoFiles != null)
                     migrate(_dbDir, routerInfoFiles);
+                ParallelLoader loader = _initialized ? null : new ParallelLoader();
                 for (int j = 0; j < B64.length(); j++) {
                     File subdir = new File(_dbDir, DIR_PREFIX + B64.charAt(j));
                     File[] files = subdir.listFiles(RouterInfoFilter.getInstance());
@@ -411,16 +574,28 @@ class PersistentDataStore extends TransientDataStore {
                         continue;
                     for (int i = 0; i < files.length; i++) {
                         Hash key = getRouterInfoHash(files[i].getName());
-                        if (key != null && !isKnown(key))
+                        if (key == null || isKnown(key))
+                            continue;
+                        if (loader != null)
+                            loader.add(files[i], key);
+                        else
                             (new ReadRouterJob(files[i], key)).runJob();
                     }
                 }
+                if (loader != null)
+                    loader.finish();
             }
             
             if (!_initialized) {
+                long time = System.currentTimeMillis() - start;
+                _context.statManager().addRateData("netDb.loadTime", time);
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Loaded " + size() + " netDb entries in " + time + " ms from " +
+                              (_segments != null ? "segments" : "files"));
                 if (_facade.reseedChecker().checkReseed(routerCount))
                     _lastReseed = _context.clock().now();
                 _initialized = true;
+                _facade.startDeferredVerify();
             } else if (_lastReseed < _context.clock().now() - MIN_RESEED_INTERVAL) {
                 int count = Math.min(routerCount, size());
                 if (count < MIN_ROUTERS) {
@@ -429,8 +604,176 @@ class PersistentDataStore extends TransientDataStore {
                 }
             }
         }
+
+        /**
+         *  Read everything in the segments.
+         *  Caller must synch on _dbDir.
+         *  @since 0.9.10
+         */
+        private void loadSegments() {
+            final ParallelLoader loader = new ParallelLoader();
+            try {
+                _segments.readAll(new SegmentedStore.EntryHandler() {
+                    public void entry(Hash key, long published, byte[] data) {
+                        if (!isKnown(key))
+                            loader.add(key, data);
+                    }
+                });
+            } catch (IOException ioe) {
+                _log.error("Error reading the netDb segments", ioe);
+            }
+            loader.finish();
+        }
+
+        /**
+         *  Read the files, move them into the segments, and delete them.
+         *  A file that couldn't be written to the segments is kept for the next time.
+         *  Caller must synch on _dbDir.
+         *  @since 0.9.10
+         */
+        private void readAndMigrate(File[] files) {
+            for (int i = 0; i < files.length; i++) {
+                if (!_context.router().isAlive())
+                    break;
+                Hash key = getRouterInfoHash(files[i].getName());
+                if (key == null)
+                    continue;
+                (new ReadRouterJob(files[i], key)).runJob();
+                // persist = false to call only super.get()
+                DatabaseEntry data = get(key, false);
+                if (data != null && data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO &&
+                    !writeSegment(key, data))
+                    continue;
+                files[i].delete();
+            }
+        }
     }
     
+    /**
+     *  Parse the RouterInfos for the initial load in parallel, without verifying the signatures,
+     *  then store them in order in the caller's thread.
+     *  Add everything, then call finish() once.
+     *  Caller must synch on _dbDir.
+     *
+     *  @since 0.9.10
+     */
+    private class ParallelLoader {
+        private final ThreadPoolExecutor _executor;
+        private final List<Hash> _keys = new ArrayList<Hash>(1024);
+        /** null for the segments */
+        private final List<File> _files = new ArrayList<File>(1024);
+        private final List<Future<RouterInfo>> _results = new ArrayList<Future<RouterInfo>>(1024);
+        private final long _start = System.currentTimeMillis();
+
+        public ParallelLoader() {
+            int threads = Math.max(1, Math.min(MAX_LOADER_THREADS, SystemVersion.getCores()));
+            // use unbounded queue, so maximumPoolSize and keepAliveTime have no effect
+            _executor = new ThreadPoolExecutor(threads, threads, 1000, TimeUnit.MILLISECONDS,
+                                               new LinkedBlockingQueue<Runnable>(), new LoaderThreadFactory(threads));
+        }
+
+        public void add(final File file, Hash key) {
+            add(key, file, new Callable<RouterInfo>() {
+                public RouterInfo call() throws Exception {
+                    InputStream fis = null;
+                    try {
+                        fis = new BufferedInputStream(new FileInputStream(file));
+                        RouterInfo ri = new RouterInfo();
+                        ri.readBytes(fis, false);  // false = verify sig later
+                        return ri;
+                    } finally {
+                        if (fis != null) try { fis.close(); } catch (IOException ioe) {}
+                    }
+                }
+            });
+        }
+
+        public void add(Hash key, final byte[] data) {
+            add(key, null, new Callable<RouterInfo>() {
+                public RouterInfo call() throws Exception {
+                    RouterInfo ri = new RouterInfo();
+                    ri.readBytes(new ByteArrayInputStream(data), false);  // false = verify sig later
+                    return ri;
+                }
+            });
+        }
+
+        private void add(Hash key, File file, Callable<RouterInfo> task) {
+            _keys.add(key);
+            _files.add(file);
+            _results.add(_executor.submit(task));
+        }
+
+        /**
+         *  Store the results in order, then stop the threads.
+         */
+        public void finish() {
+            int loaded = 0;
+            try {
+                for (int i = 0; i < _results.size(); i++) {
+                    // drop out if the router gets killed right after startup
+                    if (!_context.router().isAlive())
+                        break;
+                    Hash key = _keys.get(i);
+                    File file = _files.get(i);
+                    String source = file != null ? file.toString() : "segments";
+                    boolean corrupt;
+                    try {
+                        RouterInfo ri = _results.get(i).get();
+                        corrupt = processRouterInfo(ri, key, 0, source, false);
+                        if (!corrupt)
+                            loaded++;
+                    } catch (ExecutionException ee) {
+                        Throwable t = ee.getCause();
+                        if (t instanceof IOException) {
+                            if (_log.shouldLog(Log.INFO))
+                                _log.info("Unable to read the router reference in " + source, t);
+                            continue;
+                        }
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Error reading the routerInfo from " + source, t);
+                        corrupt = true;
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                    if (corrupt) {
+                        if (file != null) {
+                            file.delete();
+                        } else {
+                            try {
+                                _segments.remove(key);
+                            } catch (IOException ioe) {
+                                _log.error("Error writing the netDb segments", ioe);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                _executor.shutdownNow();
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Parsed " + loaded + " of " + _results.size() + " RouterInfos with " +
+                          _executor.getCorePoolSize() + " threads in " +
+                          (System.currentTimeMillis() - _start) + " ms, verifying later");
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        private final int _threads;
+        private int _count;
+
+        public LoaderThreadFactory(int threads) {
+            _threads = threads;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("NetDbLoader " + (++_count) + '/' + _threads);
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+
     private class ReadRouterJob extends JobImpl {
         private final File _routerFile;
         private final Hash _key;
@@ -475,35 +818,7 @@ class PersistentDataStore extends TransientDataStore {
                     fis = new BufferedInputStream(fis);
                     RouterInfo ri = new RouterInfo();
                     ri.readBytes(fis, true);  // true = verify sig on read
-                    if (ri.getNetworkId() != Router.NETWORK_ID) {
-                        corrupt = true;
-                        if (_log.shouldLog(Log.ERROR))
-                            _log.error("The router "
-                                       + ri.getIdentity().calculateHash().toBase64() 
-                                       + " is from a different network");
-                    } else if (!ri.getIdentity().calculateHash().equals(_key)) {
-                        // prevent injection from reseeding
-                        // this is checked in KNDF.validate() but catch it sooner and log as error.
-                        corrupt = true;
-                        _log.error(ri.getIdentity().calculateHash() + " does not match " + _key + " from " + _routerFile);
-                    } else if (ri.getPublished() <= _knownDate) {
-                        // Don't store but don't delete
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Skipping since netdb newer than " + _routerFile);
-                    } else {
-                        try {
-                            // persist = false so we don't write what we just read
-                            _facade.store(ri.getIdentity().getHash(), ri, false);
-                            // when heardAbout() was removed from TransientDataStore, it broke
-                            // profile bootstrapping for new routers,
-                            // so add it here.
-                            getContext().profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
-                        } catch (IllegalArgumentException iae) {
-                            if (_log.shouldLog(Log.INFO))
-                                _log.info("Refused locally loaded routerInfo - deleting", iae);
-                            corrupt = true;
-                        }
-                    }
+                    corrupt = processRouterInfo(ri, _key, _knownDate, _routerFile.toString(), true);
                 } catch (DataFormatException dfe) {
                     if (_log.shouldLog(Log.INFO))
                         _log.info("Error reading the routerInfo from " + _routerFile.getName(), dfe);
@@ -520,7 +835,56 @@ class PersistentDataStore extends TransientDataStore {
     }
     
     
-    private File getDbDir(String dbDir) throws IOException {
+    /**
+     *  Check and store a RouterInfo read from disk.
+     *
+     *  @param key must match the RI hash
+     *  @param knownDate published date of the RI we already have, or 0
+     *  @param source for logging
+     *  @param verify if false, the signature was not checked on read,
+     *                and the facade will check it later
+     *  @return true if corrupt and should be deleted
+     *  @since 0.9.10 moved from ReadRouterJob
+     */
+    private boolean processRouterInfo(RouterInfo ri, Hash key, long knownDate, String source, boolean verify) {
+        boolean corrupt = false;
+        if (ri.getNetworkId() != Router.NETWORK_ID) {
+            corrupt = true;
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("The router "
+                           + ri.getIdentity().calculateHash().toBase64() 
+                           + " is from a different network");
+        } else if (!ri.getIdentity().calculateHash().equals(key)) {
+            // prevent injection from reseeding
+            // this is checked in KNDF.validate() but catch it sooner and log as error.
+            corrupt = true;
+            _log.error(ri.getIdentity().calculateHash() + " does not match " + key + " from " + source);
+        } else if (ri.getPublished() <= knownDate) {
+            // Don't store but don't delete
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Skipping since netdb newer than " + source);
+        } else {
+            try {
+                // persist = false so we don't write what we just read
+                _facade.store(ri.getIdentity().getHash(), ri, false, verify);
+                // when heardAbout() was removed from TransientDataStore, it broke
+                // profile bootstrapping for new routers,
+                // so add it here.
+                _context.profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
+            } catch (IllegalArgumentException iae) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Refused locally loaded routerInfo - deleting", iae);
+                corrupt = true;
+            }
+        }
+        return corrupt;
+    }
+
+    /**
+     *  @param segmented if true, don't create the subdirectories or migrate,
+     *                   the ReadJob moves the files into the segments
+     */
+    private File getDbDir(String dbDir, boolean segmented) throws IOException {
         File f = new SecureDirectory(_context.getRouterDir(), dbDir);
         if (!f.exists()) {
             boolean created = f.mkdirs();
@@ -533,6 +897,8 @@ class PersistentDataStore extends TransientDataStore {
             throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not readable!");
         if (!f.canWrite())
             throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not writable!");
+        if (segmented)
+            return f;
         if (_flat) {
             unmigrate(f);
         } else {
@@ -620,6 +986,12 @@ class PersistentDataStore extends TransientDataStore {
     }
     
     private void removeFile(Hash key, File dir) throws IOException {
+        if (_segments != null) {
+            synchronized (_dbDir) {
+                _segments.remove(key);
+            }
+            return;
+        }
         String riName = getRouterInfoName(key);
         File f = new File(dir, riName);
         if (f.exists()) {
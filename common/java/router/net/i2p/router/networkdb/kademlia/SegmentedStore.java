@@ -0,0 +1,507 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Log-structured storage for netDb entries, an alternative to one file per RouterInfo.
+ *  Used by PersistentDataStore if enabled.
+ *
+ *  Entries are appended to segment files (segNNNNNNNN.log) in the netDb directory,
+ *  and an in-memory index maps each hash to the latest record.
+ *  A removal appends a tombstone.
+ *  The index is rebuilt at startup by reading the segments in order,
+ *  which is a few sequential reads rather than thousands of small files.
+ *
+ *  When more than half of the stored bytes are dead (replaced, removed or expired),
+ *  compact() copies the live entries to a new segment and deletes the old ones,
+ *  oldest first, so a crash during compaction can't resurrect a removed entry.
+ *
+ *  Record format:
+ *<pre>
+ *  1 byte    type, 1 = entry, 2 = tombstone
+ *  32 bytes  hash
+ *  8 bytes   published date
+ *  4 bytes   data length (0 for tombstone)
+ *  4 bytes   CRC32 of the data
+ *  data
+ *</pre>
+ *  A torn record at the end of the last segment is truncated at startup.
+ *
+ *  Not thread safe, the caller must synchronize (PersistentDataStore uses _dbDir).
+ *
+ *  @since 0.9.10
+ */
+class SegmentedStore {
+    private final Log _log;
+    private final File _dir;
+    /** segment number to segment */
+    private final TreeMap<Integer, Segment> _segments;
+    private final Map<Hash, Location> _index;
+    private int _current;
+    private OutputStream _out;
+    /** lifetime, including headers and compaction */
+    private long _bytesWritten;
+
+    private static final String SEGMENT_PREFIX = "seg";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+    private static final int HEADER_SIZE = 1 + Hash.HASH_LENGTH + 8 + 4 + 4;
+    /** sanity check, RIs are a few hundred bytes */
+    private static final int MAX_DATA_SIZE = 64*1024;
+    /** start a new segment after this */
+    private static final long MAX_SEGMENT_SIZE = 1024*1024;
+    /** don't bother compacting below this */
+    private static final long MIN_COMPACT_SIZE = 256*1024;
+
+    /**
+     *  Reads all the segments to build the index.
+     *
+     *  @param dir the netDb directory
+     */
+    public SegmentedStore(I2PAppContext ctx, File dir) throws IOException {
+        _log = ctx.logManager().getLog(SegmentedStore.class);
+        _dir = dir;
+        _segments = new TreeMap<Integer, Segment>();
+        _index = new HashMap<Hash, Location>(1024);
+        File[] files = dir.listFiles(SegmentFilter.INSTANCE);
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                int num = getSegmentNumber(files[i].getName());
+                if (num >= 0)
+                    _segments.put(Integer.valueOf(num), new Segment(num, files[i]));
+            }
+        }
+        for (Segment seg : _segments.values()) {
+            load(seg, seg.num == _segments.lastKey().intValue());
+        }
+        _current = _segments.isEmpty() ? 1 : _segments.lastKey().intValue();
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Loaded index of " + _index.size() + " entries from " + _segments.size() + " segments, " +
+                      getLiveBytes() + '/' + getTotalBytes() + " bytes live");
+    }
+
+    /**
+     *  @param dir the netDb directory
+     *  @return true if there are any segment files
+     */
+    public static boolean exists(File dir) {
+        File[] files = dir.listFiles(SegmentFilter.INSTANCE);
+        return files != null && files.length > 0;
+    }
+
+    /**
+     *  Read the records in one segment and update the index.
+     *
+     *  @param isLast if true, truncate a torn record at the end
+     */
+    private void load(Segment seg, boolean isLast) throws IOException {
+        DataInputStream in = null;
+        long offset = 0;
+        byte[] hbuf = new byte[Hash.HASH_LENGTH];
+        CRC32 crc = new CRC32();
+        boolean torn = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(seg.file), 64*1024));
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    break;
+                if (type != TYPE_ENTRY && type != TYPE_TOMBSTONE) {
+                    torn = true;
+                    break;
+                }
+                in.readFully(hbuf);
+                long published = in.readLong();
+                int len = in.readInt();
+                long sum = in.readInt() & 0xffffffffL;
+                if (len < 0 || len > MAX_DATA_SIZE) {
+                    torn = true;
+                    break;
+                }
+                byte[] data = new byte[len];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if (crc.getValue() != sum) {
+                    torn = true;
+                    break;
+                }
+                Hash h = Hash.create(hbuf, 0);
+                int size = HEADER_SIZE + len;
+                if (type == TYPE_ENTRY)
+                    replace(h, new Location(seg.num, offset + HEADER_SIZE, len, published));
+                else
+                    replace(h, null);
+                // the record itself is dead unless it's the live entry
+                seg.size += size;
+                offset += size;
+            }
+        } catch (EOFException eofe) {
+            torn = true;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        if (torn) {
+            if (isLast) {
+                _log.logAlways(Log.WARN, "Truncating torn netDb segment " + seg.file + " at " + offset);
+                RandomAccessFile raf = new RandomAccessFile(seg.file, "rw");
+                try {
+                    raf.setLength(offset);
+                } finally {
+                    raf.close();
+                }
+            } else {
+                _log.error("Corrupt netDb segment " + seg.file + " at " + offset + ", ignoring the rest");
+            }
+            seg.size = offset;
+        }
+    }
+
+    /**
+     *  Update the index and the live byte counts.
+     *  @param loc null to remove
+     */
+    private void replace(Hash h, Location loc) {
+        Location old = loc != null ? _index.put(h, loc) : _index.remove(h);
+        if (old != null) {
+            Segment s = _segments.get(Integer.valueOf(old.segment));
+            if (s != null)
+                s.live -= HEADER_SIZE + old.length;
+        }
+        if (loc != null) {
+            Segment s = _segments.get(Integer.valueOf(loc.segment));
+            if (s != null)
+                s.live += HEADER_SIZE + loc.length;
+        }
+    }
+
+    /**
+     *  Append an entry, if it's newer than what we have.
+     *
+     *  @return true if written
+     */
+    public boolean put(Hash key, long published, byte[] data) throws IOException {
+        Location old = _index.get(key);
+        if (old != null && old.published >= published)
+            return false;
+        append(TYPE_ENTRY, key, published, data);
+        return true;
+    }
+
+    /**
+     *  Append a tombstone, if we have the entry.
+     */
+    public void remove(Hash key) throws IOException {
+        if (!_index.containsKey(key))
+            return;
+        append(TYPE_TOMBSTONE, key, 0, new byte[0]);
+    }
+
+    private void append(byte type, Hash key, long published, byte[] data) throws IOException {
+        Segment seg = getCurrent();
+        byte[] hdr = new byte[HEADER_SIZE];
+        hdr[0] = type;
+        System.arraycopy(key.getData(), 0, hdr, 1, Hash.HASH_LENGTH);
+        DataHelper.toLong(hdr, 1 + Hash.HASH_LENGTH, 8, published);
+        DataHelper.toLong(hdr, 1 + Hash.HASH_LENGTH + 8, 4, data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        DataHelper.toLong(hdr, 1 + Hash.HASH_LENGTH + 12, 4, crc.getValue());
+        _out.write(hdr);
+        _out.write(data);
+        long offset = seg.size;
+        int size = HEADER_SIZE + data.length;
+        seg.size += size;
+        _bytesWritten += size;
+        if (type == TYPE_ENTRY)
+            replace(key, new Location(seg.num, offset + HEADER_SIZE, data.length, published));
+        else
+            replace(key, null);
+    }
+
+    /**
+     *  The segment to append to, opening or rolling over as necessary.
+     */
+    private Segment getCurrent() throws IOException {
+        Segment seg = _segments.get(Integer.valueOf(_current));
+        if (seg != null && seg.size >= MAX_SEGMENT_SIZE) {
+            close();
+            _current++;
+            seg = null;
+        }
+        if (seg == null) {
+            seg = new Segment(_current, new File(_dir, getSegmentName(_current)));
+            _segments.put(Integer.valueOf(_current), seg);
+        }
+        if (_out == null)
+            _out = new BufferedOutputStream(new SecureFileOutputStream(seg.file, true), 16*1024);
+        return seg;
+    }
+
+    /**
+     *  @return the entry's data, or null if we don't have it
+     */
+    public byte[] get(Hash key) throws IOException {
+        Location loc = _index.get(key);
+        if (loc == null)
+            return null;
+        if (loc.segment == _current)
+            flush();
+        Segment seg = _segments.get(Integer.valueOf(loc.segment));
+        RandomAccessFile raf = new RandomAccessFile(seg.file, "r");
+        try {
+            return read(raf, loc);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] read(RandomAccessFile raf, Location loc) throws IOException {
+        byte[] rv = new byte[loc.length];
+        raf.seek(loc.offset);
+        raf.readFully(rv);
+        return rv;
+    }
+
+    /**
+     *  Read all the entries, in segment and offset order.
+     *  The handler may put() or remove().
+     */
+    public void readAll(EntryHandler handler) throws IOException {
+        flush();
+        Map<Integer, RandomAccessFile> files = new HashMap<Integer, RandomAccessFile>();
+        try {
+            for (Hash key : getKeys()) {
+                Location loc = _index.get(key);
+                if (loc == null)
+                    continue;
+                Integer num = Integer.valueOf(loc.segment);
+                RandomAccessFile raf = files.get(num);
+                if (raf == null) {
+                    raf = new RandomAccessFile(_segments.get(num).file, "r");
+                    files.put(num, raf);
+                }
+                handler.entry(key, loc.published, read(raf, loc));
+            }
+        } finally {
+            for (RandomAccessFile raf : files.values()) {
+                try { raf.close(); } catch (IOException ioe) {}
+            }
+        }
+    }
+
+    /**
+     *  Callback for readAll()
+     */
+    public interface EntryHandler {
+        public void entry(Hash key, long published, byte[] data) throws IOException;
+    }
+
+    /**
+     *  @return the published date of the stored entry, or 0 if we don't have it
+     */
+    public long getPublished(Hash key) {
+        Location loc = _index.get(key);
+        return loc != null ? loc.published : 0;
+    }
+
+    /**
+     *  @return the stored keys, in segment and offset order, for sequential reading
+     */
+    public List<Hash> getKeys() {
+        List<Map.Entry<Hash, Location>> entries = new ArrayList<Map.Entry<Hash, Location>>(_index.entrySet());
+        Collections.sort(entries, new LocationComparator());
+        List<Hash> rv = new ArrayList<Hash>(entries.size());
+        for (Map.Entry<Hash, Location> e : entries) {
+            rv.add(e.getKey());
+        }
+        return rv;
+    }
+
+    public int size() {
+        return _index.size();
+    }
+
+    /** total bytes in all segments */
+    public long getTotalBytes() {
+        long rv = 0;
+        for (Segment seg : _segments.values()) {
+            rv += seg.size;
+        }
+        return rv;
+    }
+
+    /** bytes of the live records in all segments */
+    public long getLiveBytes() {
+        long rv = 0;
+        for (Segment seg : _segments.values()) {
+            rv += seg.live;
+        }
+        return rv;
+    }
+
+    /** lifetime bytes appended, including headers and compaction */
+    public long getBytesWritten() {
+        return _bytesWritten;
+    }
+
+    /**
+     *  Copy the live entries to a new segment and delete the old ones,
+     *  if more than half of the stored bytes are dead.
+     *
+     *  @return true if compacted
+     */
+    public boolean compact() throws IOException {
+        long total = getTotalBytes();
+        long live = getLiveBytes();
+        if (total < MIN_COMPACT_SIZE || live * 2 > total)
+            return false;
+        long start = System.currentTimeMillis();
+        close();
+        List<Segment> old = new ArrayList<Segment>(_segments.values());
+        int first = _segments.lastKey().intValue() + 1;
+        _current = first;
+        readAll(new EntryHandler() {
+            public void entry(Hash key, long published, byte[] data) throws IOException {
+                append(TYPE_ENTRY, key, published, data);
+            }
+        });
+        flush();
+        // oldest first
+        for (Segment seg : old) {
+            if (seg.num >= first)
+                continue;
+            if (!seg.file.delete())
+                _log.error("Unable to delete netDb segment " + seg.file);
+            _segments.remove(Integer.valueOf(seg.num));
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Compacted netDb from " + total + " to " + getTotalBytes() + " bytes in " +
+                      (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     *  Flush the current segment to the OS.
+     */
+    public void flush() throws IOException {
+        if (_out != null)
+            _out.flush();
+    }
+
+    /**
+     *  Flush and close the current segment. Can still be used after this.
+     */
+    public void close() {
+        if (_out != null) {
+            try { _out.close(); } catch (IOException ioe) {}
+            _out = null;
+        }
+    }
+
+    /**
+     *  Close and delete all the segments, e.g. after exporting them.
+     */
+    public void delete() {
+        close();
+        for (Segment seg : _segments.values()) {
+            seg.file.delete();
+        }
+        _segments.clear();
+        _index.clear();
+    }
+
+    private static String getSegmentName(int num) {
+        StringBuilder buf = new StringBuilder(16);
+        buf.append(SEGMENT_PREFIX);
+        String n = Integer.toString(num);
+        for (int i = n.length(); i < 8; i++) {
+            buf.append('0');
+        }
+        buf.append(n).append(SEGMENT_SUFFIX);
+        return buf.toString();
+    }
+
+    /** @return -1 on error */
+    private static int getSegmentNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static class Segment {
+        final int num;
+        final File file;
+        /** total bytes */
+        long size;
+        /** bytes of records that are in the index */
+        long live;
+
+        public Segment(int num, File file) {
+            this.num = num;
+            this.file = file;
+        }
+    }
+
+    private static class Location {
+        final int segment;
+        /** of the data, after the header */
+        final long offset;
+        final int length;
+        final long published;
+
+        public Location(int segment, long offset, int length, long published) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.published = published;
+        }
+    }
+
+    private static class LocationComparator implements Comparator<Map.Entry<Hash, Location>> {
+        public int compare(Map.Entry<Hash, Location> l, Map.Entry<Hash, Location> r) {
+            Location ll = l.getValue();
+            Location rl = r.getValue();
+            if (ll.segment != rl.segment)
+                return ll.segment < rl.segment ? -1 : 1;
+            if (ll.offset != rl.offset)
+                return ll.offset < rl.offset ? -1 : 1;
+            return 0;
+        }
+    }
+
+    private static class SegmentFilter implements FilenameFilter {
+        static final FilenameFilter INSTANCE = new SegmentFilter();
+
+        public boolean accept(File dir, String name) {
+            return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) &&
+                   name.length() == SEGMENT_PREFIX.length() + 8 + SEGMENT_SUFFIX.length();
+        }
+    }
+}
@@ -8,40 +8,86 @@ package net.i2p.router.networkdb.kademlia;
  *
  */
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 import java.util.Set;
 
+import net.i2p.data.CompactRouterInfo;
 import net.i2p.data.DatabaseEntry;
+import net.i2p.data.DataFormatException;
 import net.i2p.data.Hash;
 import net.i2p.data.LeaseSet;
 import net.i2p.data.RouterInfo;
 import net.i2p.router.RouterContext;
+import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer;
 
 /**
  *  Stores in-memory only. See extension.
+ *
+ *  As of 0.9.10, if router.networkDatabase.compact=true, RouterInfos are held
+ *  as CompactRouterInfos (the serialized bytes and a small header), and decoded on demand
+ *  through a bounded LRU cache, which saves most of the memory for the option maps,
+ *  addresses, and certificates of thousands of routers, at the cost of some CPU.
+ *  The bulk methods getEntries() and getMapEntries() decode everything,
+ *  use getKeys() and getType() or getCompactRouterInfos() instead where possible.
+ *  They don't check the signatures of RouterInfos stored without verifying them,
+ *  that's left to get(), see badSignature().
  */
 class TransientDataStore implements DataStore {
     protected final Log _log;
+    /** everything in normal mode, LeaseSets only in compact mode */
     private final ConcurrentHashMap<Hash, DatabaseEntry> _data;
     protected final RouterContext _context;
+    /** RouterInfos in compact mode, else null */
+    private final ConcurrentHashMap<Hash, CompactRouterInfo> _compact;
+    /** recently used RouterInfos in compact mode, else null. Synch on it. */
+    private final Map<Hash, RouterInfo> _decoded;
     
+    /** @since 0.9.10 */
+    private static final String PROP_COMPACT = "router.networkDatabase.compact";
+    /** @since 0.9.10 */
+    private static final String PROP_CACHE_SIZE = "router.networkDatabase.compactCacheSize";
+    /** enough for the fast and high capacity tiers and the closest floodfills */
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    private static final long HEAP_STAT_INTERVAL = 5*60*1000;
+
     public TransientDataStore(RouterContext ctx) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _data = new ConcurrentHashMap<Hash, DatabaseEntry>(1024);
+        if (ctx.getBooleanProperty(PROP_COMPACT)) {
+            _compact = new ConcurrentHashMap<Hash, CompactRouterInfo>(1024);
+            _decoded = new LHMCache<Hash, RouterInfo>(ctx.getProperty(PROP_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+            ctx.statManager().createRateStat("netDb.compactDecode", "How often a compact RouterInfo was not in the cache", "NetworkDatabase", new long[] { 60*60*1000l });
+            ctx.statManager().createRequiredRateStat("netDb.compactHeapBytes", "Approximate heap used by the compact RouterInfos (bytes)", "NetworkDatabase", new long[] { 60*60*1000l });
+            ctx.simpleScheduler().addPeriodicEvent(new HeapStat(), HEAP_STAT_INTERVAL);
+        } else {
+            _compact = null;
+            _decoded = null;
+        }
         if (_log.shouldLog(Log.INFO))
-            _log.info("Data Store initialized");
+            _log.info("Data Store initialized" + (_compact != null ? " (compact)" : ""));
     }
     
     public boolean isInitialized() { return true; }
 
     public void stop() {
         _data.clear();
+        if (_compact != null) {
+            _compact.clear();
+            synchronized (_decoded) {
+                _decoded.clear();
+            }
+        }
     }
     
     public void restart() {
@@ -55,32 +101,83 @@ class TransientDataStore implements DataStore {
      *  @since 0.8.8
      */
     public int size() {
+        if (_compact != null)
+            return _data.size() + _compact.size();
         return _data.size();
     }
 
     /**
-     *  @return Unmodifiable view, not a copy
+     *  @return Unmodifiable view, not a copy (a copy in compact mode)
      */
     public Set<Hash> getKeys() {
+        if (_compact != null) {
+            Set<Hash> rv = new HashSet<Hash>(_data.keySet());
+            rv.addAll(_compact.keySet());
+            return Collections.unmodifiableSet(rv);
+        }
         return Collections.unmodifiableSet(_data.keySet());
     }
     
     /**
-     *  @return Unmodifiable view, not a copy
+     *  @return Unmodifiable view, not a copy (a copy in compact mode, with every RouterInfo decoded)
      *  @since 0.8.3
      */
     public Collection<DatabaseEntry> getEntries() {
+        if (_compact != null) {
+            List<DatabaseEntry> rv = new ArrayList<DatabaseEntry>(size());
+            rv.addAll(_data.values());
+            for (CompactRouterInfo cri : _compact.values()) {
+                RouterInfo ri = decode(cri, false, false);
+                if (ri != null)
+                    rv.add(ri);
+            }
+            return Collections.unmodifiableCollection(rv);
+        }
         return Collections.unmodifiableCollection(_data.values());
     }
 
     /**
-     *  @return Unmodifiable view, not a copy
+     *  @return Unmodifiable view, not a copy (a copy in compact mode, with every RouterInfo decoded)
      *  @since 0.8.3
      */
     public Set<Map.Entry<Hash, DatabaseEntry>> getMapEntries() {
+        if (_compact != null) {
+            Map<Hash, DatabaseEntry> rv = new HashMap<Hash, DatabaseEntry>(size());
+            rv.putAll(_data);
+            for (CompactRouterInfo cri : _compact.values()) {
+                RouterInfo ri = decode(cri, false, false);
+                if (ri != null)
+                    rv.put(cri.getHash(), ri);
+            }
+            return Collections.unmodifiableSet(rv.entrySet());
+        }
         return Collections.unmodifiableSet(_data.entrySet());
     }
 
+    /**
+     *  @return the RouterInfo headers, without decoding, or null if not in compact mode.
+     *          Unmodifiable view, not a copy.
+     *  @since 0.9.10
+     */
+    public Collection<CompactRouterInfo> getCompactRouterInfos() {
+        if (_compact == null)
+            return null;
+        return Collections.unmodifiableCollection(_compact.values());
+    }
+
+    /**
+     *  @return DatabaseEntry.KEY_TYPE_ROUTERINFO or KEY_TYPE_LEASESET, or -1 if not found
+     *  @since 0.9.10
+     */
+    public int getType(Hash key) {
+        DatabaseEntry rv = _data.get(key);
+        if (rv != null)
+            return rv.getType();
+        if (_compact != null && _compact.containsKey(key))
+            return DatabaseEntry.KEY_TYPE_ROUTERINFO;
+        return -1;
+    }
+
     /** for PersistentDataStore only - don't use here
       * @throws UnsupportedOperationException always
       */
@@ -89,11 +186,59 @@ class TransientDataStore implements DataStore {
     }
 
     public DatabaseEntry get(Hash key) {
-        return _data.get(key);
+        DatabaseEntry rv = _data.get(key);
+        if (rv != null || _compact == null)
+            return rv;
+        CompactRouterInfo cri = _compact.get(key);
+        if (cri == null)
+            return null;
+        return decode(cri, true, true);
     }
     
+    /**
+     *  @param cache add it to the cache if not there, only if verify is true
+     *  @param verify check the signature if not already checked,
+     *                if false the RouterInfo returned may not be validated
+     *  @return null on error or bad signature
+     *  @since 0.9.10
+     */
+    private RouterInfo decode(CompactRouterInfo cri, boolean cache, boolean verify) {
+        Hash key = cri.getHash();
+        synchronized (_decoded) {
+            RouterInfo rv = _decoded.get(key);
+            if (rv != null && rv.getPublished() == cri.getPublished())
+                return rv;
+        }
+        _context.statManager().addRateData("netDb.compactDecode", 1);
+        try {
+            RouterInfo rv = cri.decode(verify);
+            if (cache && verify) {
+                synchronized (_decoded) {
+                    _decoded.put(key, rv);
+                }
+            }
+            return rv;
+        } catch (DataFormatException dfe) {
+            // stored without verifying it, and the signature is bad
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Bad compact RouterInfo " + key, dfe);
+            badSignature(key, cri);
+            return null;
+        }
+    }
+
+    /**
+     *  A RouterInfo stored without verifying it failed the signature check on its first decode.
+     *  This just removes it, PersistentDataStore overrides it to drop it through the facade.
+     *
+     *  @since 0.9.10
+     */
+    protected void badSignature(Hash key, CompactRouterInfo cri) {
+        _compact.remove(key, cri);
+    }
+
     public boolean isKnown(Hash key) {
-        return _data.containsKey(key);
+        return _data.containsKey(key) || (_compact != null && _compact.containsKey(key));
     }
 
     public int countLeaseSets() {
@@ -120,6 +265,8 @@ class TransientDataStore implements DataStore {
         if (data == null) return false;
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Storing key " + key);
+        if (_compact != null && data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            return putCompact(key, (RouterInfo) data);
         DatabaseEntry old = _data.putIfAbsent(key, data);
         boolean rv = false;
         if (data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
@@ -180,12 +327,78 @@ class TransientDataStore implements DataStore {
         }
         return rv;
     }
+
+    /**
+     *  Same as the RouterInfo part of put(), for compact mode.
+     *  The RouterInfo stored goes in the cache, as the caller just validated it.
+     *
+     *  @since 0.9.10
+     */
+    private boolean putCompact(Hash key, RouterInfo ri) {
+        CompactRouterInfo cri;
+        try {
+            cri = new CompactRouterInfo(key, ri);
+        } catch (DataFormatException dfe) {
+            _log.error("Unable to compact the RouterInfo " + key, dfe);
+            return false;
+        }
+        CompactRouterInfo old = _compact.putIfAbsent(key, cri);
+        boolean rv = false;
+        if (old != null) {
+            if (ri.getPublished() < old.getPublished()) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Almost clobbered an old router! " + key + ": [old published on " + new Date(old.getPublished()) +
+                              " new on " + new Date(ri.getPublished()) + ']');
+            } else if (ri.getPublished() == old.getPublished()) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Duplicate " + key);
+            } else {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Updated the old router for " + key + ": [old published on " + new Date(old.getPublished()) +
+                              " new on " + new Date(ri.getPublished()) + ']');
+                _compact.put(key, cri);
+                rv = true;
+            }
+        } else {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("New router for " + key + ": published on " + new Date(ri.getPublished()));
+            rv = true;
+        }
+        if (rv) {
+            synchronized (_decoded) {
+                _decoded.put(key, ri);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Approximate heap used by the compact RouterInfos
+     *
+     *  @since 0.9.10
+     */
+    private class HeapStat implements SimpleTimer.TimedEvent {
+        public void timeReached() {
+            long bytes = 0;
+            for (CompactRouterInfo cri : _compact.values()) {
+                bytes += cri.getHeapSize();
+            }
+            int cached;
+            synchronized (_decoded) {
+                cached = _decoded.size();
+            }
+            _context.statManager().addRateData("netDb.compactHeapBytes", bytes);
+            if (_log.shouldLog(Log.INFO))
+                _log.info(_compact.size() + " compact RouterInfos use about " + (bytes / 1024) + " KB, " +
+                          cached + " decoded in the cache");
+        }
+    }
     
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
-        buf.append("Transient DataStore: ").append(_data.size()).append("\nKeys: ");
-        for (Map.Entry<Hash, DatabaseEntry> e : _data.entrySet()) {
+        buf.append("Transient DataStore: ").append(size()).append("\nKeys: ");
+        for (Map.Entry<Hash, DatabaseEntry> e : getMapEntries()) {
             Hash key = e.getKey();
             DatabaseEntry dp = e.getValue();
             buf.append("\n\t*Key:   ").append(key.toString()).append("\n\tContent: ").append(dp.toString());
@@ -204,6 +417,16 @@ class TransientDataStore implements DataStore {
     public DatabaseEntry remove(Hash key) {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Removing key " + key);
-        return _data.remove(key);
+        DatabaseEntry rv = _data.remove(key);
+        if (rv != null || _compact == null)
+            return rv;
+        CompactRouterInfo cri = _compact.remove(key);
+        if (cri == null)
+            return null;
+        RouterInfo ri = decode(cri, false, false);
+        synchronized (_decoded) {
+            _decoded.remove(key);
+        }
+        return ri;
     }
 }
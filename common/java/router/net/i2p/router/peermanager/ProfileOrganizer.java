@@ -34,35 +34,52 @@ import net.i2p.util.Log;
  * actively update anything - the reorganize() method should be called periodically
  * to recalculate thresholds and move profiles into the appropriate tiers, and addProfile()
  * should be used to add new profiles (placing them into the appropriate groupings).
+ *
+ * As of 0.9.10, reorganize() builds the new tiers off to the side without any lock,
+ * and only takes the write lock to swap them in, so peer selection does not
+ * wait for the sort, the threshold calculation, or the netDb lookups in isSelectable().
  */
 public class ProfileOrganizer {
     private final Log _log;
     private final RouterContext _context;
+    /*
+     * The tiers below are replaced as a group by reorganize(), with the write lock held.
+     * Always access them with the read or write lock held.
+     * The references are volatile, as some callers, e.g. countFastPeers() and isFast(),
+     * read them before taking the lock, and would otherwise get a map that's not safely published.
+     */
     /** H(routerIdentity) to PeerProfile for all peers that are fast and high capacity*/
-    private final Map<Hash, PeerProfile> _fastPeers;
+    private volatile Map<Hash, PeerProfile> _fastPeers;
     /** H(routerIdentity) to PeerProfile for all peers that have high capacities */
-    private final Map<Hash, PeerProfile> _highCapacityPeers;
+    private volatile Map<Hash, PeerProfile> _highCapacityPeers;
     /** TO BE REMOVED H(routerIdentity) to PeerProfile for all peers that well integrated into the network and not failing horribly */
-    private final Map<Hash, PeerProfile> _wellIntegratedPeers;
+    private volatile Map<Hash, PeerProfile> _wellIntegratedPeers;
     /** H(routerIdentity) to PeerProfile for all peers that are not failing horribly */
-    private final Map<Hash, PeerProfile> _notFailingPeers;
+    private volatile Map<Hash, PeerProfile> _notFailingPeers;
     /** H(routerIdnetity), containing elements in _notFailingPeers */
-    private final List<Hash> _notFailingPeersList;
+    private volatile List<Hash> _notFailingPeersList;
     /** TO BE REMOVED H(routerIdentity) to PeerProfile for all peers that ARE failing horribly (but that we haven't dropped reference to yet) */
-    private final Map<Hash, PeerProfile> _failingPeers;
+    private volatile Map<Hash, PeerProfile> _failingPeers;
+    /**
+     *  Profiles added by addProfile() since reorganize() took its snapshot,
+     *  to be added to the new tiers when they are swapped in.
+     *  Write lock held.
+     *  @since 0.9.10
+     */
+    private final List<PeerProfile> _addedSinceSnapshot;
     /** who are we? */
     private Hash _us;
     private final ProfilePersistenceHelper _persistenceHelper;
     
     /** PeerProfile objects for all peers profiled, orderd by the ones with the highest capacity first */
-    private Set<PeerProfile> _strictCapacityOrder;
+    private volatile Set<PeerProfile> _strictCapacityOrder;
     
     /** threshold speed value, seperating fast from slow */
-    private double _thresholdSpeedValue;
+    private volatile double _thresholdSpeedValue;
     /** threshold reliability value, seperating reliable from unreliable */
-    private double _thresholdCapacityValue;
+    private volatile double _thresholdCapacityValue;
     /** integration value, seperating well integrated from not well integrated */
-    private double _thresholdIntegrationValue;
+    private volatile double _thresholdIntegrationValue;
     
     private final InverseCapacityComparator _comp;
 
@@ -101,6 +118,7 @@ public class ProfileOrganizer {
         _notFailingPeersList = new ArrayList<Hash>(256);
         _failingPeers = new HashMap<Hash, PeerProfile>(16);
         _strictCapacityOrder = new TreeSet<PeerProfile>(_comp);
+        _addedSinceSnapshot = new ArrayList<PeerProfile>(16);
         _persistenceHelper = new ProfilePersistenceHelper(_context);
         
         _context.statManager().createRateStat("peer.profileSortTime", "How long the reorg takes sorting peers", "Peers", new long[] { 60*60*1000 });
@@ -108,6 +126,7 @@ public class ProfileOrganizer {
         _context.statManager().createRateStat("peer.profileThresholdTime", "How long the reorg takes determining the tier thresholds", "Peers", new long[] { 60*60*1000 });
         _context.statManager().createRateStat("peer.profilePlaceTime", "How long the reorg takes placing peers in the tiers", "Peers", new long[] { 60*60*1000 });
         _context.statManager().createRateStat("peer.profileReorgTime", "How long the reorg takes overall", "Peers", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("peer.profileSwapTime", "How long the reorg holds the write lock to swap in the new tiers", "Peers", new long[] { 60*60*1000 });
         // used in DBHistory
         _context.statManager().createRequiredRateStat("peer.failedLookupRate", "Net DB Lookup fail rate", "Peers", new long[] { 10*60*1000l, 60*60*1000l, 24*60*60*1000l });
     }
@@ -212,6 +231,7 @@ public class ProfileOrganizer {
                 _highCapacityPeers.put(peer, profile);
             }
             _strictCapacityOrder.add(profile);
+            _addedSinceSnapshot.add(profile);
         } finally { releaseWriteLock(); }
         return old;
     }
@@ -286,6 +306,7 @@ public class ProfileOrganizer {
             _notFailingPeersList.clear();
             _wellIntegratedPeers.clear();
             _strictCapacityOrder.clear();
+            _addedSinceSnapshot.clear();
         } finally { releaseWriteLock(); }
     }
 
@@ -793,59 +814,83 @@ public class ProfileOrganizer {
             }
         }
         
+        // Take a snapshot with the write lock held, so we know what was added after it.
+        // This is only a copy of the references.
+        List<PeerProfile> allPeers;
         if (!getWriteLock())
             return;
         long start = System.currentTimeMillis();
         try {
-            Set<PeerProfile> allPeers = _strictCapacityOrder; //new HashSet(_failingPeers.size() + _notFailingPeers.size() + _highCapacityPeers.size() + _fastPeers.size());
-            //allPeers.addAll(_failingPeers.values());
-            //allPeers.addAll(_notFailingPeers.values());
-            //allPeers.addAll(_highCapacityPeers.values());
-            //allPeers.addAll(_fastPeers.values());
+            allPeers = new ArrayList<PeerProfile>(_strictCapacityOrder);
+            _addedSinceSnapshot.clear();
+        } finally { releaseWriteLock(); }
 
-            Set<PeerProfile> reordered = new TreeSet<PeerProfile>(_comp);
-            long sortStart = System.currentTimeMillis();
-            for (Iterator<PeerProfile> iter = _strictCapacityOrder.iterator(); iter.hasNext(); ) {
-                PeerProfile prof = iter.next();
-                if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
-                    expiredCount++;
-                    continue; // drop, but no need to delete, since we don't periodically reread
-                    // TODO maybe we should delete files, otherwise they are only deleted at restart
-                }
-                prof.updateValues();
-                reordered.add(prof);
-                profileCount++;
+        // Everything below is done without the lock, into a new set of tiers.
+        // Only reorganize() modifies the profiles' values, and it is only called
+        // from one thread, so the order doesn't change while we sort.
+        Tiers tiers = new Tiers(_comp);
+        long sortStart = System.currentTimeMillis();
+        for (PeerProfile prof : allPeers) {
+            if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
+                expiredCount++;
+                continue; // drop, but no need to delete, since we don't periodically reread
+                // TODO maybe we should delete files, otherwise they are only deleted at restart
             }
-            sortTime = System.currentTimeMillis() - sortStart;
-            _strictCapacityOrder = reordered;
+            prof.updateValues();
+            tiers.strictOrder.add(prof);
+            profileCount++;
+        }
+        sortTime = System.currentTimeMillis() - sortStart;
 
-            long thresholdStart = System.currentTimeMillis();
-            locked_calculateThresholds(allPeers);
-            thresholdTime = System.currentTimeMillis()-thresholdStart;
+        long thresholdStart = System.currentTimeMillis();
+        calculateThresholds(allPeers);
+        thresholdTime = System.currentTimeMillis()-thresholdStart;
 
-            _failingPeers.clear();
-            _fastPeers.clear();
-            _highCapacityPeers.clear();
-            _notFailingPeers.clear();
-            _notFailingPeersList.clear();
-            _wellIntegratedPeers.clear();
+        long placeStart = System.currentTimeMillis();
 
-            long placeStart = System.currentTimeMillis();
+        for (PeerProfile profile : tiers.strictOrder) {
+            placeProfile(tiers, profile);
+        }
 
-            for (PeerProfile profile : _strictCapacityOrder) {
-                locked_placeProfile(profile);
-            }
+        unfailAsNecessary(tiers);
+        demoteHighCapAsNecessary(tiers);
+        promoteFastAsNecessary(tiers);
+        demoteFastAsNecessary(tiers);
 
-            locked_unfailAsNecessary();
-            locked_demoteHighCapAsNecessary();
-            locked_promoteFastAsNecessary();
-            locked_demoteFastAsNecessary();
+        // we now use a random iterator in selectAllNotFailingPeers(),
+        // as it was picking peers in-order before the first reorganization
+        //Collections.shuffle(_notFailingPeersList, _context.random());
 
-            // we now use a random iterator in selectAllNotFailingPeers(),
-            // as it was picking peers in-order before the first reorganization
-            //Collections.shuffle(_notFailingPeersList, _context.random());
+        placeTime = System.currentTimeMillis()-placeStart;
 
-            placeTime = System.currentTimeMillis()-placeStart;
+        // Swap in the new tiers
+        long swapTime;
+        if (!getWriteLock())
+            return;
+        try {
+            long swapStart = System.currentTimeMillis();
+            // profiles added since the snapshot, as in addProfile()
+            for (PeerProfile profile : _addedSinceSnapshot) {
+                Hash peer = profile.getPeer();
+                if (tiers.notFailing.put(peer, profile) == null)
+                    tiers.notFailingList.add(peer);
+                tiers.failing.remove(peer);
+                if (_thresholdCapacityValue <= profile.getCapacityValue() &&
+                    tiers.highCap.size() < getMaximumHighCapPeers() &&
+                    isSelectable(peer)) {
+                    tiers.highCap.put(peer, profile);
+                }
+                tiers.strictOrder.add(profile);
+            }
+            _addedSinceSnapshot.clear();
+            _strictCapacityOrder = tiers.strictOrder;
+            _failingPeers = tiers.failing;
+            _fastPeers = tiers.fast;
+            _highCapacityPeers = tiers.highCap;
+            _notFailingPeers = tiers.notFailing;
+            _notFailingPeersList = tiers.notFailingList;
+            _wellIntegratedPeers = tiers.wellIntegrated;
+            swapTime = System.currentTimeMillis() - swapStart;
         } finally { releaseWriteLock(); }
 
 
@@ -853,17 +898,6 @@ public class ProfileOrganizer {
             _log.info("Profiles reorganized. Expired: " + expiredCount
                        + " Averages: [integration: " + _thresholdIntegrationValue 
                        + ", capacity: " + _thresholdCapacityValue + ", speed: " + _thresholdSpeedValue + "]");
-            /*****
-            if (_log.shouldLog(Log.DEBUG)) {
-                StringBuilder buf = new StringBuilder(512);
-                for (Iterator iter = _strictCapacityOrder.iterator(); iter.hasNext(); ) {
-                    PeerProfile prof = (PeerProfile)iter.next();
-                    buf.append('[').append(prof.toString()).append('=').append(prof.getCapacityValue()).append("] ");
-                }
-                _log.debug("Strictly organized (highest capacity first): " + buf.toString());
-                _log.debug("fast: " + _fastPeers.values());
-            }
-            *****/
         
         long total = System.currentTimeMillis()-start;
         _context.statManager().addRateData("peer.profileSortTime", sortTime, profileCount);
@@ -871,25 +905,26 @@ public class ProfileOrganizer {
         _context.statManager().addRateData("peer.profileThresholdTime", thresholdTime, profileCount);
         _context.statManager().addRateData("peer.profilePlaceTime", placeTime, profileCount);
         _context.statManager().addRateData("peer.profileReorgTime", total, profileCount);
+        _context.statManager().addRateData("peer.profileSwapTime", swapTime, profileCount);
     }
     
     /**
-     * As with locked_unfailAsNecessary, I'm not sure how much I like this - if there
+     * As with unfailAsNecessary(), I'm not sure how much I like this - if there
      * aren't enough fast peers, move some of the not-so-fast peers into the fast group.
      * This picks the not-so-fast peers based on capacity, not speed, and skips over any
      * failing peers.  Perhaps it should build a seperate strict ordering by speed?  Nah, not
      * worth the maintenance and memory overhead, at least not for now.
      *
      */
-    private void locked_promoteFastAsNecessary() {
+    private void promoteFastAsNecessary(Tiers tiers) {
         int minFastPeers = getMinimumFastPeers();
-        int numToPromote = minFastPeers - _fastPeers.size();
+        int numToPromote = minFastPeers - tiers.fast.size();
         if (numToPromote > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Need to explicitly promote " + numToPromote + " peers to the fast group");
-            for (Iterator<PeerProfile> iter = _strictCapacityOrder.iterator(); iter.hasNext(); ) {
+            for (Iterator<PeerProfile> iter = tiers.strictOrder.iterator(); iter.hasNext(); ) {
                 PeerProfile cur = iter.next();
-                if ( (!_fastPeers.containsKey(cur.getPeer())) && (!cur.getIsFailing()) ) {
+                if ( (!tiers.fast.containsKey(cur.getPeer())) && (!cur.getIsFailing()) ) {
                     if (!isSelectable(cur.getPeer())) {
                         // skip peers we dont have in the netDb
                         // if (_log.shouldLog(Log.INFO))   
@@ -904,7 +939,7 @@ public class ProfileOrganizer {
                     }
                     if (_log.shouldLog(Log.INFO))
                         _log.info("Fast promoting: " + cur.getPeer().toBase64());
-                    _fastPeers.put(cur.getPeer(), cur);
+                    tiers.fast.put(cur.getPeer(), cur);
                     // no need to remove it from any of the other groups, since if it is 
                     // fast, it has a high capacity, and it is not failing
                     numToPromote--;
@@ -922,18 +957,18 @@ public class ProfileOrganizer {
      * number, we don't really find out who the fast ones are.
      * @since 0.7.10
      */
-    private void locked_demoteFastAsNecessary() {
+    private void demoteFastAsNecessary(Tiers tiers) {
         int maxFastPeers = getMaximumFastPeers();
-        int numToDemote = _fastPeers.size() - maxFastPeers;
+        int numToDemote = tiers.fast.size() - maxFastPeers;
         if (numToDemote > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Need to explicitly demote " + numToDemote + " peers from the fast group");
             // sort by speed, slowest-first
             Set<PeerProfile> sorted = new TreeSet<PeerProfile>(new SpeedComparator());
-            sorted.addAll(_fastPeers.values());
+            sorted.addAll(tiers.fast.values());
             Iterator<PeerProfile> iter = sorted.iterator();
             for (int i = 0; i < numToDemote && iter.hasNext(); i++) {
-                _fastPeers.remove(iter.next().getPeer());
+                tiers.fast.remove(iter.next().getPeer());
             }
         }
     }
@@ -944,25 +979,25 @@ public class ProfileOrganizer {
      * number, we don't really find out who the high capacity ones are.
      * @since 0.7.11
      */
-    private void locked_demoteHighCapAsNecessary() {
+    private void demoteHighCapAsNecessary(Tiers tiers) {
         int maxHighCapPeers = getMaximumHighCapPeers();
-        int numToDemote = _highCapacityPeers.size() - maxHighCapPeers;
+        int numToDemote = tiers.highCap.size() - maxHighCapPeers;
         if (numToDemote > 0) {
             // sorted by capacity, highest-first
-            Iterator<PeerProfile> iter = _strictCapacityOrder.iterator();
+            Iterator<PeerProfile> iter = tiers.strictOrder.iterator();
             for (int i = 0; iter.hasNext() && i < maxHighCapPeers; ) {
-                if (_highCapacityPeers.containsKey(iter.next().getPeer()))
+                if (tiers.highCap.containsKey(iter.next().getPeer()))
                     i++;
             }
             for (int i = 0; iter.hasNext() && i < numToDemote; ) {
                 Hash h = iter.next().getPeer();
-                if (_highCapacityPeers.remove(h) != null) {
-                    _fastPeers.remove(h);
+                if (tiers.highCap.remove(h) != null) {
+                    tiers.fast.remove(h);
                     i++;
                 }
             }
             if (_log.shouldLog(Log.INFO))
-                _log.info("Demoted " + numToDemote + " peers from high cap, size now " + _highCapacityPeers.size());
+                _log.info("Demoted " + numToDemote + " peers from high cap, size now " + tiers.highCap.size());
         }
     }
     
@@ -975,9 +1010,9 @@ public class ProfileOrganizer {
      * override their 'failing' flag, resorting them into the not-failing buckets
      *
      */
-    private void locked_unfailAsNecessary() {
+    private void unfailAsNecessary(Tiers tiers) {
         int notFailingActive = 0;
-        for (PeerProfile peer : _notFailingPeers.values()) {
+        for (PeerProfile peer : tiers.notFailing.values()) {
             if (peer.getIsActive())
                 notFailingActive++;
             if (notFailingActive >= MIN_NOT_FAILING_ACTIVE) {
@@ -990,13 +1025,13 @@ public class ProfileOrganizer {
         int needToUnfail = MIN_NOT_FAILING_ACTIVE - notFailingActive;
         if (needToUnfail > 0) {
             int unfailed = 0;
-            for (Iterator<PeerProfile> iter = _strictCapacityOrder.iterator(); iter.hasNext(); ) {
+            for (Iterator<PeerProfile> iter = tiers.strictOrder.iterator(); iter.hasNext(); ) {
                 PeerProfile best = iter.next();
                 if ( (best.getIsActive()) && (best.getIsFailing()) ) {
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("All peers were failing, so we have overridden the failing flag for one of the most reliable active peers (" + best.getPeer().toBase64() + ")");
                     best.setIsFailing(false);
-                    locked_placeProfile(best);
+                    placeProfile(tiers, best);
                     unfailed++;
                 }
                 if (unfailed >= needToUnfail)
@@ -1018,7 +1053,7 @@ public class ProfileOrganizer {
      * high capacity group to define the integration threshold.
      *
      */
-    private void locked_calculateThresholds(Set<PeerProfile> allPeers) {
+    private void calculateThresholds(Collection<PeerProfile> allPeers) {
         double totalCapacity = 0;
         double totalIntegration = 0;
         Set<PeerProfile> reordered = new TreeSet<PeerProfile>(_comp);
@@ -1393,33 +1428,33 @@ public class ProfileOrganizer {
     }
     
     /**
-     * called after locking the reorganizeLock, place the profile in the appropriate tier.
+     * Place the profile in the appropriate tier of the new tiers, no lock required.
      * This is where we implement the (betterThanAverage ? goToTierX : goToTierY) algorithms
      *
      */
-    private void locked_placeProfile(PeerProfile profile) {
+    private void placeProfile(Tiers tiers, PeerProfile profile) {
         Hash peer = profile.getPeer();
         if (profile.getIsFailing()) {
             if (!shouldDrop(profile))
-                _failingPeers.put(peer, profile);
-            _fastPeers.remove(peer);
-            _highCapacityPeers.remove(peer);
-            _wellIntegratedPeers.remove(peer);
-            _notFailingPeers.remove(peer);
-            _notFailingPeersList.remove(peer);
+                tiers.failing.put(peer, profile);
+            tiers.fast.remove(peer);
+            tiers.highCap.remove(peer);
+            tiers.wellIntegrated.remove(peer);
+            if (tiers.notFailing.remove(peer) != null)
+                tiers.notFailingList.remove(peer);
         } else {
-            _failingPeers.remove(peer);
-            _fastPeers.remove(peer);
-            _highCapacityPeers.remove(peer);
-            _wellIntegratedPeers.remove(peer);
+            tiers.failing.remove(peer);
+            tiers.fast.remove(peer);
+            tiers.highCap.remove(peer);
+            tiers.wellIntegrated.remove(peer);
             
-            _notFailingPeers.put(peer, profile);
-            _notFailingPeersList.add(peer);
+            if (tiers.notFailing.put(peer, profile) == null)
+                tiers.notFailingList.add(peer);
             // if not selectable for a tunnel (banlisted for example),
             // don't allow them in the high-cap pool, what would the point of that be?
             if (_thresholdCapacityValue <= profile.getCapacityValue() &&
                 isSelectable(peer)) {
-                _highCapacityPeers.put(peer, profile);
+                tiers.highCap.put(peer, profile);
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("High capacity: \t" + peer);
                 if (_thresholdSpeedValue <= profile.getSpeedValue()) {
@@ -1427,7 +1462,7 @@ public class ProfileOrganizer {
                         if (_log.shouldLog(Log.INFO))
                             _log.info("Skipping fast mark [!active] for " + peer);
                     } else {
-                        _fastPeers.put(peer, profile);
+                        tiers.fast.put(peer, profile);
                         if (_log.shouldLog(Log.DEBUG))
                             _log.debug("Fast: \t" + peer);
                     }
@@ -1442,7 +1477,7 @@ public class ProfileOrganizer {
             // to call him well-integrated.
             // This could be used later to see if a floodfill peer is for real.
             if (_thresholdIntegrationValue <= profile.getIntegrationValue()) {
-                _wellIntegratedPeers.put(peer, profile);
+                tiers.wellIntegrated.put(peer, profile);
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("Integrated: \t" + peer);
             }
@@ -1457,6 +1492,31 @@ public class ProfileOrganizer {
      *
      */
     private boolean shouldDrop(PeerProfile profile) { return false; }
+
+    /**
+     *  A complete set of tiers, built by reorganize() without the lock,
+     *  and then swapped in.
+     *  @since 0.9.10
+     */
+    private static class Tiers {
+        final Map<Hash, PeerProfile> fast;
+        final Map<Hash, PeerProfile> highCap;
+        final Map<Hash, PeerProfile> wellIntegrated;
+        final Map<Hash, PeerProfile> notFailing;
+        final List<Hash> notFailingList;
+        final Map<Hash, PeerProfile> failing;
+        final Set<PeerProfile> strictOrder;
+
+        public Tiers(InverseCapacityComparator comp) {
+            fast = new HashMap<Hash, PeerProfile>(32);
+            highCap = new HashMap<Hash, PeerProfile>(64);
+            wellIntegrated = new HashMap<Hash, PeerProfile>(128);
+            notFailing = new HashMap<Hash, PeerProfile>(256);
+            notFailingList = new ArrayList<Hash>(256);
+            failing = new HashMap<Hash, PeerProfile>(16);
+            strictOrder = new TreeSet<PeerProfile>(comp);
+        }
+    }
     
     /**
      * Defines the minimum number of 'fast' peers that the organizer should select.  If
@@ -3,11 +3,15 @@ package net.i2p.router.transport;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.I2PAppContext;
+import net.i2p.router.OutNetMessage;
 import net.i2p.router.util.PQEntry;
 import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
@@ -70,6 +74,17 @@ public class FIFOBandwidthLimiter {
 
     private final FIFOBandwidthRefiller _refiller;
     private final Thread _refillerThread;
+    /** null unless PROP_TOKEN_BUCKET is true */
+    private final TokenBucketLimiter _inboundTokens;
+    /** null unless PROP_TOKEN_BUCKET is true */
+    private final TokenBucketLimiter _outboundTokens;
+
+    /**
+     *  Use the lock-free hierarchical token buckets instead of the FIFO queues.
+     *  Requires restart.
+     *  @since 0.9.10
+     */
+    public static final String PROP_TOKEN_BUCKET = "i2np.bandwidth.tokenBucket";
     
     private long _lastTotalSent;
     private long _lastTotalReceived;
@@ -96,10 +111,22 @@ public class FIFOBandwidthLimiter {
         _lastTotalSent = _totalAllocatedOutboundBytes.get();
         _lastTotalReceived = _totalAllocatedInboundBytes.get();
         _lastStatsUpdated = now();
+        // before the refiller, which configures them
+        if (_context.getBooleanProperty(PROP_TOKEN_BUCKET)) {
+            _inboundTokens = new TokenBucketLimiter(_context, true, _totalAllocatedInboundBytes);
+            _outboundTokens = new TokenBucketLimiter(_context, false, _totalAllocatedOutboundBytes);
+        } else {
+            _inboundTokens = null;
+            _outboundTokens = null;
+        }
         _refiller = new FIFOBandwidthRefiller(_context, this);
         _refillerThread = new I2PThread(_refiller, "BWRefiller", true);
         _refillerThread.setPriority(I2PThread.NORM_PRIORITY-1);
         _refillerThread.start();
+        if (_inboundTokens != null) {
+            _inboundTokens.startGranting();
+            _outboundTokens.startGranting();
+        }
     }
 
     //public long getAvailableInboundBytes() { return _availableInboundBytes; }
@@ -152,6 +179,10 @@ public class FIFOBandwidthLimiter {
     public synchronized void shutdown() {
         _refiller.shutdown();
         _refillerThread.interrupt();
+        if (_inboundTokens != null) {
+            _inboundTokens.shutdown();
+            _outboundTokens.shutdown();
+        }
         clear();
     }
 
@@ -167,6 +198,10 @@ public class FIFOBandwidthLimiter {
         _maxOutboundBurst = 0;
         _unavailableInboundBurst.set(0);
         _unavailableOutboundBurst.set(0);
+        if (_inboundTokens != null) {
+            _inboundTokens.clear();
+            _outboundTokens.clear();
+        }
         // always limited for now
         //_inboundUnlimited = false;
         //_outboundUnlimited = false;
@@ -196,6 +231,13 @@ public class FIFOBandwidthLimiter {
      * Request some bytes. Does not block.
      */
     public Request requestInbound(int bytesIn, String purpose) {
+        if (_inboundTokens != null) {
+            if (_inboundTokens.tryGrant(bytesIn, purpose, 0))
+                return _noop;
+            SimpleRequest req = new SimpleRequest(bytesIn, 0);
+            _inboundTokens.enqueue(req, purpose, 0);
+            return req;
+        }
         // try to satisfy without grabbing the global lock
         if (shortcutSatisfyInboundRequest(bytesIn))
             return _noop;
@@ -227,6 +269,13 @@ public class FIFOBandwidthLimiter {
      * Request some bytes. Does not block.
      */
     public Request requestOutbound(int bytesOut, int priority, String purpose) {
+        if (_outboundTokens != null) {
+            if (_outboundTokens.tryGrant(bytesOut, purpose, priority))
+                return _noop;
+            SimpleRequest req = new SimpleRequest(bytesOut, priority);
+            _outboundTokens.enqueue(req, purpose, priority);
+            return req;
+        }
         // try to satisfy without grabbing the global lock
         if (shortcutSatisfyOutboundRequest(bytesOut))
             return _noop;
@@ -259,6 +308,20 @@ public class FIFOBandwidthLimiter {
     public int getOutboundBurstBytes() { return _maxOutboundBurst; }
     void setInboundBurstBytes(int bytes) { _maxInboundBurst = bytes; }
     void setOutboundBurstBytes(int bytes) { _maxOutboundBurst = bytes; }
+
+    /**
+     *  Called by the refiller after the rates and burst bytes above are set.
+     *  Must not use _refiller, as it is called from the refiller constructor.
+     *
+     *  @param sharePct outbound participating limit
+     *  @since 0.9.10
+     */
+    void updateTokenBuckets(int inKBps, int outKBps, int inBurstKBps, int outBurstKBps, int sharePct) {
+        if (_inboundTokens == null)
+            return;
+        _inboundTokens.setRates(inKBps * 1024l, inBurstKBps * 1024l, _maxInboundBurst, 100);
+        _outboundTokens.setRates(outKBps * 1024l, outBurstKBps * 1024l, _maxOutboundBurst, sharePct);
+    }
     
     StringBuilder getStatus() {
         StringBuilder rv = new StringBuilder(128);
@@ -266,6 +329,10 @@ public class FIFOBandwidthLimiter {
         rv.append("Max: ").append(_maxInbound).append('/').append(_maxOutbound).append(' ');
         rv.append("Burst: ").append(_unavailableInboundBurst).append('/').append(_unavailableOutboundBurst).append(' ');
         rv.append("Burst max: ").append(_maxInboundBurst).append('/').append(_maxOutboundBurst).append(' ');
+        if (_inboundTokens != null) {
+            rv.append(_inboundTokens.getStatus()).append(' ');
+            rv.append(_outboundTokens.getStatus()).append(' ');
+        }
         return rv;
     }
     
@@ -779,7 +846,10 @@ public class FIFOBandwidthLimiter {
 ******/
     }
     
-    private static class SimpleRequest implements Request {
+    /**
+     *  Package private for TokenBucketLimiter
+     */
+    static class SimpleRequest implements Request {
         private int _allocated;
         private final int _total;
         private final long _requestId;
@@ -793,7 +863,7 @@ public class FIFOBandwidthLimiter {
         private final int _priority;
         
         /**
-         *  @param priority 0 for now
+         *  @param priority OutNetMessage priority, or 0 if unknown
          */
         public SimpleRequest(int bytes, int priority) {
             satisfiedBuffer = new ArrayList<Request>(1);
@@ -889,6 +959,89 @@ public class FIFOBandwidthLimiter {
         }
     }
 
+    /**
+     *  Simulation of saturated NTCP and SSU senders, local and participating,
+     *  comparing the FIFO queues with the token buckets.
+     *  Prints the grant latency and the utilization of the configured rate.
+     *
+     *  Usage: FIFOBandwidthLimiter [seconds [KBps]]
+     *  @since 0.9.10
+     */
+    public static void main(String args[]) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int kbps = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        for (int i = 0; i < 2; i++) {
+            boolean tb = i > 0;
+            simulate(tb, seconds, kbps);
+        }
+    }
+
+    private static void simulate(boolean tokenBucket, int seconds, int kbps) throws InterruptedException {
+        Properties props = new Properties();
+        props.setProperty(PROP_TOKEN_BUCKET, Boolean.toString(tokenBucket));
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH, Integer.toString(kbps));
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BURST_BANDWIDTH, Integer.toString(kbps));
+        // the minimum, one second
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH_PEAK, "1");
+        I2PAppContext ctx = new I2PAppContext(props);
+        final FIFOBandwidthLimiter limiter = new FIFOBandwidthLimiter(ctx);
+        final long end = System.currentTimeMillis() + (seconds * 1000l);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>(64*1024));
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final boolean ntcp = (i & 1) == 0;
+            final int priority = (i & 2) == 0 ? 0 : OutNetMessage.PRIORITY_PARTICIPATING;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        long start = System.nanoTime();
+                        if (ntcp) {
+                            final CountDownLatch latch = new CountDownLatch(1);
+                            Request req = limiter.requestOutbound(8*1024, priority, "NTCP write");
+                            req.setCompleteListener(new CompleteListener() {
+                                public void complete(Request r) { latch.countDown(); }
+                            });
+                            try {
+                                latch.await();
+                            } catch (InterruptedException ie) {
+                                break;
+                            }
+                        } else {
+                            Request req = limiter.requestOutbound(1500, priority, "UDP sender");
+                            while (req.getPendingRequested() > 0)
+                                req.waitForNextAllocation();
+                        }
+                        latencies.add(Long.valueOf(System.nanoTime() - start));
+                    }
+                }
+            }, (ntcp ? "NTCP " : "UDP ") + priority);
+            t.setDaemon(true);
+            threads.add(t);
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(2 * seconds * 1000l);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        long sent = limiter.getTotalAllocatedOutboundBytes();
+        limiter.shutdown();
+
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        int n = sorted.size();
+        System.out.println((tokenBucket ? "Token bucket" : "FIFO") + ": " + n + " grants in " + elapsed + " ms");
+        if (n > 0) {
+            System.out.println("  latency us p50: " + (sorted.get(n / 2).longValue() / 1000) +
+                               " p99: " + (sorted.get(Math.min(n - 1, n * 99 / 100)).longValue() / 1000) +
+                               " max: " + (sorted.get(n - 1).longValue() / 1000));
+        }
+        double util = sent * 1000d / (kbps * 1024d * elapsed);
+        System.out.println("  sent " + sent + " bytes, utilization " + ((int) (util * 1000) / 10d) + '%');
+    }
+
     /**
      *  A bandwidth request, either inbound or outbound.
      */
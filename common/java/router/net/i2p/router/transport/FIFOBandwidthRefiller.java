@@ -7,6 +7,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
+import net.i2p.router.Router;
 import net.i2p.router.transport.FIFOBandwidthLimiter.Request;
 import net.i2p.util.Log;
 
@@ -173,6 +174,10 @@ public class FIFOBandwidthRefiller implements Runnable {
         updateOutboundBurstRate();
         updateInboundPeak();
         updateOutboundPeak();
+        _limiter.updateTokenBuckets(_inboundKBytesPerSecond, _outboundKBytesPerSecond,
+                                    _inboundBurstKBytesPerSecond, _outboundBurstKBytesPerSecond,
+                                    _context.getProperty(Router.PROP_BANDWIDTH_SHARE_PERCENTAGE,
+                                                         Router.DEFAULT_SHARE_PERCENTAGE));
         
         // We are always limited for now
         //_limiter.setInboundUnlimited(_inboundKBytesPerSecond <= 0);
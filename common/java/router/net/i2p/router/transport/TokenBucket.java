@@ -0,0 +1,188 @@
+package net.i2p.router.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  A lock-free token bucket, where the tokens are bytes,
+ *  optionally the child of a parent bucket.
+ *
+ *  Refill is lazy, computed from the elapsed time whenever the bucket is used,
+ *  so there is no refill thread and no refill granularity.
+ *  A grant must come out of this bucket and all its ancestors;
+ *  if an ancestor doesn't have enough, the tokens are returned.
+ *
+ *  A bucket with a rate of zero or less is unlimited, and only counts
+ *  what passes through it.
+ *
+ *  @since 0.9.10
+ */
+class TokenBucket {
+    private final String _name;
+    private final TokenBucket _parent;
+    private final AtomicLong _tokens = new AtomicLong();
+    /** nanoTime of the last refill, advanced only by the time the added tokens represent */
+    private final AtomicLong _lastRefill;
+    /** lifetime counter */
+    private final AtomicLong _granted = new AtomicLong();
+    /** bytes per second */
+    private volatile long _rate;
+    /** max tokens */
+    private volatile long _capacity;
+
+    /** don't bother refilling more often than this */
+    private static final long MIN_REFILL_NANOS = 20*1000;
+    /** above this, calculate in ms to prevent overflow */
+    private static final long MAX_REFILL_NANOS = 10*1000*1000*1000l;
+    private static final long NANOS_PER_SECOND = 1000*1000*1000l;
+
+    /**
+     *  @param parent may be null
+     *  @param rate bytes per second, 0 or less for unlimited
+     *  @param capacity max bytes in the bucket
+     */
+    public TokenBucket(String name, TokenBucket parent, long rate, long capacity) {
+        _name = name;
+        _parent = parent;
+        _rate = rate;
+        _capacity = capacity;
+        _lastRefill = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     *  Change the rate and capacity. Tokens over the new capacity are discarded.
+     *
+     *  @param rate bytes per second, 0 or less for unlimited
+     *  @param capacity max bytes in the bucket
+     */
+    public void setRate(long rate, long capacity) {
+        _rate = rate;
+        _capacity = capacity;
+        while (true) {
+            long t = _tokens.get();
+            if (t <= capacity || _tokens.compareAndSet(t, capacity))
+                break;
+        }
+    }
+
+    public long getRate() { return _rate; }
+
+    public long getCapacity() { return _capacity; }
+
+    /** lifetime bytes granted */
+    public long getGranted() { return _granted.get(); }
+
+    /** current tokens, after a refill */
+    public long getAvailable(long now) {
+        if (_rate <= 0)
+            return Long.MAX_VALUE;
+        refill(now);
+        return _tokens.get();
+    }
+
+    /**
+     *  The largest grant this bucket and its ancestors could ever give at once.
+     */
+    public long getMaxGrant() {
+        long rv = _rate > 0 ? _capacity : Long.MAX_VALUE;
+        if (_parent != null)
+            rv = Math.min(rv, _parent.getMaxGrant());
+        return rv;
+    }
+
+    /**
+     *  Take the bytes from this bucket and all its ancestors, or from none of them.
+     *  Does not block.
+     *
+     *  @param now from System.nanoTime()
+     *  @return success
+     */
+    public boolean tryConsume(int bytes, long now) {
+        boolean limited = _rate > 0;
+        if (limited) {
+            refill(now);
+            while (true) {
+                long t = _tokens.get();
+                if (t < bytes)
+                    return false;
+                if (_tokens.compareAndSet(t, t - bytes))
+                    break;
+            }
+        }
+        if (_parent != null && !_parent.tryConsume(bytes, now)) {
+            if (limited)
+                _tokens.addAndGet(bytes);
+            return false;
+        }
+        _granted.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     *  How long until this bucket and its ancestors could grant the bytes,
+     *  if nobody else takes them first.
+     *
+     *  @param now from System.nanoTime()
+     *  @return nanoseconds, 0 if now
+     */
+    public long nanosUntil(int bytes, long now) {
+        long rv = 0;
+        long rate = _rate;
+        if (rate > 0) {
+            refill(now);
+            long deficit = bytes - _tokens.get();
+            if (deficit > 0)
+                rv = (deficit * NANOS_PER_SECOND + rate - 1) / rate;
+        }
+        if (_parent != null)
+            rv = Math.max(rv, _parent.nanosUntil(bytes, now));
+        return rv;
+    }
+
+    /**
+     *  Add the tokens for the time elapsed since the last refill.
+     *  Only one thread wins the race to advance the refill time,
+     *  and it's the only one to add the tokens for that interval.
+     */
+    private void refill(long now) {
+        long last = _lastRefill.get();
+        long elapsed = now - last;
+        if (elapsed < MIN_REFILL_NANOS)
+            return;
+        long rate = _rate;
+        if (elapsed > MAX_REFILL_NANOS) {
+            // idle for a long time, do it in ms so it doesn't overflow
+            if (_lastRefill.compareAndSet(last, now))
+                add(Math.min(_capacity, (elapsed / (1000*1000)) * rate / 1000));
+            return;
+        }
+        long toAdd = elapsed * rate / NANOS_PER_SECOND;
+        if (toAdd <= 0)
+            return;
+        // advance only by the time the whole tokens represent, so fractions aren't lost
+        long used = toAdd * NANOS_PER_SECOND / rate;
+        if (_lastRefill.compareAndSet(last, last + used))
+            add(toAdd);
+    }
+
+    private void add(long toAdd) {
+        long cap = _capacity;
+        while (true) {
+            long t = _tokens.get();
+            long nt = Math.min(cap, t + toAdd);
+            if (nt == t || _tokens.compareAndSet(t, nt))
+                return;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(64);
+        buf.append(_name).append(": ");
+        if (_rate > 0)
+            buf.append(_tokens.get()).append('/').append(_capacity).append(" @ ").append(_rate).append(" Bps");
+        else
+            buf.append("unlimited");
+        buf.append(", granted ").append(_granted.get());
+        return buf.toString();
+    }
+}
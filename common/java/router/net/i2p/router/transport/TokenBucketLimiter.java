@@ -0,0 +1,303 @@
+package net.i2p.router.transport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.i2p.I2PAppContext;
+import net.i2p.router.OutNetMessage;
+import net.i2p.router.transport.FIFOBandwidthLimiter.SimpleRequest;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ *  Hierarchical token bucket limiter for one direction (inbound or outbound),
+ *  an alternative to the FIFO queues and periodic refills in FIFOBandwidthLimiter.
+ *  Instantiated by FIFOBandwidthLimiter if enabled.
+ *
+ *  The bucket tree is:
+ *<pre>
+ *  peak (burst rate, 1 second deep)
+ *   global (sustained rate, burst bytes deep)
+ *    NTCP                        SSU
+ *     local   participating       local   participating
+ *</pre>
+ *  The transport buckets are unlimited and only count.
+ *  The outbound participating buckets are limited to the share percentage
+ *  of the sustained rate. Inbound requests don't have a priority, so
+ *  they are all local.
+ *
+ *  When there are no queued requests, a request that fits is granted
+ *  immediately and lock-free in the caller's thread.
+ *  Otherwise we are saturated, and requests are queued per leaf bucket.
+ *  A single granter thread serves the leaf queues round-robin,
+ *  up to QUANTUM bytes per turn (i.e. deficit round robin with partial grants),
+ *  and parks until the earliest time a leaf could be served,
+ *  rather than waiting for a fixed refill interval.
+ *
+ *  @since 0.9.10
+ */
+class TokenBucketLimiter implements Runnable {
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final String _name;
+    private final boolean _isInbound;
+    private final AtomicLong _totalAllocated;
+    private final TokenBucket _peak;
+    private final TokenBucket _global;
+    private final TokenBucket[] _transports;
+    /** [transport][class] */
+    private final Leaf[][] _leaves;
+    /** flattened, for the round robin */
+    private final Leaf[] _allLeaves;
+    /** total queued requests, the fast path is only allowed when zero */
+    private final AtomicInteger _queued = new AtomicInteger();
+    private volatile Thread _thread;
+    private volatile boolean _isRunning;
+    private int _nextLeaf;
+
+    private static final int TRANSPORT_NTCP = 0;
+    private static final int TRANSPORT_SSU = 1;
+    private static final int CLASS_LOCAL = 0;
+    private static final int CLASS_PARTICIPATING = 1;
+    private static final String[] TRANSPORT_NAMES = { "NTCP", "SSU" };
+    private static final String[] CLASS_NAMES = { "local", "participating" };
+
+    /** max bytes granted to one leaf per turn */
+    private static final int QUANTUM = 4*1024;
+    /** don't park for less than this, sub-ms but not a spin */
+    private static final long MIN_PARK_NANOS = 50*1000;
+    /** don't park for more than this when a request is waiting for its consumer */
+    private static final long MAX_PARK_NANOS = 10*1000*1000;
+
+    /**
+     *  @param totalAllocated lifetime counter to update
+     */
+    public TokenBucketLimiter(I2PAppContext context, boolean isInbound, AtomicLong totalAllocated) {
+        _context = context;
+        _log = context.logManager().getLog(TokenBucketLimiter.class);
+        _isInbound = isInbound;
+        _name = isInbound ? "inbound" : "outbound";
+        _totalAllocated = totalAllocated;
+        // real rates are set by the refiller via setRates()
+        _peak = new TokenBucket(_name + " peak", null, 1, 1);
+        _global = new TokenBucket(_name + " global", _peak, 1, 1);
+        _transports = new TokenBucket[TRANSPORT_NAMES.length];
+        int classes = isInbound ? 1 : CLASS_NAMES.length;
+        _leaves = new Leaf[TRANSPORT_NAMES.length][classes];
+        _allLeaves = new Leaf[TRANSPORT_NAMES.length * classes];
+        for (int i = 0; i < TRANSPORT_NAMES.length; i++) {
+            _transports[i] = new TokenBucket(_name + ' ' + TRANSPORT_NAMES[i], _global, 0, 0);
+            for (int j = 0; j < classes; j++) {
+                Leaf leaf = new Leaf(new TokenBucket(_name + ' ' + TRANSPORT_NAMES[i] + ' ' + CLASS_NAMES[j], _transports[i], 0, 0));
+                _leaves[i][j] = leaf;
+                _allLeaves[(i * classes) + j] = leaf;
+            }
+        }
+        _context.statManager().createRateStat("bwLimiter." + _name + "Saturated", "How many requests were queued when a request was queued (token bucket)", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
+    }
+
+    public synchronized void startGranting() {
+        if (_isRunning)
+            return;
+        _isRunning = true;
+        Thread t = new I2PThread(this, "BWGranter " + (_isInbound ? "IB" : "OB"), true);
+        _thread = t;
+        t.start();
+    }
+
+    public synchronized void shutdown() {
+        _isRunning = false;
+        Thread t = _thread;
+        if (t != null)
+            LockSupport.unpark(t);
+        clear();
+    }
+
+    /**
+     *  Drop all queued requests. They are not notified, same as FIFOBandwidthLimiter.clear().
+     */
+    public void clear() {
+        for (int i = 0; i < _allLeaves.length; i++) {
+            Leaf leaf = _allLeaves[i];
+            while (leaf.queue.poll() != null) {
+                _queued.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     *  Called by the refiller when the config changes.
+     *
+     *  @param rate sustained Bps
+     *  @param burstRate peak Bps
+     *  @param burstBytes global bucket depth
+     *  @param sharePct outbound participating limit as a percentage of the sustained rate
+     */
+    public void setRates(long rate, long burstRate, long burstBytes, int sharePct) {
+        burstRate = Math.max(rate, burstRate);
+        _peak.setRate(burstRate, burstRate);
+        _global.setRate(rate, Math.max(burstRate, burstBytes));
+        if (!_isInbound) {
+            long part = rate * Math.max(0, Math.min(100, sharePct)) / 100;
+            // 0 would be unlimited
+            part = Math.max(1, part);
+            for (int i = 0; i < TRANSPORT_NAMES.length; i++) {
+                _leaves[i][CLASS_PARTICIPATING].bucket.setRate(part, Math.max(part, burstRate * sharePct / 100));
+            }
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Token buckets updated: " + getStatus());
+    }
+
+    /**
+     *  Lock-free grant in the caller's thread.
+     *  Only if nothing is queued anywhere, so queued requests aren't starved.
+     *
+     *  @param priority OutNetMessage priority, or 0 if unknown
+     *  @return success
+     */
+    public boolean tryGrant(int bytes, String purpose, int priority) {
+        if (_queued.get() > 0)
+            return false;
+        Leaf leaf = getLeaf(purpose, priority);
+        if (!leaf.bucket.tryConsume(bytes, System.nanoTime()))
+            return false;
+        _totalAllocated.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     *  Queue a request that could not be granted by tryGrant().
+     *  The request will be notified as it is allocated.
+     *
+     *  @param priority OutNetMessage priority, or 0 if unknown
+     */
+    public void enqueue(SimpleRequest req, String purpose, int priority) {
+        Leaf leaf = getLeaf(purpose, priority);
+        leaf.queue.offer(req);
+        int queued = _queued.getAndIncrement();
+        if (queued > 0)
+            _context.statManager().addRateData("bwLimiter." + _name + "Saturated", queued);
+        Thread t = _thread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    /**
+     *  Purpose strings are e.g. "NTCP write" and "UDP sender"
+     *
+     *  Participating is above PRIORITY_LOWEST and up to PRIORITY_PARTICIPATING,
+     *  i.e. tunnel and floodfill traffic. PRIORITY_LOWEST is our own
+     *  netDb exploration and harvesting, 0 is unknown, both local.
+     */
+    private Leaf getLeaf(String purpose, int priority) {
+        int transport = (purpose != null && purpose.startsWith("NTCP")) ? TRANSPORT_NTCP : TRANSPORT_SSU;
+        int cls = (!_isInbound && priority > OutNetMessage.PRIORITY_LOWEST &&
+                   priority <= OutNetMessage.PRIORITY_PARTICIPATING) ?
+                  CLASS_PARTICIPATING : CLASS_LOCAL;
+        return _leaves[transport][cls];
+    }
+
+    public void run() {
+        while (_isRunning) {
+            try {
+                long park = grantOnce();
+                if (park > 0)
+                    LockSupport.parkNanos(this, park);
+            } catch (RuntimeException re) {
+                _log.error("Error in the bandwidth granter", re);
+            }
+        }
+    }
+
+    /**
+     *  One round robin pass over the leaves.
+     *
+     *  @return how long to park, 0 to go again immediately
+     */
+    private long grantOnce() {
+        long now = System.nanoTime();
+        long park = Long.MAX_VALUE;
+        boolean progress = false;
+        int count = _allLeaves.length;
+        for (int n = 0; n < count; n++) {
+            Leaf leaf = _allLeaves[_nextLeaf];
+            if (++_nextLeaf >= count)
+                _nextLeaf = 0;
+            SimpleRequest req = leaf.queue.peek();
+            if (req == null)
+                continue;
+            if (req.getAborted() || req.getPendingRequested() <= 0) {
+                remove(leaf, req);
+                progress = true;
+                continue;
+            }
+            if ( (req.getAllocationsSinceWait() > 0) && (req.getCompleteListener() == null) ) {
+                // we have already allocated some values to this request, but
+                // they haven't taken advantage of it yet, check back soon
+                park = Math.min(park, MAX_PARK_NANOS);
+                continue;
+            }
+            int chunk = (int) Math.min(Math.min(req.getPendingRequested(), QUANTUM), leaf.bucket.getMaxGrant());
+            if (leaf.bucket.tryConsume(chunk, now)) {
+                _totalAllocated.addAndGet(chunk);
+                req.allocateBytes(chunk);
+                boolean complete = req.getPendingRequested() <= 0;
+                if (complete) {
+                    remove(leaf, req);
+                    long waited = System.currentTimeMillis() - req.getRequestTime();
+                    if (waited > 10)
+                        _context.statManager().addRateData(_isInbound ? "bwLimiter.inboundDelayedTime" : "bwLimiter.outboundDelayedTime", waited);
+                }
+                req.notifyAllocation();
+                progress = true;
+            } else {
+                park = Math.min(park, leaf.bucket.nanosUntil(chunk, now));
+                TokenBucket b = leaf.bucket;
+                if (b.getRate() <= 0 || b.getAvailable(now) >= chunk) {
+                    // Out of shared tokens, not over our own limit.
+                    // Keep the turn, otherwise leaves with small requests would
+                    // always grab the tokens first and starve the large ones.
+                    _nextLeaf = (_nextLeaf + count - 1) % count;
+                    break;
+                }
+            }
+        }
+        if (progress)
+            return 0;
+        if (park == Long.MAX_VALUE)
+            return MAX_PARK_NANOS * 100;  // nothing queued, wait for an unpark()
+        return Math.max(MIN_PARK_NANOS, park);
+    }
+
+    private void remove(Leaf leaf, SimpleRequest req) {
+        if (leaf.queue.remove(req))
+            _queued.decrementAndGet();
+    }
+
+    /** for FIFOBandwidthLimiter.getStatus() */
+    public String getStatus() {
+        StringBuilder buf = new StringBuilder(256);
+        long now = System.nanoTime();
+        buf.append(_name).append(" queued: ").append(_queued.get());
+        buf.append(" available: ").append(_global.getAvailable(now));
+        buf.append(" [").append(_peak).append("] [").append(_global).append(']');
+        for (int i = 0; i < _allLeaves.length; i++) {
+            buf.append(" [").append(_allLeaves[i].bucket).append(']');
+        }
+        return buf.toString();
+    }
+
+    private static class Leaf {
+        final TokenBucket bucket;
+        final Queue<SimpleRequest> queue;
+
+        public Leaf(TokenBucket bucket) {
+            this.bucket = bucket;
+            queue = new ConcurrentLinkedQueue<SimpleRequest>();
+        }
+    }
+}
@@ -18,8 +18,8 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import net.i2p.I2PAppContext;
 import net.i2p.data.RouterAddress;
 import net.i2p.data.RouterIdentity;
 import net.i2p.router.CommSystemFacade;
@@ -32,23 +32,22 @@ import net.i2p.util.Log;
 import net.i2p.util.SystemVersion;
 
 /**
- *  The main NTCP NIO thread.
+ *  The NTCP NIO threads.
+ *
+ *  Connections are sharded across one or more selector loops.
+ *  Each loop has its own Selector, wants* queues, read buffer pool and idle timer,
+ *  and a connection stays on the same loop for its lifetime.
+ *  The first loop also owns the listening sockets and the establishment timeouts;
+ *  accepted sockets are handed off round-robin to all loops.
  */
-class EventPumper implements Runnable {
+class EventPumper {
     private final RouterContext _context;
     private final Log _log;
     private volatile boolean _alive;
-    private Selector _selector;
-    private final Set<NTCPConnection> _wantsWrite = new ConcurrentHashSet<NTCPConnection>(32);
-    /**
-     *  The following 3 are unbounded and lockless for performance in runDelayedEvents()
-     */
-    private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
-    private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
-    private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+    private volatile Loop[] _loops;
+    private final AtomicInteger _nextLoop = new AtomicInteger();
     private final NTCPTransport _transport;
-    private long _expireIdleWriteTime;
-    private boolean _useDirect;
+    private volatile long _expireIdleWriteTime;
     
     /**
      *  This probably doesn't need to be bigger than the largest typical
@@ -56,24 +55,22 @@ class EventPumper implements Runnable {
      *  The occasional larger message can use multiple buffers.
      */
     private static final int BUF_SIZE = 8*1024;
+    /** per loop */
     private static final int MAX_CACHE_SIZE = 64;
-
-    /**
-     *  Read buffers. (write buffers use wrap())
-     *  Shared if there are multiple routers in the JVM
-     *  Note that if the routers have different PROP_DIRECT settings this will have a mix,
-     *  so don't do that.
-     */
-    private static final LinkedBlockingQueue<ByteBuffer> _bufCache = new LinkedBlockingQueue<ByteBuffer>(MAX_CACHE_SIZE);
+    /** max buffers in a gathering write */
+    private static final int MAX_GATHER = 16;
 
     /** 
-     * every few seconds, iterate across all ntcp connections just to make sure
-     * we have their interestOps set properly (and to expire any looong idle cons).
-     * as the number of connections grows, we should try to make this happen
-     * less frequently (or not at all), but while the connection count is small,
-     * the time to iterate across them to check a few flags shouldn't be a problem.
+     * Each loop iterates across its own ntcp connections just to make sure
+     * we have their interestOps set properly (and to expire any looong idle cons),
+     * but only when its idle timer fires, which is at the earliest time
+     * one of its connections could reach the idle timeout, and at least this often.
      */
-    private static final long FAILSAFE_ITERATION_FREQ = 2*1000l;
+    private static final long FAILSAFE_ITERATION_FREQ = 10*1000l;
+    /** don't run the idle timer more often than this, no matter how many connections are about to expire */
+    private static final long MIN_IDLE_CHECK_FREQ = 1000;
+    /** how often to update the idle timeout and the loop stats */
+    private static final long STATS_FREQ = 2*1000l;
     private static final long SELECTOR_LOOP_DELAY = 200;
 
     /** tunnel test now disabled, but this should be long enough to allow an active tunnel to get started */
@@ -87,6 +84,15 @@ class EventPumper implements Runnable {
      */
     private static final String PROP_DIRECT = "i2np.ntcp.useDirectBuffers";
 
+    /**
+     *  How many selector loops. Default depends on cores, 1 on Android.
+     *  Takes effect at the next transport restart.
+     *  @since 0.9.10
+     */
+    private static final String PROP_LOOPS = "i2np.ntcp.pumperLoops";
+    private static final int MAX_DEFAULT_LOOPS = 4;
+    private static final int MAX_LOOPS = 16;
+
     private static final int MIN_MINB = 4;
     private static final int MAX_MINB = 12;
     private static final int MIN_BUFS;
@@ -108,31 +114,103 @@ class EventPumper implements Runnable {
     }
     
     public synchronized void startPumping() {
+        int count = getLoopCount();
         if (_log.shouldLog(Log.INFO))
-            _log.info("Starting pumper");
+            _log.info("Starting pumper with " + count + " loops");
+        Loop[] loops = new Loop[count];
         try {
-            _selector = Selector.open();
-            _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            for (int i = 0; i < count; i++) {
+                loops[i] = new Loop(i);
+            }
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
+            closeSelectors(loops);
+            return;
         } catch (java.lang.InternalError jlie) {
             // "unable to get address of epoll functions, pre-2.6 kernel?"
             _log.log(Log.CRIT, "Error opening the NTCP selector", jlie);
+            closeSelectors(loops);
+            return;
+        }
+        _loops = loops;
+        _alive = true;
+        for (int i = 0; i < count; i++) {
+            String name = count > 1 ? "NTCP Pumper " + (i + 1) + '/' + count : "NTCP Pumper";
+            new I2PThread(loops[i], name, true).start();
         }
     }
     
     public synchronized void stopPumping() {
         _alive = false;
-        if (_selector != null && _selector.isOpen())
-            _selector.wakeup();
+        Loop[] loops = _loops;
+        if (loops == null)
+            return;
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i]._selector.isOpen())
+                loops[i]._selector.wakeup();
+        }
     }
     
     /**
      *  Selector can take quite a while to close after calling stopPumping()
      */
     public boolean isAlive() {
-        return _alive || (_selector != null && _selector.isOpen());
+        if (_alive)
+            return true;
+        Loop[] loops = _loops;
+        if (loops == null)
+            return false;
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i]._selector.isOpen())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     *  @since 0.9.10
+     */
+    private int getLoopCount() {
+        int def;
+        if (SystemVersion.isAndroid())
+            def = 1;
+        else
+            def = Math.min(MAX_DEFAULT_LOOPS, SystemVersion.getCores());
+        return Math.max(1, Math.min(MAX_LOOPS, _context.getProperty(PROP_LOOPS, def)));
+    }
+
+    /**
+     *  @since 0.9.10
+     */
+    private static void closeSelectors(Loop[] loops) {
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] != null)
+                try { loops[i]._selector.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Round-robin choice of the loop for a new connection.
+     *  @since 0.9.10
+     */
+    private Loop nextLoop() {
+        Loop[] loops = _loops;
+        if (loops.length == 1)
+            return loops[0];
+        int i = (_nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        return loops[i];
+    }
+
+    /**
+     *  The loop this connection is registered on, or the first loop
+     *  if it isn't registered yet.
+     *  @since 0.9.10
+     */
+    private Loop getLoop(NTCPConnection con) {
+        Loop rv = con.getPumperLoop();
+        if (rv == null)
+            rv = _loops[0];
+        return rv;
     }
 
     /**
@@ -142,8 +220,7 @@ class EventPumper implements Runnable {
      */
     public void register(ServerSocketChannel chan) {
         if (_log.shouldLog(Log.DEBUG)) _log.debug("Registering server socket channel");
-        _wantsRegister.offer(chan);
-        _selector.wakeup();
+        _loops[0].register(chan);
     }
 
     /**
@@ -153,224 +230,9 @@ class EventPumper implements Runnable {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Registering " + con);
         _context.statManager().addRateData("ntcp.registerConnect", 1);
-        _wantsConRegister.offer(con);
-        _selector.wakeup();
-    }
-    
-    /**
-     *  The selector loop.
-     *  On high-bandwidth routers, this is the thread with the highest CPU usage, so
-     *  take care to minimize overhead and unnecessary debugging stuff.
-     */
-    public void run() {
-        int loopCount = 0;
-        long lastFailsafeIteration = System.currentTimeMillis();
-        while (_alive && _selector.isOpen()) {
-            try {
-                loopCount++;
-                runDelayedEvents();
-
-                try {
-                    //if (_log.shouldLog(Log.DEBUG))
-                    //    _log.debug("before select...");
-                    int count = _selector.select(SELECTOR_LOOP_DELAY);
-                    if (count > 0) {
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("select returned " + count);
-                        Set<SelectionKey> selected = _selector.selectedKeys();
-                        //_context.statManager().addRateData("ntcp.pumperKeysPerLoop", selected.size());
-                        processKeys(selected);
-                        // does clear() do anything useful?
-                        selected.clear();
-                    }
-                } catch (ClosedSelectorException cse) {
-                    continue;
-                } catch (IOException ioe) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("Error selecting", ioe);
-                } catch (CancelledKeyException cke) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("Error selecting", cke);
-		    continue;
-		}
-                
-                if (lastFailsafeIteration + FAILSAFE_ITERATION_FREQ < System.currentTimeMillis()) {
-                    // in the *cough* unthinkable possibility that there are bugs in
-                    // the code, lets periodically pass over all NTCP connections and
-                    // make sure that anything which should be able to write has been
-                    // properly marked as such, etc
-                    lastFailsafeIteration = System.currentTimeMillis();
-                    try {
-                        Set<SelectionKey> all = _selector.keys();
-                        _context.statManager().addRateData("ntcp.pumperKeySetSize", all.size());
-                        _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
-                        loopCount = 0;
-                        
-                        int failsafeWrites = 0;
-                        int failsafeCloses = 0;
-                        int failsafeInvalid = 0;
-
-                        // Increase allowed idle time if we are well under allowed connections, otherwise decrease
-                        if (_transport.haveCapacity(60))
-                            _expireIdleWriteTime = Math.min(_expireIdleWriteTime + 1000, MAX_EXPIRE_IDLE_TIME);
-                        else
-                            _expireIdleWriteTime = Math.max(_expireIdleWriteTime - 3000, MIN_EXPIRE_IDLE_TIME);
-                        for (SelectionKey key : all) {
-                            try {
-                                Object att = key.attachment();
-                                if (!(att instanceof NTCPConnection))
-                                    continue; // to the next con
-                                NTCPConnection con = (NTCPConnection)att;
-                                
-                                /**
-                                 * 100% CPU bug
-                                 * http://forums.java.net/jive/thread.jspa?messageID=255525
-                                 * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6595055
-                                 * 
-                                 * The problem is around a channel that was originally registered with Selector for i/o gets
-                                 * closed on the server side (due to early client side exit).  But the server side can know
-                                 * about such channel only when it does i/o (read/write) and thereby getting into an IO exception.
-                                 * In this case, (bug 6595055)there are times (erroneous) when server side (selector) did not
-                                 * know the channel is already closed (peer-reset), but continue to do the selection cycle on
-                                 * a key set whose associated channel is alreay closed or invalid. Hence, selector's slect(..)
-                                 * keep spinging with zero return without blocking for the timeout period.
-                                 * 
-                                 * One fix is to have a provision in the application, to check if any of the Selector's keyset
-                                 * is having a closed channel/or invalid registration due to channel closure.
-                                 */
-                                if ((!key.isValid()) &&
-                                    (!((SocketChannel)key.channel()).isConnectionPending()) &&
-                                    con.getTimeSinceCreated() > 2 * NTCPTransport.ESTABLISH_TIMEOUT) {
-                                    if (_log.shouldLog(Log.INFO))
-                                        _log.info("Removing invalid key for " + con);
-                                    // this will cancel the key, and it will then be removed from the keyset
-                                    con.close();
-                                    failsafeInvalid++;
-                                    continue;
-                                }
-
-                                if ( (!con.isWriteBufEmpty()) &&
-                                     ((key.interestOps() & SelectionKey.OP_WRITE) == 0) ) {
-                                    // the data queued to be sent has already passed through
-                                    // the bw limiter and really just wants to get shoved
-                                    // out the door asap.
-                                    key.interestOps(SelectionKey.OP_WRITE | key.interestOps());
-                                    failsafeWrites++;
-                                }
-                                
-                                if ( con.getTimeSinceSend() > _expireIdleWriteTime &&
-                                     con.getTimeSinceReceive() > _expireIdleWriteTime) {
-                                    // we haven't sent or received anything in a really long time, so lets just close 'er up
-                                    con.close();
-                                    failsafeCloses++;
-                                }
-                            } catch (CancelledKeyException cke) {
-                                // cancelled while updating the interest ops.  ah well
-                            }
-                        }
-                        if (failsafeWrites > 0)
-                            _context.statManager().addRateData("ntcp.failsafeWrites", failsafeWrites);
-                        if (failsafeCloses > 0)
-                            _context.statManager().addRateData("ntcp.failsafeCloses", failsafeCloses);
-                        if (failsafeInvalid > 0)
-                            _context.statManager().addRateData("ntcp.failsafeInvalid", failsafeInvalid);
-                    } catch (ClosedSelectorException cse) {
-                        continue;
-                    }
-                }
-                // Clear the cache if the user changes the setting,
-                // so we can test the effect.
-                boolean newUseDirect = _context.getBooleanProperty(PROP_DIRECT);
-                if (_useDirect != newUseDirect) {
-                    _useDirect = newUseDirect;
-                    _bufCache.clear();
-                }
-            } catch (RuntimeException re) {
-                _log.error("Error in the event pumper", re);
-            }
-        }
-        try {
-            if (_selector.isOpen()) {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Closing down the event pumper with selection keys remaining");
-                Set<SelectionKey> keys = _selector.keys();
-                for (SelectionKey key : keys) {
-                    try {
-                        Object att = key.attachment();
-                        if (att instanceof ServerSocketChannel) {
-                            ServerSocketChannel chan = (ServerSocketChannel)att;
-                            chan.close();
-                            key.cancel();
-                        } else if (att instanceof NTCPConnection) {
-                            NTCPConnection con = (NTCPConnection)att;
-                            con.close();
-                            key.cancel();
-                        }
-                    } catch (Exception ke) {
-                        _log.error("Error closing key " + key + " on pumper shutdown", ke);
-                    }
-                }
-                _selector.close();
-            } else {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Closing down the event pumper with no selection keys remaining");
-            }
-        } catch (Exception e) {
-            _log.error("Error closing keys on pumper shutdown", e);
-        }
-        _wantsConRegister.clear();
-        _wantsRead.clear();
-        _wantsRegister.clear();
-        _wantsWrite.clear();
-        _bufCache.clear();
-    }
-    
-    /**
-     *  Process all keys from the last select.
-     *  High-frequency path in thread.
-     */
-    private void processKeys(Set<SelectionKey> selected) {
-        for (SelectionKey key : selected) {
-            try {
-                int ops = key.readyOps();
-                boolean accept = (ops & SelectionKey.OP_ACCEPT) != 0;
-                boolean connect = (ops & SelectionKey.OP_CONNECT) != 0;
-                boolean read = (ops & SelectionKey.OP_READ) != 0;
-                boolean write = (ops & SelectionKey.OP_WRITE) != 0;
-                //if (_log.shouldLog(Log.DEBUG))
-                //    _log.debug("ready ops for : " + key
-                //               + " accept? " + accept + " connect? " + connect
-                //               + " read? " + read 
-                //               + "/" + ((key.interestOps()&SelectionKey.OP_READ)!= 0)
-                //               + " write? " + write 
-                //               + "/" + ((key.interestOps()&SelectionKey.OP_WRITE)!= 0)
-                //               + " on " + key.attachment()
-                //               );
-                if (accept) {
-                    _context.statManager().addRateData("ntcp.accept", 1);
-                    processAccept(key);
-                }
-                if (connect) {
-                    key.interestOps(key.interestOps() & ~SelectionKey.OP_CONNECT);
-                    processConnect(key);
-                }
-                if (read) {
-                    //_context.statManager().addRateData("ntcp.read", 1, 0);
-                    processRead(key);
-                }
-                if (write) {
-                    //_context.statManager().addRateData("ntcp.write", 1, 0);
-                    processWrite(key);
-                }
-                //if (!(accept || connect || read || write)) {
-                //    if (_log.shouldLog(Log.INFO))
-                //        _log.info("key wanted nothing? con: " + key.attachment());
-                //}
-            } catch (CancelledKeyException cke) {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("key cancelled");
-            }
-        }
+        Loop loop = nextLoop();
+        con.setPumperLoop(loop);
+        loop.registerConnect(con);
     }
     
     /**
@@ -379,8 +241,18 @@ class EventPumper implements Runnable {
      *  If no bandwidth, calls con.queuedWrite().
      */
     public void wantsWrite(NTCPConnection con, byte data[]) {
+        wantsWrite(con, data, 0);
+    }
+
+    /**
+     *  As above, with the OutNetMessage priority for the bandwidth limiter.
+     *
+     *  @param priority highest OutNetMessage priority in data, or 0 if not a message
+     *  @since 0.9.10
+     */
+    public void wantsWrite(NTCPConnection con, byte data[], int priority) {
         ByteBuffer buf = ByteBuffer.wrap(data);
-        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(data.length, 0, "NTCP write");//con, buf);
+        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(data.length, priority, "NTCP write");//con, buf);
         if (req.getPendingRequested() > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("queued write on " + con + " for " + data.length);
@@ -399,9 +271,7 @@ class EventPumper implements Runnable {
      *  Only wakeup if new.
      */
     public void wantsWrite(NTCPConnection con) {
-        if (_wantsWrite.add(con)) {
-            _selector.wakeup();
-        }
+        getLoop(con).wantsWrite(con);
     }
 
     /**
@@ -410,447 +280,784 @@ class EventPumper implements Runnable {
      *  so we don't need to check for dups or make _wantsRead a Set.
      */
     public void wantsRead(NTCPConnection con) {
-        _wantsRead.offer(con);
-        _selector.wakeup();
+        getLoop(con).wantsRead(con);
     }
 
     /**
-     *  How many to keep in reserve.
-     *  Shared if there are multiple routers in the JVM
+     *  Return a read buffer to the pool of the loop that read it.
+     *  These buffers must be from acquireBuf(), i.e. capacity() == BUF_SIZE.
+     *  High-frequency path in thread.
+     *
+     *  @param con the connection the buffer was read from
+     *  @since 0.9.10 added con param
      */
-    private static int _numBufs = MIN_BUFS;
-    private static int __consecutiveExtra;
+    public static void releaseBuf(NTCPConnection con, ByteBuffer buf) {
+        Loop loop = con.getPumperLoop();
+        if (loop != null)
+            loop.releaseBuf(buf);
+    }
 
     /**
-     *  High-frequency path in thread.
+     *  Increase allowed idle time if we are well under allowed connections, otherwise decrease.
+     *  Called from the first loop every STATS_FREQ.
+     *  @since 0.9.10 moved from run()
      */
-    private ByteBuffer acquireBuf() {
-        ByteBuffer rv = _bufCache.poll();
-        // discard buffer if _useDirect setting changes
-        if (rv == null || rv.isDirect() != _useDirect) {
-            if (_useDirect)
-                rv = ByteBuffer.allocateDirect(BUF_SIZE);
-            else
-                rv = ByteBuffer.allocate(BUF_SIZE);
-            _numBufs++;
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("creating a new read buffer " + System.identityHashCode(rv) + " with " + __liveBufs + " live: " + rv);            
-            //_context.statManager().addRateData("ntcp.liveReadBufs", NUM_BUFS, 0);
-        } else {
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("acquiring existing read buffer " + System.identityHashCode(rv) + " with " + __liveBufs + " live: " + rv);
-        }
-        return rv;
+    private void updateIdleTimeout() {
+        if (_transport.haveCapacity(60))
+            _expireIdleWriteTime = Math.min(_expireIdleWriteTime + 1000, MAX_EXPIRE_IDLE_TIME);
+        else
+            _expireIdleWriteTime = Math.max(_expireIdleWriteTime - 3000, MIN_EXPIRE_IDLE_TIME);
     }
-    
+
+    public long getIdleTimeout() { return _expireIdleWriteTime; }
+
     /**
-     *  Return a read buffer to the pool.
-     *  These buffers must be from acquireBuf(), i.e. capacity() == BUF_SIZE.
-     *  High-frequency path in thread.
+     *  One selector thread.
+     *  @since 0.9.10 split out of EventPumper
      */
-    public static void releaseBuf(ByteBuffer buf) {
-        //if (false) return;
-        //if (_log.shouldLog(Log.DEBUG))
-        //    _log.debug("releasing read buffer " + System.identityHashCode(buf) + " with " + __liveBufs + " live: " + buf);
-
-        // double check
-        if (buf.capacity() < BUF_SIZE) {
-            I2PAppContext.getGlobalContext().logManager().getLog(EventPumper.class).error("Bad size " + buf.capacity(), new Exception());
-            return;
+    class Loop implements Runnable {
+        private final int _id;
+        private final Selector _selector;
+        private final Set<NTCPConnection> _wantsWrite = new ConcurrentHashSet<NTCPConnection>(32);
+        /**
+         *  The following 4 are unbounded and lockless for performance in runDelayedEvents()
+         */
+        private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
+        private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
+        private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+        /** accepted by the first loop, to be registered on this one */
+        private final Queue<SocketChannel> _wantsAcceptRegister = new ConcurrentLinkedQueue<SocketChannel>();
+        private boolean _useDirect;
+        /** for gathering writes, only used in this loop's thread */
+        private final ByteBuffer[] _gatherBufs = new ByteBuffer[MAX_GATHER];
+
+        /**
+         *  Read buffers. (write buffers use wrap())
+         *  Buffers are returned to the loop that read them.
+         */
+        private final LinkedBlockingQueue<ByteBuffer> _bufCache = new LinkedBlockingQueue<ByteBuffer>(MAX_CACHE_SIZE);
+        /** How many to keep in reserve. */
+        private int _numBufs = MIN_BUFS;
+        private int __consecutiveExtra;
+
+        private final String _selectStat;
+        private final String _dispatchStat;
+        private long _nextIdleCheck;
+        private long _lastExpired;
+
+        /**
+         *  @throws IOException if the selector can't be opened
+         */
+        public Loop(int id) throws IOException {
+            _id = id;
+            _selector = Selector.open();
+            _selectStat = "ntcp.pumper" + id + ".selectTime";
+            _dispatchStat = "ntcp.pumper" + id + ".dispatchTime";
+            _context.statManager().createRateStat(_selectStat, "Avg. time in select() per iteration (us)", "ntcp", new long[] {10*60*1000} );
+            _context.statManager().createRateStat(_dispatchStat, "Avg. time processing keys and events per iteration (us)", "ntcp", new long[] {10*60*1000} );
+            // stagger the idle timers
+            _nextIdleCheck = System.currentTimeMillis() + FAILSAFE_ITERATION_FREQ + (id * MIN_IDLE_CHECK_FREQ);
         }
-        buf.clear();
-        int extra = _bufCache.size();
-        boolean cached = extra < _numBufs;
-
-        // TODO always offer if direct?
-        if (cached) {
-            _bufCache.offer(buf);
-            if (extra > MIN_BUFS) {
-                __consecutiveExtra++;
-                if (__consecutiveExtra >= 20) {
-                    if (_numBufs > MIN_BUFS)
-                        _numBufs--;
-                    __consecutiveExtra = 0;
+
+        /** @see EventPumper#register(ServerSocketChannel) */
+        public void register(ServerSocketChannel chan) {
+            _wantsRegister.offer(chan);
+            _selector.wakeup();
+        }
+
+        /** @see EventPumper#registerConnect(NTCPConnection) */
+        public void registerConnect(NTCPConnection con) {
+            _wantsConRegister.offer(con);
+            _selector.wakeup();
+        }
+
+        /** accepted by another loop */
+        private void wantsAcceptRegister(SocketChannel chan) {
+            _wantsAcceptRegister.offer(chan);
+            _selector.wakeup();
+        }
+
+        /** @see EventPumper#wantsWrite(NTCPConnection) */
+        public void wantsWrite(NTCPConnection con) {
+            if (_wantsWrite.add(con)) {
+                _selector.wakeup();
+            }
+        }
+
+        /** @see EventPumper#wantsRead(NTCPConnection) */
+        public void wantsRead(NTCPConnection con) {
+            _wantsRead.offer(con);
+            _selector.wakeup();
+        }
+
+        /**
+         *  The selector loop.
+         *  On high-bandwidth routers, this is the thread with the highest CPU usage, so
+         *  take care to minimize overhead and unnecessary debugging stuff.
+         */
+        public void run() {
+            int loopCount = 0;
+            long selectTime = 0;
+            long dispatchTime = 0;
+            long lastStats = System.currentTimeMillis();
+            while (_alive && _selector.isOpen()) {
+                try {
+                    loopCount++;
+                    long start = System.nanoTime();
+                    runDelayedEvents();
+
+                    try {
+                        //if (_log.shouldLog(Log.DEBUG))
+                        //    _log.debug("before select...");
+                        long beforeSelect = System.nanoTime();
+                        int count = _selector.select(SELECTOR_LOOP_DELAY);
+                        long afterSelect = System.nanoTime();
+                        selectTime += afterSelect - beforeSelect;
+                        dispatchTime += beforeSelect - start;
+                        if (count > 0) {
+                            //if (_log.shouldLog(Log.DEBUG))
+                            //    _log.debug("select returned " + count);
+                            Set<SelectionKey> selected = _selector.selectedKeys();
+                            //_context.statManager().addRateData("ntcp.pumperKeysPerLoop", selected.size());
+                            processKeys(selected);
+                            // does clear() do anything useful?
+                            selected.clear();
+                            dispatchTime += System.nanoTime() - afterSelect;
+                        }
+                    } catch (ClosedSelectorException cse) {
+                        continue;
+                    } catch (IOException ioe) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("Error selecting", ioe);
+                    } catch (CancelledKeyException cke) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("Error selecting", cke);
+                        continue;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (lastStats + STATS_FREQ <= now) {
+                        long elapsed = now - lastStats;
+                        lastStats = now;
+                        _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount * 1000l / elapsed);
+                        _context.statManager().addRateData(_selectStat, selectTime / (1000l * loopCount));
+                        _context.statManager().addRateData(_dispatchStat, dispatchTime / (1000l * loopCount));
+                        loopCount = 0;
+                        selectTime = 0;
+                        dispatchTime = 0;
+                        if (_id == 0)
+                            updateIdleTimeout();
+                    }
+
+                    if (_nextIdleCheck <= now) {
+                        try {
+                            _nextIdleCheck = runIdleTimer(now);
+                        } catch (ClosedSelectorException cse) {
+                            continue;
+                        }
+                    }
+                    // Clear the cache if the user changes the setting,
+                    // so we can test the effect.
+                    boolean newUseDirect = _context.getBooleanProperty(PROP_DIRECT);
+                    if (_useDirect != newUseDirect) {
+                        _useDirect = newUseDirect;
+                        _bufCache.clear();
+                    }
+                } catch (RuntimeException re) {
+                    _log.error("Error in the event pumper", re);
                 }
             }
+            try {
+                if (_selector.isOpen()) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Closing down the event pumper with selection keys remaining");
+                    Set<SelectionKey> keys = _selector.keys();
+                    for (SelectionKey key : keys) {
+                        try {
+                            Object att = key.attachment();
+                            if (att instanceof ServerSocketChannel) {
+                                ServerSocketChannel chan = (ServerSocketChannel)att;
+                                chan.close();
+                                key.cancel();
+                            } else if (att instanceof NTCPConnection) {
+                                NTCPConnection con = (NTCPConnection)att;
+                                con.close();
+                                key.cancel();
+                            }
+                        } catch (Exception ke) {
+                            _log.error("Error closing key " + key + " on pumper shutdown", ke);
+                        }
+                    }
+                    _selector.close();
+                } else {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Closing down the event pumper with no selection keys remaining");
+                }
+            } catch (Exception e) {
+                _log.error("Error closing keys on pumper shutdown", e);
+            }
+            SocketChannel chan;
+            while ((chan = _wantsAcceptRegister.poll()) != null) {
+                try { chan.close(); } catch (IOException ioe) {}
+            }
+            _wantsConRegister.clear();
+            _wantsRead.clear();
+            _wantsRegister.clear();
+            _wantsWrite.clear();
+            _bufCache.clear();
         }
-        //if (cached && _log.shouldLog(Log.DEBUG))
-        //    _log.debug("read buffer " + System.identityHashCode(buf) + " cached with " + __liveBufs + " live");
-    }
-    
-    private void processAccept(SelectionKey key) {
-        //if (_log.shouldLog(Log.DEBUG))
-        //    _log.debug("processing accept");
-        ServerSocketChannel servChan = (ServerSocketChannel)key.attachment();
-        try {
-            SocketChannel chan = servChan.accept();
-            // don't throw an NPE if the connect is gone again
-            if(chan == null)
-                return;
-            chan.configureBlocking(false);
 
-            if (!_transport.allowConnection()) {
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("Receive session request but at connection limit: " + chan.socket().getInetAddress());
-                try { chan.close(); } catch (IOException ioe) { }
-                return;
+        /**
+         *  The idle timer.
+         *  Pass over this loop's NTCP connections only,
+         *  to expire idle connections and, in the *cough* unthinkable possibility
+         *  that there are bugs in the code, make sure that anything which should be
+         *  able to write has been properly marked as such, etc.
+         *
+         *  @return the time to run it again: when the next connection could reach the
+         *          idle timeout, but no later than FAILSAFE_ITERATION_FREQ from now
+         */
+        private long runIdleTimer(long now) {
+            Set<SelectionKey> all = _selector.keys();
+            _context.statManager().addRateData("ntcp.pumperKeySetSize", all.size());
+            long expireIdle = _expireIdleWriteTime;
+            long rv = now + FAILSAFE_ITERATION_FREQ;
+
+            int failsafeWrites = 0;
+            int failsafeCloses = 0;
+            int failsafeInvalid = 0;
+
+            for (SelectionKey key : all) {
+                try {
+                    Object att = key.attachment();
+                    if (!(att instanceof NTCPConnection))
+                        continue; // to the next con
+                    NTCPConnection con = (NTCPConnection)att;
+                    
+                    /**
+                     * 100% CPU bug
+                     * http://forums.java.net/jive/thread.jspa?messageID=255525
+                     * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6595055
+                     * 
+                     * The problem is around a channel that was originally registered with Selector for i/o gets
+                     * closed on the server side (due to early client side exit).  But the server side can know
+                     * about such channel only when it does i/o (read/write) and thereby getting into an IO exception.
+                     * In this case, (bug 6595055)there are times (erroneous) when server side (selector) did not
+                     * know the channel is already closed (peer-reset), but continue to do the selection cycle on
+                     * a key set whose associated channel is alreay closed or invalid. Hence, selector's slect(..)
+                     * keep spinging with zero return without blocking for the timeout period.
+                     * 
+                     * One fix is to have a provision in the application, to check if any of the Selector's keyset
+                     * is having a closed channel/or invalid registration due to channel closure.
+                     */
+                    if ((!key.isValid()) &&
+                        (!((SocketChannel)key.channel()).isConnectionPending()) &&
+                        con.getTimeSinceCreated() > 2 * NTCPTransport.ESTABLISH_TIMEOUT) {
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Removing invalid key for " + con);
+                        // this will cancel the key, and it will then be removed from the keyset
+                        con.close();
+                        failsafeInvalid++;
+                        continue;
+                    }
+
+                    if ( (!con.isWriteBufEmpty()) &&
+                         ((key.interestOps() & SelectionKey.OP_WRITE) == 0) ) {
+                        // the data queued to be sent has already passed through
+                        // the bw limiter and really just wants to get shoved
+                        // out the door asap.
+                        key.interestOps(SelectionKey.OP_WRITE | key.interestOps());
+                        failsafeWrites++;
+                    }
+                    
+                    long idle = Math.min(con.getTimeSinceSend(), con.getTimeSinceReceive());
+                    if (idle > expireIdle) {
+                        // we haven't sent or received anything in a really long time, so lets just close 'er up
+                        con.close();
+                        failsafeCloses++;
+                    } else {
+                        long expires = now + expireIdle - idle + 1;
+                        if (expires < rv)
+                            rv = expires;
+                    }
+                } catch (CancelledKeyException cke) {
+                    // cancelled while updating the interest ops.  ah well
+                }
+            }
+            if (failsafeWrites > 0)
+                _context.statManager().addRateData("ntcp.failsafeWrites", failsafeWrites);
+            if (failsafeCloses > 0)
+                _context.statManager().addRateData("ntcp.failsafeCloses", failsafeCloses);
+            if (failsafeInvalid > 0)
+                _context.statManager().addRateData("ntcp.failsafeInvalid", failsafeInvalid);
+            return Math.max(rv, now + MIN_IDLE_CHECK_FREQ);
+        }
+    
+        /**
+         *  Process all keys from the last select.
+         *  High-frequency path in thread.
+         */
+        private void processKeys(Set<SelectionKey> selected) {
+            for (SelectionKey key : selected) {
+                try {
+                    int ops = key.readyOps();
+                    boolean accept = (ops & SelectionKey.OP_ACCEPT) != 0;
+                    boolean connect = (ops & SelectionKey.OP_CONNECT) != 0;
+                    boolean read = (ops & SelectionKey.OP_READ) != 0;
+                    boolean write = (ops & SelectionKey.OP_WRITE) != 0;
+                    //if (_log.shouldLog(Log.DEBUG))
+                    //    _log.debug("ready ops for : " + key
+                    //               + " accept? " + accept + " connect? " + connect
+                    //               + " read? " + read 
+                    //               + "/" + ((key.interestOps()&SelectionKey.OP_READ)!= 0)
+                    //               + " write? " + write 
+                    //               + "/" + ((key.interestOps()&SelectionKey.OP_WRITE)!= 0)
+                    //               + " on " + key.attachment()
+                    //               );
+                    if (accept) {
+                        _context.statManager().addRateData("ntcp.accept", 1);
+                        processAccept(key);
+                    }
+                    if (connect) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_CONNECT);
+                        processConnect(key);
+                    }
+                    if (read) {
+                        //_context.statManager().addRateData("ntcp.read", 1, 0);
+                        processRead(key);
+                    }
+                    if (write) {
+                        //_context.statManager().addRateData("ntcp.write", 1, 0);
+                        processWrite(key);
+                    }
+                    //if (!(accept || connect || read || write)) {
+                    //    if (_log.shouldLog(Log.INFO))
+                    //        _log.info("key wanted nothing? con: " + key.attachment());
+                    //}
+                } catch (CancelledKeyException cke) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("key cancelled");
+                }
+            }
+        }
+    
+        /**
+         *  High-frequency path in thread.
+         */
+        private ByteBuffer acquireBuf() {
+            ByteBuffer rv = _bufCache.poll();
+            // discard buffer if _useDirect setting changes
+            if (rv == null || rv.isDirect() != _useDirect) {
+                if (_useDirect)
+                    rv = ByteBuffer.allocateDirect(BUF_SIZE);
+                else
+                    rv = ByteBuffer.allocate(BUF_SIZE);
+                _numBufs++;
+                //if (_log.shouldLog(Log.DEBUG))
+                //    _log.debug("creating a new read buffer " + System.identityHashCode(rv) + " with " + __liveBufs + " live: " + rv);            
+                //_context.statManager().addRateData("ntcp.liveReadBufs", NUM_BUFS, 0);
+            } else {
+                //if (_log.shouldLog(Log.DEBUG))
+                //    _log.debug("acquiring existing read buffer " + System.identityHashCode(rv) + " with " + __liveBufs + " live: " + rv);
             }
+            return rv;
+        }
+    
+        /**
+         *  Return a read buffer to this loop's pool.
+         *  These buffers must be from acquireBuf(), i.e. capacity() == BUF_SIZE.
+         *  High-frequency path in thread.
+         */
+        void releaseBuf(ByteBuffer buf) {
+            //if (false) return;
+            //if (_log.shouldLog(Log.DEBUG))
+            //    _log.debug("releasing read buffer " + System.identityHashCode(buf) + " with " + __liveBufs + " live: " + buf);
 
-            if (_context.blocklist().isBlocklisted(chan.socket().getInetAddress().getAddress())) {
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("Receive session request from blocklisted IP: " + chan.socket().getInetAddress());
-                // need to add this stat first
-                // _context.statManager().addRateData("ntcp.connectBlocklisted", 1, 0);
-                try { chan.close(); } catch (IOException ioe) { }
+            // double check
+            if (buf.capacity() < BUF_SIZE) {
+                _log.error("Bad size " + buf.capacity(), new Exception());
                 return;
             }
-            // BUGFIX for firewalls. --Sponge
-            if (_context.commSystem().getReachabilityStatus() != CommSystemFacade.STATUS_OK)
-                chan.socket().setKeepAlive(true);
+            buf.clear();
+            int extra = _bufCache.size();
+            boolean cached = extra < _numBufs;
 
-            SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            new NTCPConnection(_context, _transport, chan, ckey);
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("new NTCP connection established: " +con);
-        } catch (IOException ioe) {
-            _log.error("Error accepting", ioe);
+            // TODO always offer if direct?
+            if (cached) {
+                _bufCache.offer(buf);
+                if (extra > MIN_BUFS) {
+                    __consecutiveExtra++;
+                    if (__consecutiveExtra >= 20) {
+                        if (_numBufs > MIN_BUFS)
+                            _numBufs--;
+                        __consecutiveExtra = 0;
+                    }
+                }
+            }
+            //if (cached && _log.shouldLog(Log.DEBUG))
+            //    _log.debug("read buffer " + System.identityHashCode(buf) + " cached with " + __liveBufs + " live");
         }
-    }
     
-    private void processConnect(SelectionKey key) {
-        NTCPConnection con = (NTCPConnection)key.attachment();
-        try {
-            SocketChannel chan = con.getChannel();
-            boolean connected = chan.finishConnect();
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("processing connect for " + con + ": connected? " + connected);
-            if (connected) {
+        private void processAccept(SelectionKey key) {
+            //if (_log.shouldLog(Log.DEBUG))
+            //    _log.debug("processing accept");
+            ServerSocketChannel servChan = (ServerSocketChannel)key.attachment();
+            try {
+                SocketChannel chan = servChan.accept();
+                // don't throw an NPE if the connect is gone again
+                if(chan == null)
+                    return;
+                chan.configureBlocking(false);
+
+                if (!_transport.allowConnection()) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Receive session request but at connection limit: " + chan.socket().getInetAddress());
+                    try { chan.close(); } catch (IOException ioe) { }
+                    return;
+                }
+
+                if (_context.blocklist().isBlocklisted(chan.socket().getInetAddress().getAddress())) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Receive session request from blocklisted IP: " + chan.socket().getInetAddress());
+                    // need to add this stat first
+                    // _context.statManager().addRateData("ntcp.connectBlocklisted", 1, 0);
+                    try { chan.close(); } catch (IOException ioe) { }
+                    return;
+                }
                 // BUGFIX for firewalls. --Sponge
                 if (_context.commSystem().getReachabilityStatus() != CommSystemFacade.STATUS_OK)
                     chan.socket().setKeepAlive(true);
-                con.setKey(key);
-                con.outboundConnected();
-                _context.statManager().addRateData("ntcp.connectSuccessful", 1);
-            } else {
+
+                Loop loop = nextLoop();
+                if (loop == this)
+                    registerAccepted(chan);
+                else
+                    loop.wantsAcceptRegister(chan);
+            } catch (IOException ioe) {
+                _log.error("Error accepting", ioe);
+            }
+        }
+
+        /**
+         *  Register an accepted socket on this loop's selector.
+         *  Only called from this loop's thread.
+         */
+        private void registerAccepted(SocketChannel chan) {
+            try {
+                SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
+                NTCPConnection con = new NTCPConnection(_context, _transport, chan, ckey);
+                con.setPumperLoop(this);
+                //if (_log.shouldLog(Log.DEBUG))
+                //    _log.debug("new NTCP connection established: " +con);
+            } catch (ClosedChannelException cce) {
+                if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
+            }
+        }
+    
+        private void processConnect(SelectionKey key) {
+            NTCPConnection con = (NTCPConnection)key.attachment();
+            try {
+                SocketChannel chan = con.getChannel();
+                boolean connected = chan.finishConnect();
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("processing connect for " + con + ": connected? " + connected);
+                if (connected) {
+                    // BUGFIX for firewalls. --Sponge
+                    if (_context.commSystem().getReachabilityStatus() != CommSystemFacade.STATUS_OK)
+                        chan.socket().setKeepAlive(true);
+                    con.setKey(key);
+                    con.outboundConnected();
+                    _context.statManager().addRateData("ntcp.connectSuccessful", 1);
+                } else {
+                    con.close();
+                    _transport.markUnreachable(con.getRemotePeer().calculateHash());
+                    _context.statManager().addRateData("ntcp.connectFailedTimeout", 1);
+                }
+            } catch (IOException ioe) {   // this is the usual failure path for a timeout or connect refused
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Failed outbound " + con, ioe);
                 con.close();
+                //_context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "Error connecting", NTCPTransport.STYLE);
                 _transport.markUnreachable(con.getRemotePeer().calculateHash());
-                _context.statManager().addRateData("ntcp.connectFailedTimeout", 1);
+                _context.statManager().addRateData("ntcp.connectFailedTimeoutIOE", 1);
+            } catch (NoConnectionPendingException ncpe) {
+                // ignore
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("error connecting on " + con, ncpe);
             }
-        } catch (IOException ioe) {   // this is the usual failure path for a timeout or connect refused
-            if (_log.shouldLog(Log.INFO))
-                _log.info("Failed outbound " + con, ioe);
-            con.close();
-            //_context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "Error connecting", NTCPTransport.STYLE);
-            _transport.markUnreachable(con.getRemotePeer().calculateHash());
-            _context.statManager().addRateData("ntcp.connectFailedTimeoutIOE", 1);
-        } catch (NoConnectionPendingException ncpe) {
-            // ignore
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("error connecting on " + con, ncpe);
         }
-    }
     
-    /**
-     *  OP_READ will always be set before this is called.
-     *  This method will disable the interest if no more reads remain because of inbound bandwidth throttling.
-     *  High-frequency path in thread.
-     */
-    private void processRead(SelectionKey key) {
-        NTCPConnection con = (NTCPConnection)key.attachment();
-        ByteBuffer buf = acquireBuf();
-        try {
-            int read = con.getChannel().read(buf);
-            if (read == -1) {
-                //if (_log.shouldLog(Log.DEBUG)) _log.debug("EOF on " + con);
-                //_context.statManager().addRateData("ntcp.readEOF", 1);
-                con.close();
-                releaseBuf(buf);
-            } else if (read == 0) {
-                //if (_log.shouldLog(Log.DEBUG))
-                //    _log.debug("nothing to read for " + con + ", but stay interested");
-                // stay interested
-                //key.interestOps(key.interestOps() | SelectionKey.OP_READ);
-                releaseBuf(buf);
-                // workaround for channel stuck returning 0 all the time, causing 100% CPU
-                int consec = con.gotZeroRead();
-                if (consec >= 5) {
-                    _context.statManager().addRateData("ntcp.zeroReadDrop", 1);
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("Fail safe zero read close " + con);
+        /**
+         *  OP_READ will always be set before this is called.
+         *  This method will disable the interest if no more reads remain because of inbound bandwidth throttling.
+         *  High-frequency path in thread.
+         */
+        private void processRead(SelectionKey key) {
+            NTCPConnection con = (NTCPConnection)key.attachment();
+            ByteBuffer buf = acquireBuf();
+            try {
+                int read = con.getChannel().read(buf);
+                if (read == -1) {
+                    //if (_log.shouldLog(Log.DEBUG)) _log.debug("EOF on " + con);
+                    //_context.statManager().addRateData("ntcp.readEOF", 1);
                     con.close();
-                } else {
-                    _context.statManager().addRateData("ntcp.zeroRead", consec);
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("nothing to read for " + con + ", but stay interested");
-                }
-            } else if (read > 0) {
-                // clear counter for workaround above
-                con.clearZeroRead();
-                // ZERO COPY. The buffer will be returned in Reader.processRead()
-                buf.flip();
-                FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(read, "NTCP read"); //con, buf);
-                if (req.getPendingRequested() > 0) {
-                    // rare since we generally don't throttle inbound
-                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
-                    //if (_log.shouldLog(Log.DEBUG))
-                    //    _log.debug("bw throttled reading for " + con + ", so we don't want to read anymore");
-                    _context.statManager().addRateData("ntcp.queuedRecv", read);
-                    con.queuedRecv(buf, req);
-                } else {
-                    // fully allocated
+                    releaseBuf(buf);
+                } else if (read == 0) {
                     //if (_log.shouldLog(Log.DEBUG))
-                    //    _log.debug("not bw throttled reading for " + con);
+                    //    _log.debug("nothing to read for " + con + ", but stay interested");
                     // stay interested
                     //key.interestOps(key.interestOps() | SelectionKey.OP_READ);
-                    con.recv(buf);
-                    _context.statManager().addRateData("ntcp.read", read);
+                    releaseBuf(buf);
+                    // workaround for channel stuck returning 0 all the time, causing 100% CPU
+                    int consec = con.gotZeroRead();
+                    if (consec >= 5) {
+                        _context.statManager().addRateData("ntcp.zeroReadDrop", 1);
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("Fail safe zero read close " + con);
+                        con.close();
+                    } else {
+                        _context.statManager().addRateData("ntcp.zeroRead", consec);
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("nothing to read for " + con + ", but stay interested");
+                    }
+                } else if (read > 0) {
+                    // clear counter for workaround above
+                    con.clearZeroRead();
+                    // ZERO COPY. The buffer will be returned in Reader.processRead()
+                    buf.flip();
+                    FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(read, "NTCP read"); //con, buf);
+                    if (req.getPendingRequested() > 0) {
+                        // rare since we generally don't throttle inbound
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        //if (_log.shouldLog(Log.DEBUG))
+                        //    _log.debug("bw throttled reading for " + con + ", so we don't want to read anymore");
+                        _context.statManager().addRateData("ntcp.queuedRecv", read);
+                        con.queuedRecv(buf, req);
+                    } else {
+                        // fully allocated
+                        //if (_log.shouldLog(Log.DEBUG))
+                        //    _log.debug("not bw throttled reading for " + con);
+                        // stay interested
+                        //key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                        con.recv(buf);
+                        _context.statManager().addRateData("ntcp.read", read);
+                    }
                 }
-            }
-        } catch (CancelledKeyException cke) {
-            releaseBuf(buf);
-            if (_log.shouldLog(Log.WARN)) _log.warn("error reading on " + con, cke);
-            con.close();
-            _context.statManager().addRateData("ntcp.readError", 1);
-        } catch (IOException ioe) {
-            // common, esp. at outbound connect time
-            releaseBuf(buf);
-            if (_log.shouldLog(Log.INFO))
-                _log.info("error reading on " + con, ioe);
-            if (con.isEstablished()) {
+            } catch (CancelledKeyException cke) {
+                releaseBuf(buf);
+                if (_log.shouldLog(Log.WARN)) _log.warn("error reading on " + con, cke);
+                con.close();
                 _context.statManager().addRateData("ntcp.readError", 1);
-            } else {
-                // Usually "connection reset by peer", probably a conn limit rejection?
-                // although it could be a read failure during the DH handshake
-                // Same stat as in processConnect()
-                _context.statManager().addRateData("ntcp.connectFailedTimeoutIOE", 1);
-                RouterIdentity rem = con.getRemotePeer();
-                if (rem != null && !con.isInbound())
-                    _transport.markUnreachable(rem.calculateHash());
+            } catch (IOException ioe) {
+                // common, esp. at outbound connect time
+                releaseBuf(buf);
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("error reading on " + con, ioe);
+                if (con.isEstablished()) {
+                    _context.statManager().addRateData("ntcp.readError", 1);
+                } else {
+                    // Usually "connection reset by peer", probably a conn limit rejection?
+                    // although it could be a read failure during the DH handshake
+                    // Same stat as in processConnect()
+                    _context.statManager().addRateData("ntcp.connectFailedTimeoutIOE", 1);
+                    RouterIdentity rem = con.getRemotePeer();
+                    if (rem != null && !con.isInbound())
+                        _transport.markUnreachable(rem.calculateHash());
+                }
+                con.close();
+            } catch (NotYetConnectedException nyce) {
+                releaseBuf(buf);
+                // ???
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("error reading on " + con, nyce);
             }
-            con.close();
-        } catch (NotYetConnectedException nyce) {
-            releaseBuf(buf);
-            // ???
-            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("error reading on " + con, nyce);
         }
-    }
     
-    /**
-     *  OP_WRITE will always be set before this is called.
-     *  This method will disable the interest if no more writes remain.
-     *  High-frequency path in thread.
-     */
-    private void processWrite(SelectionKey key) {
-        //int totalWritten = 0;
-        //int buffers = 0;
-        //long before = System.currentTimeMillis();
-        NTCPConnection con = (NTCPConnection)key.attachment();
-        try {
-            while (true) {
-                ByteBuffer buf = con.getNextWriteBuf();
-                if (buf != null) {
-                    //if (_log.shouldLog(Log.DEBUG))
-                    //    _log.debug("writing " + buf.remaining()+"...");
-                    if (buf.remaining() <= 0) {
-                        //long beforeRem = System.currentTimeMillis();
-                        con.removeWriteBuf(buf);
-                        //long afterRem = System.currentTimeMillis();
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("buffer was already fully written and removed after " + (afterRem-beforeRem) + "...");
-                        //buffers++;
-                        continue;                    
+        /**
+         *  OP_WRITE will always be set before this is called.
+         *  This method will disable the interest if no more writes remain.
+         *  Everything queued on the connection (up to MAX_GATHER buffers)
+         *  is written with a single gathering write.
+         *  High-frequency path in thread.
+         */
+        private void processWrite(SelectionKey key) {
+            NTCPConnection con = (NTCPConnection)key.attachment();
+            ByteBuffer bufs[] = _gatherBufs;
+            try {
+                while (true) {
+                    int count = con.getNextWriteBufs(bufs);
+                    if (count <= 0) {
+                        // Nothing more to write
+                        if (key.isValid())
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        break;
+                    }
+                    // one gathering write for everything queued (meta, I2NP batches)
+                    long written = count > 1 ? con.getChannel().write(bufs, 0, count)
+                                             : con.getChannel().write(bufs[0]);
+                    boolean partial = false;
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer buf = bufs[i];
+                        bufs[i] = null;
+                        if (partial)
+                            continue;
+                        if (buf.remaining() > 0)
+                            partial = true;
+                        else
+                            con.removeWriteBuf(buf);
                     }
-                    int written = con.getChannel().write(buf);
-                    //totalWritten += written;
                     if (written == 0) {
-                        if ( (buf.remaining() > 0) || (!con.isWriteBufEmpty()) ) {
-                            //if (_log.shouldLog(Log.DEBUG)) _log.debug("done writing, but data remains...");
+                        if (partial || !con.isWriteBufEmpty()) {
                             // stay interested
-                            //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                         } else {
-                            //if (_log.shouldLog(Log.DEBUG)) _log.debug("done writing, no data remains...");
                             key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
                         }
                         break;
-                    } else if (buf.remaining() > 0) {
-                        //if (_log.shouldLog(Log.DEBUG)) _log.debug("buffer data remaining...");
+                    } else if (partial) {
                         // stay interested
-                        //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                         break;
-                    } else {
-                        //long beforeRem = System.currentTimeMillis();
-                        con.removeWriteBuf(buf);
-                        //long afterRem = System.currentTimeMillis();
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("buffer "+ buffers+"/"+written+"/"+totalWritten+" fully written after " +
-                        //               (beforeRem-before) + ", then removed after " + (afterRem-beforeRem) + "...");
-                        //releaseBuf(buf);
-                        //buffers++;
-                        //if (buffer time is too much, add OP_WRITe to the interest ops and break?)
-                        // LOOP
                     }
-                } else {
-                    // Nothing more to write
-		    if (key.isValid())
-                    	key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-                    break;
+                    // else all fully written, LOOP
                 }
-            }
-        } catch (CancelledKeyException cke) {
-            if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, cke);
-            _context.statManager().addRateData("ntcp.writeError", 1);
-            con.close();
-        } catch (IOException ioe) {
-            if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, ioe);
-            _context.statManager().addRateData("ntcp.writeError", 1);
-            con.close();
-        }
-        //long after = System.currentTimeMillis();
-        //if (_log.shouldLog(Log.INFO))
-        //    _log.info("Wrote " + totalWritten + " in " + buffers + " buffers on " + con 
-        //              + " after " + (after-before));
-    }
-    
-    /**
-     *  Pull off the 4 _wants* queues and update the interest ops,
-     *  which may, according to the javadocs, be a "naive" implementation and block.
-     *  High-frequency path in thread.
-     */
-    private void runDelayedEvents() {
-        NTCPConnection con;
-        while ((con = _wantsRead.poll()) != null) {
-            SelectionKey key = con.getKey();
-            try {
-                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
             } catch (CancelledKeyException cke) {
-                // ignore, we remove/etc elsewhere
-            } catch (IllegalArgumentException iae) {
-                // JamVM (Gentoo: jamvm-1.5.4, gnu-classpath-0.98+gmp)
-                // throws
-		//java.lang.IllegalArgumentException: java.io.IOException: Bad file descriptor
-		//   at gnu.java.nio.EpollSelectionKeyImpl.interestOps(EpollSelectionKeyImpl.java:102)
-		//   at net.i2p.router.transport.ntcp.EventPumper.runDelayedEvents(EventPumper.java:580)
-		//   at net.i2p.router.transport.ntcp.EventPumper.run(EventPumper.java:109)
-		//   at java.lang.Thread.run(Thread.java:745)
-		//   at net.i2p.util.I2PThread.run(I2PThread.java:85)
-		//Caused by: java.io.IOException: Bad file descriptor
-		//   at gnu.java.nio.EpollSelectorImpl.epoll_modify(Native Method)
-		//   at gnu.java.nio.EpollSelectorImpl.epoll_modify(EpollSelectorImpl.java:313)
-		//   at gnu.java.nio.EpollSelectionKeyImpl.interestOps(EpollSelectionKeyImpl.java:97)
-		//   ...4 more
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("gnu?", iae);
+                if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, cke);
+                _context.statManager().addRateData("ntcp.writeError", 1);
+                con.close();
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, ioe);
+                _context.statManager().addRateData("ntcp.writeError", 1);
+                con.close();
+            } finally {
+                for (int i = 0; i < bufs.length; i++) {
+                    bufs[i] = null;
+                }
             }
         }
-
-        // check before instantiating iterator for speed
-        if (!_wantsWrite.isEmpty()) {
-            for (Iterator<NTCPConnection> iter = _wantsWrite.iterator(); iter.hasNext(); ) {
-                con = iter.next();
+    
+        /**
+         *  Pull off the 5 _wants* queues and update the interest ops,
+         *  which may, according to the javadocs, be a "naive" implementation and block.
+         *  High-frequency path in thread.
+         */
+        private void runDelayedEvents() {
+            NTCPConnection con;
+            while ((con = _wantsRead.poll()) != null) {
                 SelectionKey key = con.getKey();
-                if (key == null)
-                    continue;
-                iter.remove();
                 try {
-                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
                 } catch (CancelledKeyException cke) {
-                    // ignore
+                    // ignore, we remove/etc elsewhere
                 } catch (IllegalArgumentException iae) {
-                    // see above
+                    // JamVM (Gentoo: jamvm-1.5.4, gnu-classpath-0.98+gmp)
+                    // throws
+    		//java.lang.IllegalArgumentException: java.io.IOException: Bad file descriptor
+    		//   at gnu.java.nio.EpollSelectionKeyImpl.interestOps(EpollSelectionKeyImpl.java:102)
+    		//   at net.i2p.router.transport.ntcp.EventPumper.runDelayedEvents(EventPumper.java:580)
+    		//   at net.i2p.router.transport.ntcp.EventPumper.run(EventPumper.java:109)
+    		//   at java.lang.Thread.run(Thread.java:745)
+    		//   at net.i2p.util.I2PThread.run(I2PThread.java:85)
+    		//Caused by: java.io.IOException: Bad file descriptor
+    		//   at gnu.java.nio.EpollSelectorImpl.epoll_modify(Native Method)
+    		//   at gnu.java.nio.EpollSelectorImpl.epoll_modify(EpollSelectorImpl.java:313)
+    		//   at gnu.java.nio.EpollSelectionKeyImpl.interestOps(EpollSelectionKeyImpl.java:97)
+    		//   ...4 more
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("gnu?", iae);
                 }
             }
-        }
+
+            // check before instantiating iterator for speed
+            if (!_wantsWrite.isEmpty()) {
+                for (Iterator<NTCPConnection> iter = _wantsWrite.iterator(); iter.hasNext(); ) {
+                    con = iter.next();
+                    SelectionKey key = con.getKey();
+                    if (key == null)
+                        continue;
+                    iter.remove();
+                    try {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    } catch (CancelledKeyException cke) {
+                        // ignore
+                    } catch (IllegalArgumentException iae) {
+                        // see above
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("gnu?", iae);
+                    }
+                }
+            }
         
-        // only when address changes
-        ServerSocketChannel chan;
-        while ((chan = _wantsRegister.poll()) != null) {
-            try {
-                SelectionKey key = chan.register(_selector, SelectionKey.OP_ACCEPT);
-                key.attach(chan);
-            } catch (ClosedChannelException cce) {
-                if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
+            // only when address changes
+            ServerSocketChannel chan;
+            while ((chan = _wantsRegister.poll()) != null) {
+                try {
+                    SelectionKey key = chan.register(_selector, SelectionKey.OP_ACCEPT);
+                    key.attach(chan);
+                } catch (ClosedChannelException cce) {
+                    if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
+                }
             }
-        }
         
-        while ((con = _wantsConRegister.poll()) != null) {
-            try {
-                SelectionKey key = con.getChannel().register(_selector, SelectionKey.OP_CONNECT);
-                key.attach(con);
-                con.setKey(key);
-                RouterAddress naddr = con.getRemoteAddress();
+            while ((con = _wantsConRegister.poll()) != null) {
                 try {
-                    if (naddr.getPort() <= 0)
-                        throw new IOException("Invalid NTCP address: " + naddr);
-                    InetSocketAddress saddr = new InetSocketAddress(naddr.getHost(), naddr.getPort());
-                    boolean connected = con.getChannel().connect(saddr);
-                    if (connected) {
-                        // Never happens, we use nonblocking
-                        //_context.statManager().addRateData("ntcp.connectImmediate", 1);
-                        key.interestOps(SelectionKey.OP_READ);
-                        processConnect(key);
+                    SelectionKey key = con.getChannel().register(_selector, SelectionKey.OP_CONNECT);
+                    key.attach(con);
+                    con.setKey(key);
+                    RouterAddress naddr = con.getRemoteAddress();
+                    try {
+                        if (naddr.getPort() <= 0)
+                            throw new IOException("Invalid NTCP address: " + naddr);
+                        InetSocketAddress saddr = new InetSocketAddress(naddr.getHost(), naddr.getPort());
+                        boolean connected = con.getChannel().connect(saddr);
+                        if (connected) {
+                            // Never happens, we use nonblocking
+                            //_context.statManager().addRateData("ntcp.connectImmediate", 1);
+                            key.interestOps(SelectionKey.OP_READ);
+                            processConnect(key);
+                        }
+                    } catch (IOException ioe) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("error connecting to " + Addresses.toString(naddr.getIP(), naddr.getPort()), ioe);
+                        _context.statManager().addRateData("ntcp.connectFailedIOE", 1);
+                        _transport.markUnreachable(con.getRemotePeer().calculateHash());
+                        //if (ntcpOnly(con)) {
+                        //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect: " + ioe.getMessage());
+                        //    con.close(false);
+                        //} else {
+                        //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect: " + ioe.getMessage(), NTCPTransport.STYLE);
+                            con.close(true);
+                        //}
+                    } catch (UnresolvedAddressException uae) {                    
+                        if (_log.shouldLog(Log.WARN)) _log.warn("unresolved address connecting", uae);
+                        _context.statManager().addRateData("ntcp.connectFailedUnresolved", 1);
+                        _transport.markUnreachable(con.getRemotePeer().calculateHash());
+                        //if (ntcpOnly(con)) {
+                        //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect/resolve: " + uae.getMessage());
+                        //    con.close(false);
+                        //} else {
+                        //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect/resolve: " + uae.getMessage(), NTCPTransport.STYLE);
+                            con.close(true);
+                        //}
+                    } catch (CancelledKeyException cke) {
+                        con.close(false);
                     }
-                } catch (IOException ioe) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("error connecting to " + Addresses.toString(naddr.getIP(), naddr.getPort()), ioe);
-                    _context.statManager().addRateData("ntcp.connectFailedIOE", 1);
-                    _transport.markUnreachable(con.getRemotePeer().calculateHash());
-                    //if (ntcpOnly(con)) {
-                    //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect: " + ioe.getMessage());
-                    //    con.close(false);
-                    //} else {
-                    //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect: " + ioe.getMessage(), NTCPTransport.STYLE);
-                        con.close(true);
-                    //}
-                } catch (UnresolvedAddressException uae) {                    
-                    if (_log.shouldLog(Log.WARN)) _log.warn("unresolved address connecting", uae);
-                    _context.statManager().addRateData("ntcp.connectFailedUnresolved", 1);
-                    _transport.markUnreachable(con.getRemotePeer().calculateHash());
-                    //if (ntcpOnly(con)) {
-                    //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect/resolve: " + uae.getMessage());
-                    //    con.close(false);
-                    //} else {
-                    //    _context.banlist().banlistRouter(con.getRemotePeer().calculateHash(), "unable to connect/resolve: " + uae.getMessage(), NTCPTransport.STYLE);
-                        con.close(true);
-                    //}
-                } catch (CancelledKeyException cke) {
-                    con.close(false);
+                } catch (ClosedChannelException cce) {
+                    if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
                 }
-            } catch (ClosedChannelException cce) {
-                if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
             }
-        }
+
+            SocketChannel schan;
+            while ((schan = _wantsAcceptRegister.poll()) != null) {
+                registerAccepted(schan);
+            }
         
-        long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
-            expireTimedOut();
-            _lastExpired = now;
+            if (_id == 0) {
+                long now = System.currentTimeMillis();
+                if (_lastExpired + 1000 <= now) {
+                    _transport.expireTimedOut();
+                    _lastExpired = now;
+                }
+            }
         }
     }
-    
-    /**
-     * If the other peer only supports ntcp, we should banlist them when we can't reach 'em,
-     * but if they support other transports (eg ssu) we should allow those transports to be
-     * tried as well.
-     */
-/****
-    private boolean ntcpOnly(NTCPConnection con) {
-        RouterIdentity ident = con.getRemotePeer();
-        if (ident == null) return true;
-        RouterInfo info = _context.netDb().lookupRouterInfoLocally(ident.calculateHash());
-        if (info == null) return true;
-        return info.getAddresses().size() == 1;
-    }
-****/
-    
-    private long _lastExpired;
-
-    private void expireTimedOut() {
-        _transport.expireTimedOut();
-    }
-
-    public long getIdleTimeout() { return _expireIdleWriteTime; }
 }
@@ -35,6 +35,7 @@ import net.i2p.util.ByteCache;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.HexDump;
 import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer;
 import net.i2p.util.SystemVersion;
 
 /**
@@ -67,6 +68,7 @@ class NTCPConnection {
     private final Log _log;
     private SocketChannel _chan;
     private SelectionKey _conKey;
+    private volatile EventPumper.Loop _pumperLoop;
     private final FIFOBandwidthLimiter.CompleteListener _inboundListener;
     private final FIFOBandwidthLimiter.CompleteListener _outboundListener;
     /**
@@ -97,10 +99,12 @@ class NTCPConnection {
     //private final CoDelPriorityBlockingQueue<OutNetMessage> _outbound;
     private final PriBlockingQueue<OutNetMessage> _outbound;
     /**
-     *  current prepared OutNetMessage, or null - synchronize on _outbound to modify
+     *  current prepared batch of OutNetMessages, or null - synchronize on _outbound to modify
      *  FIXME why do we need this???
      */
-    private OutNetMessage _currentOutbound;
+    private List<OutNetMessage> _currentOutbound;
+    /** have we already held a lone message back waiting for more to coalesce with */
+    private boolean _batchDeferred;
     private SessionKey _sessionKey;
     /** encrypted block of the current I2NP message being read */
     private byte _curReadBlock[];
@@ -157,6 +161,26 @@ class NTCPConnection {
     public static final int MAX_MSG_SIZE = BUFFER_SIZE - (2 + 4);
 
     private static final int PRIORITY = OutNetMessage.PRIORITY_MY_NETDB_STORE_LOW;
+
+    /**
+     *  Max number of queued messages to coalesce into a single encrypted write.
+     *  @since 0.9.10
+     */
+    private static final int MAX_BATCH_MESSAGES = 16;
+    /**
+     *  Stop adding messages to a batch once it is this big (before padding and checksums).
+     *  @since 0.9.10
+     */
+    private static final int MAX_BATCH_SIZE = 2 * BUFFER_SIZE;
+    /**
+     *  How long (ms) to hold a lone queued message back so that it may be
+     *  coalesced with the next one. Default 0 (never hold back;
+     *  messages that are already queued together are still coalesced).
+     *  @since 0.9.10
+     */
+    private static final String PROP_BATCH_LATENCY = "i2np.ntcp.maxBatchLatency";
+    private static final int DEFAULT_BATCH_LATENCY = 0;
+    private static final int MAX_BATCH_LATENCY = 100;
     
     /**
      * Create an inbound connected (though not established) NTCP connection
@@ -232,6 +256,19 @@ class NTCPConnection {
     public SelectionKey getKey() { return _conKey; }
     public void setChannel(SocketChannel chan) { _chan = chan; }
     public void setKey(SelectionKey key) { _conKey = key; }
+
+    /**
+     *  The selector loop this connection is registered on.
+     *  Valid for inbound; valid for outbound shortly after creation
+     *  @since 0.9.10
+     */
+    EventPumper.Loop getPumperLoop() { return _pumperLoop; }
+
+    /**
+     *  @since 0.9.10
+     */
+    void setPumperLoop(EventPumper.Loop loop) { _pumperLoop = loop; }
+
     public boolean isInbound() { return _isInbound; }
     public boolean isEstablished() { return _establishState.isComplete(); }
 
@@ -304,8 +341,9 @@ class NTCPConnection {
     public long getMessagesReceived() { return _messagesRead; }
     public long getOutboundQueueSize() { 
             int queued = _outbound.size();
-            if (_currentOutbound != null)
-                queued++;
+            List<OutNetMessage> current = _currentOutbound;
+            if (current != null)
+                queued += current.size();
             return queued;
     }
 
@@ -377,7 +415,7 @@ class NTCPConnection {
         _writeBufs.clear();
         ByteBuffer bb;
         while ((bb = _readBufs.poll()) != null) {
-            EventPumper.releaseBuf(bb);
+            EventPumper.releaseBuf(this, bb);
         }
 
         List<OutNetMessage> pending = new ArrayList<OutNetMessage>();
@@ -390,12 +428,14 @@ class NTCPConnection {
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
         }
 
-        OutNetMessage msg = _currentOutbound;
-        if (msg != null) {
-            Object buf = msg.releasePreparationBuffer();
-            if (buf != null)
-                releaseBuf((PrepBuffer)buf);
-            _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
+        List<OutNetMessage> current = _currentOutbound;
+        if (current != null) {
+            for (OutNetMessage msg : current) {
+                Object buf = msg.releasePreparationBuffer();
+                if (buf != null)
+                    releaseBuf((PrepBuffer)buf);
+                _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
+            }
         }
         
         return old;
@@ -691,7 +731,7 @@ class NTCPConnection {
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, encrypted);
+        _transport.getPumper().wantsWrite(this, encrypted, msg.getPriority());
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -724,7 +764,7 @@ class NTCPConnection {
             _nextMetaTime = System.currentTimeMillis() + (META_FREQUENCY / 2) + _context.random().nextInt(META_FREQUENCY / 2);
         }
       
-        OutNetMessage msg = null;
+        List<OutNetMessage> msgs;
         // this is synchronized only for _currentOutbound
         // Todo: figure out how to remove the synchronization
         synchronized (_outbound) {
@@ -733,62 +773,82 @@ class NTCPConnection {
                     _log.info("attempt for multiple outbound messages with " + System.identityHashCode(_currentOutbound) + " already waiting and " + _outbound.size() + " queued");
                 return;
             }
-/****
-                //throw new RuntimeException("We should not be preparing a write while we still have one pending");
-            if (queueTime() > 3*1000) {  // don't stall low-priority messages
-****/
-                msg = _outbound.poll();
-                if (msg == null)
-                    return;
-/****
-            } else {
-                // FIXME
-                // This is a linear search to implement a priority queue, O(n**2)
-                // Also race with unsynchronized removal in close() above
-                // Either implement a real (concurrent?) priority queue or just comment out all of this,
-                // as it isn't clear how effective the priorities on a per-connection basis are.
-                int slot = 0;  // only for logging
-                Iterator<OutNetMessage> it = _outbound.iterator();
-                for (int i = 0; it.hasNext() && i < 75; i++) {  //arbitrary bound
-                    OutNetMessage mmsg = it.next();
-                    if (msg == null || mmsg.getPriority() > msg.getPriority()) {
-                        msg = mmsg;
-                        slot = i;
-                    }
-                }
-                if (msg == null)
-                    return;
-                // if (_outbound.indexOf(msg) > 0)
-                //     _log.debug("Priority message sent, pri = " + msg.getPriority() + " pos = " + _outbound.indexOf(msg) + "/" +_outbound.size());
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Type " + msg.getMessage().getType() + " pri " + msg.getPriority() + " slot " + slot);
-                boolean removed = _outbound.remove(msg);
-                if ((!removed) && _log.shouldLog(Log.WARN))
-                    _log.warn("Already removed??? " + msg.getMessage().getType());
+            int latency = Math.min(MAX_BATCH_LATENCY, _context.getProperty(PROP_BATCH_LATENCY, DEFAULT_BATCH_LATENCY));
+            if (latency > 0 && !_batchDeferred && _outbound.size() == 1) {
+                // give the next message a chance to share this write
+                _batchDeferred = true;
+                _context.simpleScheduler().addEvent(new BatchTimer(), latency);
+                return;
             }
-****/
-            _currentOutbound = msg;
+            _batchDeferred = false;
+            OutNetMessage msg = _outbound.poll();
+            if (msg == null)
+                return;
+            msgs = new ArrayList<OutNetMessage>(Math.min(MAX_BATCH_MESSAGES, 1 + _outbound.size()));
+            msgs.add(msg);
+            long size = msg.getMessageSize();
+            while (msgs.size() < MAX_BATCH_MESSAGES) {
+                OutNetMessage next = _outbound.peek();
+                if (next == null)
+                    break;
+                size += next.getMessageSize();
+                if (size > MAX_BATCH_SIZE)
+                    break;
+                // poll() may return a different message if a higher-priority one was just added,
+                // that's fine, the size limit is only approximate
+                next = _outbound.poll();
+                if (next == null)
+                    break;
+                msgs.add(next);
+            }
+            _currentOutbound = msgs;
         }
         
         //long begin = System.currentTimeMillis();
-        PrepBuffer buf = (PrepBuffer)msg.releasePreparationBuffer();
-        if (buf == null) {
-            // race, see ticket #392
-            //throw new RuntimeException("buf is null for " + msg);
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("Null prep buf for " + msg);
-            return;
+        // All messages in the batch are encrypted in one CBC chain
+        // (each one's IV is the end of the previous one, exactly as if they were sent separately)
+        // into a single buffer, so they go out in one write.
+        int count = msgs.size();
+        PrepBuffer bufs[] = new PrepBuffer[count];
+        int length = 0;
+        // the bandwidth limiter classifies the write by its most important message
+        int priority = 0;
+        for (int i = 0; i < count; i++) {
+            priority = Math.max(priority, msgs.get(i).getPriority());
+            PrepBuffer buf = (PrepBuffer)msgs.get(i).releasePreparationBuffer();
+            if (buf == null) {
+                // race, see ticket #392
+                //throw new RuntimeException("buf is null for " + msg);
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Null prep buf for " + msgs.get(i));
+                for (int j = 0; j < i; j++) {
+                    releaseBuf(bufs[j]);
+                }
+                return;
+            }
+            bufs[i] = buf;
+            length += buf.unencryptedLength;
+        }
+        byte encrypted[] = new byte[length];
+        int off = 0;
+        for (int i = 0; i < count; i++) {
+            PrepBuffer buf = bufs[i];
+            if (off == 0)
+                _context.aes().encrypt(buf.unencrypted, 0, encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
+            else
+                _context.aes().encrypt(buf.unencrypted, 0, encrypted, off, _sessionKey, encrypted, off - 16, buf.unencryptedLength);
+            off += buf.unencryptedLength;
+            releaseBuf(buf);
         }
-        _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
-        System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
+        System.arraycopy(encrypted, encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
         //long encryptedTime = System.currentTimeMillis();
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
+        _context.statManager().addRateData("ntcp.messagesPerWrite", count);
+        _transport.getPumper().wantsWrite(this, encrypted, priority);
         //long wantsTime = System.currentTimeMillis();
-        releaseBuf(buf);
         //long releaseTime = System.currentTimeMillis();
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("prepared outbound " + System.identityHashCode(msg) 
@@ -847,11 +907,9 @@ class NTCPConnection {
         
         DataHelper.toLong(buf.unencrypted, buf.unencryptedLength-4, 4, val);
         // TODO object churn
-        // 1) store the length only
-        // 2) in prepareNextWriteFast(), pull a byte buffer off a queue and encrypt to that
-        // 3) change EventPumper.wantsWrite() to take a ByteBuffer arg
-        // 4) in EventPumper.processWrite(), release the byte buffer
-        buf.encrypted = new byte[buf.unencryptedLength];
+        // 1) in prepareNextWriteFast(), pull a byte buffer off a queue and encrypt to that
+        // 2) change EventPumper.wantsWrite() to take a ByteBuffer arg
+        // 3) in EventPumper.processWrite(), release the byte buffer
         
         //long crced = System.currentTimeMillis();
         msg.prepared(buf);
@@ -892,7 +950,6 @@ class NTCPConnection {
         final byte base[];
         int baseLength;
         final Adler32 crc;
-        byte encrypted[];
         
         PrepBuffer() {
             unencrypted = new byte[BUFFER_SIZE];
@@ -903,7 +960,6 @@ class NTCPConnection {
         private void init() {
             unencryptedLength = 0;
             baseLength = 0;
-            encrypted = null;
             crc.reset();
         }
     }
@@ -919,6 +975,18 @@ class NTCPConnection {
         _transport.getWriter().wantsWrite(this, "outbound connected");
     }
 
+    /**
+     *  Fires after we held back a lone message, to send it whether
+     *  or not another one arrived to share the write.
+     *  @since 0.9.10
+     */
+    private class BatchTimer implements SimpleTimer.TimedEvent {
+        public void timeReached() {
+            if (!_closed.get())
+                _transport.getWriter().wantsWrite(NTCPConnection.this, "batch timer");
+        }
+    }
+
     /**
      *  The FifoBandwidthLimiter.CompleteListener callback.
      *  Does the delayed read.
@@ -928,7 +996,7 @@ class NTCPConnection {
             removeIBRequest(req);
             ByteBuffer buf = (ByteBuffer)req.attachment();
             if (_closed.get()) {
-                EventPumper.releaseBuf(buf);
+                EventPumper.releaseBuf(NTCPConnection.this, buf);
                 return;
             }
             _context.statManager().addRateData("ntcp.throttledReadComplete", (System.currentTimeMillis()-req.getRequestTime()));
@@ -1033,13 +1101,31 @@ class NTCPConnection {
     public ByteBuffer getNextWriteBuf() {
         return _writeBufs.peek(); // not remove!  we removeWriteBuf afterwards
     }
+
+    /**
+     *  Fill in the buffers at the head of the write queue, for a gathering write.
+     *  Not removed!  we removeWriteBuf afterwards
+     *
+     *  @param rv out parameter
+     *  @return how many were filled in, 0 if none available
+     *  @since 0.9.10
+     */
+    public int getNextWriteBufs(ByteBuffer rv[]) {
+        int i = 0;
+        for (ByteBuffer buf : _writeBufs) {
+            if (i >= rv.length)
+                break;
+            rv[i++] = buf;
+        }
+        return i;
+    }
     
     /**
      *  Remove the buffer, which _should_ be the one at the head of _writeBufs
      */
     public void removeWriteBuf(ByteBuffer buf) {
         _bytesSent += buf.capacity();
-        OutNetMessage msg = null;
+        List<OutNetMessage> sent = null;
         boolean clearMessage = false;
         if (_sendingMeta && (buf.capacity() == _meta.length)) {
             _sendingMeta = false;
@@ -1051,21 +1137,23 @@ class NTCPConnection {
             // see synchronization comments in prepareNextWriteFast()
             synchronized (_outbound) {
                 if (_currentOutbound != null) {
-                    msg = _currentOutbound;
+                    sent = _currentOutbound;
                     _currentOutbound = null;
                 }
             }
-            if (msg != null) {
+            if (sent != null) {
                 _lastSendTime = System.currentTimeMillis();
-                _context.statManager().addRateData("ntcp.sendTime", msg.getSendTime());
-                if (_log.shouldLog(Log.DEBUG)) {
-                    _log.debug("I2NP message " + _messagesWritten + "/" + msg.getMessageId() + " sent after " 
-                              + msg.getSendTime() + "/"
-                              + msg.getLifetime()
-                              + " with " + buf.capacity() + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
+                for (OutNetMessage msg : sent) {
+                    _context.statManager().addRateData("ntcp.sendTime", msg.getSendTime());
+                    if (_log.shouldLog(Log.DEBUG)) {
+                        _log.debug("I2NP message " + _messagesWritten + "/" + msg.getMessageId() + " sent after " 
+                                  + msg.getSendTime() + "/"
+                                  + msg.getLifetime()
+                                  + " with " + buf.capacity() + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
+                    }
+                    _messagesWritten++;
+                    _transport.sendComplete(msg);
                 }
-                _messagesWritten++;
-                _transport.sendComplete(msg);
             }
         } else {
             if (_log.shouldLog(Log.INFO))
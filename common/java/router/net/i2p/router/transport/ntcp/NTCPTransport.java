@@ -107,6 +107,7 @@ public class NTCPTransport extends TransportImpl {
         _log = ctx.logManager().getLog(getClass());
 
         _context.statManager().createRateStat("ntcp.sendTime", "Total message lifetime when sent completely", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.messagesPerWrite", "How many I2NP messages were coalesced into one encrypted write", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.sendQueueSize", "How many messages were ahead of the current one on the connection's queue when it was first added", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.receiveTime", "How long it takes to receive an inbound message", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.receiveSize", "How large the received message was", "ntcp", RATES);
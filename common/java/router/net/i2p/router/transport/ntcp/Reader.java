@@ -150,11 +150,11 @@ class Reader {
                 // why is it complete yet !con.isEstablished?
                 _log.error("establishment state [" + est + "] is complete, yet the connection isn't established? " 
                         + con.isEstablished() + " (inbound? " + con.isInbound() + " " + con + ")");
-                EventPumper.releaseBuf(buf);
+                EventPumper.releaseBuf(con, buf);
                 break;
             }
             est.receive(buf);
-            EventPumper.releaseBuf(buf);
+            EventPumper.releaseBuf(con, buf);
             if (est.isCorrupt()) {
                 if (_log.shouldLog(Log.WARN))
                     _log.warn("closing connection on establishment because: " +est.getError(), est.getException());
@@ -171,7 +171,7 @@ class Reader {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Processing read buffer as part of an i2np message (" + buf.remaining() + " bytes)");
             con.recvEncryptedI2NP(buf);
-            EventPumper.releaseBuf(buf);
+            EventPumper.releaseBuf(con, buf);
         }
     }
 }
@@ -1,9 +1,10 @@
 package net.i2p.router.transport.udp;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import net.i2p.data.Hash;
 import net.i2p.data.RouterInfo;
@@ -15,8 +16,10 @@ import net.i2p.util.Log;
 /**
  * Coordinate the outbound fragments and select the next one to be built.
  * This pool contains messages we are actively trying to send, essentially
- * doing a round robin across each message to send one fragment, as implemented
- * in {@link #getNextVolley()}.  This also honors per-peer throttling, taking
+ * doing a deficit round robin across the peers to send one volley at a time, as implemented
+ * in {@link #getNextVolley()}.  Peers with a high priority message at the head
+ * of their queue (e.g. our tunnel build requests) are served first,
+ * from a separate round.  This also honors per-peer throttling, taking
  * note of each peer's allocations.  If a message has each of its fragments
  * sent more than a certain number of times, it is failed out.  In addition,
  * this instance also receives notification of message ACKs from the
@@ -32,18 +35,37 @@ class OutboundMessageFragments {
 
     /**
      *  Peers we are actively sending messages to.
-     *  We use the iterator so we treat it like a list,
-     *  but we use a HashSet so remove() is fast and
-     *  we don't need to do contains().
-     *  Even though most (but NOT all) accesses are synchronized,
-     *  we use a ConcurrentHashSet as the iterator is long-lived.
+     *  This is only for membership, so a peer is in _roundRobin once.
+     *  add() to this set and offer() to _roundRobin if it wasn't there,
+     *  so activation is lock-free.
      */
     private final Set<PeerState> _activePeers;
 
     /**
-     *  The long-lived iterator over _activePeers.
+     *  The deficit round robin over _activePeers.
+     *  Peers are polled from the head and offered back to the tail.
+     *  Polled by the PacketPusher thread only.
      */
-    private Iterator<PeerState> _iterator;
+    private final Queue<PeerState> _roundRobin;
+
+    /**
+     *  Peers with a queued message of at least PRIORITY_HIGH,
+     *  served before _roundRobin. Membership only, as above.
+     *  @since 0.9.10
+     */
+    private final Set<PeerState> _priorityPeers;
+
+    /**
+     *  The round robin over _priorityPeers.
+     *  @since 0.9.10
+     */
+    private final Queue<PeerState> _priorityRoundRobin;
+
+    /** The peer we are serving from _roundRobin until its deficit runs out. PacketPusher thread only. */
+    private PeerState _currentPeer;
+
+    /** consecutive volleys from _priorityRoundRobin. PacketPusher thread only. */
+    private int _priorityVolleys;
 
     /**
      *  Avoid sync in add() if possible (not 100% reliable)
@@ -62,12 +84,28 @@ class OutboundMessageFragments {
     static final int MAX_VOLLEYS = 10;
     private static final int MAX_WAIT = 1000;
 
+    /**
+     *  Bytes added to a peer's deficit on each turn.
+     *  A volley may be larger, the peer then goes negative and skips turns.
+     */
+    private static final int QUANTUM = 4096;
+    /**
+     *  Messages at this priority or higher (our build requests, lookups, and
+     *  unattached messages such as session confirmed) go in the priority round
+     */
+    static final int PRIORITY_HIGH = OutNetMessage.PRIORITY_MY_BUILD_REQUEST;
+    /** after this many priority volleys in a row, give _roundRobin a turn */
+    private static final int MAX_PRIORITY_VOLLEYS = 8;
+
     public OutboundMessageFragments(RouterContext ctx, UDPTransport transport, ActiveThrottle throttle) {
         _context = ctx;
         _log = ctx.logManager().getLog(OutboundMessageFragments.class);
         _transport = transport;
         // _throttle = throttle;
         _activePeers = new ConcurrentHashSet<PeerState>(256);
+        _roundRobin = new ConcurrentLinkedQueue<PeerState>();
+        _priorityPeers = new ConcurrentHashSet<PeerState>(16);
+        _priorityRoundRobin = new ConcurrentLinkedQueue<PeerState>();
         _builder = new PacketBuilder(ctx, transport);
         _alive = true;
         // _allowExcess = false;
@@ -89,6 +127,9 @@ class OutboundMessageFragments {
         _context.statManager().createRateStat("udp.blockedRetransmissions", "How packets have been transmitted to the peer when we blocked a retransmission to them?", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendCycleTime", "How long it takes to cycle through all of the active messages?", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendCycleTimeSlow", "How long it takes to cycle through all of the active messages, when its going slowly?", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendQueueTimeHigh", "How long a high priority message waited before its first volley", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendQueueTimeNormal", "How long a local message waited before its first volley", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendQueueTimeLow", "How long a participating message waited before its first volley", "udp", UDPTransport.RATES);
     }
 
     public synchronized void startup() { _alive = true; }
@@ -96,6 +137,9 @@ class OutboundMessageFragments {
     public synchronized void shutdown() {
         _alive = false;
         _activePeers.clear();
+        _roundRobin.clear();
+        _priorityPeers.clear();
+        _priorityRoundRobin.clear();
         synchronized (_activePeers) {
             _activePeers.notifyAll();
         }
@@ -105,7 +149,9 @@ class OutboundMessageFragments {
         if (_log.shouldLog(Log.INFO))
             _log.info("Dropping peer " + peer.getRemotePeer());
         peer.dropOutbound();
+        // it stays in the round robin queues until polled
         _activePeers.remove(peer);
+        _priorityPeers.remove(peer);
     }
 
     /**
@@ -158,7 +204,7 @@ class OutboundMessageFragments {
             // will throw IAE if peer == null
             OutboundMessageState state = new OutboundMessageState(_context, msg, peer);
             peer.add(state);
-            add(peer);
+            add(peer, state.getPriority());
         } catch (IllegalArgumentException iae) {
             _transport.failed(msg, "Peer disconnected quickly");
             return;
@@ -174,7 +220,7 @@ class OutboundMessageFragments {
         if (peer == null)
             throw new RuntimeException("wtf, null peer for " + state);
         peer.add(state);
-        add(peer);
+        add(peer, state.getPriority());
         //_context.statManager().addRateData("udp.outboundActiveCount", active, 0);
     }
 
@@ -182,16 +228,31 @@ class OutboundMessageFragments {
      * Add the peer to the list of peers wanting to transmit something.
      * This wakes up the packet pusher if it is sleeping.
      *
-     * Avoid synchronization where possible.
-     * There are small chances of races.
-     * There are larger chances of adding the PeerState "behind" where
-     * the iterator is now... but these issues are the same as before concurrentification.
-     *
      * @since 0.8.9
      */
     public void add(PeerState peer) {
+        add(peer, 0);
+    }
+
+    /**
+     * Add the peer to the round robin, and to the priority round robin
+     * if priority is PRIORITY_HIGH or more.
+     * This wakes up the packet pusher if it is sleeping.
+     *
+     * Lock-free, we only synchronize to notify the packet pusher.
+     * A peer is only queued if it wasn't already in the set.
+     *
+     * @since 0.9.10
+     */
+    private void add(PeerState peer, int priority) {
         boolean wasEmpty = _activePeers.isEmpty();
         boolean added = _activePeers.add(peer);
+        if (added)
+            _roundRobin.offer(peer);
+        if (priority >= PRIORITY_HIGH && _priorityPeers.add(peer)) {
+            _priorityRoundRobin.offer(peer);
+            wasEmpty = true;
+        }
         if (added) {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Add a new message to a new peer " + peer.getRemotePeer());
@@ -203,8 +264,6 @@ class OutboundMessageFragments {
 
         // Avoid sync if possible
         // no, this doesn't always work.
-        // Also note that the iterator in getNextVolley may have alreay passed us,
-        // or not reflect the addition.
         if (_isWaiting || wasEmpty) {
             synchronized (_activePeers) {
                 _activePeers.notifyAll();
@@ -246,87 +305,147 @@ class OutboundMessageFragments {
     public UDPPacket[] getNextVolley() {
         PeerState peer = null;
         OutboundMessageState state = null;
-        // Keep track of how many we've looked at, since we don't start the iterator at the beginning.
-        int peersProcessed = 0;
         while (_alive && (state == null) ) {
             int nextSendDelay = Integer.MAX_VALUE;
-            // no, not every time - O(n**2) - do just before waiting below
-            //finishMessages();
 
-                    // do we need a new long-lived iterator?
-                    if (_iterator == null ||
-                        ((!_activePeers.isEmpty()) && (!_iterator.hasNext()))) {
-                        _iterator = _activePeers.iterator();
+            // High priority first, unless we've been doing that for a while
+            if (_priorityVolleys < MAX_PRIORITY_VOLLEYS) {
+                int count = _priorityPeers.size();
+                for (int i = 0; i < count; i++) {
+                    peer = _priorityRoundRobin.poll();
+                    if (peer == null)
+                        break;
+                    int remaining = peer.finishMessages();
+                    if (remaining > 0)
+                        state = peer.allocateSend(PRIORITY_HIGH);
+                    if (peer.getNextQueuedPriority() >= PRIORITY_HIGH) {
+                        _priorityRoundRobin.offer(peer);
+                    } else {
+                        _priorityPeers.remove(peer);
+                        // race with add()
+                        if (peer.getNextQueuedPriority() >= PRIORITY_HIGH && _priorityPeers.add(peer))
+                            _priorityRoundRobin.offer(peer);
                     }
-
-                    // Go through all the peers that we are actively sending messages to.
-                    // Call finishMessages() for each one, and remove them from the iterator
-                    // if there is nothing left to send.
-                    // Otherwise, return the volley to be sent.
-                    // Otherwise, wait()
-                    while (_iterator.hasNext()) {
-                        peer = _iterator.next();
-                        int remaining = peer.finishMessages();
-                        if (remaining <= 0) {
-                            // race with add()
-                            _iterator.remove();
-                            if (_log.shouldLog(Log.DEBUG))
-                                _log.debug("No more pending messages for " + peer.getRemotePeer());
-                            continue;
-                        }
-                        peersProcessed++;
-                        state = peer.allocateSend();
-                        if (state != null) {
-                            // we have something to send and we will be returning it
-                            break;
-                        } else if (peersProcessed >= _activePeers.size()) {
-                            // we've gone all the way around, time to sleep
-                            break;
-                        } else {
-                            // Update the minimum delay for all peers
-                            // which will be used if we found nothing to send across all peers
-                            int delay = peer.getNextDelay();
-                            if (delay < nextSendDelay)
-                                nextSendDelay = delay;
-                            peer = null;
-                        }
+                    if (state != null) {
+                        _priorityVolleys++;
+                        // charge it to the regular round too
+                        peer.setDeficit(peer.getDeficit() - state.getUnackedSize());
+                        break;
                     }
-
-                    if (peer != null && _log.shouldLog(Log.DEBUG))
-                        _log.debug("Done looping, next peer we are sending for: " +
-                                   peer.getRemotePeer());
-
-                    // if we've gone all the way through the loop, wait
-                    // ... unless nextSendDelay says we have more ready now
-                    if (state == null && peersProcessed >= _activePeers.size() && nextSendDelay > 0) {
-                        _isWaiting = true;
-                        peersProcessed = 0;
-                        // why? we do this in the loop one at a time
-                        //finishMessages();
-                        // wait a min of 10 and a max of MAX_WAIT ms no matter what peer.getNextDelay() says
-                        // use max of 1 second so finishMessages() and/or PeerState.finishMessages()
-                        // gets called regularly
-                        int toWait = Math.min(Math.max(nextSendDelay, 10), MAX_WAIT);
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("wait for " + toWait);
-                        // wait.. or somethin'
-                        synchronized (_activePeers) {
-                            try {
-                                _activePeers.wait(toWait);
-                            } catch (InterruptedException ie) {
-                                // noop
-                                if (_log.shouldLog(Log.DEBUG))
-                                     _log.debug("Woken up while waiting");
-                            }
-                        }
-                        _isWaiting = false;
-                    //} else {
-                    //    if (_log.shouldLog(Log.DEBUG))
-                    //        _log.debug("dont wait: alive=" + _alive + " state = " + state);
+                    if (remaining > 0) {
+                        int delay = peer.getNextDelay();
+                        if (delay < nextSendDelay)
+                            nextSendDelay = delay;
                     }
+                    peer = null;
+                }
+                if (state != null)
+                    break;
+            }
+            _priorityVolleys = 0;
+
+            // Stay with the current peer until its deficit runs out
+            if (_currentPeer != null) {
+                peer = _currentPeer;
+                _currentPeer = null;
+                if (peer.getDeficit() > 0 && peer.finishMessages() > 0) {
+                    state = peer.allocateSend();
+                    if (state != null) {
+                        peer.setDeficit(peer.getDeficit() - state.getUnackedSize());
+                        if (peer.getDeficit() > 0)
+                            _currentPeer = peer;
+                        else
+                            requeue(peer);
+                        break;
+                    }
+                }
+                requeue(peer);
+                peer = null;
+            }
+
+            // Go through all the peers that we are actively sending messages to, once.
+            // Call finishMessages() for each one, and remove them
+            // if there is nothing left to send.
+            // Otherwise, add the quantum to the deficit, and if positive,
+            // return the volley to be sent.
+            // Otherwise, wait()
+            int count = _activePeers.size();
+            for (int i = 0; i < count; i++) {
+                peer = _roundRobin.poll();
+                if (peer == null)
+                    break;
+                int remaining = peer.finishMessages();
+                if (remaining <= 0) {
+                    _activePeers.remove(peer);
+                    peer.setDeficit(0);
+                    // race with add()
+                    if (peer.getOutboundMessageCount() > 0 && _activePeers.add(peer))
+                        _roundRobin.offer(peer);
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("No more pending messages for " + peer.getRemotePeer());
+                    peer = null;
+                    continue;
+                }
+                int deficit = Math.min(peer.getDeficit() + QUANTUM, QUANTUM);
+                peer.setDeficit(deficit);
+                if (deficit <= 0) {
+                    // sent a big volley last time, skip this turn
+                    _roundRobin.offer(peer);
+                    nextSendDelay = 0;
+                    peer = null;
+                    continue;
+                }
+                state = peer.allocateSend();
+                if (state != null) {
+                    // we have something to send and we will be returning it
+                    deficit -= state.getUnackedSize();
+                    peer.setDeficit(deficit);
+                    if (deficit > 0)
+                        _currentPeer = peer;
+                    else
+                        _roundRobin.offer(peer);
+                    break;
+                }
+                // Update the minimum delay for all peers
+                // which will be used if we found nothing to send across all peers
+                int delay = peer.getNextDelay();
+                if (delay < nextSendDelay)
+                    nextSendDelay = delay;
+                _roundRobin.offer(peer);
+                peer = null;
+            }
 
+            if (peer != null && _log.shouldLog(Log.DEBUG))
+                _log.debug("Done looping, next peer we are sending for: " +
+                           peer.getRemotePeer());
+
+            // if we've gone all the way through the round, wait
+            // ... unless nextSendDelay says we have more ready now
+            if (state == null && nextSendDelay > 0) {
+                _isWaiting = true;
+                // wait a min of 10 and a max of MAX_WAIT ms no matter what peer.getNextDelay() says
+                // use max of 1 second so finishMessages() and/or PeerState.finishMessages()
+                // gets called regularly
+                int toWait = Math.min(Math.max(nextSendDelay, 10), MAX_WAIT);
+                //if (_log.shouldLog(Log.DEBUG))
+                //    _log.debug("wait for " + toWait);
+                // wait.. or somethin'
+                synchronized (_activePeers) {
+                    try {
+                        _activePeers.wait(toWait);
+                    } catch (InterruptedException ie) {
+                        // noop
+                        if (_log.shouldLog(Log.DEBUG))
+                             _log.debug("Woken up while waiting");
+                    }
+                }
+                _isWaiting = false;
+            }
         } // while alive && state == null
 
+        if (state != null && state.getPushCount() == 1)
+            addQueueTime(state);
+
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending " + state);
 
@@ -349,6 +468,31 @@ class OutboundMessageFragments {
         return packets;
     }
 
+    /**
+     *  Back to the tail of the round robin, or drop it if it has nothing left
+     *  @since 0.9.10
+     */
+    private void requeue(PeerState peer) {
+        if (_activePeers.contains(peer))
+            _roundRobin.offer(peer);
+    }
+
+    /**
+     *  Per-priority queueing delay, on the first volley only
+     *  @since 0.9.10
+     */
+    private void addQueueTime(OutboundMessageState state) {
+        int priority = state.getPriority();
+        String stat;
+        if (priority >= PRIORITY_HIGH)
+            stat = "udp.sendQueueTimeHigh";
+        else if (priority > OutNetMessage.PRIORITY_PARTICIPATING)
+            stat = "udp.sendQueueTimeNormal";
+        else
+            stat = "udp.sendQueueTimeLow";
+        _context.statManager().addRateData(stat, state.getLifetime());
+    }
+
     /**
      *  @return null if state or peer is null
      */
@@ -222,6 +222,9 @@ class PeerState {
     /** have we migrated away from this peer to another newer one? */
     private volatile boolean _dead;
 
+    /** deficit round robin counter, only used by the OutboundMessageFragments thread */
+    private int _deficit;
+
     /** Make sure a 4229 byte TunnelBuildMessage can be sent in one volley with small MTU */
     private static final int MIN_CONCURRENT_MSGS = 8;
     /** how many concurrent outbound messages do we allow throws OutboundMessageFragments to send */
@@ -1453,6 +1456,27 @@ class PeerState {
         return _outboundMessages.size() + _outboundQueue.size();
     }
     
+    /**
+     * @return priority of the next queued (not yet sent) message, or -1 if none (unsynchronized)
+     * @since 0.9.10
+     */
+    public int getNextQueuedPriority() {
+        OutboundMessageState state = _outboundQueue.peek();
+        return state != null ? state.getPriority() : -1;
+    }
+
+    /**
+     * Deficit round robin bytes, for OutboundMessageFragments only
+     * @since 0.9.10
+     */
+    int getDeficit() { return _deficit; }
+
+    /**
+     * Deficit round robin bytes, for OutboundMessageFragments only
+     * @since 0.9.10
+     */
+    void setDeficit(int deficit) { _deficit = deficit; }
+    
     /**
      * Expire / complete any outbound messages
      * High usage -
@@ -1538,9 +1562,23 @@ class PeerState {
      * @return allocated message to send, or null if no messages or no resources
      */
     public OutboundMessageState allocateSend() {
+        return allocateSend(Integer.MIN_VALUE);
+    }
+
+    /**
+     * As allocateSend(), but only messages of at least this priority,
+     * for the OutboundMessageFragments priority round.
+     * Lower priority messages are skipped and don't use the window.
+     *
+     * @return allocated message to send, or null if no such messages or no resources
+     * @since 0.9.10
+     */
+    OutboundMessageState allocateSend(int minPriority) {
         if (_dead) return null;
         synchronized (_outboundMessages) {
             for (OutboundMessageState state : _outboundMessages) {
+                if (state.getPriority() < minPriority)
+                    continue;
                 // We have 3 return values, because if allocateSendingBytes() returns false,
                 // then we can stop iterating.
                 ShouldSend should = locked_shouldSend(state);
@@ -1575,13 +1613,16 @@ class PeerState {
             // If so, pull it off, put it in _outbundMessages, test
             // again for bandwidth if necessary, and return it.
             OutboundMessageState state = _outboundQueue.peek();
-            if (state != null && ShouldSend.YES == locked_shouldSend(state)) {
+            if (state != null && state.getPriority() >= minPriority &&
+                ShouldSend.YES == locked_shouldSend(state)) {
                 // we could get a different state, or null, when we poll,
                 // due to AQM drops, so we test again if necessary
                 OutboundMessageState dequeuedState = _outboundQueue.poll();
                 if (dequeuedState != null) {
                     _outboundMessages.add(dequeuedState);
-                    if (dequeuedState == state || ShouldSend.YES == locked_shouldSend(dequeuedState)) {
+                    if (dequeuedState == state ||
+                        (dequeuedState.getPriority() >= minPriority &&
+                         ShouldSend.YES == locked_shouldSend(dequeuedState))) {
                         if (_log.shouldLog(Log.DEBUG))
                             _log.debug("Allocate sending (NEW) to " + _remotePeer + ": " + dequeuedState.getMessageId());
                         return dequeuedState;
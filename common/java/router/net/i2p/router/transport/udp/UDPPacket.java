@@ -128,6 +128,7 @@ class UDPPacket implements CDQEntry {
         _released = false;
         // clear out some values to make debugging easier via toString()
         _messageType = -1;
+        _priority = 0;
         _enqueueTime = 0;
         _receivedTime = 0;
         _fragmentCount = 0;
@@ -144,7 +145,10 @@ class UDPPacket implements CDQEntry {
 
     /** */
     public DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
+    /** OutNetMessage priority, or 0 if not a data packet */
     public short getPriority() { verifyNotReleased(); return _priority; }
+    /** @since 0.9.10 */
+    void setPriority(int priority) { _priority = (short) priority; }
     public long getExpiration() { verifyNotReleased(); return _expiration; }
     public long getBegin() { verifyNotReleased(); return _initializeTime; }
     public long getLifetime() { /** verifyNotReleased(); */ return _context.clock().now() - _initializeTime; }
@@ -222,7 +222,7 @@ class UDPSender {
                     if (size > 0) {
                         //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
                         FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestOutbound(size, 0, "UDP sender");
+                              _context.bandwidthLimiter().requestOutbound(size, packet.getPriority(), "UDP sender");
                         while (req.getPendingRequested() > 0)
                             req.waitForNextAllocation();
                     }
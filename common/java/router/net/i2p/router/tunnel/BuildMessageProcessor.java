@@ -35,55 +35,103 @@ public class BuildMessageProcessor {
      * @return the current hop's decrypted record
      */
     public BuildRequestRecord decrypt(I2PAppContext ctx, TunnelBuildMessage msg, Hash ourHash, PrivateKey privKey) {
-        Log log = ctx.logManager().getLog(getClass());
-        BuildRequestRecord rv = null;
-        int ourHop = -1;
-        long beforeActualDecrypt = 0;
-        long afterActualDecrypt = 0;
-        long totalEq = 0;
-        long totalDup = 0;
-        long beforeLoop = System.currentTimeMillis();
-        for (int i = 0; i < msg.getRecordCount(); i++) {
-            ByteArray rec = msg.getRecord(i);
-            int off = rec.getOffset();
-            int len = BuildRequestRecord.PEER_SIZE;
-            long beforeEq = System.currentTimeMillis();
-            boolean eq = DataHelper.eq(ourHash.getData(), 0, rec.getData(), off, len);
-            totalEq += System.currentTimeMillis()-beforeEq;
-            if (eq) {
-                long beforeIsDup = System.currentTimeMillis();
-                boolean isDup = _filter.add(rec.getData(), off + len, 32);
-                totalDup += System.currentTimeMillis()-beforeIsDup;
-                if (isDup) {
-                    if (log.shouldLog(Log.WARN))
-                        log.debug(msg.getUniqueId() + ": A record matching our hash was found, but it seems to be a duplicate");
-                    ctx.statManager().addRateData("tunnel.buildRequestDup", 1, 0);
-                    return null;
-                }
-                BuildRequestRecord req = new BuildRequestRecord();
-                beforeActualDecrypt = System.currentTimeMillis();
-                boolean ok = req.decryptRecord(ctx, privKey, ourHash, rec);
-                afterActualDecrypt = System.currentTimeMillis();
-                if (ok) {
-                    if (log.shouldLog(Log.DEBUG))
-                        log.debug(msg.getUniqueId() + ": A record matching our hash was found and decrypted");
-                    rv = req;
-                } else {
-                    if (log.shouldLog(Log.DEBUG))
-                        log.debug(msg.getUniqueId() + ": A record matching our hash was found, but could not be decrypted");
-                    return null; // our hop is invalid?  b0rkage
-                }
-                ourHop = i;
-            }
-        }
-        if (rv == null) {
+        int ourHop = findRecord(msg, ourHash);
+        if (ourHop < 0) {
             // none of the records matched, b0rk
+            Log log = ctx.logManager().getLog(getClass());
             if (log.shouldLog(Log.DEBUG))
                 log.debug(msg.getUniqueId() + ": No records matching our hash was found");
             return null;
         }
+        if (markSeen(ctx, msg, ourHop))
+            return null;
+        return decrypt(ctx, msg, ourHash, privKey, ourHop);
+    }
+
+    /**
+     * Find the record targetting us by comparing the hash prefix.
+     * Cheap, no decryption.
+     *
+     * @return the record index, or -1 if none
+     * @since 0.9.10
+     */
+    public int findRecord(TunnelBuildMessage msg, Hash ourHash) {
+        byte[] h = ourHash.getData();
+        for (int i = 0; i < msg.getRecordCount(); i++) {
+            ByteArray rec = msg.getRecord(i);
+            if (rec != null && DataHelper.eq(h, 0, rec.getData(), rec.getOffset(), BuildRequestRecord.PEER_SIZE))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Check the start of the encrypted record against the replay filter.
+     * Does not add it, see markSeen().
+     * Cheap, no decryption.
+     *
+     * @param ourHop from findRecord()
+     * @return true if we have seen it recently
+     * @since 0.9.10
+     */
+    public boolean isDuplicate(I2PAppContext ctx, TunnelBuildMessage msg, int ourHop) {
+        ByteArray rec = msg.getRecord(ourHop);
+        boolean isDup = _filter.isKnown(rec.getData(), rec.getOffset() + BuildRequestRecord.PEER_SIZE, 32);
+        if (isDup)
+            duplicate(ctx, msg);
+        return isDup;
+    }
+
+    /**
+     * Add the start of the encrypted record to the replay filter,
+     * just before decrypting it. This is the authoritative check,
+     * isDuplicate() only rejects the replays seen before queueing.
+     * Cheap, no decryption.
+     *
+     * @param ourHop from findRecord()
+     * @return true if it was already there, i.e. we have seen it recently
+     * @since 0.9.10
+     */
+    public boolean markSeen(I2PAppContext ctx, TunnelBuildMessage msg, int ourHop) {
+        ByteArray rec = msg.getRecord(ourHop);
+        boolean isDup = _filter.add(rec.getData(), rec.getOffset() + BuildRequestRecord.PEER_SIZE, 32);
+        if (isDup)
+            duplicate(ctx, msg);
+        return isDup;
+    }
+
+    /** @since 0.9.10 */
+    private static void duplicate(I2PAppContext ctx, TunnelBuildMessage msg) {
+        Log log = ctx.logManager().getLog(BuildMessageProcessor.class);
+        if (log.shouldLog(Log.WARN))
+            log.warn(msg.getUniqueId() + ": A record matching our hash was found, but it seems to be a duplicate");
+        ctx.statManager().addRateData("tunnel.buildRequestDup", 1, 0);
+    }
+
+    /**
+     * Decrypt the record targetting us, as found by findRecord() and already checked
+     * with isDuplicate() and markSeen(), encrypting all of the other records with the included
+     * reply key and IV, and remove our record from the message.
+     * This is the expensive part, the ElGamal decryption.
+     *
+     * @param ourHop from findRecord()
+     * @return the current hop's decrypted record, or null on failure
+     * @since 0.9.10
+     */
+    public BuildRequestRecord decrypt(I2PAppContext ctx, TunnelBuildMessage msg, Hash ourHash, PrivateKey privKey, int ourHop) {
+        Log log = ctx.logManager().getLog(getClass());
+        long beforeDecrypt = System.currentTimeMillis();
+        BuildRequestRecord rv = new BuildRequestRecord();
+        boolean ok = rv.decryptRecord(ctx, privKey, ourHash, msg.getRecord(ourHop));
+        long afterDecrypt = System.currentTimeMillis();
+        if (!ok) {
+            if (log.shouldLog(Log.DEBUG))
+                log.debug(msg.getUniqueId() + ": A record matching our hash was found, but could not be decrypted");
+            return null; // our hop is invalid?  b0rkage
+        }
+        if (log.shouldLog(Log.DEBUG))
+            log.debug(msg.getUniqueId() + ": A record matching our hash was found and decrypted");
         
-        long beforeEncrypt = System.currentTimeMillis();
         SessionKey replyKey = rv.readReplyKey();
         byte iv[] = rv.readReplyIV();
         int ivOff = 0;
@@ -98,14 +146,11 @@ public class BuildMessageProcessor {
         }
         long afterEncrypt = System.currentTimeMillis();
         msg.setRecord(ourHop, null);
-        if (afterEncrypt-beforeLoop > 1000) {
+        if (afterEncrypt-beforeDecrypt > 1000) {
             if (log.shouldLog(Log.WARN))
-                log.warn("Slow decryption, total=" + (afterEncrypt-beforeLoop) 
-                         + " looping=" + (beforeEncrypt-beforeLoop)
-                         + " decrypt=" + (afterActualDecrypt-beforeActualDecrypt)
-                         + " eq=" + totalEq
-                         + " dup=" + totalDup
-                         + " encrypt=" + (afterEncrypt-beforeEncrypt));
+                log.warn("Slow decryption, total=" + (afterEncrypt-beforeDecrypt) 
+                         + " decrypt=" + (afterDecrypt-beforeDecrypt)
+                         + " encrypt=" + (afterEncrypt-afterDecrypt));
         }
         return rv;
     }
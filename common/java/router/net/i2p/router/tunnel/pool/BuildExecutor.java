@@ -28,6 +28,12 @@ import net.i2p.util.Log;
  * Note that 10 minute tunnel expiration is hardcoded in here.
  *
  * As of 0.8.11, inbound request handling is done in a separate thread.
+ *
+ * As of 0.9.10, each pool has an AIMD build window (see BuildWindow),
+ * limiting its concurrent builds based on its timeouts and reply times,
+ * and the global limit is the sum of the windows, still limited by bandwidth and
+ * build time, instead of a fixed maximum.
+ * For the first few minutes after startup, we build more per loop and loop faster.
  */
 class BuildExecutor implements Runnable {
     private final ArrayList<Long> _recentBuildIds = new ArrayList<Long>(100);
@@ -42,7 +48,15 @@ class BuildExecutor implements Runnable {
     private final ConcurrentHashMap<Long, PooledTunnelCreatorConfig> _recentlyBuildingMap;
     private volatile boolean _isRunning;
     private boolean _repoll;
+    /** the limit when the pools' windows are small, see allowed() */
     private static final int MAX_CONCURRENT_BUILDS = 10;
+    /** the limit however large the pools' windows are */
+    private static final int HARD_MAX_CONCURRENT_BUILDS = 30;
+    /** per loop, see run() */
+    private static final int MAX_BUILDS_PER_LOOP = 2;
+    private static final int MAX_BUILDS_PER_LOOP_BURST = 6;
+    /** build faster for this long after startup */
+    private static final long BURST_TIME = 10*60*1000;
     /** accept replies up to a minute after we gave up on them */
     private static final long GRACE_PERIOD = 60*1000;
 
@@ -67,6 +81,7 @@ class BuildExecutor implements Runnable {
         //_context.statManager().createRateStat("tunnel.pendingRemaining", "How many inbound requests are pending after a pass (period is how long the pass takes)?", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.buildFailFirstHop", "How often we fail to build a OB tunnel because we can't contact the first hop", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.buildReplySlow", "Build reply late, but not too late", "Tunnels", new long[] { 10*60*1000 });
+        _context.statManager().createRateStat("tunnel.buildWindowFull", "Pool builds skipped per loop, build window full", "Tunnels", new long[] { 10*60*1000 });
 
         // Get stat manager, get recognized bandwidth tiers
         StatManager statMgr = _context.statManager();
@@ -104,9 +119,19 @@ class BuildExecutor implements Runnable {
         restart();
     }
 
-    private int allowed() {
+    /**
+     *  @param pools the alive pools' windows are summed for the max
+     */
+    private int allowed(List<TunnelPool> pools) {
         if (_context.commSystem().getReachabilityStatus() == CommSystemFacade.STATUS_DISCONNECTED)
             return 0;
+        int max = 0;
+        for (int i = 0; i < pools.size(); i++) {
+            TunnelPool pool = pools.get(i);
+            if (pool.isAlive())
+                max += pool.getBuildWindow();
+        }
+        max = Math.min(HARD_MAX_CONCURRENT_BUILDS, Math.max(MAX_CONCURRENT_BUILDS, max));
         int maxKBps = _context.bandwidthLimiter().getOutboundKBytesPerSecond();
         int allowed = maxKBps / 6; // Max. 1 concurrent build per 6 KB/s outbound
         RateStat rs = _context.statManager().getRate("tunnel.buildRequestTime");
@@ -129,7 +154,7 @@ class BuildExecutor implements Runnable {
             }
         }
         if (allowed < 2) allowed = 2; // Never choke below 2 builds (but congestion may)
-        else if (allowed > MAX_CONCURRENT_BUILDS) allowed = MAX_CONCURRENT_BUILDS; // Never go beyond 10, that is uncharted territory (old limit was 5)
+        else if (allowed > max) allowed = max; // Never go beyond what the pools' windows allow
         allowed = _context.getProperty("router.tunnelConcurrentBuilds", allowed);
 
         // expire any REALLY old requests
@@ -189,8 +214,10 @@ class BuildExecutor implements Runnable {
                 }
 
                 TunnelPool pool = cfg.getTunnelPool();
-                if (pool != null)
+                if (pool != null) {
+                    pool.buildTimedOut();
                     pool.buildComplete(cfg);
+                }
                 if (cfg.getDestination() == null)
                     _context.statManager().addRateData("tunnel.buildExploratoryExpire", 1, 0);
                 else
@@ -302,7 +329,8 @@ class BuildExecutor implements Runnable {
                 }
 
                 // allowed() also expires timed out requests (for new style requests)
-                int allowed = allowed();
+                int allowed = allowed(pools);
+                boolean burst = _context.router().getUptime() < BURST_TIME;
                 
                 //if (_log.shouldLog(Log.DEBUG))
                 //    _log.debug("Allowed: " + allowed + " wanted: " + wanted);
@@ -349,13 +377,23 @@ class BuildExecutor implements Runnable {
 
                         // force the loops to be short, since 3 consecutive tunnel build requests can take
                         // a long, long time
-                        if (allowed > 2)
-                            allowed = 2;
+                        // After startup, the pools are empty and the peer selection is cheap,
+                        // so allow more, and loop faster below.
+                        int perLoop = burst ? MAX_BUILDS_PER_LOOP_BURST : MAX_BUILDS_PER_LOOP;
+                        if (allowed > perLoop)
+                            allowed = perLoop;
                         
+                        int windowFull = 0;
                         for (int i = 0; (i < allowed) && (!wanted.isEmpty()); i++) {
                             TunnelPool pool = wanted.remove(0);
                             //if (pool.countWantedTunnels() <= 0)
                             //    continue;
+                            if (pool.getInProgressCount() >= pool.getBuildWindow()) {
+                                // give the slot to another pool
+                                windowFull++;
+                                i--;
+                                continue;
+                            }
                             long bef = System.currentTimeMillis();
                             PooledTunnelCreatorConfig cfg = pool.configureNewTunnel();
                             if (cfg != null) {
@@ -377,6 +415,8 @@ class BuildExecutor implements Runnable {
                                 i--;
                             }
                         }
+                        if (windowFull > 0)
+                            _context.statManager().addRateData("tunnel.buildWindowFull", windowFull);
                     }
                         // wait whether we built tunnels or not
                         try {
@@ -385,7 +425,8 @@ class BuildExecutor implements Runnable {
                                     //if (_log.shouldLog(Log.DEBUG))
                                     //    _log.debug("Nothin' doin (allowed=" + allowed + ", wanted=" + wanted.size() + ", pending=" + pendingRemaining + "), wait for a while");
                                     //if (allowed <= 0)
-                                        _currentlyBuilding.wait((LOOP_TIME/2) + _context.random().nextInt(LOOP_TIME));
+                                        _currentlyBuilding.wait(burst ? (LOOP_TIME/4) + _context.random().nextInt(LOOP_TIME/2)
+                                                                      : (LOOP_TIME/2) + _context.random().nextInt(LOOP_TIME));
                                     //else // wanted <= 0
                                     //    _currentlyBuilding.wait(_context.random().nextInt(30*1000));
                                 }
@@ -3,6 +3,7 @@ package net.i2p.router.tunnel.pool;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Base64;
@@ -34,7 +35,9 @@ import net.i2p.router.util.CDQEntry;
 import net.i2p.router.util.CoDelBlockingQueue;
 import net.i2p.stat.Rate;
 import net.i2p.stat.RateStat;
+import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
 
 /**
  * Handle the received tunnel build message requests and replies,
@@ -46,6 +49,12 @@ import net.i2p.util.Log;
  * As of 0.8.11 the request queue is handled in a separate thread,
  * it used to be called from the BuildExecutor thread loop.
  *
+ * As of 0.9.10 the cheap checks (our hash in a record, the request throttle,
+ * and the replay filter) are done on reception, before queueing,
+ * so only requests that will actually be decrypted take up queue space.
+ * If the queue backs up, extra handler threads are started, up to the number of cores,
+ * and they exit again when idle.
+ *
  * Note that 10 minute tunnel expiration is hardcoded in here.
  */
 class BuildHandler implements Runnable {
@@ -61,12 +70,23 @@ class BuildHandler implements Runnable {
     private final ParticipatingThrottler _throttler;
     private final BuildReplyHandler _buildReplyHandler;
     private final AtomicInteger _currentLookups = new AtomicInteger();
+    /** all running handler threads, including extra threads */
+    private final AtomicInteger _threadCount = new AtomicInteger();
+    private final AtomicInteger _extraThreads = new AtomicInteger();
+    private final int _maxThreads;
     private volatile boolean _isRunning;
 
     /** TODO these may be too high, review and adjust */
     private static final int MIN_QUEUE = 18;
     private static final int MAX_QUEUE = 192;
 
+    /** hard limit on handler threads, whatever the number of cores */
+    private static final int MAX_HANDLER_THREADS = 8;
+    /** start another thread when there are more than this many queued requests per thread */
+    private static final int BACKLOG_PER_THREAD = 3;
+    /** extra threads exit after this long without a request */
+    private static final long EXTRA_THREAD_IDLE_TIME = 60*1000;
+
     private static final int NEXT_HOP_LOOKUP_TIMEOUT = 15*1000;
     private static final int PRIORITY = OutNetMessage.PRIORITY_BUILD_REPLY;
 
@@ -94,6 +114,8 @@ class BuildHandler implements Runnable {
         int sz = Math.min(MAX_QUEUE, Math.max(MIN_QUEUE, TunnelDispatcher.getShareBandwidth(ctx) * MIN_QUEUE / 48));
         //_inboundBuildMessages = new CoDelBlockingQueue(ctx, "BuildHandler", sz);
         _inboundBuildMessages = new LinkedBlockingQueue<BuildMessageState>(sz);
+        _maxThreads = ctx.getProperty("router.buildHandlerMaxThreads",
+                                      Math.min(MAX_HANDLER_THREADS, SystemVersion.getCores()));
     
         _context.statManager().createRateStat("tunnel.reject.10", "How often we reject a tunnel probabalistically", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.reject.20", "How often we reject a tunnel because of transient overload", "Tunnels", new long[] { 60*1000, 10*60*1000 });
@@ -101,6 +123,10 @@ class BuildHandler implements Runnable {
         _context.statManager().createRateStat("tunnel.reject.50", "How often we reject a tunnel because of a critical issue (shutdown, etc)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
 
         _context.statManager().createRequiredRateStat("tunnel.decryptRequestTime", "Time to decrypt a build request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRequiredRateStat("tunnel.buildQueueDepth", "Pending request count when queued", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRequiredRateStat("tunnel.buildQueueTime", "Time a build request waited for decryption (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRateStat("tunnel.dropNoRecord", "Drop request without a record for us", "Tunnels", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("tunnel.buildHandlerThreads", "Handler threads when an extra one is started", "Tunnels", new long[] { 60*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.rejectTimeout", "Reject tunnel count (unknown next hop)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.rejectTimeout2", "Reject tunnel count (can't contact next hop)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRequiredRateStat("tunnel.rejectDupID", "Part. tunnel dup ID", "Tunnels", new long[] { 24*60*60*1000 });
@@ -161,7 +187,8 @@ class BuildHandler implements Runnable {
     public synchronized void shutdown(int numThreads) {
         _isRunning = false;
         _inboundBuildMessages.clear();
-        BuildMessageState poison = new BuildMessageState(_context, null, null, null);
+        BuildMessageState poison = new BuildMessageState(_context, null, null, null, -1);
+        numThreads += _extraThreads.get();
         for (int i = 0; i < numThreads; i++) {
             _inboundBuildMessages.offer(poison);
         }
@@ -173,37 +200,96 @@ class BuildHandler implements Runnable {
      */
     public void run() {
         _isRunning = true;
+        _threadCount.incrementAndGet();
         while (_isRunning && !_manager.isShutdown()) {
             try {
-                handleInboundRequest();
+                handleInboundRequest(false);
             } catch (Exception e) {
                 _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
             }
         }
+        _threadCount.decrementAndGet();
         if (_log.shouldLog(Log.WARN))
             _log.warn("Done handling");
         _isRunning = false;
     }
 
+    /**
+     * An extra handler thread, started by checkThreads() when the queue backs up.
+     * Exits when idle for a while.
+     * @since 0.9.10
+     */
+    private class ExtraHandler implements Runnable {
+        public void run() {
+            try {
+                while (_isRunning && !_manager.isShutdown()) {
+                    try {
+                        if (!handleInboundRequest(true))
+                            break;
+                    } catch (Exception e) {
+                        _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
+                    }
+                }
+            } finally {
+                _threadCount.decrementAndGet();
+                _extraThreads.decrementAndGet();
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Extra handler thread done, " + _threadCount.get() + " remaining");
+        }
+    }
+
+    /**
+     * Start an extra handler thread if the queue is backing up
+     * and we aren't at the limit.
+     * @param queued the current queue size
+     * @since 0.9.10
+     */
+    private void checkThreads(int queued) {
+        if (!_isRunning)
+            return;
+        int threads = _threadCount.get();
+        if (threads <= 0 || threads >= _maxThreads || queued <= threads * BACKLOG_PER_THREAD)
+            return;
+        if (!_threadCount.compareAndSet(threads, threads + 1))
+            return;  // someone else got it
+        int extra = _extraThreads.incrementAndGet();
+        _context.statManager().addRateData("tunnel.buildHandlerThreads", threads + 1);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Starting extra handler thread, queued: " + queued + " threads: " + (threads + 1) + '/' + _maxThreads);
+        I2PThread t = new I2PThread(new ExtraHandler(), "BuildHandler extra " + extra, true);
+        t.start();
+    }
+
     /**
      * Blocking call to handle a single inbound request
+     *
+     * @param isExtra if true, wait for a limited time only
+     * @return false if an extra thread timed out waiting and should exit
      */
-    private void handleInboundRequest() {
+    private boolean handleInboundRequest(boolean isExtra) {
         BuildMessageState state = null;
 
             try {
-                state = _inboundBuildMessages.take();
+                if (isExtra) {
+                    state = _inboundBuildMessages.poll(EXTRA_THREAD_IDLE_TIME, TimeUnit.MILLISECONDS);
+                    if (state == null)
+                        return false;
+                } else {
+                    state = _inboundBuildMessages.take();
+                }
             } catch (InterruptedException ie) {
-                return;
+                return !isExtra;
             }
 
             // check for poison
             if (state.msg == null) {
                 _isRunning = false;
-                return;
+                return false;
             }
 
             long now = _context.clock().now();
+            _context.statManager().addRateData("tunnel.buildQueueTime", now - state.recvTime);
             long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
             if (state.recvTime <= dropBefore) {
                 if (_log.shouldLog(Log.WARN))
@@ -211,9 +297,10 @@ class BuildHandler implements Runnable {
                               + ", since we received it a long time ago: " + (now - state.recvTime));
                 _context.statManager().addRateData("tunnel.dropLoadDelay", now - state.recvTime);
                 _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Too slow"));
-                return;
+                return true;
             }       
             handleRequest(state);
+            return true;
 
         //int remaining = _inboundBuildMessages.size();
         //if (remaining > 0)
@@ -327,6 +414,7 @@ class BuildHandler implements Runnable {
                     return;
                 }
                 cfg.getTunnelPool().addTunnel(cfg); // self.self.self.foo!
+                cfg.getTunnelPool().buildReplied(true, rtt);
                 // call buildComplete() after addTunnel() so we don't try another build.
                 _exec.buildComplete(cfg, cfg.getTunnelPool());
                 _exec.buildSuccessful(cfg);
@@ -340,6 +428,7 @@ class BuildHandler implements Runnable {
                     _context.statManager().addRateData("tunnel.buildClientSuccess", rtt);
             } else {
                 // someone is no fun
+                cfg.getTunnelPool().buildReplied(false, rtt);
                 _exec.buildComplete(cfg, cfg.getTunnelPool());
                 if (cfg.getDestination() == null)
                     _context.statManager().addRateData("tunnel.buildExploratoryReject", rtt);
@@ -378,8 +467,13 @@ class BuildHandler implements Runnable {
         // ok, this is not our own tunnel, so we need to do some heavy lifting
         // this not only decrypts the current hop's record, but encrypts the other records
         // with the enclosed reply key
+        // The record was found and checked against the replay filter before queueing,
+        // now add it, atomically, so that of two copies queued at the same time only one gets through
+        if (_processor.markSeen(_context, state.msg, state.ourHop))
+            return -1;
         long beforeDecrypt = System.currentTimeMillis();
-        BuildRequestRecord req = _processor.decrypt(_context, state.msg, _context.routerHash(), _context.keyManager().getPrivateKey());
+        BuildRequestRecord req = _processor.decrypt(_context, state.msg, _context.routerHash(),
+                                                    _context.keyManager().getPrivateKey(), state.ourHop);
         long decryptTime = System.currentTimeMillis() - beforeDecrypt;
         _context.statManager().addRateData("tunnel.decryptRequestTime", decryptTime);
         if (decryptTime > 500 && _log.shouldLog(Log.WARN))
@@ -863,6 +957,17 @@ class BuildHandler implements Runnable {
                             accept = false;
                         }
                     }
+                    int ourHop = -1;
+                    if (accept) {
+                        // cheapest check first, is there a record for us at all
+                        ourHop = _processor.findRecord((TunnelBuildMessage) receivedMessage, _context.routerHash());
+                        if (ourHop < 0) {
+                            if (_log.shouldLog(Log.WARN))
+                                _log.warn("Dropping tunnel request " + reqId + " without a record for us, previous hop: " + from);
+                            _context.statManager().addRateData("tunnel.dropNoRecord", 1);
+                            accept = false;
+                        }
+                    }
                     if (accept) {
                         // early request throttle check, before queueing and decryption
                         Hash fh = fromHash;
@@ -875,6 +980,12 @@ class BuildHandler implements Runnable {
                             accept = false;
                         }
                     }
+                    if (accept) {
+                        // replay check, before queueing and decryption,
+                        // but only marked as seen by the handler, so a dropped request may be retried
+                        if (_processor.isDuplicate(_context, (TunnelBuildMessage) receivedMessage, ourHop))
+                            accept = false;
+                    }
                     if (accept) {
                         // This is expensive and rarely seen, use CoDel instead
                         //int queueTime = estimateQueueTime(sz);
@@ -886,8 +997,10 @@ class BuildHandler implements Runnable {
                         //    _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Queue time"));
                         //    _context.statManager().addRateData("tunnel.dropLoadProactive", queueTime, sz);
                         //} else {
-                            accept = _inboundBuildMessages.offer(new BuildMessageState(_context, receivedMessage, from, fromHash));
+                            accept = _inboundBuildMessages.offer(new BuildMessageState(_context, receivedMessage, from, fromHash, ourHop));
                             if (accept) {
+                                _context.statManager().addRateData("tunnel.buildQueueDepth", sz + 1);
+                                checkThreads(sz + 1);
                                 // wake up the Executor to call handleInboundRequests()
                                 _exec.repoll();
                             } else {
@@ -952,12 +1065,18 @@ class BuildHandler implements Runnable {
         final RouterIdentity from;
         final Hash fromHash;
         final long recvTime;
+        /** index of our record, as found before queueing */
+        final int ourHop;
 
-        public BuildMessageState(RouterContext ctx, I2NPMessage m, RouterIdentity f, Hash h) {
+        /**
+         *  @param hop index of our record
+         */
+        public BuildMessageState(RouterContext ctx, I2NPMessage m, RouterIdentity f, Hash h, int hop) {
             _ctx = ctx;
             msg = (TunnelBuildMessage)m;
             from = f;
             fromHash = h;
+            ourHop = hop;
             recvTime = ctx.clock().now();
         }
 
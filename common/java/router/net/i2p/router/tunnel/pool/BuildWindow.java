@@ -0,0 +1,146 @@
+package net.i2p.router.tunnel.pool;
+
+/**
+ *  AIMD limit on the concurrent builds for a single pool,
+ *  like a TCP congestion window, where a build reply is an ack
+ *  and a build timeout is a loss.
+ *
+ *  Starts in slow start (the window grows by one for every successful build,
+ *  i.e. doubles every round trip), so a pool that was just started,
+ *  or a router that was just restarted, fills up quickly.
+ *  After the first timeout, the window grows by 1/window per reply,
+ *  and is halved on a timeout, at most once per request timeout period,
+ *  as a burst of timeouts is usually one event.
+ *
+ *  It does not grow if the replies are getting slow compared to the fastest we've seen,
+ *  as the peers or our own queues are filling up, or if most builds are failing,
+ *  as more of them would mostly load the network for nothing.
+ *  A rejection is still a timely reply, so it counts as an ack in congestion avoidance,
+ *  but only successes grow the window in slow start.
+ *
+ *  Thread safe.
+ *
+ *  @since 0.9.10
+ */
+class BuildWindow {
+    private double _window;
+    private double _slowStartThreshold;
+    private long _lastDecrease;
+    /** ms, moving averages */
+    private long _minRtt;
+    private double _avgRtt;
+    /** 0-1, moving average */
+    private double _successRate;
+    private int _successes;
+    private int _rejects;
+    private int _timeouts;
+
+    /** same as the old global minimum in BuildExecutor */
+    static final int MIN_WINDOW = 2;
+    /** per-pool, not global, the total is limited by BuildExecutor */
+    static final int MAX_WINDOW = 12;
+    private static final int INITIAL_WINDOW = 4;
+    /** don't grow if the average reply time is more than this times the minimum */
+    private static final int MAX_RTT_FACTOR = 3;
+    /** don't grow if the success rate is below this */
+    private static final double MIN_SUCCESS_RATE = 0.25d;
+    /** weight of a new sample in the moving averages */
+    private static final double ALPHA = 0.125;
+    /** the min RTT is allowed to drift up this much per sample, so it's not stuck forever */
+    private static final int MIN_RTT_DRIFT = 10;
+
+    public BuildWindow() {
+        reset();
+    }
+
+    /**
+     *  Back to slow start, e.g. when the pool is restarted.
+     *  The success and timeout counts are kept.
+     */
+    public synchronized void reset() {
+        _window = INITIAL_WINDOW;
+        _slowStartThreshold = MAX_WINDOW;
+        _lastDecrease = 0;
+        _minRtt = 0;
+        _avgRtt = 0;
+        _successRate = 1.0d;
+    }
+
+    /** @return the current limit, at least MIN_WINDOW */
+    public synchronized int getWindow() {
+        return (int) _window;
+    }
+
+    /** @param rtt ms from request to reply */
+    public synchronized void success(long rtt) {
+        _successes++;
+        updateRtt(rtt);
+        _successRate += ALPHA * (1.0d - _successRate);
+        if (_window < _slowStartThreshold) {
+            if (_successRate >= MIN_SUCCESS_RATE)
+                _window = Math.min(_slowStartThreshold, _window + 1);
+        } else {
+            increase();
+        }
+    }
+
+    /** @param rtt ms from request to reply */
+    public synchronized void rejected(long rtt) {
+        _rejects++;
+        updateRtt(rtt);
+        _successRate -= ALPHA * _successRate;
+        if (_window >= _slowStartThreshold)
+            increase();
+    }
+
+    /** additive increase, unless the replies are slowing down or mostly failing */
+    private void increase() {
+        if (_avgRtt <= _minRtt * MAX_RTT_FACTOR && _successRate >= MIN_SUCCESS_RATE)
+            _window = Math.min(MAX_WINDOW, _window + (1.0d / _window));
+    }
+
+    /**
+     *  @param now ms
+     *  @param period don't decrease more than once in this period (ms)
+     */
+    public synchronized void timedOut(long now, long period) {
+        _timeouts++;
+        _successRate -= ALPHA * _successRate;
+        if (now - _lastDecrease < period)
+            return;
+        _lastDecrease = now;
+        _window = Math.max(MIN_WINDOW, _window / 2);
+        _slowStartThreshold = Math.max(MIN_WINDOW, _window);
+    }
+
+    public synchronized boolean isSlowStart() {
+        return _window < _slowStartThreshold;
+    }
+
+    /** @return 0-1, moving average, successes vs. rejects and timeouts */
+    public synchronized double getSuccessRate() {
+        return _successRate;
+    }
+
+    private void updateRtt(long rtt) {
+        if (rtt <= 0)
+            return;
+        if (_minRtt <= 0 || rtt < _minRtt)
+            _minRtt = rtt;
+        else
+            _minRtt += MIN_RTT_DRIFT;
+        if (_avgRtt <= 0)
+            _avgRtt = rtt;
+        else
+            _avgRtt += ALPHA * (rtt - _avgRtt);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "window " + ((int) (_window * 10) / 10d) +
+               (isSlowStart() ? " (slow start)" : "") +
+               " success rate " + ((int) (_successRate * 100)) + '%' +
+               " avg RTT " + ((long) _avgRtt) + " min RTT " + _minRtt +
+               " success/reject/timeout " + _successes + '/' + _rejects + '/' + _timeouts;
+    }
+}
@@ -13,6 +13,7 @@ import java.util.StringTokenizer;
 
 import net.i2p.I2PAppContext;
 import net.i2p.crypto.SHA256Generator;
+import net.i2p.data.CompactRouterInfo;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Hash;
 import net.i2p.data.RouterInfo;
@@ -218,8 +219,15 @@ public abstract class TunnelPeerSelector {
             char excl[] = getExcludeCaps(ctx);
             if (excl != null) {
                 FloodfillNetworkDatabaseFacade fac = (FloodfillNetworkDatabaseFacade)ctx.netDb();
-                List<RouterInfo> known = fac.getKnownRouterData();
-                if (known != null) {
+                // compact netDb, check the headers so we don't decode every RouterInfo
+                Collection<CompactRouterInfo> compact = fac.getCompactRouterInfos();
+                List<RouterInfo> known = compact == null ? fac.getKnownRouterData() : null;
+                if (compact != null) {
+                    for (CompactRouterInfo peer : compact) {
+                        if (shouldExclude(peer.getCapabilities(), peer.getVersion(), excl))
+                            peers.add(peer.getHash());
+                    }
+                } else if (known != null) {
                     for (int i = 0; i < known.size(); i++) {
                         RouterInfo peer = known.get(i);
                         boolean shouldExclude = shouldExclude(ctx, log, peer, excl);
@@ -347,7 +355,14 @@ public abstract class TunnelPeerSelector {
     private static final String MIN_VERSION = "0.7.9";
 
     private static boolean shouldExclude(RouterContext ctx, Log log, RouterInfo peer, char excl[]) {
-        String cap = peer.getCapabilities();
+        return shouldExclude(peer.getCapabilities(), peer.getOption("router.version"), excl);
+    }
+
+    /**
+     *  @param v router.version, may be null
+     *  @since 0.9.10 split out of shouldExclude(RouterInfo) for CompactRouterInfo
+     */
+    private static boolean shouldExclude(String cap, String v, char excl[]) {
         for (int j = 0; j < excl.length; j++) {
             if (cap.indexOf(excl[j]) >= 0) {
                 return true;
@@ -366,7 +381,6 @@ public abstract class TunnelPeerSelector {
         // so don't exclude it based on published capacity
 
         // minimum version check
-        String v = peer.getOption("router.version");
         if (v == null || VersionComparator.comp(v, MIN_VERSION) < 0)
             return true;
 
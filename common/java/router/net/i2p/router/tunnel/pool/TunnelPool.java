@@ -44,6 +44,9 @@ public class TunnelPool {
     private long _lastRateUpdate;
     private long _lastLifetimeProcessed;
     private final String _rateName;
+    private final String _buildRateName;
+    private final String _buildSuccessName;
+    private final BuildWindow _buildWindow = new BuildWindow();
 
     private static final int TUNNEL_LIFETIME = 10*60*1000;
     /** if less than one success in this many, reduce quantity (exploratory only) */
@@ -65,6 +68,12 @@ public class TunnelPool {
         _rateName = "tunnel.Bps." +
                     (_settings.isExploratory() ? "exploratory" : _settings.getDestinationNickname()) +
                     (_settings.isInbound() ? ".in" : ".out");
+        _buildRateName = "tunnel.buildReply." +
+                    (_settings.isExploratory() ? "exploratory" : _settings.getDestinationNickname()) +
+                    (_settings.isInbound() ? ".in" : ".out");
+        _buildSuccessName = "tunnel.buildSuccess." +
+                    (_settings.isExploratory() ? "exploratory" : _settings.getDestinationNickname()) +
+                    (_settings.isInbound() ? ".in" : ".out");
         refreshSettings();
         ctx.statManager().createRateStat("tunnel.matchLease", "How often does our OBEP match their IBGW?", "Tunnels", 
                                          new long[] {60*60*1000});
@@ -84,6 +93,7 @@ public class TunnelPool {
         if (_log.shouldLog(Log.INFO))
             _log.info(toString() + ": Startup() called, was already alive? " + _alive, new Exception());
         _alive = true;
+        _buildWindow.reset();
         _started = System.currentTimeMillis();
         _lastRateUpdate = _started;
         _lastLifetimeProcessed = 0;
@@ -102,6 +112,12 @@ public class TunnelPool {
         _context.statManager().createRateStat(_rateName,
                                "Tunnel Bandwidth (Bytes/sec)", "Tunnels", 
                                new long[] { 5*60*1000l });
+        _context.statManager().createRateStat(_buildRateName,
+                               "Build reply time, success or reject (ms)", "Tunnels", 
+                               new long[] { 10*60*1000l, 60*60*1000l });
+        _context.statManager().createRateStat(_buildSuccessName,
+                               "Build success rate, moving average (percent)", "Tunnels", 
+                               new long[] { 10*60*1000l, 60*60*1000l });
     }
     
     synchronized void shutdown() {
@@ -111,6 +127,8 @@ public class TunnelPool {
         _lastSelectionPeriod = 0;
         _lastSelected = null;
         _context.statManager().removeRateStat(_rateName);
+        _context.statManager().removeRateStat(_buildRateName);
+        _context.statManager().removeRateStat(_buildSuccessName);
         synchronized (_inProgress) {
             _inProgress.clear();
         }
@@ -1171,7 +1189,54 @@ public class TunnelPool {
         cfg.setTunnelPool(this);
         //_manager.buildComplete(cfg);
     }
-    
+
+    /**
+     *  @return number of builds in progress
+     *  @since 0.9.10
+     */
+    int getInProgressCount() {
+        synchronized (_inProgress) { return _inProgress.size(); }
+    }
+
+    /**
+     *  Max concurrent builds for this pool, see BuildWindow
+     *  @since 0.9.10
+     */
+    int getBuildWindow() {
+        return _buildWindow.getWindow();
+    }
+
+    /**
+     *  All hops agreed, or a hop rejected.
+     *  Updates the build window and the per-pool stats.
+     *
+     *  @param rtt ms from request to reply
+     *  @since 0.9.10
+     */
+    void buildReplied(boolean success, long rtt) {
+        if (success)
+            _buildWindow.success(rtt);
+        else
+            _buildWindow.rejected(rtt);
+        _context.statManager().addRateData(_buildRateName, rtt);
+        _context.statManager().addRateData(_buildSuccessName, (long) (100 * _buildWindow.getSuccessRate()));
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug(toString() + " build " + (success ? "success" : "reject") + ", " + _buildWindow);
+    }
+
+    /**
+     *  No reply in time.
+     *  Updates the build window and the per-pool success stat.
+     *
+     *  @since 0.9.10
+     */
+    void buildTimedOut() {
+        _buildWindow.timedOut(_context.clock().now(), BuildRequestor.REQUEST_TIMEOUT);
+        _context.statManager().addRateData(_buildSuccessName, (long) (100 * _buildWindow.getSuccessRate()));
+        if (_log.shouldLog(Log.INFO))
+            _log.info(toString() + " build timeout, " + _buildWindow);
+    }
+
     @Override
     public String toString() {
         if (_settings.isExploratory()) {
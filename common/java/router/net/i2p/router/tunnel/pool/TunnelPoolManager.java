@@ -43,6 +43,8 @@ public class TunnelPoolManager implements TunnelManagerFacade {
     private final TunnelPeerSelector _clientPeerSelector;
     private volatile boolean _isShutdown;
     private final int _numHandlerThreads;
+    /** for the time-to-first-tunnel stat */
+    private volatile boolean _firstTunnelBuilt;
 
     private static final int MIN_KBPS_TWO_HANDLERS = 512;
     private static final int MIN_KBPS_THREE_HANDLERS = 1024;
@@ -96,6 +98,8 @@ public class TunnelPoolManager implements TunnelManagerFacade {
                                          RATES);
         ctx.statManager().createRateStat("tunnel.testAborted", "Tunnel test could not occur, since there weren't any tunnels to test with", "Tunnels", 
                                          RATES);
+        ctx.statManager().createRequiredRateStat("tunnel.firstTunnelTime", "Router uptime when the first multi-hop tunnel was built (ms)", "Tunnels",
+                                         new long[] { 60*60*1000l });
     }
     
     /**
@@ -465,6 +469,13 @@ public class TunnelPoolManager implements TunnelManagerFacade {
     
     /** queue a recurring test job if appropriate */
     void buildComplete(PooledTunnelCreatorConfig cfg) {
+        if (!_firstTunnelBuilt && cfg.getLength() > 1) {
+            _firstTunnelBuilt = true;
+            long uptime = _context.router().getUptime();
+            _context.statManager().addRateData("tunnel.firstTunnelTime", uptime);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("First tunnel built " + uptime + " ms after startup: " + cfg);
+        }
         if (cfg.getLength() > 1 &&
             (!_context.router().gracefulShutdownInProgress()) &&
             !_context.getBooleanPropertyDefaultTrue("router.disableTunnelTesting")) {
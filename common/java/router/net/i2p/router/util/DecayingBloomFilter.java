@@ -176,6 +176,24 @@ public class DecayingBloomFilter {
         } finally { releaseReadLock(); }
     }
     
+    /** 
+     * @return true if the entry is already known.  this does NOT add the
+     * entry however.
+     * @since 0.9.10
+     */
+    public boolean isKnown(byte entry[], int off, int len) {
+        if (ALWAYS_MISS) return false;
+        if (entry == null) 
+            throw new IllegalArgumentException("Null entry");
+        if (len != _entryBytes) 
+            throw new IllegalArgumentException("Bad entry [" + len + ", expected " 
+                                               + _entryBytes + "]");
+        getReadLock();
+        try {
+            return locked_add(entry, off, len, false);
+        } finally { releaseReadLock(); }
+    }
+    
     /** 
      * @return true if the entry added is a duplicate.  the number of low order 
      * bits used is determined by the entryBytes parameter used on creation of the
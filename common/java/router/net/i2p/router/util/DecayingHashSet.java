@@ -117,6 +117,25 @@ public class DecayingHashSet extends DecayingBloomFilter {
         } finally { releaseReadLock(); }
     }
 
+    /** 
+     * @return true if the entry is already known.  this does NOT add the
+     * entry however.
+     * @since 0.9.10
+     */
+    @Override
+    public boolean isKnown(byte entry[], int off, int len) {
+        if (entry == null) 
+            throw new IllegalArgumentException("Null entry");
+        if (len != _entryBytes) 
+            throw new IllegalArgumentException("Bad entry [" + len + ", expected " 
+                                               + _entryBytes + "]");
+        ArrayWrapper w = new ArrayWrapper(entry, off, len);
+        getReadLock();
+        try {
+            return locked_add(w, false);
+        } finally { releaseReadLock(); }
+    }
+
     /** 
      * @return true if the entry added is a duplicate.  the number of low order 
      * bits used is determined by the entryBytes parameter used on creation of the